@@ -0,0 +1,89 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the allocation profiler enabled and summarizes
+ * the stream benchmarks in MB/s and bytes allocated per MB of input. Any
+ * regular JMH command line options may be passed.
+ */
+public class BenchmarkRunner {
+	private static final double MB = 1024 * 1024;
+
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException, IOException {
+		Options options = new OptionsBuilder()
+			.parent(new CommandLineOptions(args))
+			.addProfiler(GCProfiler.class)
+			.build();
+
+		Collection<RunResult> results = new Runner(options).run();
+
+		Map<String, Integer> streamSizes = new HashMap<String, Integer>();
+		boolean headerShown = false;
+
+		for (RunResult result : results) {
+			String benchmark = result.getParams().getBenchmark();
+			String stream = result.getParams().getParam("stream");
+			if (stream == null)
+				continue;
+
+			Integer size = streamSizes.get(stream);
+			if (size == null) {
+				size = TerminalStreams.get(stream).length;
+				streamSizes.put(stream, size);
+			}
+
+			if (!headerShown) {
+				System.out.println();
+				System.out.println(String.format("%-40s %-10s %10s %14s",
+						"Benchmark", "Stream", "MB/s", "Alloc B/MB"));
+				headerShown = true;
+			}
+
+			double rate = Double.NaN;
+			double allocated = Double.NaN;
+			for (Map.Entry<String, Result> entry : result.getSecondaryResults().entrySet()) {
+				String label = entry.getKey();
+				if (label.equals("bytes"))
+					rate = entry.getValue().getScore() / MB;
+				else if (label.endsWith("gc.alloc.rate.norm"))
+					allocated = entry.getValue().getScore() / (size / MB);
+			}
+
+			System.out.println(String.format("%-40s %-10s %10.2f %14.1f",
+					benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1),
+					stream, rate, allocated));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mud.terminal.VDUBuffer;
+
+/**
+ * Exercises the VDUBuffer primitives the emulator relies on, one line or
+ * one character per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BufferBenchmark {
+	private static final int LINES = 1000;
+
+	@Param({ "24", "10000" })
+	public int scrollback;
+
+	private VDUBuffer buffer;
+	private int width;
+	private int height;
+
+	@Setup
+	public void setUp() {
+		buffer = new HeadlessTerminal(TerminalStreams.COLUMNS,
+				TerminalStreams.ROWS, scrollback);
+		width = buffer.getColumns();
+		height = buffer.getRows();
+
+		// start with a full scrollback like a long-lived session
+		for (int i = 0; i < scrollback; i++)
+			buffer.insertLine(height - 1);
+	}
+
+	/** Scroll the whole screen, as a newline at the bottom does. */
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public VDUBuffer insertLine() {
+		buffer.setMargins(0, height - 1);
+		for (int i = 0; i < LINES; i++)
+			buffer.insertLine(height - 1);
+		return buffer;
+	}
+
+	/** Scroll inside a region that leaves status lines untouched. */
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public VDUBuffer insertLineInMargins() {
+		buffer.setMargins(1, height - 3);
+		for (int i = 0; i < LINES; i++)
+			buffer.insertLine(height - 3);
+		return buffer;
+	}
+
+	/** Reverse scroll, as ESC M at the top of the screen does. */
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public VDUBuffer insertLineScrollDown() {
+		buffer.setMargins(0, height - 1);
+		for (int i = 0; i < LINES; i++)
+			buffer.insertLine(0, VDUBuffer.SCROLL_DOWN);
+		return buffer;
+	}
+
+	/** Fill the screen one character at a time. */
+	@Benchmark
+	@OperationsPerInvocation(TerminalStreams.COLUMNS * TerminalStreams.ROWS)
+	public VDUBuffer putChar() {
+		for (int l = 0; l < height; l++)
+			for (int c = 0; c < width; c++)
+				buffer.putChar(c, l, 'x', VDUBuffer.BOLD);
+		return buffer;
+	}
+}
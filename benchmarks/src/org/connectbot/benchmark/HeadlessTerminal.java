@@ -0,0 +1,92 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import de.mud.terminal.VDUBuffer;
+import de.mud.terminal.VDUDisplay;
+import de.mud.terminal.vt320;
+
+/**
+ * A vt320 that is not attached to any transport or screen, so that the
+ * emulation can be driven on its own.
+ */
+public class HeadlessTerminal extends vt320 {
+	public HeadlessTerminal(int columns, int rows, int scrollback) {
+		super(columns, rows);
+		setDisplay(new NullDisplay(this));
+		setBufferSize(scrollback);
+	}
+
+	/**
+	 * Feed pre-chunked characters through the emulator the way Relay does,
+	 * one putString() call per chunk.
+	 */
+	public void feed(TerminalStreams.Chunks chunks) {
+		for (int i = 0; i < chunks.chars.length; i++)
+			putString(chunks.chars[i], chunks.fullwidths[i], 0,
+					chunks.chars[i].length);
+	}
+
+	@Override
+	public void write(byte[] b) {
+	}
+
+	@Override
+	public void write(int b) {
+	}
+
+	@Override
+	public void sendTelnetCommand(byte cmd) {
+	}
+
+	@Override
+	public void setWindowSize(int c, int r) {
+	}
+
+	@Override
+	public void debug(String s) {
+	}
+
+	private static class NullDisplay implements VDUDisplay {
+		private VDUBuffer buffer;
+
+		NullDisplay(VDUBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public void redraw() {
+		}
+
+		public void updateScrollBar() {
+		}
+
+		public void setVDUBuffer(VDUBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		public VDUBuffer getVDUBuffer() {
+			return buffer;
+		}
+
+		public void setColor(int index, int red, int green, int blue) {
+		}
+
+		public void resetColors() {
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mud.terminal.Precomposer;
+
+/**
+ * Compares the Precomposer hash table with the binary search it replaced,
+ * one base and combining character pair per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrecomposerBenchmark {
+	private static final int PAIRS = 1024;
+
+	/**
+	 * "hits" looks up pairs from the table, "misses" pairs that do not
+	 * compose, like a combining mark after a digit.
+	 */
+	@Param({ "hits", "misses" })
+	public String pairs;
+
+	private char[] bases;
+	private char[] combiners;
+
+	@Setup
+	public void setUp() {
+		char[][] table = Precomposer.precompositions;
+
+		bases = new char[PAIRS];
+		combiners = new char[PAIRS];
+
+		for (int i = 0; i < PAIRS; i++) {
+			// spread over the whole table
+			char[] entry = table[(i * 7919) % table.length];
+
+			bases[i] = "hits".equals(pairs) ? entry[1] : (char) ('0' + i % 10);
+			combiners[i] = entry[2];
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public int hashLookup() {
+		int sum = 0;
+		for (int i = 0; i < PAIRS; i++)
+			sum += Precomposer.precompose(bases[i], combiners[i]);
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PAIRS)
+	public int binarySearch() {
+		int sum = 0;
+		for (int i = 0; i < PAIRS; i++)
+			sum += searchPrecompose(bases[i], combiners[i]);
+		return sum;
+	}
+
+	/** The lookup Precomposer used before, kept as the baseline. */
+	private static char searchPrecompose(char base, char comb) {
+		char[][] precompositions = Precomposer.precompositions;
+		int min = 0;
+		int max = precompositions.length - 1;
+		int mid;
+
+		long sought = base << 21 | comb;
+		long that;
+
+		while (max >= min) {
+			mid = (min + max) / 2;
+			that = precompositions[mid][1] << 21 | precompositions[mid][2];
+			if (that < sought)
+				min = mid + 1;
+			else if (that > sought)
+				max = mid - 1;
+			else
+				return precompositions[mid][0];
+		}
+
+		return base;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.mud.terminal.VDUBuffer;
+
+/**
+ * Runs whole terminal output streams through vt320. One operation is one
+ * pass over the stream; the "bytes" counter reports raw stream bytes per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerminalEmulationBenchmark {
+	@Param({ TerminalStreams.ASCII, TerminalStreams.SGR, TerminalStreams.CJK,
+			TerminalStreams.MARGINS })
+	public String stream;
+
+	@Param({ "1000" })
+	public int scrollback;
+
+	private byte[] data;
+	private TerminalStreams.Chunks chunks;
+	private HeadlessTerminal terminal;
+
+	/* Relay-style decoding state */
+	private CharsetDecoder decoder;
+	private ByteBuffer byteBuffer;
+	private CharBuffer charBuffer;
+	private byte[] wideAttribute;
+
+	/**
+	 * Counts the stream bytes handled so JMH reports them as a rate.
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		data = TerminalStreams.get(stream);
+		chunks = TerminalStreams.decode(data);
+		terminal = new HeadlessTerminal(TerminalStreams.COLUMNS,
+				TerminalStreams.ROWS, scrollback);
+
+		decoder = TerminalStreams.newDecoder();
+		byteBuffer = ByteBuffer.allocate(TerminalStreams.CHUNK_SIZE);
+		charBuffer = CharBuffer.allocate(TerminalStreams.CHUNK_SIZE);
+		wideAttribute = new byte[TerminalStreams.CHUNK_SIZE];
+	}
+
+	/**
+	 * Emulation only: the stream is already decoded into Relay-sized chunks.
+	 */
+	@Benchmark
+	public VDUBuffer emulate(Throughput throughput) {
+		terminal.feed(chunks);
+		throughput.bytes += data.length;
+		return terminal;
+	}
+
+	/**
+	 * The whole Relay loop: decode bytes as they would arrive from the
+	 * transport, measure widths and hand the characters to the emulator.
+	 */
+	@Benchmark
+	public VDUBuffer relay(Throughput throughput) {
+		byte[] byteArray = byteBuffer.array();
+		char[] charArray = charBuffer.array();
+		int position = 0;
+
+		byteBuffer.clear();
+		byteBuffer.limit(0);
+		charBuffer.clear();
+		decoder.reset();
+
+		while (position < data.length) {
+			int bytesToRead = Math.min(byteBuffer.capacity() - byteBuffer.limit(),
+					data.length - position);
+			int offset = byteBuffer.arrayOffset() + byteBuffer.limit();
+			System.arraycopy(data, position, byteArray, offset, bytesToRead);
+			position += bytesToRead;
+
+			byteBuffer.limit(byteBuffer.limit() + bytesToRead);
+			boolean underflow = decoder.decode(byteBuffer, charBuffer, false).isUnderflow();
+
+			if (underflow && byteBuffer.limit() == byteBuffer.capacity()) {
+				byteBuffer.compact();
+				byteBuffer.limit(byteBuffer.position());
+				byteBuffer.position(0);
+			}
+
+			int length = charBuffer.position();
+			TerminalStreams.measure(charArray, length, wideAttribute);
+			terminal.putString(charArray, wideAttribute, 0, length);
+			charBuffer.clear();
+		}
+
+		throughput.bytes += data.length;
+		return terminal;
+	}
+}
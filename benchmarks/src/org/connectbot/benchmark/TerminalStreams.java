@@ -0,0 +1,267 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Byte streams of typical terminal output used to drive the benchmarks.
+ * The built-in streams are generated from a fixed seed so every run sees
+ * the same input. A recording made with e.g. "script" can be used instead
+ * by passing "file:/path/to/recording" as the stream name.
+ */
+public class TerminalStreams {
+	/** Built-in stream names, usable as JMH parameter values. */
+	public static final String ASCII = "ascii";
+	public static final String SGR = "sgr";
+	public static final String CJK = "cjk";
+	public static final String MARGINS = "margins";
+
+	/** Same chunk size Relay decodes into. */
+	public static final int CHUNK_SIZE = 4096;
+
+	public static final int COLUMNS = 80;
+	public static final int ROWS = 24;
+
+	private static final int TARGET_SIZE = 1 << 20;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String ESC = "\u001b";
+
+	private static final String[] WORDS = {
+		"usb", "device", "kernel", "eth0", "link", "up", "mounted",
+		"filesystem", "ext4", "journal", "INFO", "WARN", "request",
+		"GET", "/index.html", "200", "1.1", "connection", "from",
+		"10.0.0.17", "port", "22", "session", "opened", "for", "user",
+		"root", "build", "compiling", "src/main.c", "-O2", "done",
+	};
+
+	/** Japanese, Chinese and Korean sample text. */
+	private static final String CJK_TEXT =
+		"\u65e5\u672c\u8a9e\u306e\u30c6\u30ad\u30b9\u30c8\u3092\u8868\u793a\u3057\u307e\u3059\u6f22\u5b57\u3068\u304b\u306a\u30ab\u30ca\u4e2d\u6587\u5b57\u7b26\u663e\u793a\u6d4b\u8bd5\ud55c\uad6d\uc5b4\ud14d\uc2a4\ud2b8";
+
+	/**
+	 * Characters of a stream split into the chunks Relay would hand to
+	 * vt320.putString(), together with their full-width flags.
+	 */
+	public static class Chunks {
+		public final char[][] chars;
+		public final byte[][] fullwidths;
+
+		Chunks(char[][] chars, byte[][] fullwidths) {
+			this.chars = chars;
+			this.fullwidths = fullwidths;
+		}
+	}
+
+	/**
+	 * @param name one of the built-in stream names or "file:" and a path
+	 * @return the raw bytes of the stream
+	 */
+	public static byte[] get(String name) throws IOException {
+		if (name.startsWith("file:"))
+			return load(name.substring(5));
+
+		StringBuilder sb = new StringBuilder(TARGET_SIZE);
+		Random random = new Random(42);
+
+		if (ASCII.equals(name))
+			generateAscii(sb, random);
+		else if (SGR.equals(name))
+			generateSgr(sb, random);
+		else if (CJK.equals(name))
+			generateCjk(sb, random);
+		else if (MARGINS.equals(name))
+			generateMargins(sb, random);
+		else
+			throw new IllegalArgumentException("Unknown stream " + name);
+
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	/**
+	 * Decode a stream as UTF-8 into Relay-sized chunks.
+	 */
+	public static Chunks decode(byte[] data) {
+		CharsetDecoder decoder = newDecoder();
+		CharBuffer all = CharBuffer.allocate(data.length);
+		decoder.decode(ByteBuffer.wrap(data), all, true);
+		decoder.flush(all);
+		all.flip();
+
+		List<char[]> chars = new ArrayList<char[]>();
+		List<byte[]> widths = new ArrayList<byte[]>();
+		while (all.hasRemaining()) {
+			char[] chunk = new char[Math.min(CHUNK_SIZE, all.remaining())];
+			all.get(chunk);
+			chars.add(chunk);
+			widths.add(measure(chunk, chunk.length));
+		}
+
+		return new Chunks(chars.toArray(new char[chars.size()][]),
+				widths.toArray(new byte[widths.size()][]));
+	}
+
+	public static CharsetDecoder newDecoder() {
+		CharsetDecoder decoder = UTF8.newDecoder();
+		decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		decoder.onMalformedInput(CodingErrorAction.REPLACE);
+		return decoder;
+	}
+
+	/**
+	 * Stand-in for the native EastAsianWidth.measure(), which is not
+	 * available outside of Android. It flags the common wide ranges.
+	 */
+	public static byte[] measure(char[] chars, int length) {
+		byte[] widths = new byte[length];
+		measure(chars, length, widths);
+		return widths;
+	}
+
+	public static void measure(char[] chars, int length, byte[] widths) {
+		for (int i = 0; i < length; i++) {
+			char c = chars[i];
+			widths[i] = (byte) (((c >= 0x1100 && c <= 0x115f)
+					|| (c >= 0x2e80 && c <= 0xa4cf)
+					|| (c >= 0xac00 && c <= 0xd7a3)
+					|| (c >= 0xf900 && c <= 0xfaff)
+					|| (c >= 0xff00 && c <= 0xff60)
+					|| (c >= 0xffe0 && c <= 0xffe6)) ? 1 : 0);
+		}
+	}
+
+	private static byte[] load(String path) throws IOException {
+		InputStream in = new FileInputStream(path);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int len;
+			while ((len = in.read(buf)) > 0)
+				out.write(buf, 0, len);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void appendWords(StringBuilder sb, Random random, int maxLength) {
+		int length = 20 + random.nextInt(maxLength - 20);
+		int start = sb.length();
+		while (sb.length() - start < length) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+			sb.append(' ');
+		}
+	}
+
+	/** Plain log output like dmesg or a tailed log file. */
+	private static void generateAscii(StringBuilder sb, Random random) {
+		while (sb.length() < TARGET_SIZE) {
+			sb.append('[');
+			sb.append(String.format("%5d.%06d", random.nextInt(100000), random.nextInt(1000000)));
+			sb.append("] ");
+			appendWords(sb, random, 140);
+			sb.append("\r\n");
+		}
+	}
+
+	/** Colored listings like ls --color mixed with htop-style screen updates. */
+	private static void generateSgr(StringBuilder sb, Random random) {
+		String[] colors = { "01;34", "01;32", "01;36", "00", "01;31", "40;33;01" };
+		while (sb.length() < TARGET_SIZE) {
+			// a few lines of ls --color
+			for (int line = 0; line < 8; line++) {
+				for (int entry = 0; entry < 5; entry++) {
+					sb.append(ESC).append('[').append(colors[random.nextInt(colors.length)]).append('m');
+					sb.append(WORDS[random.nextInt(WORDS.length)]);
+					sb.append(ESC).append("[0m  ");
+				}
+				sb.append("\r\n");
+			}
+
+			// one htop-like frame redrawn with cursor addressing
+			for (int row = 1; row <= ROWS; row++) {
+				sb.append(ESC).append('[').append(row).append(";1H");
+				if (row <= 4) {
+					sb.append(ESC).append("[1m").append(row).append(ESC).append("[0m[");
+					int bars = random.nextInt(40);
+					sb.append(ESC).append("[32m");
+					for (int i = 0; i < bars; i++)
+						sb.append('|');
+					sb.append(ESC).append("[31m||").append(ESC).append("[0m]");
+				} else {
+					sb.append(ESC).append("[30;46m");
+					sb.append(String.format("%6d root      20   0 %7d %6d S %4.1f",
+							random.nextInt(32768), random.nextInt(999999),
+							random.nextInt(99999), random.nextFloat() * 100));
+					sb.append(ESC).append("[0m ");
+					appendWords(sb, random, 40);
+				}
+				sb.append(ESC).append("[K");
+			}
+			sb.append(ESC).append("[").append(ROWS).append(";1H\r\n");
+		}
+	}
+
+	/** Mostly wide East Asian text with some ASCII in between. */
+	private static void generateCjk(StringBuilder sb, Random random) {
+		while (sb.length() < TARGET_SIZE) {
+			int length = 10 + random.nextInt(30);
+			for (int i = 0; i < length; i++) {
+				if (random.nextInt(8) == 0)
+					sb.append(' ').append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+				else
+					sb.append(CJK_TEXT.charAt(random.nextInt(CJK_TEXT.length())));
+			}
+			sb.append("\r\n");
+		}
+	}
+
+	/** Output scrolling inside a region, like a pager or chat client with status lines. */
+	private static void generateMargins(StringBuilder sb, Random random) {
+		sb.append(ESC).append("[2;").append(ROWS - 2).append('r');
+		int line = 0;
+		while (sb.length() < TARGET_SIZE) {
+			sb.append(ESC).append('[').append(ROWS - 2).append(";1H\n");
+			appendWords(sb, random, 78);
+
+			// refresh the status lines outside the region now and then
+			if (++line % 16 == 0) {
+				sb.append(ESC).append("7");
+				sb.append(ESC).append("[1;1H").append(ESC).append("[7m");
+				sb.append(String.format(" line %-10d", line)).append(ESC).append("[K");
+				sb.append(ESC).append('[').append(ROWS).append(";1H");
+				sb.append(ESC).append("[0m-- more --").append(ESC).append("[K");
+				sb.append(ESC).append("8");
+			}
+		}
+		sb.append(ESC).append("[r");
+	}
+}
@@ -0,0 +1,114 @@
+
+package com.trilead.ssh2;
+
+/**
+ * A <code>ChannelWindowParameters</code> object specifies how much data the
+ * peer may send on a channel before it has to wait for us to consume it
+ * (the SSH "window"). The window is also the amount of received data that a
+ * channel buffers locally.
+ * <p>
+ * A fixed window limits each channel to one window per round trip. On links
+ * with a large bandwidth-delay product, use the
+ * {@link #ChannelWindowParameters(int, int) auto-tuning} constructor: the
+ * window then starts small and, as long as the local reader keeps up with
+ * the data, grows to four times the measured throughput times the
+ * measured round trip time, at most doubling at a time and never beyond the
+ * given maximum.
+ * <p>
+ * Received data is kept in segments that are only allocated while data is
+ * actually buffered, so a large window costs no memory on an idle channel.
+ *
+ * @see Connection#setChannelWindowParameters(ChannelWindowParameters)
+ */
+
+public class ChannelWindowParameters
+{
+	private final int initialWindowSize;
+	private final int maxWindowSize;
+
+	/* Smaller windows make the peer send tiny packets */
+	private static final int MIN_ALLOWED = 4096;
+	/* Keeps the window (and the counters derived from it) far from 2^31 */
+	private static final int MAX_ALLOWED = 64 * 1024 * 1024;
+
+	/**
+	 * The window used if nothing else is specified, a fixed window of 30000
+	 * bytes.
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 30000;
+
+	/**
+	 * Same as calling {@link #ChannelWindowParameters(int)
+	 * ChannelWindowParameters(30000)}. This is also the default used by the
+	 * Connection class.
+	 */
+	public ChannelWindowParameters()
+	{
+		this(DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Use a fixed window.
+	 *
+	 * @param windowSize
+	 *            has to be &gt;= 4096 and &lt;= 64 MB
+	 */
+	public ChannelWindowParameters(int windowSize)
+	{
+		this(windowSize, windowSize);
+	}
+
+	/**
+	 * Use a window that grows from <code>initialWindowSize</code> up to
+	 * <code>maxWindowSize</code> as long as the link can fill it. If both
+	 * values are equal, the window is fixed.
+	 * <p>
+	 * All values have to be &gt;= 4096 and &lt;= 64 MB. Furthermore,
+	 * initialWindowSize &lt;= maxWindowSize.
+	 *
+	 * @param initialWindowSize
+	 * @param maxWindowSize
+	 */
+	public ChannelWindowParameters(int initialWindowSize, int maxWindowSize)
+	{
+		if ((initialWindowSize < MIN_ALLOWED) || (initialWindowSize > MAX_ALLOWED))
+			throw new IllegalArgumentException("initialWindowSize out of range!");
+
+		if ((maxWindowSize < MIN_ALLOWED) || (maxWindowSize > MAX_ALLOWED))
+			throw new IllegalArgumentException("maxWindowSize out of range!");
+
+		if (initialWindowSize > maxWindowSize)
+			throw new IllegalArgumentException("initialWindowSize is larger than maxWindowSize!");
+
+		this.initialWindowSize = initialWindowSize;
+		this.maxWindowSize = maxWindowSize;
+	}
+
+	/**
+	 * Get the window size that new channels start with.
+	 *
+	 * @return the initial window size in bytes
+	 */
+	public int getInitialWindowSize()
+	{
+		return initialWindowSize;
+	}
+
+	/**
+	 * Get the size up to which the window may grow.
+	 *
+	 * @return the maximum window size in bytes
+	 */
+	public int getMaxWindowSize()
+	{
+		return maxWindowSize;
+	}
+
+	/**
+	 * @return whether the window grows with the observed bandwidth-delay product
+	 */
+	public boolean isAutoTuning()
+	{
+		return maxWindowSize > initialWindowSize;
+	}
+}
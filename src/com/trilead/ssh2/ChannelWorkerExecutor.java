@@ -0,0 +1,201 @@
+
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>ChannelWorkerExecutor</code> runs the workers a connection needs
+ * besides its receive thread: two per remote port forwarding or X11
+ * connection (one for each direction) and one per agent forwarding channel.
+ * Workers spend most of their time blocked in a read.
+ * <p>
+ * By default every worker gets a platform thread of its own. On JDK 21 and
+ * later, {@link #newVirtualThreadExecutor()} runs them on virtual threads, so
+ * thousands of forwarded streams do not cost a thread stack each. Before JDK
+ * 24, a virtual thread waiting for channel data still occupies its carrier
+ * thread (the wait happens inside a monitor), which limits the gain to a few
+ * hundred concurrently blocked workers.
+ * <p>
+ * On older runtimes, {@link #newBoundedExecutor(int)} reuses idle platform
+ * threads and puts an upper limit on their number.
+ *
+ * @see Connection#setChannelWorkerExecutor(ChannelWorkerExecutor)
+ */
+public abstract class ChannelWorkerExecutor
+{
+	private static final ChannelWorkerExecutor DEFAULT = new ThreadPerWorker();
+
+	private static boolean virtualThreadsProbed = false;
+	private static ThreadFactory virtualThreadFactory;
+
+	/**
+	 * Run a worker.
+	 *
+	 * @param worker
+	 *            the worker, returns when its channel is done
+	 * @param name
+	 *            a name for the thread, for debugging
+	 * @throws IOException
+	 *             if the worker cannot be run right now. The channel it was
+	 *             meant for gets closed (or refused).
+	 */
+	public abstract void execute(Runnable worker, String name) throws IOException;
+
+	/**
+	 * Get the executor used if nothing else is specified. It starts a new
+	 * daemon platform thread for every worker.
+	 *
+	 * @return the default executor
+	 */
+	public static ChannelWorkerExecutor getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/**
+	 * @return whether the runtime supports virtual threads (JDK 21 and later)
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return getVirtualThreadFactory() != null;
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for every worker.
+	 *
+	 * @return a new executor
+	 * @throws UnsupportedOperationException
+	 *             if the runtime does not support virtual threads
+	 */
+	public static ChannelWorkerExecutor newVirtualThreadExecutor()
+	{
+		ThreadFactory factory = getVirtualThreadFactory();
+
+		if (factory == null)
+			throw new UnsupportedOperationException("This runtime does not support virtual threads.");
+
+		return new VirtualThreads(factory);
+	}
+
+	/**
+	 * Create an executor that runs workers on a pool of at most
+	 * <code>maxThreads</code> daemon platform threads. Idle threads are kept
+	 * for a minute. A worker that does not fit is refused instead of being
+	 * queued, since a queued forwarding would just hang.
+	 *
+	 * @param maxThreads
+	 *            has to be &gt; 0
+	 * @return a new executor
+	 */
+	public static ChannelWorkerExecutor newBoundedExecutor(int maxThreads)
+	{
+		if (maxThreads <= 0)
+			throw new IllegalArgumentException("maxThreads must be positive");
+
+		return new BoundedPool(maxThreads);
+	}
+
+	private static synchronized ThreadFactory getVirtualThreadFactory()
+	{
+		if (!virtualThreadsProbed)
+		{
+			virtualThreadsProbed = true;
+
+			/* Thread.ofVirtual().factory(), by reflection so that this still builds for older targets */
+
+			try
+			{
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+				virtualThreadFactory = (ThreadFactory) factory.invoke(builder);
+			}
+			catch (Exception e)
+			{
+				virtualThreadFactory = null;
+			}
+		}
+
+		return virtualThreadFactory;
+	}
+
+	private static class ThreadPerWorker extends ChannelWorkerExecutor
+	{
+		public void execute(Runnable worker, String name) throws IOException
+		{
+			Thread t = new Thread(worker, name);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	private static class VirtualThreads extends ChannelWorkerExecutor
+	{
+		private final ThreadFactory factory;
+
+		VirtualThreads(ThreadFactory factory)
+		{
+			this.factory = factory;
+		}
+
+		public void execute(Runnable worker, String name) throws IOException
+		{
+			Thread t = factory.newThread(worker);
+			t.setName(name);
+			t.start();
+		}
+	}
+
+	private static class BoundedPool extends ChannelWorkerExecutor
+	{
+		private final ThreadPoolExecutor pool;
+
+		BoundedPool(int maxThreads)
+		{
+			pool = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue(),
+					new ThreadFactory()
+					{
+						public Thread newThread(Runnable r)
+						{
+							Thread t = new Thread(r, "ChannelWorker");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+
+		public void execute(final Runnable worker, final String name) throws IOException
+		{
+			try
+			{
+				pool.execute(new Runnable()
+				{
+					public void run()
+					{
+						Thread t = Thread.currentThread();
+						t.setName(name);
+
+						try
+						{
+							worker.run();
+						}
+						finally
+						{
+							t.setName("ChannelWorker");
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				throw new IOException("All " + pool.getMaximumPoolSize() + " worker threads are busy.");
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+
+package com.trilead.ssh2;
+
+/**
+ * Compression counters of a connection, a snapshot taken by
+ * {@link Connection#getCompressionStatistics()}. All counters cover the
+ * whole lifetime of the connection, across key exchanges. They stay at zero
+ * as long as compression is not active (not negotiated, or
+ * zlib@openssh.com before authentication).
+ */
+public class CompressionStatistics
+{
+	/**
+	 * Payload bytes handed to the compressor for sending.
+	 */
+	public long sentBytesUncompressed;
+
+	/**
+	 * What the compressor made of them, i.e., payload bytes actually sent.
+	 */
+	public long sentBytesCompressed;
+
+	/**
+	 * Time spent compressing, in nanoseconds.
+	 */
+	public long compressNanos;
+
+	/**
+	 * Compressed payload bytes received.
+	 */
+	public long receivedBytesCompressed;
+
+	/**
+	 * What they inflated to.
+	 */
+	public long receivedBytesUncompressed;
+
+	/**
+	 * Time spent inflating, in nanoseconds.
+	 */
+	public long uncompressNanos;
+
+	/**
+	 * Whether adaptive compression currently sends stored (uncompressed)
+	 * blocks, because compressing did not pay off on this link.
+	 */
+	public boolean sendCompressionSuspended;
+
+	/**
+	 * How often adaptive compression has suspended compression so far.
+	 */
+	public int sendCompressionSuspensions;
+
+	/**
+	 * @return sent bytes after compression divided by bytes before, 1.0 if
+	 *         nothing has been compressed yet
+	 */
+	public double getSendRatio()
+	{
+		return (sentBytesUncompressed == 0) ? 1.0 : (double) sentBytesCompressed / sentBytesUncompressed;
+	}
+
+	/**
+	 * @return received bytes before inflating divided by bytes after, 1.0 if
+	 *         nothing has been inflated yet
+	 */
+	public double getReceiveRatio()
+	{
+		return (receivedBytesUncompressed == 0) ? 1.0 : (double) receivedBytesCompressed
+				/ receivedBytesUncompressed;
+	}
+}
@@ -12,6 +12,7 @@ import java.util.Vector;
 
 import com.trilead.ssh2.auth.AuthenticationManager;
 import com.trilead.ssh2.channel.ChannelManager;
+import com.trilead.ssh2.compression.JavaZlib;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
 import com.trilead.ssh2.crypto.digest.MAC;
@@ -90,12 +91,19 @@ public class Connection
 
 	private boolean authenticated = false;
 	private boolean compression = false;
+	private int compressionLevel = JavaZlib.DEFAULT_LEVEL;
+	private boolean adaptiveCompression = false;
+	private long linkBytesPerSecond = 0;
 	private ChannelManager cm;
 
 	private CryptoWishList cryptoWishList = new CryptoWishList();
 
 	private DHGexParameters dhgexpara = new DHGexParameters();
 
+	private ChannelWindowParameters windowParameters = new ChannelWindowParameters();
+
+	private ChannelWorkerExecutor workerExecutor = ChannelWorkerExecutor.getDefault();
+
 	private final String hostname;
 
 	private final int port;
@@ -108,6 +116,10 @@ public class Connection
 
 	private Vector<ConnectionMonitor> connectionMonitors = new Vector<ConnectionMonitor>();
 
+	private Vector<ConnectionTimingListener> timingListeners = new Vector<ConnectionTimingListener>();
+
+	private ConnectionTiming timing;
+
 	/**
 	 * Prepares a fresh <code>Connection</code> object which can then be used
 	 * to establish a connection to the specified SSH-2 server.
@@ -181,7 +193,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -264,7 +276,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -312,7 +324,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -363,7 +375,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -433,7 +445,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -486,7 +498,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		if (user == null)
 			throw new IllegalArgumentException("user argument is null");
@@ -575,6 +587,36 @@ public class Connection
 			tm.setConnectionMonitors(connectionMonitors);
 	}
 
+	/**
+	 * Add a {@link ConnectionTimingListener}, it is told how long each phase
+	 * of setting up the connection took (DNS, TCP connect, key exchange,
+	 * authentication attempts). Add it before calling
+	 * <code>connect()</code>, listeners added later are only used by the
+	 * next connect().
+	 * 
+	 * @param listener
+	 *            An object implementing the
+	 *            <code>ConnectionTimingListener</code> interface.
+	 */
+	public synchronized void addConnectionTimingListener(ConnectionTimingListener listener)
+	{
+		if (listener == null)
+			throw new IllegalArgumentException("listener argument is null");
+
+		timingListeners.addElement(listener);
+	}
+
+	/**
+	 * Returns the phases of setting up this connection recorded so far.
+	 * 
+	 * @return the timing of the latest connect(), or null if connect() has
+	 *         not been called yet
+	 */
+	public synchronized ConnectionTiming getConnectionTiming()
+	{
+		return timing;
+	}
+
 	/**
 	 * Controls whether compression is used on the link or not.
 	 * <p>
@@ -588,6 +630,67 @@ public class Connection
 		
 		compression = enabled;
 	}
+
+	/**
+	 * Sets the zlib compression level for data sent to the server, if
+	 * compression is enabled. Lower levels cost less CPU, which matters more
+	 * than the ratio on fast links and slow devices.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * @param level 0 (none) to 9 (best), or -1 for zlib's default. The
+	 *        default is {@link JavaZlib#DEFAULT_LEVEL}.
+	 * @throws IOException
+	 */
+	public synchronized void setCompressionLevel(int level) throws IOException {
+		if (tm != null)
+			throw new IOException("Connection to " + hostname + " is already in connected state!");
+
+		if ((level < -1) || (level > 9))
+			throw new IllegalArgumentException("level must be between 0 and 9, or -1");
+
+		compressionLevel = level;
+	}
+
+	/**
+	 * Lets the connection stop compressing outgoing data (it sends stored
+	 * blocks instead) while compression does not pay off: when it saves
+	 * almost nothing, e.g., for already compressed files, or when it takes
+	 * longer than sending the saved bytes would take. Compression is tried
+	 * again from time to time. Incoming data is compressed the way the server
+	 * decides.
+	 * <p>
+	 * Note: This can only be called before connect()
+	 * @param enabled whether to adapt
+	 * @param linkBytesPerSecond an estimate of the link speed, used to weigh
+	 *        CPU time against the bytes saved. Pass 0 if unknown, then only
+	 *        the ratio counts.
+	 * @throws IOException
+	 * @see #getCompressionStatistics()
+	 */
+	public synchronized void setAdaptiveCompression(boolean enabled, long linkBytesPerSecond) throws IOException {
+		if (tm != null)
+			throw new IOException("Connection to " + hostname + " is already in connected state!");
+
+		if (linkBytesPerSecond < 0)
+			throw new IllegalArgumentException("linkBytesPerSecond must be non-negative");
+
+		adaptiveCompression = enabled;
+		this.linkBytesPerSecond = linkBytesPerSecond;
+	}
+
+	/**
+	 * Returns how much compression has saved on this connection so far, and
+	 * what it cost.
+	 *
+	 * @return a snapshot of the counters
+	 */
+	public synchronized CompressionStatistics getCompressionStatistics()
+	{
+		if (tm == null)
+			throw new IllegalStateException(
+					"Cannot get compression statistics, you need to establish a connection first.");
+		return tm.getCompressionStatistics();
+	}
 	
 	/**
 	 * Close the connection to the SSH-2 server. All assigned sessions will be
@@ -749,6 +852,11 @@ public class Connection
 		tm = new TransportManager(hostname, port);
 
 		tm.setConnectionMonitors(connectionMonitors);
+		tm.setCompressionLevel(compressionLevel);
+
+		timing = new ConnectionTiming(timingListeners);
+		tm.setConnectionTiming(timing);
+		tm.setAdaptiveCompression(adaptiveCompression, linkBytesPerSecond);
 
 		// Don't offer compression if not requested
 		if (!compression) {
@@ -1126,7 +1234,7 @@ public class Connection
 			am = new AuthenticationManager(tm);
 
 		if (cm == null)
-			cm = new ChannelManager(tm);
+			cm = new ChannelManager(tm, windowParameters, workerExecutor);
 
 		return am.getRemainingMethods(user);
 	}
@@ -1353,6 +1461,47 @@ public class Connection
 		dhgexpara = dgp;
 	}
 
+	/**
+	 * Sets the window and buffer sizing for channels (sessions, port
+	 * forwardings, SFTP). The default is a fixed window as defined in the
+	 * {@link ChannelWindowParameters} class. Can be called at any time, the
+	 * values are used for all channels opened afterwards.
+	 * 
+	 * @param cwp
+	 *            {@link ChannelWindowParameters}, non null.
+	 */
+	public synchronized void setChannelWindowParameters(ChannelWindowParameters cwp)
+	{
+		if (cwp == null)
+			throw new IllegalArgumentException();
+
+		windowParameters = cwp;
+
+		if (cm != null)
+			cm.setWindowParameters(cwp);
+	}
+
+	/**
+	 * Sets how the worker threads of this connection are run (remote port
+	 * forwardings, X11 and agent forwarding use one or two per channel). The
+	 * default is a new platform thread per worker, see
+	 * {@link ChannelWorkerExecutor} for alternatives. Can be called at any
+	 * time, the executor is used for all workers started afterwards.
+	 * 
+	 * @param executor
+	 *            {@link ChannelWorkerExecutor}, non null.
+	 */
+	public synchronized void setChannelWorkerExecutor(ChannelWorkerExecutor executor)
+	{
+		if (executor == null)
+			throw new IllegalArgumentException();
+
+		workerExecutor = executor;
+
+		if (cm != null)
+			cm.setWorkerExecutor(executor);
+	}
+
 	/**
 	 * Unless you know what you are doing, you will never need this.
 	 * 
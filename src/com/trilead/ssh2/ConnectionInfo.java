@@ -50,4 +50,10 @@ public class ConnectionInfo
 	 * Number of kex exchanges performed on this connection so far.
 	 */
 	public int keyExchangeCounter = 0;
+
+	/**
+	 * How long the phases of setting up the connection took, including the
+	 * latest key exchange.
+	 */
+	public ConnectionTiming timing;
 }
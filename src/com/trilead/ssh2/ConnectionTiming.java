@@ -0,0 +1,197 @@
+
+package com.trilead.ssh2;
+
+import java.util.Vector;
+
+/**
+ * Where the time went while a connection was set up. Every phase is recorded
+ * with {@link System#nanoTime()} timestamps when it ends, and passed on to
+ * the {@link ConnectionTimingListener}s of the connection.
+ * <p>
+ * The key exchange phases are recorded again on every re-key, but only
+ * those of the first exchange and of the latest re-key are kept, so the
+ * list does not grow over the life of the connection. Phases that run into
+ * an error are not recorded. Authentication attempts are the
+ * exception: they are recorded whether they succeed or not.
+ *
+ * @see Connection#getConnectionTiming()
+ */
+public class ConnectionTiming
+{
+	/** Resolving the host name (of the proxy, if there is one). */
+	public static final String DNS_RESOLVE = "dns";
+
+	/** Establishing the TCP connection (to the proxy, if there is one). */
+	public static final String TCP_CONNECT = "tcp-connect";
+
+	/** Exchanging the SSH version lines. */
+	public static final String VERSION_EXCHANGE = "version-exchange";
+
+	/** From sending our KEXINIT until the server's has arrived. */
+	public static final String KEXINIT = "kexinit";
+
+	/**
+	 * Diffie-Hellman arithmetic, the detail is either "keypair" or "shared
+	 * secret".
+	 */
+	public static final String DH_COMPUTE = "dh-compute";
+
+	/** The ServerHostKeyVerifier, including any user interaction it does. */
+	public static final String HOST_KEY_VERIFICATION = "host-key-verification";
+
+	/** From sending our NEWKEYS until the server's has arrived. */
+	public static final String NEWKEYS = "newkeys";
+
+	/**
+	 * One authentication attempt, the detail is the method. The first
+	 * attempt on a connection is "none", it includes the service request.
+	 */
+	public static final String AUTH = "auth";
+
+	/**
+	 * A finished phase.
+	 */
+	public static class Phase
+	{
+		/** One of the phase constants of {@link ConnectionTiming}. */
+		public final String name;
+
+		/** More about the phase, may be null. */
+		public final String detail;
+
+		public final long startNanos;
+		public final long endNanos;
+
+		/** False only for authentication attempts that did not succeed. */
+		public final boolean succeeded;
+
+		Phase(String name, String detail, long startNanos, long endNanos, boolean succeeded)
+		{
+			this.name = name;
+			this.detail = detail;
+			this.startNanos = startNanos;
+			this.endNanos = endNanos;
+			this.succeeded = succeeded;
+		}
+
+		public long getDurationMillis()
+		{
+			return (endNanos - startNanos) / 1000000;
+		}
+
+		public String toString()
+		{
+			return name + ((detail != null) ? " (" + detail + ")" : "") + ": " + getDurationMillis() + " ms"
+					+ (succeeded ? "" : ", failed");
+		}
+	}
+
+	private final long startNanos = System.nanoTime();
+
+	private final Vector phases = new Vector();
+
+	/* Guarded by phases. Where the latest re-key starts in phases, -1 before the first re-key */
+	private int rekeyStart = -1;
+	private boolean firstKexDone = false;
+
+	private final Vector listeners;
+
+	public ConnectionTiming()
+	{
+		this(null);
+	}
+
+	/**
+	 * @param listeners copied, may be null
+	 */
+	public ConnectionTiming(Vector listeners)
+	{
+		this.listeners = (listeners != null) ? (Vector) listeners.clone() : new Vector();
+	}
+
+	/**
+	 * Record a phase that ends now.
+	 *
+	 * @param name one of the phase constants
+	 * @param detail may be null
+	 * @param startNanos when the phase started, from System.nanoTime()
+	 * @param succeeded see {@link Phase#succeeded}
+	 */
+	public void record(String name, String detail, long startNanos, boolean succeeded)
+	{
+		Phase phase = new Phase(name, detail, startNanos, System.nanoTime(), succeeded);
+
+		synchronized (phases)
+		{
+			/* KEXINIT is the first phase of an exchange, a new re-key replaces the last one */
+
+			if (firstKexDone && KEXINIT.equals(name))
+			{
+				if (rekeyStart >= 0)
+				{
+					for (int i = phases.size() - 1; i >= rekeyStart; i--)
+					{
+						if (AUTH.equals(((Phase) phases.elementAt(i)).name) == false)
+							phases.removeElementAt(i);
+					}
+				}
+
+				rekeyStart = phases.size();
+			}
+
+			if (NEWKEYS.equals(name))
+				firstKexDone = true;
+
+			phases.addElement(phase);
+		}
+
+		for (int i = 0; i < listeners.size(); i++)
+		{
+			ConnectionTimingListener l = (ConnectionTimingListener) listeners.elementAt(i);
+
+			try
+			{
+				l.phaseCompleted(this, phase);
+			}
+			catch (Exception ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * @return when the connection attempt started, from System.nanoTime()
+	 */
+	public long getStartNanos()
+	{
+		return startNanos;
+	}
+
+	/**
+	 * @return the phases recorded so far, in the order they ended
+	 */
+	public Phase[] getPhases()
+	{
+		synchronized (phases)
+		{
+			Phase[] res = new Phase[phases.size()];
+			phases.copyInto(res);
+			return res;
+		}
+	}
+
+	/**
+	 * @return milliseconds from the start of the connection attempt to the
+	 *         end of the last recorded phase
+	 */
+	public long getElapsedMillis()
+	{
+		synchronized (phases)
+		{
+			if (phases.size() == 0)
+				return 0;
+
+			return (((Phase) phases.lastElement()).endNanos - startNanos) / 1000000;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+
+package com.trilead.ssh2;
+
+/**
+ * A <code>ConnectionTimingListener</code> is told about every phase of
+ * connection setup as soon as it has ended.
+ * <p>
+ * The calls come from whatever thread finished the phase, which may be the
+ * receive thread of the connection. Implementations must return quickly and
+ * must not use the connection.
+ *
+ * @see Connection#addConnectionTimingListener(ConnectionTimingListener)
+ */
+public interface ConnectionTimingListener
+{
+	/**
+	 * @param timing all phases of the connection so far
+	 * @param phase the phase that has just ended
+	 */
+	public void phaseCompleted(ConnectionTiming timing, ConnectionTiming.Phase phase);
+}
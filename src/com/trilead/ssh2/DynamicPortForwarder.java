@@ -21,7 +21,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import com.trilead.ssh2.channel.ChannelManager;
-import com.trilead.ssh2.channel.DynamicAcceptThread;
+import com.trilead.ssh2.channel.ForwardingEngine;
 
 /**
  * A <code>DynamicPortForwarder</code> forwards TCP/IP connections to a local
@@ -35,24 +35,20 @@ import com.trilead.ssh2.channel.DynamicAcceptThread;
 public class DynamicPortForwarder {
 	ChannelManager cm;
 
-	DynamicAcceptThread dat;
+	ForwardingEngine.Acceptor acceptor;
 
 	DynamicPortForwarder(ChannelManager cm, int local_port)
 			throws IOException
 	{
 		this.cm = cm;
 
-		dat = new DynamicAcceptThread(cm, local_port);
-		dat.setDaemon(true);
-		dat.start();
+		acceptor = cm.getForwardingEngine().acceptDynamic(new InetSocketAddress(local_port));
 	}
 
 	DynamicPortForwarder(ChannelManager cm, InetSocketAddress addr) throws IOException {
 		this.cm = cm;
 
-		dat = new DynamicAcceptThread(cm, addr);
-		dat.setDaemon(true);
-		dat.start();
+		acceptor = cm.getForwardingEngine().acceptDynamic(addr);
 	}
 
 	/**
@@ -62,6 +58,6 @@ public class DynamicPortForwarder {
 	 */
 	public void close() throws IOException
 	{
-		dat.stopWorking();
+		acceptor.close();
 	}
 }
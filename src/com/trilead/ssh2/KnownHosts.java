@@ -12,6 +12,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Vector;
@@ -38,6 +39,12 @@ import com.trilead.ssh2.signature.RSASHA1Verify;
  * <p>
  * It is a thread safe implementation, therefore, you need only to instantiate one
  * <code>KnownHosts</code> for your whole application.
+ * <p>
+ * Entries are indexed when they are added: a plain hostname pattern is found with a
+ * single hash table lookup, and hashed patterns (<code>|1|salt|hash</code>) are grouped
+ * by salt, so that a lookup computes one HMAC per distinct salt instead of decoding
+ * and hashing every pattern. Only entries with wildcard or negated patterns are
+ * matched one by one.
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: KnownHosts.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
@@ -61,7 +68,26 @@ public class KnownHosts
 		}
 	}
 
-	private LinkedList publicKeys = new LinkedList();
+	/* Hashed patterns that share a salt, by their base64 hash value */
+	private class SaltBucket
+	{
+		byte[] salt;
+		HashMap entries = new HashMap();
+
+		SaltBucket(byte[] salt)
+		{
+			this.salt = salt;
+		}
+	}
+
+	/* Entries with wildcard or negated patterns, also the lock for the indexes */
+	private final LinkedList patternEntries = new LinkedList();
+
+	/* Lowercase hostname -> LinkedList of entries */
+	private final HashMap plainIndex = new HashMap();
+
+	/* Base64 salt -> SaltBucket */
+	private final HashMap saltIndex = new HashMap();
 
 	public KnownHosts()
 	{
@@ -93,28 +119,230 @@ public class KnownHosts
 		if (hostnames == null)
 			throw new IllegalArgumentException("hostnames may not be null");
 
+		addEntry(createEntry(hostnames, serverHostKeyAlgorithm, serverHostKey));
+	}
+
+	private KnownHostsEntry createEntry(String hostnames[], String serverHostKeyAlgorithm, byte[] serverHostKey)
+			throws IOException
+	{
 		if ("ssh-rsa".equals(serverHostKeyAlgorithm))
 		{
 			RSAPublicKey rpk = RSASHA1Verify.decodeSSHRSAPublicKey(serverHostKey);
 
-			synchronized (publicKeys)
-			{
-				publicKeys.add(new KnownHostsEntry(hostnames, rpk));
-			}
+			return new KnownHostsEntry(hostnames, rpk);
 		}
 		else if ("ssh-dss".equals(serverHostKeyAlgorithm))
 		{
 			DSAPublicKey dpk = DSASHA1Verify.decodeSSHDSAPublicKey(serverHostKey);
 
-			synchronized (publicKeys)
-			{
-				publicKeys.add(new KnownHostsEntry(hostnames, dpk));
-			}
+			return new KnownHostsEntry(hostnames, dpk);
 		}
 		else
 			throw new IOException("Unknwon host key type (" + serverHostKeyAlgorithm + ")");
 	}
 
+	/**
+	 * Removes all entries that were added for exactly this hostname (compared
+	 * case-insensitively), e.g., before adding the new key of a host with
+	 * <code>addHostkey()</code>. Entries with hashed, wildcard or negated patterns
+	 * are not touched. Note: this will NOT change any physical file.
+	 * 
+	 * @param hostname
+	 */
+	public void removeHostkeys(String hostname)
+	{
+		if (hostname == null)
+			throw new IllegalArgumentException("hostname may not be null");
+
+		synchronized (patternEntries)
+		{
+			plainIndex.remove(hostname.toLowerCase());
+		}
+	}
+
+	/**
+	 * Replaces all entries that were added for exactly this hostname (compared
+	 * case-insensitively) with the given keys. Unlike <code>removeHostkeys()</code>
+	 * followed by <code>addHostkey()</code>, this happens in one step: a concurrent
+	 * <code>verifyHostkey()</code> sees either the old or the new keys, never a host
+	 * without any. Entries with hashed, wildcard or negated patterns are not touched.
+	 * Note: this will NOT change any physical file.
+	 * 
+	 * @param hostname a plain hostname, no pattern.
+	 * @param serverHostKeyAlgorithms one per key, as passed to the {@link ServerHostKeyVerifier}.
+	 * @param serverHostKeys the new keys, may be empty to just remove the old ones.
+	 * @throws IOException if a key cannot be decoded, nothing is changed then.
+	 */
+	public void replaceHostkeys(String hostname, String[] serverHostKeyAlgorithms, byte[][] serverHostKeys)
+			throws IOException
+	{
+		if (hostname == null)
+			throw new IllegalArgumentException("hostname may not be null");
+
+		String[] patterns = new String[] { hostname };
+
+		if ((hostname.length() == 0) || (hostname.charAt(0) == '|') || (isIndexable(patterns) == false))
+			throw new IllegalArgumentException("hostname has to be a plain hostname");
+
+		if (serverHostKeyAlgorithms.length != serverHostKeys.length)
+			throw new IllegalArgumentException("need one algorithm per key");
+
+		/* Decode everything first, so that a bad key leaves the old entries in place */
+
+		LinkedList entries = new LinkedList();
+
+		for (int i = 0; i < serverHostKeys.length; i++)
+			entries.add(createEntry(patterns, serverHostKeyAlgorithms[i], serverHostKeys[i]));
+
+		synchronized (patternEntries)
+		{
+			if (entries.size() == 0)
+				plainIndex.remove(hostname.toLowerCase());
+			else
+				plainIndex.put(hostname.toLowerCase(), entries);
+		}
+	}
+
+	private void addEntry(KnownHostsEntry ke)
+	{
+		synchronized (patternEntries)
+		{
+			if (isIndexable(ke.patterns) == false)
+			{
+				patternEntries.add(ke);
+				return;
+			}
+
+			for (int i = 0; i < ke.patterns.length; i++)
+			{
+				String pattern = ke.patterns[i];
+
+				if ((pattern == null) || (pattern.length() == 0))
+					continue;
+
+				if (pattern.charAt(0) == '|')
+					addHashed(pattern, ke);
+				else
+					addToIndex(plainIndex, pattern.toLowerCase(), ke);
+			}
+		}
+	}
+
+	/* Plain and hashed patterns only, nothing that has to be matched */
+	private static final boolean isIndexable(String[] patterns)
+	{
+		for (int i = 0; i < patterns.length; i++)
+		{
+			String pattern = patterns[i];
+
+			if ((pattern == null) || (pattern.length() == 0))
+				continue;
+
+			if (pattern.charAt(0) == '!')
+				return false;
+
+			if ((pattern.charAt(0) != '|') && ((pattern.indexOf('?') != -1) || (pattern.indexOf('*') != -1)))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void addHashed(String pattern, KnownHostsEntry ke)
+	{
+		/* A pattern that cannot be parsed never matches, see checkHashed() */
+
+		if (pattern.startsWith("|1|") == false)
+			return;
+
+		int delim_idx = pattern.indexOf('|', 3);
+
+		if (delim_idx == -1)
+			return;
+
+		byte[] salt = null;
+		byte[] hash = null;
+
+		try
+		{
+			salt = Base64.decode(pattern.substring(3, delim_idx).toCharArray());
+			hash = Base64.decode(pattern.substring(delim_idx + 1).toCharArray());
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+
+		SHA1 sha1 = new SHA1();
+
+		if ((salt.length != sha1.getDigestLength()) || (hash.length != sha1.getDigestLength()))
+			return;
+
+		String saltKey = new String(Base64.encode(salt));
+
+		SaltBucket bucket = (SaltBucket) saltIndex.get(saltKey);
+
+		if (bucket == null)
+		{
+			bucket = new SaltBucket(salt);
+			saltIndex.put(saltKey, bucket);
+		}
+
+		addToIndex(bucket.entries, new String(Base64.encode(hash)), ke);
+	}
+
+	private static final void addToIndex(HashMap index, String key, KnownHostsEntry ke)
+	{
+		LinkedList l = (LinkedList) index.get(key);
+
+		if (l == null)
+		{
+			l = new LinkedList();
+			index.put(key, l);
+		}
+
+		l.add(ke);
+	}
+
+	/* Must hold the patternEntries lock */
+	private LinkedList findEntries(String hostname)
+	{
+		LinkedList res = new LinkedList();
+
+		hostname = hostname.toLowerCase();
+
+		LinkedList l = (LinkedList) plainIndex.get(hostname);
+
+		if (l != null)
+			res.addAll(l);
+
+		Iterator i = saltIndex.values().iterator();
+
+		while (i.hasNext())
+		{
+			SaltBucket bucket = (SaltBucket) i.next();
+
+			byte[] dig = hmacSha1Hash(bucket.salt, hostname);
+
+			l = (LinkedList) bucket.entries.get(new String(Base64.encode(dig)));
+
+			if (l != null)
+				res.addAll(l);
+		}
+
+		i = patternEntries.iterator();
+
+		while (i.hasNext())
+		{
+			KnownHostsEntry ke = (KnownHostsEntry) i.next();
+
+			if (hostnameMatches(ke.patterns, hostname))
+				res.add(ke);
+		}
+
+		return res;
+	}
+
 	/**
 	 * Parses the given known_hosts data and adds entries to the database.
 	 * 
@@ -230,17 +458,14 @@ public class KnownHosts
 	{
 		int result = HOSTKEY_IS_NEW;
 
-		synchronized (publicKeys)
+		synchronized (patternEntries)
 		{
-			Iterator i = publicKeys.iterator();
+			Iterator i = findEntries(remoteHostname).iterator();
 			
 			while (i.hasNext())
 			{
 				KnownHostsEntry ke = (KnownHostsEntry) i.next();
 
-				if (hostnameMatches(ke.patterns, remoteHostname) == false)
-					continue;
-
 				boolean res = matchKeys(ke.key, remoteKey);
 
 				if (res == true)
@@ -256,17 +481,14 @@ public class KnownHosts
 	{
 		Vector keys = new Vector();
 
-		synchronized (publicKeys)
+		synchronized (patternEntries)
 		{
-			Iterator i = publicKeys.iterator();
+			Iterator i = findEntries(hostname).iterator();
 
 			while (i.hasNext())
 			{
 				KnownHostsEntry ke = (KnownHostsEntry) i.next();
 
-				if (hostnameMatches(ke.patterns, hostname) == false)
-					continue;
-
 				keys.addElement(ke.key);
 			}
 		}
@@ -5,7 +5,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 
 import com.trilead.ssh2.channel.ChannelManager;
-import com.trilead.ssh2.channel.LocalAcceptThread;
+import com.trilead.ssh2.channel.ForwardingEngine;
 
 
 /**
@@ -25,7 +25,7 @@ public class LocalPortForwarder
 
 	int port_to_connect;
 
-	LocalAcceptThread lat;
+	ForwardingEngine.Acceptor acceptor;
 
 	LocalPortForwarder(ChannelManager cm, int local_port, String host_to_connect, int port_to_connect)
 			throws IOException
@@ -34,9 +34,8 @@ public class LocalPortForwarder
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		lat = new LocalAcceptThread(cm, local_port, host_to_connect, port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		acceptor = cm.getForwardingEngine().acceptLocal(new InetSocketAddress(local_port), host_to_connect,
+				port_to_connect);
 	}
 
 	LocalPortForwarder(ChannelManager cm, InetSocketAddress addr, String host_to_connect, int port_to_connect)
@@ -46,9 +45,7 @@ public class LocalPortForwarder
 		this.host_to_connect = host_to_connect;
 		this.port_to_connect = port_to_connect;
 
-		lat = new LocalAcceptThread(cm, addr, host_to_connect, port_to_connect);
-		lat.setDaemon(true);
-		lat.start();
+		acceptor = cm.getForwardingEngine().acceptLocal(addr, host_to_connect, port_to_connect);
 	}
 
 	/**
@@ -58,6 +55,6 @@ public class LocalPortForwarder
 	 */
 	public void close() throws IOException
 	{
-		lat.stopWorking();
+		acceptor.close();
 	}
 }
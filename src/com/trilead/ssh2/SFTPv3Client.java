@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Vector;
 
 import com.trilead.ssh2.packets.TypesReader;
@@ -22,6 +23,12 @@ import com.trilead.ssh2.sftp.Packet;
  * client connection tunnelled over a SSH-2 connection. This is a very simple
  * (synchronous) implementation.
  * <p>
+ * Bulk transfers do not wait for each request to be answered: {@link #write(SFTPv3FileHandle, long, byte[], int, int) write()},
+ * {@link SFTPv3FileInputStream}, {@link SFTPv3FileOutputStream} and the whole-file
+ * {@link #get(String, OutputStream) get()} and {@link #put(InputStream, String) put()}
+ * methods keep up to {@link #setRequestQueueDepth(int) a number of} read or write
+ * requests in flight and match the responses by their request id.
+ * <p>
  * Basically, most methods in this class map directly to one of
  * the packet types described in draft-ietf-secsh-filexfer-02.txt.
  * <p>
@@ -74,6 +81,14 @@ public class SFTPv3Client
 
 	int next_request_id = 1000;
 
+	/* Requests that have been sent but not answered yet */
+	HashSet outstanding_requests = new HashSet();
+
+	/* Responses that arrived while waiting for the response to another request */
+	HashMap pending_responses = new HashMap();
+
+	int request_queue_depth = 16;
+
 	String charsetName = null;
 
 	/**
@@ -120,6 +135,30 @@ public class SFTPv3Client
 		this(conn, null);
 	}
 
+	/**
+	 * Create a SFTP v3 client that talks to a server over the given streams
+	 * instead of an SSH session, e.g., a server running in the same process.
+	 * {@link #close()} does not close the streams.
+	 * 
+	 * @param is the output of the server
+	 * @param os the input of the server
+	 * @throws IOException
+	 */
+	SFTPv3Client(InputStream is, OutputStream os) throws IOException
+	{
+		if ((is == null) || (os == null))
+			throw new IllegalArgumentException("Cannot accept null argument!");
+
+		this.conn = null;
+		this.sess = null;
+		this.debug = null;
+
+		this.is = is;
+		this.os = new BufferedOutputStream(os, 2048);
+
+		init();
+	}
+
 	/**
 	 * Set the charset used to convert between Java Unicode Strings and byte encodings
 	 * used by the server for paths and file names. Unfortunately, the SFTP v3 draft
@@ -170,6 +209,40 @@ public class SFTPv3Client
 		return charsetName;
 	}
 
+	/**
+	 * Set how many read or write requests the pipelined transfer methods keep
+	 * in flight per file handle. Each request carries up to 32768 bytes, so
+	 * the throughput is bounded by <code>depth * 32768</code> bytes per round
+	 * trip. For large read depths, the channel window should be large enough
+	 * to hold the responses, see
+	 * {@link Connection#setChannelWindowParameters(ChannelWindowParameters)}.
+	 * <p>
+	 * The value is used by streams and transfers started afterwards. The
+	 * default is 16.
+	 * 
+	 * @param depth number of outstanding requests, 1 &lt;= depth &lt;= 1024.
+	 *              A depth of 1 gives the old, one request per round trip behavior.
+	 */
+	public void setRequestQueueDepth(int depth)
+	{
+		if ((depth < 1) || (depth > 1024))
+			throw new IllegalArgumentException("depth out of range!");
+
+		request_queue_depth = depth;
+	}
+
+	/**
+	 * The number of requests that pipelined transfers keep in flight.
+	 * 
+	 * @see #setRequestQueueDepth(int)
+	 * 
+	 * @return the request queue depth
+	 */
+	public int getRequestQueueDepth()
+	{
+		return request_queue_depth;
+	}
+
 	private final void checkHandleValidAndOpen(SFTPv3FileHandle handle) throws IOException
 	{
 		if (handle.client != this)
@@ -194,6 +267,8 @@ public class SFTPv3Client
 
 		if (type != Packet.SSH_FXP_INIT)
 		{
+			outstanding_requests.add(new Integer(requestId));
+
 			os.write(requestId >> 24);
 			os.write(requestId >> 16);
 			os.write(requestId >> 8);
@@ -252,6 +327,62 @@ public class SFTPv3Client
 		return msg;
 	}
 
+	/**
+	 * Read the response to the request with the given id. Responses to other
+	 * outstanding requests that arrive first are kept until they are asked
+	 * for, so that pipelined requests and simple calls can be mixed.
+	 * 
+	 * @param maxlen see {@link #receiveMessage(int)}
+	 * @param requestId the id the response has to carry
+	 * @return the message contents
+	 * @throws IOException
+	 */
+	private final byte[] receiveMessage(int maxlen, int requestId) throws IOException
+	{
+		Integer key = new Integer(requestId);
+
+		byte[] msg = (byte[]) pending_responses.remove(key);
+
+		if (msg == null)
+		{
+			while (true)
+			{
+				msg = receiveMessage(maxlen);
+
+				if (msg.length < 5)
+					throw new IOException("The server sent a too short packet (" + msg.length + ")");
+
+				int rep_id = (((msg[1] & 0xff) << 24) | ((msg[2] & 0xff) << 16) | ((msg[3] & 0xff) << 8) | (msg[4] & 0xff));
+
+				if (rep_id == requestId)
+					break;
+
+				Integer rep_key = new Integer(rep_id);
+
+				if (!outstanding_requests.contains(rep_key) || pending_responses.containsKey(rep_key))
+					throw new IOException("The server sent an invalid id field.");
+
+				pending_responses.put(rep_key, msg);
+			}
+		}
+
+		outstanding_requests.remove(key);
+
+		return msg;
+	}
+
+	/**
+	 * Receive and drop the response to a request whose result is no longer
+	 * needed, e.g., a read ahead request of a stream that has been closed.
+	 * 
+	 * @param requestId
+	 * @throws IOException
+	 */
+	final void discardResponse(int requestId) throws IOException
+	{
+		receiveMessage(34000, requestId);
+	}
+
 	private final int generateNextRequestID()
 	{
 		synchronized (this)
@@ -368,7 +499,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_FSTAT, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		if (debug != null)
 		{
@@ -412,7 +543,7 @@ public class SFTPv3Client
 
 		sendMessage(statMethod, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		if (debug != null)
 		{
@@ -493,7 +624,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_READLINK, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		if (debug != null)
 		{
@@ -527,9 +658,9 @@ public class SFTPv3Client
 		throw new SFTPException(tr.readString(), errorCode);
 	}
 
-	private void expectStatusOKMessage(int id) throws IOException
+	final void expectStatusOKMessage(int id) throws IOException
 	{
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, id);
 
 		if (debug != null)
 		{
@@ -669,7 +800,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_REALPATH, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		if (debug != null)
 		{
@@ -725,7 +856,7 @@ public class SFTPv3Client
 			/* Some servers send here a packet with size > 34000 */
 			/* To whom it may concern: please learn to read the specs. */
 			
-			byte[] resp = receiveMessage(65536);
+			byte[] resp = receiveMessage(65536, req_id);
 
 			if (debug != null)
 			{
@@ -792,7 +923,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_OPENDIR, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -915,7 +1046,8 @@ public class SFTPv3Client
 	 */
 	public void close()
 	{
-		sess.close();
+		if (sess != null)
+			sess.close();
 	}
 
 	/**
@@ -1172,7 +1304,7 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_OPEN, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		byte[] resp = receiveMessage(34000, req_id);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -1232,6 +1364,13 @@ public class SFTPv3Client
 		if ((len > 32768) || (len <= 0))
 			throw new IllegalArgumentException("invalid len argument");
 
+		int req_id = sendReadRequest(handle, fileOffset, len);
+
+		return receiveReadResponse(req_id, dst, dstoff, len);
+	}
+
+	final int sendReadRequest(SFTPv3FileHandle handle, long fileOffset, int len) throws IOException
+	{
 		int req_id = generateNextRequestID();
 
 		TypesWriter tw = new TypesWriter();
@@ -1247,7 +1386,12 @@ public class SFTPv3Client
 
 		sendMessage(Packet.SSH_FXP_READ, req_id, tw.getBytes());
 
-		byte[] resp = receiveMessage(34000);
+		return req_id;
+	}
+
+	final int receiveReadResponse(int req_id, byte[] dst, int dstoff, int len) throws IOException
+	{
+		byte[] resp = receiveMessage(34000, req_id);
 
 		TypesReader tr = new TypesReader(resp);
 
@@ -1298,7 +1442,9 @@ public class SFTPv3Client
 
 	/**
 	 * Write bytes to a file. If <code>len</code> &gt; 32768, then the write operation will
-	 * be split into multiple writes.
+	 * be split into multiple writes. Up to {@link #getRequestQueueDepth()} of these are
+	 * sent before waiting for the server to acknowledge the first one, so if the
+	 * operation fails, later parts of the data may have been written anyway.
 	 * 
 	 * @param handle a SFTPv3FileHandle handle.
 	 * @param fileOffset offset (in bytes) in the file.
@@ -1311,54 +1457,167 @@ public class SFTPv3Client
 	{
 		checkHandleValidAndOpen(handle);
 
-		while (len > 0)
+		int[] pending = new int[request_queue_depth];
+		int head = 0;
+		int count = 0;
+
+		try
 		{
-			int writeRequestLen = len;
+			while ((len > 0) || (count > 0))
+			{
+				if ((len > 0) && (count < pending.length))
+				{
+					int writeRequestLen = len;
 
-			if (writeRequestLen > 32768)
-				writeRequestLen = 32768;
+					if (writeRequestLen > 32768)
+						writeRequestLen = 32768;
 
-			int req_id = generateNextRequestID();
+					pending[(head + count) % pending.length] = sendWriteRequest(handle, fileOffset, src, srcoff,
+							writeRequestLen);
+					count++;
 
-			TypesWriter tw = new TypesWriter();
-			tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
-			tw.writeUINT64(fileOffset);
-			tw.writeString(src, srcoff, writeRequestLen);
+					fileOffset += writeRequestLen;
 
-			if (debug != null)
+					srcoff += writeRequestLen;
+					len -= writeRequestLen;
+
+					continue;
+				}
+
+				int req_id = pending[head];
+				head = (head + 1) % pending.length;
+				count--;
+
+				expectStatusOKMessage(req_id);
+			}
+		}
+		finally
+		{
+			/* Only left over if a request failed, keep the stream in sync */
+
+			while (count > 0)
 			{
-				debug.println("Sending SSH_FXP_WRITE...");
-				debug.flush();
+				try
+				{
+					discardResponse(pending[head]);
+				}
+				catch (IOException ignore)
+				{
+					break;
+				}
+
+				head = (head + 1) % pending.length;
+				count--;
 			}
+		}
+	}
 
-			sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
+	final int sendWriteRequest(SFTPv3FileHandle handle, long fileOffset, byte[] src, int srcoff, int len)
+			throws IOException
+	{
+		int req_id = generateNextRequestID();
 
-			fileOffset += writeRequestLen;
+		TypesWriter tw = new TypesWriter();
+		tw.writeString(handle.fileHandle, 0, handle.fileHandle.length);
+		tw.writeUINT64(fileOffset);
+		tw.writeString(src, srcoff, len);
 
-			srcoff += writeRequestLen;
-			len -= writeRequestLen;
+		if (debug != null)
+		{
+			debug.println("Sending SSH_FXP_WRITE...");
+			debug.flush();
+		}
 
-			byte[] resp = receiveMessage(34000);
+		sendMessage(Packet.SSH_FXP_WRITE, req_id, tw.getBytes());
 
-			TypesReader tr = new TypesReader(resp);
+		return req_id;
+	}
 
-			int t = tr.readByte();
+	/**
+	 * Download a whole file. Up to {@link #getRequestQueueDepth()} read requests
+	 * are kept in flight.
+	 * 
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @param target the stream the contents of the file is written to, it is not closed.
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long get(String fileName, OutputStream target) throws IOException
+	{
+		if (target == null)
+			throw new IllegalArgumentException("the target argument may not be null");
 
-			int rep_id = tr.readUINT32();
-			if (rep_id != req_id)
-				throw new IOException("The server sent an invalid id field.");
+		SFTPv3FileHandle handle = openFileRO(fileName);
 
-			if (t != Packet.SSH_FXP_STATUS)
-				throw new IOException("The SFTP server sent an unexpected packet type (" + t + ")");
+		try
+		{
+			InputStream in = new SFTPv3FileInputStream(handle);
 
-			int errorCode = tr.readUINT32();
+			try
+			{
+				return copy(in, target);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		finally
+		{
+			closeFile(handle);
+		}
+	}
 
-			if (errorCode == ErrorCodes.SSH_FX_OK)
-				continue;
+	/**
+	 * Upload a whole file, creating or truncating it. Up to
+	 * {@link #getRequestQueueDepth()} write requests are kept in flight.
+	 * 
+	 * @param source the stream to read the contents from, it is read up to its end but not closed.
+	 * @param fileName See the {@link SFTPv3Client comment} for the class for more details.
+	 * @return the number of bytes transferred
+	 * @throws IOException
+	 */
+	public long put(InputStream source, String fileName) throws IOException
+	{
+		if (source == null)
+			throw new IllegalArgumentException("the source argument may not be null");
+
+		SFTPv3FileHandle handle = createFileTruncate(fileName);
+
+		try
+		{
+			OutputStream out = new SFTPv3FileOutputStream(handle);
+
+			try
+			{
+				return copy(source, out);
+			}
+			finally
+			{
+				/* Waits for the outstanding acknowledgements */
+				out.close();
+			}
+		}
+		finally
+		{
+			closeFile(handle);
+		}
+	}
+
+	private static long copy(InputStream in, OutputStream out) throws IOException
+	{
+		byte[] buffer = new byte[32768];
+		long total = 0;
+
+		while (true)
+		{
+			int len = in.read(buffer, 0, buffer.length);
 
-			String errorMessage = tr.readString();
+			if (len < 0)
+				return total;
 
-			throw new SFTPException(errorMessage, errorCode);
+			out.write(buffer, 0, len);
+			total += len;
 		}
 	}
 
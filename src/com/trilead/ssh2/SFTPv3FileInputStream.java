@@ -0,0 +1,208 @@
+
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A <code>SFTPv3FileInputStream</code> reads a remote file sequentially.
+ * It keeps up to {@link SFTPv3Client#getRequestQueueDepth()} read requests of
+ * 32768 bytes in flight, so the transfer is not limited to one request per
+ * round trip.
+ * <p>
+ * Closing the stream does not close the file handle. While the stream has
+ * requests in flight, the {@link SFTPv3Client} may still be used for other
+ * operations, but neither the stream nor the client is thread safe.
+ *
+ * @see SFTPv3Client#get(String, java.io.OutputStream)
+ */
+public class SFTPv3FileInputStream extends InputStream
+{
+	private static final int REQUEST_SIZE = 32768;
+
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+
+	/* Outstanding requests, oldest at head */
+	private final int[] requestIds;
+	private final long[] requestOffsets;
+	private final int[] requestLengths;
+	private int head = 0;
+	private int count = 0;
+
+	private long nextOffset;
+	private boolean eof = false;
+	private boolean closed = false;
+
+	private final byte[] buffer = new byte[REQUEST_SIZE];
+	private int bufferPos = 0;
+	private int bufferEnd = 0;
+
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Read the file from the beginning.
+	 *
+	 * @param handle an open SFTPv3FileHandle handle
+	 * @throws IOException
+	 */
+	public SFTPv3FileInputStream(SFTPv3FileHandle handle) throws IOException
+	{
+		this(handle, 0);
+	}
+
+	/**
+	 * Read the file starting at the given offset.
+	 *
+	 * @param handle an open SFTPv3FileHandle handle
+	 * @param fileOffset offset (in bytes) in the file
+	 * @throws IOException
+	 */
+	public SFTPv3FileInputStream(SFTPv3FileHandle handle, long fileOffset) throws IOException
+	{
+		if (handle == null)
+			throw new IllegalArgumentException("the handle argument may not be null");
+
+		if (handle.isClosed())
+			throw new IOException("The file handle is closed.");
+
+		if (fileOffset < 0)
+			throw new IllegalArgumentException("fileOffset may not be negative");
+
+		this.client = handle.getClient();
+		this.handle = handle;
+		this.nextOffset = fileOffset;
+
+		int depth = client.getRequestQueueDepth();
+
+		this.requestIds = new int[depth];
+		this.requestOffsets = new long[depth];
+		this.requestLengths = new int[depth];
+	}
+
+	public int read() throws IOException
+	{
+		if (read(single, 0, 1) < 0)
+			return -1;
+
+		return single[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (b == null)
+			throw new NullPointerException();
+
+		if ((off < 0) || (len < 0) || (off + len > b.length) || (off + len < 0) || (off > b.length))
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		while (bufferPos == bufferEnd)
+		{
+			if (!fill())
+				return -1;
+		}
+
+		int copy = Math.min(len, bufferEnd - bufferPos);
+
+		System.arraycopy(buffer, bufferPos, b, off, copy);
+		bufferPos += copy;
+
+		return copy;
+	}
+
+	public int available() throws IOException
+	{
+		return bufferEnd - bufferPos;
+	}
+
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		closed = true;
+		discardRequests();
+	}
+
+	/**
+	 * Top up the read ahead queue and wait for the oldest response.
+	 *
+	 * @return false on end of file
+	 */
+	private boolean fill() throws IOException
+	{
+		if (closed)
+			throw new IOException("This stream is closed.");
+
+		if (handle.isClosed())
+			throw new IOException("The file handle is closed.");
+
+		while (!eof && (count < requestIds.length))
+		{
+			int tail = (head + count) % requestIds.length;
+
+			requestIds[tail] = client.sendReadRequest(handle, nextOffset, REQUEST_SIZE);
+			requestOffsets[tail] = nextOffset;
+			requestLengths[tail] = REQUEST_SIZE;
+			count++;
+
+			nextOffset += REQUEST_SIZE;
+		}
+
+		if (count == 0)
+			return false;
+
+		int req_id = requestIds[head];
+		long offset = requestOffsets[head];
+		int requested = requestLengths[head];
+		head = (head + 1) % requestIds.length;
+		count--;
+
+		int len = client.receiveReadResponse(req_id, buffer, 0, requested);
+
+		if (len <= 0)
+		{
+			eof = true;
+			discardRequests();
+			return false;
+		}
+
+		if (len < requested)
+		{
+			/*
+			 * Short read, because the server limits the size of its responses
+			 * or because this is the end of the file. Ask for the rest right
+			 * away and put that request in front of the ones behind it, so the
+			 * data stays in order and the read ahead stays in flight. At the
+			 * end of the file the rest is answered with EOF.
+			 */
+
+			head = (head + requestIds.length - 1) % requestIds.length;
+			count++;
+
+			requestIds[head] = client.sendReadRequest(handle, offset + len, requested - len);
+			requestOffsets[head] = offset + len;
+			requestLengths[head] = requested - len;
+		}
+
+		bufferPos = 0;
+		bufferEnd = len;
+
+		return true;
+	}
+
+	private void discardRequests() throws IOException
+	{
+		while (count > 0)
+		{
+			int req_id = requestIds[head];
+			head = (head + 1) % requestIds.length;
+			count--;
+
+			client.discardResponse(req_id);
+		}
+	}
+}
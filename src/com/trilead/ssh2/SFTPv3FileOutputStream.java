@@ -0,0 +1,195 @@
+
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A <code>SFTPv3FileOutputStream</code> writes a remote file sequentially.
+ * Data is sent in write requests of 32768 bytes, and up to
+ * {@link SFTPv3Client#getRequestQueueDepth()} of them are in flight before
+ * the stream waits for the server to acknowledge the oldest one.
+ * <p>
+ * Errors reported by the server therefore show up on a later
+ * <code>write()</code>, or at the latest on {@link #flush()} or
+ * {@link #close()}, which wait until all data has been acknowledged. Closing
+ * the stream does not close the file handle.
+ *
+ * @see SFTPv3Client#put(java.io.InputStream, String)
+ */
+public class SFTPv3FileOutputStream extends OutputStream
+{
+	private static final int REQUEST_SIZE = 32768;
+
+	private final SFTPv3Client client;
+	private final SFTPv3FileHandle handle;
+
+	/* Unacknowledged requests, oldest at head */
+	private final int[] requestIds;
+	private int head = 0;
+	private int count = 0;
+
+	private long nextOffset;
+	private boolean closed = false;
+
+	private final byte[] buffer = new byte[REQUEST_SIZE];
+	private int bufferLen = 0;
+
+	/**
+	 * Write the file from the beginning.
+	 *
+	 * @param handle an open SFTPv3FileHandle handle
+	 * @throws IOException
+	 */
+	public SFTPv3FileOutputStream(SFTPv3FileHandle handle) throws IOException
+	{
+		this(handle, 0);
+	}
+
+	/**
+	 * Write the file starting at the given offset.
+	 *
+	 * @param handle an open SFTPv3FileHandle handle
+	 * @param fileOffset offset (in bytes) in the file
+	 * @throws IOException
+	 */
+	public SFTPv3FileOutputStream(SFTPv3FileHandle handle, long fileOffset) throws IOException
+	{
+		if (handle == null)
+			throw new IllegalArgumentException("the handle argument may not be null");
+
+		if (handle.isClosed())
+			throw new IOException("The file handle is closed.");
+
+		if (fileOffset < 0)
+			throw new IllegalArgumentException("fileOffset may not be negative");
+
+		this.client = handle.getClient();
+		this.handle = handle;
+		this.nextOffset = fileOffset;
+		this.requestIds = new int[client.getRequestQueueDepth()];
+	}
+
+	public void write(int b) throws IOException
+	{
+		checkOpen();
+
+		buffer[bufferLen++] = (byte) b;
+
+		if (bufferLen == buffer.length)
+			sendBuffer();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		if (b == null)
+			throw new NullPointerException();
+
+		if ((off < 0) || (len < 0) || (off + len > b.length) || (off + len < 0) || (off > b.length))
+			throw new IndexOutOfBoundsException();
+
+		checkOpen();
+
+		while (len > 0)
+		{
+			int copy = Math.min(len, buffer.length - bufferLen);
+
+			System.arraycopy(b, off, buffer, bufferLen, copy);
+			bufferLen += copy;
+			off += copy;
+			len -= copy;
+
+			if (bufferLen == buffer.length)
+				sendBuffer();
+		}
+	}
+
+	/**
+	 * Send any buffered data and wait until the server has acknowledged
+	 * everything written so far.
+	 */
+	public void flush() throws IOException
+	{
+		checkOpen();
+
+		if (bufferLen > 0)
+			sendBuffer();
+
+		while (count > 0)
+			acknowledgeOldest();
+	}
+
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			closed = true;
+		}
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (closed)
+			throw new IOException("This stream is closed.");
+
+		if (handle.isClosed())
+			throw new IOException("The file handle is closed.");
+	}
+
+	private void sendBuffer() throws IOException
+	{
+		if (count == requestIds.length)
+			acknowledgeOldest();
+
+		requestIds[(head + count) % requestIds.length] = client.sendWriteRequest(handle, nextOffset, buffer, 0,
+				bufferLen);
+		count++;
+
+		nextOffset += bufferLen;
+		bufferLen = 0;
+	}
+
+	private void acknowledgeOldest() throws IOException
+	{
+		int req_id = requestIds[head];
+		head = (head + 1) % requestIds.length;
+		count--;
+
+		try
+		{
+			client.expectStatusOKMessage(req_id);
+		}
+		catch (IOException e)
+		{
+			/* The write failed, nothing else that is in flight matters now */
+
+			while (count > 0)
+			{
+				int other = requestIds[head];
+				head = (head + 1) % requestIds.length;
+				count--;
+
+				try
+				{
+					client.discardResponse(other);
+				}
+				catch (IOException ignore)
+				{
+					break;
+				}
+			}
+
+			bufferLen = 0;
+			closed = true;
+
+			throw e;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.Vector;
 
+import com.trilead.ssh2.ConnectionTiming;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.crypto.PEMDecoder;
 import com.trilead.ssh2.packets.PacketServiceAccept;
@@ -123,6 +124,8 @@ public class AuthenticationManager implements MessageHandler
 	{
 		if (initDone == false)
 		{
+			long start = System.nanoTime();
+
 			tm.registerMessageHandler(this, 0, 255);
 
 			PacketServiceRequest sr = new PacketServiceRequest("ssh-userauth");
@@ -137,6 +140,9 @@ public class AuthenticationManager implements MessageHandler
 
 			initDone = true;
 
+			tm.getConnectionTiming().record(ConnectionTiming.AUTH, "none", start,
+					msg[0] == Packets.SSH_MSG_USERAUTH_SUCCESS);
+
 			if (msg[0] == Packets.SSH_MSG_USERAUTH_SUCCESS)
 			{
 				authenticated = true;
@@ -169,10 +175,16 @@ public class AuthenticationManager implements MessageHandler
 	public boolean authenticatePublicKey(String user, Object key, SecureRandom rnd)
 			throws IOException
 	{
+		long start = 0;
+		boolean attempted = false;
+
 		try
 		{
 			initialize(user);
 
+			start = System.nanoTime();
+			attempted = true;
+
 			if (methodPossible("publickey") == false)
 				throw new IOException("Authentication method publickey not supported by the server at this stage.");
 
@@ -269,6 +281,11 @@ e.printStackTrace();
 			tm.close(e, false);
 			throw (IOException) new IOException("Publickey authentication failed.").initCause(e);
 		}
+		finally
+		{
+			if (attempted)
+				tm.getConnectionTiming().record(ConnectionTiming.AUTH, "publickey", start, authenticated);
+		}
 	}
 
 	public boolean authenticateNone(String user) throws IOException
@@ -287,10 +304,16 @@ e.printStackTrace();
 
 	public boolean authenticatePassword(String user, String pass) throws IOException
 	{
+		long start = 0;
+		boolean attempted = false;
+
 		try
 		{
 			initialize(user);
 
+			start = System.nanoTime();
+			attempted = true;
+
 			if (methodPossible("password") == false)
 				throw new IOException("Authentication method password not supported by the server at this stage.");
 
@@ -324,14 +347,25 @@ e.printStackTrace();
 			tm.close(e, false);
 			throw (IOException) new IOException("Password authentication failed.").initCause(e);
 		}
+		finally
+		{
+			if (attempted)
+				tm.getConnectionTiming().record(ConnectionTiming.AUTH, "password", start, authenticated);
+		}
 	}
 
 	public boolean authenticateInteractive(String user, String[] submethods, InteractiveCallback cb) throws IOException
 	{
+		long start = 0;
+		boolean attempted = false;
+
 		try
 		{
 			initialize(user);
 
+			start = System.nanoTime();
+			attempted = true;
+
 			if (methodPossible("keyboard-interactive") == false)
 				throw new IOException(
 						"Authentication method keyboard-interactive not supported by the server at this stage.");
@@ -398,6 +432,11 @@ e.printStackTrace();
 			tm.close(e, false);
 			throw (IOException) new IOException("Keyboard-interactive authentication failed.").initCause(e);
 		}
+		finally
+		{
+			if (attempted)
+				tm.getConnectionTiming().record(ConnectionTiming.AUTH, "keyboard-interactive", start, authenticated);
+		}
 	}
 
 	public void handleMessage(byte[] msg, int msglen) throws IOException
@@ -42,7 +42,7 @@ import com.trilead.ssh2.signature.RSASignature;
  * @author Kenny Root
  * @version $Id$
  */
-public class AuthAgentForwardThread extends Thread implements IChannelWorkerThread
+public class AuthAgentForwardThread implements Runnable, IChannelWorkerThread
 {
 	private static final byte[] SSH_AGENT_FAILURE = {0, 0, 0, 1, 5}; // 5
 	private static final byte[] SSH_AGENT_SUCCESS = {0, 0, 0, 1, 6}; // 6
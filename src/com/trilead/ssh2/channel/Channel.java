@@ -1,6 +1,8 @@
 
 package com.trilead.ssh2.channel;
 
+import com.trilead.ssh2.ChannelWindowParameters;
+
 /**
  * Channel.
  * 
@@ -40,6 +42,7 @@ public class Channel
 	static final int STATE_OPEN = 2;
 	static final int STATE_CLOSED = 4;
 
+	/* Size of the copy buffers used by the forwarding threads */
 	static final int CHANNEL_BUFFER_SIZE = 30000;
 
 	/*
@@ -91,13 +94,6 @@ public class Channel
 	final Object channelSendLock = new Object();
 	boolean closeMessageSent = false;
 
-	/*
-	 * Stop memory fragmentation by allocating this often used buffer.
-	 * May only be used while holding the channelSendLock
-	 */
-
-	final byte[] msgWindowAdjust = new byte[9];
-
 	// If you access (read or write) any of the following fields, then you have
 	// to synchronize on the channel.
 
@@ -114,16 +110,25 @@ public class Channel
 	int localWindow = 0; /* locally, we use a small window, < 2^31 */
 	long remoteWindow = 0; /* long for readable  2^32 - 1 window support */
 
+	/* The window we grant when the buffers are empty, grows up to maxWindowLimit if auto-tuning */
+	int windowLimit = 0;
+	int maxWindowLimit = 0;
+
+	/*
+	 * Auto-tuning state, see ChannelManager.tuneWindow(). Times are
+	 * ChannelManager.now() values, 0 means none.
+	 */
+	long adjustTime = 0; /* when the last window adjust was sent */
+	int windowAtAdjust = 0; /* localWindow right after that adjust */
+	long timedAdjust = 0; /* the adjust whose round trip is being measured */
+	int dataBeforeTimedAdjust = 0; /* data the peer may send without it */
+	long roundTrip = 0; /* smallest round trip measured, in ns */
+
 	int localMaxPacketSize = -1;
 	int remoteMaxPacketSize = -1;
 
-	final byte[] stdoutBuffer = new byte[CHANNEL_BUFFER_SIZE];
-	final byte[] stderrBuffer = new byte[CHANNEL_BUFFER_SIZE];
-
-	int stdoutReadpos = 0;
-	int stdoutWritepos = 0;
-	int stderrReadpos = 0;
-	int stderrWritepos = 0;
+	final ChannelBuffer stdoutBuffer;
+	final ChannelBuffer stderrBuffer;
 
 	boolean EOF = false;
 
@@ -136,6 +141,10 @@ public class Channel
 
 	String hexX11FakeCookie;
 
+	// Set before the channel is opened and never changed afterwards
+
+	IChannelEventListener eventListener;
+
 	// reasonClosed is special, since we sometimes need to access it
 	// while holding the channelSendLock.
 	// We protect it with a private short term lock.
@@ -147,7 +156,14 @@ public class Channel
 	{
 		this.cm = cm;
 
-		this.localWindow = CHANNEL_BUFFER_SIZE;
+		this.stdoutBuffer = new ChannelBuffer(cm.getReceiveBufferPool());
+		this.stderrBuffer = new ChannelBuffer(cm.getReceiveBufferPool());
+
+		ChannelWindowParameters wp = cm.getWindowParameters();
+
+		this.windowLimit = wp.getInitialWindowSize();
+		this.maxWindowLimit = wp.getMaxWindowSize();
+		this.localWindow = windowLimit;
 		this.localMaxPacketSize = 35000 - 1024; // leave enough slack
 
 		this.stdinStream = new ChannelOutputStream(this);
@@ -155,6 +171,18 @@ public class Channel
 		this.stderrStream = new ChannelInputStream(this, true);
 	}
 
+	/**
+	 * Wake up all threads waiting on this channel and tell the event listener,
+	 * if there is one. Must be called while holding the lock on the channel.
+	 */
+	void signalChange()
+	{
+		notifyAll();
+
+		if (eventListener != null)
+			eventListener.channelChanged(this);
+	}
+
 	/* Methods to allow access from classes outside of this package */
 
 	public ChannelInputStream getStderrStream()
@@ -0,0 +1,147 @@
+package com.trilead.ssh2.channel;
+
+import com.trilead.ssh2.transport.PacketBufferPool;
+
+/**
+ * ChannelBuffer. Holds received channel data as a queue of segments that
+ * point into packet buffers. Large packets are queued as they are (the
+ * buffer the packet was decrypted into becomes a segment), smaller ones are
+ * copied onto the end of the last segment so that a stream of them does not
+ * pin one packet buffer each. Every segment goes back to the pool as soon
+ * as it has been read.
+ * <p>
+ * Not thread safe, callers synchronize on the owning Channel.
+ */
+final class ChannelBuffer
+{
+	private final PacketBufferPool pool;
+
+	private byte[][] segments = new byte[4][];
+	private int[] starts = new int[4];
+	private int[] ends = new int[4];
+	private int head = 0;
+	private int count = 0;
+
+	private int available = 0;
+
+	ChannelBuffer(PacketBufferPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * @return number of bytes that can be read
+	 */
+	int available()
+	{
+		return available;
+	}
+
+	/**
+	 * Queue a packet buffer without copying. The buffer then belongs to this
+	 * ChannelBuffer and is given back to the pool once it has been read.
+	 */
+	void appendBuffer(byte[] buffer, int off, int len)
+	{
+		addSegment(buffer, off, off + len);
+		available += len;
+	}
+
+	/**
+	 * Copy data to the end of the queue.
+	 */
+	void append(byte[] src, int off, int len)
+	{
+		available += len;
+
+		while (len > 0)
+		{
+			if (count > 0)
+			{
+				int tail = (head + count - 1) % segments.length;
+				byte[] buffer = segments[tail];
+				int room = buffer.length - ends[tail];
+
+				if (room > 0)
+				{
+					int copy = (len > room) ? room : len;
+					System.arraycopy(src, off, buffer, ends[tail], copy);
+					ends[tail] += copy;
+					off += copy;
+					len -= copy;
+					continue;
+				}
+			}
+
+			addSegment(pool.acquire(), 0, 0);
+		}
+	}
+
+	/**
+	 * Copy up to len bytes out of the queue, releasing segments that have
+	 * been consumed completely.
+	 * 
+	 * @return number of bytes copied
+	 */
+	int read(byte[] dst, int off, int len)
+	{
+		int copied = 0;
+
+		while ((len > 0) && (count > 0))
+		{
+			int avail = ends[head] - starts[head];
+			int copy = (len > avail) ? avail : len;
+
+			System.arraycopy(segments[head], starts[head], dst, off, copy);
+			starts[head] += copy;
+			off += copy;
+			len -= copy;
+			copied += copy;
+
+			/* an idle channel holds no buffer */
+			if (starts[head] == ends[head])
+				removeHead();
+		}
+
+		available -= copied;
+		return copied;
+	}
+
+	private void addSegment(byte[] buffer, int start, int end)
+	{
+		if (count == segments.length)
+		{
+			int size = segments.length * 2;
+			byte[][] newSegments = new byte[size][];
+			int[] newStarts = new int[size];
+			int[] newEnds = new int[size];
+
+			for (int i = 0; i < count; i++)
+			{
+				int j = (head + i) % segments.length;
+				newSegments[i] = segments[j];
+				newStarts[i] = starts[j];
+				newEnds[i] = ends[j];
+			}
+
+			segments = newSegments;
+			starts = newStarts;
+			ends = newEnds;
+			head = 0;
+		}
+
+		int tail = (head + count) % segments.length;
+		segments[tail] = buffer;
+		starts[tail] = start;
+		ends[tail] = end;
+		count++;
+	}
+
+	private void removeHead()
+	{
+		pool.release(segments[head]);
+		segments[head] = null;
+		head = (head + 1) % segments.length;
+		count--;
+	}
+}
@@ -7,11 +7,14 @@ import java.util.Vector;
 
 import com.trilead.ssh2.AuthAgentCallback;
 import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.ChannelWindowParameters;
+import com.trilead.ssh2.ChannelWorkerExecutor;
 import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketChannelAuthAgentReq;
 import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
 import com.trilead.ssh2.packets.PacketChannelOpenFailure;
 import com.trilead.ssh2.packets.PacketChannelTrileadPing;
+import com.trilead.ssh2.packets.PacketChannelWindowAdjust;
 import com.trilead.ssh2.packets.PacketGlobalCancelForwardRequest;
 import com.trilead.ssh2.packets.PacketGlobalForwardRequest;
 import com.trilead.ssh2.packets.PacketGlobalTrileadPing;
@@ -25,7 +28,9 @@ import com.trilead.ssh2.packets.PacketSessionSubsystemRequest;
 import com.trilead.ssh2.packets.PacketSessionX11Request;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
 import com.trilead.ssh2.transport.MessageHandler;
+import com.trilead.ssh2.transport.PacketBufferPool;
 import com.trilead.ssh2.transport.TransportManager;
 
 /**
@@ -40,12 +45,20 @@ public class ChannelManager implements MessageHandler
 {
 	private static final Logger log = Logger.getLogger(ChannelManager.class);
 
+	/* Never modified, so it can be queued any number of times */
+	private static final byte[] MSG_REQUEST_FAILURE = new byte[] { Packets.SSH_MSG_REQUEST_FAILURE };
+
 	private HashMap x11_magic_cookies = new HashMap();
 
 	private TransportManager tm;
 
-	private Vector channels = new Vector();
-	private int nextLocalChannel = 100;
+	final ChannelTable channels = new ChannelTable();
+
+	/* Parses requests in place, only used by the receive thread */
+	private final TypesReader receiveReader = new TypesReader();
+
+	/* Guards shutdown and the global request counters */
+	private final Object globalRequestLock = new Object();
 	private boolean shutdown = false;
 	private int globalSuccessCounter = 0;
 	private int globalFailedCounter = 0;
@@ -58,51 +71,105 @@ public class ChannelManager implements MessageHandler
 
 	private boolean listenerThreadsAllowed = true;
 
+	private ForwardingEngine forwardingEngine;
+
+	private volatile ChannelWindowParameters windowParameters;
+
+	private volatile ChannelWorkerExecutor workerExecutor;
+
 	public ChannelManager(TransportManager tm)
+	{
+		this(tm, new ChannelWindowParameters());
+	}
+
+	public ChannelManager(TransportManager tm, ChannelWindowParameters windowParameters)
+	{
+		this(tm, windowParameters, ChannelWorkerExecutor.getDefault());
+	}
+
+	public ChannelManager(TransportManager tm, ChannelWindowParameters windowParameters,
+			ChannelWorkerExecutor workerExecutor)
 	{
 		this.tm = tm;
+		this.windowParameters = windowParameters;
+		this.workerExecutor = workerExecutor;
 		tm.registerMessageHandler(this, 80, 100);
 	}
 
-	private Channel getChannel(int id)
+	/**
+	 * Change the window sizing. Only channels opened afterwards are affected.
+	 */
+	public void setWindowParameters(ChannelWindowParameters windowParameters)
 	{
-		synchronized (channels)
-		{
-			for (int i = 0; i < channels.size(); i++)
-			{
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id)
-					return c;
-			}
-		}
-		return null;
+		this.windowParameters = windowParameters;
 	}
 
-	private void removeChannel(int id)
+	ChannelWindowParameters getWindowParameters()
 	{
-		synchronized (channels)
-		{
-			for (int i = 0; i < channels.size(); i++)
-			{
-				Channel c = (Channel) channels.elementAt(i);
-				if (c.localID == id)
-				{
-					channels.removeElementAt(i);
-					break;
-				}
-			}
-		}
+		return windowParameters;
+	}
+
+	/**
+	 * Change how worker threads are run. Only workers started afterwards are
+	 * affected.
+	 */
+	public void setWorkerExecutor(ChannelWorkerExecutor workerExecutor)
+	{
+		this.workerExecutor = workerExecutor;
+	}
+
+	void startWorker(Runnable worker, String name) throws IOException
+	{
+		workerExecutor.execute(worker, name);
 	}
 
-	private int addChannel(Channel c)
+	/**
+	 * Start the worker for a channel that the server opened. If it cannot be
+	 * run, refuse the channel. Called from the receive thread.
+	 */
+	private void startChannelWorker(Channel c, Runnable worker, String name) throws IOException
 	{
-		synchronized (channels)
+		try
 		{
-			channels.addElement(c);
-			return nextLocalChannel++;
+			startWorker(worker, name);
+		}
+		catch (IOException e)
+		{
+			removeChannel(c);
+
+			PacketChannelOpenFailure pcof = new PacketChannelOpenFailure(c.remoteID,
+					Packets.SSH_OPEN_RESOURCE_SHORTAGE, e.getMessage(), "");
+
+			tm.sendAsynchronousMessage(pcof.getPayload());
+
+			if (log.isEnabled())
+				log.log(20, "Could not start " + name + ", refusing the channel: " + e.getMessage());
 		}
 	}
 
+	private Channel getChannel(int id)
+	{
+		return channels.get(id);
+	}
+
+	/**
+	 * Frees the id of c, unless it has already been freed. Safe to call more
+	 * than once: if the id has been given to another channel in between, that
+	 * channel is left alone.
+	 */
+	private void removeChannel(Channel c)
+	{
+		channels.remove(c);
+	}
+
+	/**
+	 * Assigns c.localID.
+	 */
+	private void addChannel(Channel c)
+	{
+		channels.add(c);
+	}
+
 	private void waitUntilChannelOpen(Channel c) throws IOException
 	{
 		synchronized (c)
@@ -120,7 +187,7 @@ public class ChannelManager implements MessageHandler
 
 			if (c.state != Channel.STATE_OPEN)
 			{
-				removeChannel(c.localID);
+				removeChannel(c);
 
 				String detail = c.getReasonClosed();
 
@@ -134,7 +201,7 @@ public class ChannelManager implements MessageHandler
 
 	private final boolean waitForGlobalRequestResult() throws IOException
 	{
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			while ((globalSuccessCounter == 0) && (globalFailedCounter == 0))
 			{
@@ -145,7 +212,7 @@ public class ChannelManager implements MessageHandler
 
 				try
 				{
-					channels.wait();
+					globalRequestLock.wait();
 				}
 				catch (InterruptedException ignore)
 				{
@@ -223,16 +290,11 @@ public class ChannelManager implements MessageHandler
 		if (log.isEnabled())
 			log.log(50, "Closing all X11 channels for the given fake cookie");
 
-		Vector channel_copy;
+		Channel[] channel_copy = channels.toArray();
 
-		synchronized (channels)
+		for (int i = 0; i < channel_copy.length; i++)
 		{
-			channel_copy = (Vector) channels.clone();
-		}
-
-		for (int i = 0; i < channel_copy.size(); i++)
-		{
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy[i];
 
 			synchronized (c)
 			{
@@ -265,16 +327,11 @@ public class ChannelManager implements MessageHandler
 		if (log.isEnabled())
 			log.log(50, "Closing all channels");
 
-		Vector channel_copy;
+		Channel[] channel_copy = channels.toArray();
 
-		synchronized (channels)
+		for (int i = 0; i < channel_copy.length; i++)
 		{
-			channel_copy = (Vector) channels.clone();
-		}
-
-		for (int i = 0; i < channel_copy.size(); i++)
-		{
-			Channel c = (Channel) channel_copy.elementAt(i);
+			Channel c = channel_copy[i];
 			try
 			{
 				closeChannel(c, "Closing all channels", true);
@@ -305,7 +362,7 @@ public class ChannelManager implements MessageHandler
 			msg[3] = (byte) (c.remoteID >> 8);
 			msg[4] = (byte) (c.remoteID);
 
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		synchronized (c.channelSendLock)
@@ -374,7 +431,9 @@ public class ChannelManager implements MessageHandler
 		while (len > 0)
 		{
 			int thislen = 0;
-			byte[] msg;
+			int remoteID;
+
+			int overhead = tm.getPacketOverheadEstimate() + 9;
 
 			synchronized (c)
 			{
@@ -402,7 +461,7 @@ public class ChannelManager implements MessageHandler
 
 				thislen = (c.remoteWindow >= len) ? len : (int) c.remoteWindow;
 
-				int estimatedMaxDataLen = c.remoteMaxPacketSize - (tm.getPacketOverheadEstimate() + 9);
+				int estimatedMaxDataLen = c.remoteMaxPacketSize - overhead;
 
 				/* The worst case scenario =) a true bottleneck */
 
@@ -416,27 +475,28 @@ public class ChannelManager implements MessageHandler
 
 				c.remoteWindow -= thislen;
 
-				msg = new byte[1 + 8 + thislen];
+				remoteID = c.remoteID; /* read while holding the lock */
+			}
 
-				msg[0] = Packets.SSH_MSG_CHANNEL_DATA;
-				msg[1] = (byte) (c.remoteID >> 24);
-				msg[2] = (byte) (c.remoteID >> 16);
-				msg[3] = (byte) (c.remoteID >> 8);
-				msg[4] = (byte) (c.remoteID);
-				msg[5] = (byte) (thislen >> 24);
-				msg[6] = (byte) (thislen >> 16);
-				msg[7] = (byte) (thislen >> 8);
-				msg[8] = (byte) (thislen);
+			/* The window is reserved, the copy does not need to hold up the receive thread */
 
-				System.arraycopy(buffer, pos, msg, 9, thislen);
-			}
+			PacketBufferPool pool = tm.getSendBufferPool();
+
+			byte[] msg = (1 + 8 + thislen <= pool.getBufferSize()) ? pool.acquire() : new byte[1 + 8 + thislen];
+
+			TypesWriter tw = new TypesWriter(msg);
+			tw.writeByte(Packets.SSH_MSG_CHANNEL_DATA);
+			tw.writeUINT32(remoteID);
+			tw.writeString(buffer, pos, thislen);
 
 			synchronized (c.channelSendLock)
 			{
 				if (c.closeMessageSent == true)
 					throw new IOException("SSH channel is closed. (" + c.getReasonClosed() + ")");
 
-				tm.sendMessage(msg);
+				/* The send thread puts the buffer back into the pool once it is written */
+
+				tm.sendMessage(msg, tw.length(), pool);
 			}
 
 			pos += thislen;
@@ -466,7 +526,7 @@ public class ChannelManager implements MessageHandler
 			remoteForwardings.put(key, rfd);
 		}
 
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -506,7 +566,7 @@ public class ChannelManager implements MessageHandler
 				throw new IOException("Sorry, there is no known remote forwarding for remote port " + bindPort);
 		}
 
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -547,7 +607,7 @@ public class ChannelManager implements MessageHandler
 			this.authAgent = authAgent;
 		}
 
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -576,14 +636,62 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	/**
+	 * Get the engine that serves local and dynamic port forwardings of this
+	 * connection. It is started on first use.
+	 */
+	public ForwardingEngine getForwardingEngine() throws IOException
+	{
+		synchronized (listenerThreads)
+		{
+			if (listenerThreadsAllowed == false)
+				throw new IOException("Too late, this connection is closed.");
+
+			if (forwardingEngine == null)
+			{
+				ForwardingEngine fe = new ForwardingEngine(this);
+				tm.setNonBlockingSender(fe, fe.transportReady);
+				registerThread(fe);
+				fe.setDaemon(true);
+				fe.start();
+				forwardingEngine = fe;
+			}
+			return forwardingEngine;
+		}
+	}
+
+	/**
+	 * @return true if sending now would have to wait for the send thread
+	 */
+	boolean isSendQueueFull()
+	{
+		return tm.isSendQueueFull();
+	}
+
 	public Channel openDirectTCPIPChannel(String host_to_connect, int port_to_connect, String originator_IP_address,
 			int originator_port) throws IOException
+	{
+		Channel c = startDirectTCPIPChannel(host_to_connect, port_to_connect, originator_IP_address, originator_port,
+				null);
+
+		waitUntilChannelOpen(c);
+
+		return c;
+	}
+
+	/**
+	 * Send the open request for a direct-tcpip channel without waiting for the
+	 * answer. The outcome is reported to the listener.
+	 */
+	Channel startDirectTCPIPChannel(String host_to_connect, int port_to_connect, String originator_IP_address,
+			int originator_port, IChannelEventListener listener) throws IOException
 	{
 		Channel c = new Channel(this);
 
 		synchronized (c)
 		{
-			c.localID = addChannel(c);
+			c.eventListener = listener;
+			addChannel(c);
 			// end of synchronized block forces writing out to main memory
 		}
 
@@ -592,8 +700,6 @@ public class ChannelManager implements MessageHandler
 
 		tm.sendMessage(dtc.getPayload());
 
-		waitUntilChannelOpen(c);
-
 		return c;
 	}
 
@@ -603,7 +709,7 @@ public class ChannelManager implements MessageHandler
 
 		synchronized (c)
 		{
-			c.localID = addChannel(c);
+			addChannel(c);
 			// end of synchronized block forces the writing out to main memory
 		}
 
@@ -620,7 +726,7 @@ public class ChannelManager implements MessageHandler
 
 	public void requestGlobalTrileadPing() throws IOException
 	{
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalSuccessCounter = globalFailedCounter = 0;
 		}
@@ -873,6 +979,25 @@ public class ChannelManager implements MessageHandler
 		}
 	}
 
+	PacketBufferPool getReceiveBufferPool()
+	{
+		return tm.getReceiveBufferPool();
+	}
+
+	/**
+	 * Queue received channel data. A payload that fills at least half of the
+	 * packet buffer it was decrypted into keeps that buffer, if the transport
+	 * lets us take it over. Anything smaller is copied, so that it shares a
+	 * segment with its neighbours instead of pinning a whole packet buffer.
+	 */
+	private void queueChannelData(ChannelBuffer target, byte[] msg, int off, int len)
+	{
+		if ((len >= msg.length / 2) && tm.detachReceiveBuffer(msg))
+			target.appendBuffer(msg, off, len);
+		else
+			target.append(msg, off, len);
+	}
+
 	public void msgChannelExtendedData(byte[] msg, int msglen) throws IOException
 	{
 		if (msglen <= 13)
@@ -911,10 +1036,12 @@ public class ChannelManager implements MessageHandler
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 13, c.stderrBuffer, c.stderrWritepos, len);
-			c.stderrWritepos += len;
+			if (c.timedAdjust != 0)
+				measureRoundTrip(c, len);
 
-			c.notifyAll();
+			queueChannelData(c.stderrBuffer, msg, 13, len);
+
+			c.signalChange();
 		}
 	}
 
@@ -941,8 +1068,8 @@ public class ChannelManager implements MessageHandler
 			{
 				int current_cond = 0;
 
-				int stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				int stderrAvail = c.stderrWritepos - c.stderrReadpos;
+				int stdoutAvail = c.stdoutBuffer.available();
+				int stderrAvail = c.stderrBuffer.available();
 
 				if (stdoutAvail > 0)
 					current_cond = current_cond | ChannelCondition.STDOUT_DATA;
@@ -1002,9 +1129,9 @@ public class ChannelManager implements MessageHandler
 			int avail;
 
 			if (extended)
-				avail = c.stderrWritepos - c.stderrReadpos;
+				avail = c.stderrBuffer.available();
 			else
-				avail = c.stdoutWritepos - c.stdoutReadpos;
+				avail = c.stdoutBuffer.available();
 
 			return ((avail > 0) ? avail : (c.EOF ? -1 : 0));
 		}
@@ -1029,8 +1156,8 @@ public class ChannelManager implements MessageHandler
 				 * channel is already closed.
 				 */
 
-				stdoutAvail = c.stdoutWritepos - c.stdoutReadpos;
-				stderrAvail = c.stderrWritepos - c.stderrReadpos;
+				stdoutAvail = c.stdoutBuffer.available();
+				stderrAvail = c.stderrBuffer.available();
 
 				if ((!extended) && (stdoutAvail != 0))
 					break;
@@ -1055,44 +1182,24 @@ public class ChannelManager implements MessageHandler
 			/* OK, there is some data. Return it. */
 
 			if (!extended)
-			{
-				copylen = (stdoutAvail > len) ? len : stdoutAvail;
-				System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, target, off, copylen);
-				c.stdoutReadpos += copylen;
-
-				if (c.stdoutReadpos != c.stdoutWritepos)
-
-					System.arraycopy(c.stdoutBuffer, c.stdoutReadpos, c.stdoutBuffer, 0, c.stdoutWritepos
-							- c.stdoutReadpos);
-
-				c.stdoutWritepos -= c.stdoutReadpos;
-				c.stdoutReadpos = 0;
-			}
+				copylen = c.stdoutBuffer.read(target, off, len);
 			else
-			{
-				copylen = (stderrAvail > len) ? len : stderrAvail;
-				System.arraycopy(c.stderrBuffer, c.stderrReadpos, target, off, copylen);
-				c.stderrReadpos += copylen;
-
-				if (c.stderrReadpos != c.stderrWritepos)
-
-					System.arraycopy(c.stderrBuffer, c.stderrReadpos, c.stderrBuffer, 0, c.stderrWritepos
-							- c.stderrReadpos);
-
-				c.stderrWritepos -= c.stderrReadpos;
-				c.stderrReadpos = 0;
-			}
+				copylen = c.stderrBuffer.read(target, off, len);
 
 			if (c.state != Channel.STATE_OPEN)
 				return copylen;
 
-			if (c.localWindow < ((Channel.CHANNEL_BUFFER_SIZE + 1) / 2))
+			if (c.localWindow < ((c.windowLimit + 1) / 2))
 			{
-				int minFreeSpace = Math.min(Channel.CHANNEL_BUFFER_SIZE - c.stdoutWritepos, Channel.CHANNEL_BUFFER_SIZE
-						- c.stderrWritepos);
+				if (c.windowLimit < c.maxWindowLimit)
+					tuneWindow(c);
+
+				int minFreeSpace = Math.min(c.windowLimit - c.stdoutBuffer.available(),
+						c.windowLimit - c.stderrBuffer.available());
 
 				increment = minFreeSpace - c.localWindow;
 				c.localWindow = minFreeSpace;
+				c.windowAtAdjust = minFreeSpace;
 			}
 
 			remoteID = c.remoteID; /* read while holding the lock */
@@ -1110,28 +1217,100 @@ public class ChannelManager implements MessageHandler
 			if (log.isEnabled())
 				log.log(80, "Sending SSH_MSG_CHANNEL_WINDOW_ADJUST (channel " + localID + ", " + increment + ")");
 
+			/* A new buffer each time, the send thread may not have written the last one yet */
+
+			TypesWriter tw = new TypesWriter(new byte[9]);
+			PacketChannelWindowAdjust.writeTo(tw, remoteID, increment);
+
 			synchronized (c.channelSendLock)
 			{
-				byte[] msg = c.msgWindowAdjust;
-
-				msg[0] = Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST;
-				msg[1] = (byte) (remoteID >> 24);
-				msg[2] = (byte) (remoteID >> 16);
-				msg[3] = (byte) (remoteID >> 8);
-				msg[4] = (byte) (remoteID);
-				msg[5] = (byte) (increment >> 24);
-				msg[6] = (byte) (increment >> 16);
-				msg[7] = (byte) (increment >> 8);
-				msg[8] = (byte) (increment);
-
 				if (c.closeMessageSent == false)
-					tm.sendMessage(msg);
+					tm.sendMessage(tw.getBuffer(), tw.length());
 			}
 		}
 
 		return copylen;
 	}
 
+	/**
+	 * Used for all window auto-tuning timestamps, so that tests can run on
+	 * their own clock.
+	 * 
+	 * @return the current time in nanoseconds, as System.nanoTime()
+	 */
+	long now()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Auto-tuning, called with the channel locked just before a window adjust
+	 * is sent. If the reader has already consumed everything, the window and
+	 * not the reader may be what limits the transfer. The window is then
+	 * grown to four times the data that arrives in one round trip at the
+	 * rate measured since the last adjust.
+	 * <p>
+	 * Adjusts are only sent once half the window has been used, so a peer
+	 * held back by the window gets half a window through per round trip, and
+	 * such a window doubles. Once the link is the limit, the window settles
+	 * at four times the bandwidth-delay product, which leaves the peer enough
+	 * to go on sending for a round trip after each adjust. The window never
+	 * shrinks, grows at most twofold per adjust and stays within
+	 * maxWindowLimit.
+	 * <p>
+	 * Also starts timing this adjust if no round trip measurement is running.
+	 */
+	private void tuneWindow(Channel c)
+	{
+		long now = now();
+
+		if ((c.roundTrip > 0) && (c.adjustTime != 0) && (now > c.adjustTime) && (c.stdoutBuffer.available() == 0)
+				&& (c.stderrBuffer.available() == 0))
+		{
+			long received = c.windowAtAdjust - c.localWindow;
+			long target = 4 * received * c.roundTrip / (now - c.adjustTime);
+
+			target = Math.min(target, Math.min(2L * c.windowLimit, c.maxWindowLimit));
+
+			if (target > c.windowLimit)
+			{
+				c.windowLimit = (int) target;
+
+				if (log.isEnabled())
+					log.log(50, "Channel " + c.localID + ": window grown to " + c.windowLimit + " bytes");
+			}
+		}
+
+		c.adjustTime = now;
+
+		if (c.timedAdjust == 0)
+		{
+			c.timedAdjust = now;
+			c.dataBeforeTimedAdjust = c.localWindow;
+		}
+	}
+
+	/**
+	 * Called for received data while an adjust is being timed. Once more data
+	 * has arrived than the window the peer had without that adjust, the peer
+	 * must have seen the adjust, so at least one round trip has passed. The
+	 * sample is too large if the peer was not waiting for the adjust, which is
+	 * why only the smallest one is kept.
+	 */
+	private void measureRoundTrip(Channel c, int len)
+	{
+		c.dataBeforeTimedAdjust -= len;
+
+		if (c.dataBeforeTimedAdjust >= 0)
+			return;
+
+		long sample = now() - c.timedAdjust;
+		c.timedAdjust = 0;
+
+		if ((sample > 0) && ((c.roundTrip == 0) || (sample < c.roundTrip)))
+			c.roundTrip = sample;
+	}
+
 	public void msgChannelData(byte[] msg, int msglen) throws IOException
 	{
 		if (msglen <= 9)
@@ -1165,10 +1344,12 @@ public class ChannelManager implements MessageHandler
 
 			c.localWindow -= len;
 
-			System.arraycopy(msg, 9, c.stdoutBuffer, c.stdoutWritepos, len);
-			c.stdoutWritepos += len;
+			if (c.timedAdjust != 0)
+				measureRoundTrip(c, len);
+
+			queueChannelData(c.stdoutBuffer, msg, 9, len);
 
-			c.notifyAll();
+			c.signalChange();
 		}
 	}
 
@@ -1196,7 +1377,7 @@ public class ChannelManager implements MessageHandler
 			if ((c.remoteWindow > huge))
 				c.remoteWindow = huge;
 
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1243,7 +1424,7 @@ public class ChannelManager implements MessageHandler
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* properly convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
 			}
 
 			/*
@@ -1251,8 +1432,7 @@ public class ChannelManager implements MessageHandler
 			 */
 
 			RemoteX11AcceptThread rxat = new RemoteX11AcceptThread(c, remoteOriginatorAddress, remoteOriginatorPort);
-			rxat.setDaemon(true);
-			rxat.start();
+			startChannelWorker(c, rxat, "RemoteX11AcceptThread");
 
 			return;
 		}
@@ -1294,7 +1474,7 @@ public class ChannelManager implements MessageHandler
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
 			}
 
 			/*
@@ -1304,8 +1484,7 @@ public class ChannelManager implements MessageHandler
 			RemoteAcceptThread rat = new RemoteAcceptThread(c, remoteConnectedAddress, remoteConnectedPort,
 					remoteOriginatorAddress, remoteOriginatorPort, rfd.targetAddress, rfd.targetPort);
 
-			rat.setDaemon(true);
-			rat.start();
+			startChannelWorker(c, rat, "RemoteAcceptThread");
 
 			return;
 		}
@@ -1318,13 +1497,12 @@ public class ChannelManager implements MessageHandler
 				c.remoteID = remoteID;
 				c.remoteWindow = remoteWindow & 0xFFFFffffL; /* properly convert UINT32 to long */
 				c.remoteMaxPacketSize = remoteMaxPacketSize;
-				c.localID = addChannel(c);
+				addChannel(c);
 			}
 
 			AuthAgentForwardThread aat = new AuthAgentForwardThread(c, authAgent);
 
-			aat.setDaemon(true);
-			aat.start();
+			startChannelWorker(c, aat, "AuthAgentForwardThread");
 
 			return;
 		}
@@ -1342,7 +1520,8 @@ public class ChannelManager implements MessageHandler
 
 	public void msgChannelRequest(byte[] msg, int msglen) throws IOException
 	{
-		TypesReader tr = new TypesReader(msg, 0, msglen);
+		TypesReader tr = receiveReader;
+		tr.reset(msg, 0, msglen);
 
 		tr.readByte(); // skip packet type
 		int id = tr.readUINT32();
@@ -1371,7 +1550,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.exit_status = new Integer(exit_status);
-				c.notifyAll();
+				c.signalChange();
 			}
 
 			if (log.isEnabled())
@@ -1396,7 +1575,7 @@ public class ChannelManager implements MessageHandler
 			synchronized (c)
 			{
 				c.exit_signal = signame;
-				c.notifyAll();
+				c.signalChange();
 			}
 
 			if (log.isEnabled())
@@ -1441,7 +1620,7 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.EOF = true;
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1467,9 +1646,9 @@ public class ChannelManager implements MessageHandler
 			c.setReasonClosed("Close requested by remote");
 			c.closeMessageRecv = true;
 
-			removeChannel(c.localID);
+			removeChannel(c);
 
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1491,7 +1670,7 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.successCounter++;
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1513,7 +1692,7 @@ public class ChannelManager implements MessageHandler
 		synchronized (c)
 		{
 			c.failedCounter++;
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1540,7 +1719,7 @@ public class ChannelManager implements MessageHandler
 			c.remoteWindow = sm.initialWindowSize & 0xFFFFffffL; /* convert UINT32 to long */
 			c.remoteMaxPacketSize = sm.maxPacketSize;
 			c.state = Channel.STATE_OPEN;
-			c.notifyAll();
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1604,7 +1783,11 @@ public class ChannelManager implements MessageHandler
 			c.state = Channel.STATE_CLOSED;
 			c.setReasonClosed("The server refused to open the channel (" + reasonCodeSymbolicName + ", '"
 					+ descriptionBuffer.toString() + "')");
-			c.notifyAll();
+
+			/* Channels opened by the ForwardingEngine have nobody in waitUntilChannelOpen() */
+			removeChannel(c);
+
+			c.signalChange();
 		}
 
 		if (log.isEnabled())
@@ -1613,34 +1796,33 @@ public class ChannelManager implements MessageHandler
 
 	public void msgGlobalRequest(byte[] msg, int msglen) throws IOException
 	{
-		/* Currently we do not support any kind of global request */
+		/* Currently we do not support any kind of global request.
+		 * Servers send them as keepalives, so parse in place. */
 
-		TypesReader tr = new TypesReader(msg, 0, msglen);
+		TypesReader tr = receiveReader;
+		tr.reset(msg, 0, msglen);
 
 		tr.readByte(); // skip packet type
-		String requestName = tr.readString();
+		int nameLen = tr.readStringLength();
+		int nameOff = tr.position();
+		tr.skip(nameLen);
 		boolean wantReply = tr.readBoolean();
 
 		if (wantReply)
-		{
-			byte[] reply_failure = new byte[1];
-			reply_failure[0] = Packets.SSH_MSG_REQUEST_FAILURE;
-
-			tm.sendAsynchronousMessage(reply_failure);
-		}
+			tm.sendAsynchronousMessage(MSG_REQUEST_FAILURE);
 
 		/* We do not clean up the requestName String - that is OK for debug */
 
 		if (log.isEnabled())
-			log.log(80, "Got SSH_MSG_GLOBAL_REQUEST (" + requestName + ")");
+			log.log(80, "Got SSH_MSG_GLOBAL_REQUEST (" + new String(msg, nameOff, nameLen, "ISO-8859-1") + ")");
 	}
 
 	public void msgGlobalSuccess() throws IOException
 	{
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalSuccessCounter++;
-			channels.notifyAll();
+			globalRequestLock.notifyAll();
 		}
 
 		if (log.isEnabled())
@@ -1649,10 +1831,10 @@ public class ChannelManager implements MessageHandler
 
 	public void msgGlobalFailure() throws IOException
 	{
-		synchronized (channels)
+		synchronized (globalRequestLock)
 		{
 			globalFailedCounter++;
-			channels.notifyAll();
+			globalRequestLock.notifyAll();
 		}
 
 		if (log.isEnabled())
@@ -1676,33 +1858,34 @@ public class ChannelManager implements MessageHandler
 				listenerThreadsAllowed = false;
 			}
 
-			synchronized (channels)
-			{
-				shutdown = true;
+			Channel[] channel_copy = channels.toArray();
+			channels.clear();
 
-				for (int i = 0; i < channels.size(); i++)
+			for (int i = 0; i < channel_copy.length; i++)
+			{
+				Channel c = channel_copy[i];
+				synchronized (c)
 				{
-					Channel c = (Channel) channels.elementAt(i);
-					synchronized (c)
-					{
-						c.EOF = true;
-						c.state = Channel.STATE_CLOSED;
-						c.setReasonClosed("The connection is being shutdown");
-						c.closeMessageRecv = true; /*
-																															 * You never know, perhaps
-																															 * we are waiting for a
-																															 * pending close message
-																															 * from the server...
-																															 */
-						c.notifyAll();
-					}
+					c.EOF = true;
+					c.state = Channel.STATE_CLOSED;
+					c.setReasonClosed("The connection is being shutdown");
+					c.closeMessageRecv = true; /*
+																														 * You never know, perhaps
+																														 * we are waiting for a
+																														 * pending close message
+																														 * from the server...
+																														 */
+					c.signalChange();
 				}
-				/* Works with J2ME */
-				channels.setSize(0);
-				channels.trimToSize();
-				channels.notifyAll(); /* Notify global response waiters */
-				return;
 			}
+
+			synchronized (globalRequestLock)
+			{
+				shutdown = true;
+				globalRequestLock.notifyAll(); /* Notify global response waiters */
+			}
+
+			return;
 		}
 
 		switch (msg[0])
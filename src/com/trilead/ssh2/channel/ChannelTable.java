@@ -0,0 +1,121 @@
+
+package com.trilead.ssh2.channel;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ChannelTable. Maps local channel ids to channels. The id is the slot
+ * index plus a fixed offset, so a lookup is a single array read and takes no
+ * lock. Adding and removing channels is synchronized; the lowest free slot is
+ * reused, so the table only grows with the number of concurrently open
+ * channels.
+ * <p>
+ * A slot is freed only once the server can no longer refer to the channel
+ * (it sent its CLOSE, or refused to open the channel), so reusing ids is
+ * safe.
+ */
+final class ChannelTable
+{
+	/* Local channel ids have always started at 100 */
+	private static final int FIRST_ID = 100;
+
+	private volatile AtomicReferenceArray slots = new AtomicReferenceArray(16);
+
+	private int count = 0;
+	private int lowestFree = 0;
+
+	/**
+	 * @return the channel with the given local id, or null
+	 */
+	Channel get(int id)
+	{
+		AtomicReferenceArray t = slots;
+		int index = id - FIRST_ID;
+
+		if ((index < 0) || (index >= t.length()))
+			return null;
+
+		return (Channel) t.get(index);
+	}
+
+	/**
+	 * Assign a local id to the channel (c.localID) and make it visible to
+	 * get().
+	 */
+	synchronized void add(Channel c)
+	{
+		AtomicReferenceArray t = slots;
+
+		int index = lowestFree;
+
+		while ((index < t.length()) && (t.get(index) != null))
+			index++;
+
+		if (index == t.length())
+		{
+			AtomicReferenceArray bigger = new AtomicReferenceArray(t.length() * 2);
+
+			for (int i = 0; i < t.length(); i++)
+				bigger.set(i, t.get(i));
+
+			slots = t = bigger;
+		}
+
+		/* localID is written before the channel is published */
+
+		c.localID = FIRST_ID + index;
+		t.set(index, c);
+
+		count++;
+		lowestFree = index + 1;
+	}
+
+	/**
+	 * Free the slot of the channel. Does nothing if the slot does not hold
+	 * this channel (anymore), so a channel may be removed more than once,
+	 * even after its id has been handed out again.
+	 */
+	synchronized void remove(Channel c)
+	{
+		AtomicReferenceArray t = slots;
+		int index = c.localID - FIRST_ID;
+
+		if ((index < 0) || (index >= t.length()))
+			return;
+
+		if (t.compareAndSet(index, c, null) == false)
+			return;
+
+		count--;
+
+		if (index < lowestFree)
+			lowestFree = index;
+	}
+
+	/**
+	 * @return a snapshot of all channels
+	 */
+	synchronized Channel[] toArray()
+	{
+		AtomicReferenceArray t = slots;
+		Channel[] all = new Channel[count];
+		int n = 0;
+
+		for (int i = 0; (i < t.length()) && (n < count); i++)
+		{
+			Channel c = (Channel) t.get(i);
+
+			if (c != null)
+				all[n++] = c;
+		}
+
+		return all;
+	}
+
+	synchronized void clear()
+	{
+		slots = new AtomicReferenceArray(16);
+		count = 0;
+		lowestFree = 0;
+	}
+}
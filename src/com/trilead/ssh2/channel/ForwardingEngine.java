@@ -0,0 +1,1004 @@
+
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * ForwardingEngine. Serves all local and dynamic (SOCKS) port forwardings of
+ * a connection from one thread. Accepted sockets are non-blocking and are
+ * multiplexed onto their SSH channels with a {@link Selector}.
+ * <p>
+ * No more is read from a socket than the remote window of its channel allows,
+ * a socket whose window is used up is not read until the server adjusts it.
+ * In the other direction, channel data is only consumed (and the local window
+ * only re-opened) as fast as the socket takes it.
+ * <p>
+ * The receive thread only tells us that a channel needs attention (see
+ * {@link IChannelEventListener}), all messages are sent from this thread.
+ * Sending never waits for the transport: while its send queue is full, or
+ * a key exchange is going on, no socket is read until the transport says
+ * it has room again.
+ */
+public class ForwardingEngine extends Thread implements IChannelWorkerThread
+{
+	private static final Logger log = Logger.getLogger(ForwardingEngine.class);
+
+	private static final int BUFFER_SIZE = 32768;
+
+	/* Buffers of channel data written to one socket before the others get a turn */
+	private static final int MAX_ROUNDS = 8;
+
+	/* SOCKS requests are short, anything longer is not one we understand */
+	private static final int SOCKS_BUFFER_SIZE = 1024;
+
+	private static final int STATE_SOCKS_GREETING = 1;
+	private static final int STATE_SOCKS5_REQUEST = 2;
+	private static final int STATE_OPENING = 3;
+	private static final int STATE_OPEN = 4;
+	private static final int STATE_CLOSED = 5;
+
+	private final ChannelManager cm;
+	private final Selector selector;
+
+	/* Shared by all sockets, only used by this thread */
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+	/* Acceptors and Forwards that need attention */
+	private final LinkedList tasks = new LinkedList();
+
+	/* Queued when the transport can take more data */
+	private static final Object TRANSPORT_READY = new Object();
+
+	/* Set while the transport is congested, only used by this thread */
+	private boolean transportFull = false;
+
+	/**
+	 * Run by the transport once its send queue has room again.
+	 */
+	final Runnable transportReady = new Runnable()
+	{
+		public void run()
+		{
+			enqueue(TRANSPORT_READY);
+		}
+	};
+
+	private volatile boolean stopped = false;
+
+	/**
+	 * A listening socket. Connections are forwarded to a fixed destination
+	 * or, if host_to_connect is null, to the one the SOCKS client asks for.
+	 */
+	public class Acceptor
+	{
+		final ServerSocketChannel ssc;
+		final String host_to_connect;
+		final int port_to_connect;
+
+		SelectionKey key;
+		volatile boolean closing = false;
+		boolean closed = false; /* guarded by this */
+
+		Acceptor(ServerSocketChannel ssc, String host_to_connect, int port_to_connect)
+		{
+			this.ssc = ssc;
+			this.host_to_connect = host_to_connect;
+			this.port_to_connect = port_to_connect;
+		}
+
+		/**
+		 * Stop accepting new connections. Connections that have already been
+		 * accepted are not affected. Returns once the listening socket is
+		 * closed, so the port can be bound again right away.
+		 */
+		public void close()
+		{
+			closing = true;
+
+			synchronized (tasks)
+			{
+				/* Nobody left to close it for us */
+
+				if (stopped || (Thread.currentThread() == ForwardingEngine.this))
+				{
+					closeAcceptor(this);
+					return;
+				}
+
+				enqueue(this);
+			}
+
+			synchronized (this)
+			{
+				while (closed == false)
+				{
+					try
+					{
+						wait();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/* An accepted socket and its channel */
+	private class Forward implements IChannelEventListener
+	{
+		final SocketChannel sc;
+		SelectionKey key;
+		Channel c;
+
+		int state;
+		boolean queued = false; /* guarded by tasks */
+
+		boolean localEOF = false;
+		boolean remoteEOF = false;
+
+		/* Data the socket did not take yet, only allocated when a write is short */
+		ByteBuffer pending;
+
+		/* SOCKS negotiation, anything left over is sent once the channel is open */
+		byte[] socks;
+		int socksLen = 0;
+		int socksVersion = 0;
+
+		Forward(SocketChannel sc)
+		{
+			this.sc = sc;
+		}
+
+		public void channelChanged(Channel c)
+		{
+			enqueue(this);
+		}
+	}
+
+	public ForwardingEngine(ChannelManager cm) throws IOException
+	{
+		this.cm = cm;
+		this.selector = Selector.open();
+
+		setName("ForwardingEngine");
+	}
+
+	/**
+	 * Forward connections arriving at a local address to a fixed destination.
+	 */
+	public Acceptor acceptLocal(InetSocketAddress localAddress, String host_to_connect, int port_to_connect)
+			throws IOException
+	{
+		return listen(localAddress, host_to_connect, port_to_connect);
+	}
+
+	/**
+	 * Act as a SOCKS4, SOCKS4a and SOCKS5 (without authentication) proxy on a
+	 * local address.
+	 */
+	public Acceptor acceptDynamic(InetSocketAddress localAddress) throws IOException
+	{
+		return listen(localAddress, null, 0);
+	}
+
+	private Acceptor listen(InetSocketAddress localAddress, String host_to_connect, int port_to_connect)
+			throws IOException
+	{
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+
+		try
+		{
+			ssc.socket().bind(localAddress);
+			ssc.configureBlocking(false);
+		}
+		catch (IOException e)
+		{
+			ssc.close();
+			throw e;
+		}
+
+		Acceptor a = new Acceptor(ssc, host_to_connect, port_to_connect);
+
+		synchronized (tasks)
+		{
+			if (stopped)
+			{
+				ssc.close();
+				throw new IOException("Too late, this connection is closed.");
+			}
+
+			enqueue(a);
+		}
+
+		if (log.isEnabled())
+			log.log(50, "Accepting connections on " + ssc.socket().getLocalSocketAddress());
+
+		return a;
+	}
+
+	private void enqueue(Object task)
+	{
+		synchronized (tasks)
+		{
+			if (task instanceof Forward)
+			{
+				Forward f = (Forward) task;
+
+				if (f.queued)
+					return;
+				f.queued = true;
+			}
+
+			tasks.addLast(task);
+
+			/* Otherwise the selector has been woken up already */
+			if (tasks.size() == 1)
+				selector.wakeup();
+		}
+	}
+
+	public void run()
+	{
+		try
+		{
+			while (!stopped)
+			{
+				selector.select();
+
+				runTasks();
+
+				Iterator it = selector.selectedKeys().iterator();
+
+				while (it.hasNext())
+				{
+					SelectionKey key = (SelectionKey) it.next();
+					it.remove();
+
+					if (!key.isValid())
+						continue;
+
+					if (key.attachment() instanceof Acceptor)
+						accept((Acceptor) key.attachment());
+					else
+						serve((Forward) key.attachment(), key.isReadable());
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			if (log.isEnabled())
+				log.log(20, "ForwardingEngine failed: " + e.getMessage());
+		}
+		finally
+		{
+			shutdown();
+		}
+	}
+
+	public void stopWorking()
+	{
+		stopped = true;
+		selector.wakeup();
+	}
+
+	private void runTasks()
+	{
+		Object[] todo;
+
+		synchronized (tasks)
+		{
+			if (tasks.size() == 0)
+				return;
+
+			todo = tasks.toArray();
+			tasks.clear();
+
+			for (int i = 0; i < todo.length; i++)
+			{
+				if (todo[i] instanceof Forward)
+					((Forward) todo[i]).queued = false;
+			}
+		}
+
+		for (int i = 0; i < todo.length; i++)
+		{
+			if (todo[i] == TRANSPORT_READY)
+			{
+				transportFull = false;
+				resumeReading();
+			}
+			else if (todo[i] instanceof Acceptor)
+			{
+				Acceptor a = (Acceptor) todo[i];
+
+				if (a.closing)
+				{
+					closeAcceptor(a);
+				}
+				else if (a.key == null)
+				{
+					try
+					{
+						a.key = a.ssc.register(selector, SelectionKey.OP_ACCEPT, a);
+					}
+					catch (IOException e)
+					{
+						closeAcceptor(a);
+					}
+				}
+			}
+			else
+			{
+				serve((Forward) todo[i], false);
+			}
+		}
+	}
+
+	/* The transport has room again, look at the sockets that were left unread */
+	private void resumeReading()
+	{
+		Object[] keys = selector.keys().toArray();
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			Object att = ((SelectionKey) keys[i]).attachment();
+
+			if (att instanceof Forward)
+				serve((Forward) att, false);
+		}
+	}
+
+	private void shutdown()
+	{
+		stopped = true;
+
+		Object[] keys = selector.keys().toArray();
+
+		for (int i = 0; i < keys.length; i++)
+		{
+			Object att = ((SelectionKey) keys[i]).attachment();
+
+			if (att instanceof Acceptor)
+				closeAcceptor((Acceptor) att);
+			else
+				close((Forward) att, "The ForwardingEngine is shutting down");
+		}
+
+		synchronized (tasks)
+		{
+			/* Acceptors that never got registered */
+
+			while (tasks.size() > 0)
+			{
+				Object task = tasks.removeFirst();
+
+				if (task instanceof Acceptor)
+					closeAcceptor((Acceptor) task);
+			}
+		}
+
+		try
+		{
+			selector.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+
+	private void closeAcceptor(Acceptor a)
+	{
+		if (a.key != null)
+		{
+			a.key.cancel();
+
+			/* Deregister it first, some platforms keep the socket open while it is registered */
+
+			if (Thread.currentThread() == this)
+			{
+				try
+				{
+					selector.selectNow();
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+		}
+
+		try
+		{
+			a.ssc.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		synchronized (a)
+		{
+			a.closed = true;
+			a.notifyAll();
+		}
+	}
+
+	private void accept(Acceptor a)
+	{
+		SocketChannel sc;
+
+		try
+		{
+			sc = a.ssc.accept();
+		}
+		catch (IOException e)
+		{
+			closeAcceptor(a);
+			return;
+		}
+
+		if (sc == null)
+			return;
+
+		Forward f = new Forward(sc);
+
+		try
+		{
+			sc.configureBlocking(false);
+			f.key = sc.register(selector, 0, f);
+
+			if (a.host_to_connect == null)
+			{
+				f.state = STATE_SOCKS_GREETING;
+				f.socks = new byte[SOCKS_BUFFER_SIZE];
+				f.key.interestOps(SelectionKey.OP_READ);
+			}
+			else
+			{
+				openChannel(f, a.host_to_connect, a.port_to_connect);
+			}
+		}
+		catch (IOException e)
+		{
+			/* This may fail, e.g., if the connection is being shut down */
+
+			close(f, null);
+		}
+	}
+
+	private void openChannel(Forward f, String host_to_connect, int port_to_connect) throws IOException
+	{
+		f.state = STATE_OPENING;
+
+		/* The listener only queues f, so it does not matter that f.c is set afterwards */
+
+		f.c = cm.startDirectTCPIPChannel(host_to_connect, port_to_connect, f.sc.socket().getInetAddress()
+				.getHostAddress(), f.sc.socket().getPort(), f);
+	}
+
+	private void close(Forward f, String reason)
+	{
+		if (f.state == STATE_CLOSED)
+			return;
+
+		boolean opening = (f.state == STATE_OPENING);
+
+		f.state = STATE_CLOSED;
+
+		if (f.key != null)
+			f.key.cancel();
+
+		try
+		{
+			f.sc.close();
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		/* A channel that is still opening is closed once the server has answered, see serve() */
+
+		if ((f.c != null) && !opening)
+		{
+			closeChannel(f.c, reason);
+			f.c = null;
+		}
+	}
+
+	private void closeChannel(Channel c, String reason)
+	{
+		try
+		{
+			cm.closeChannel(c, reason, true);
+		}
+		catch (IOException ignore)
+		{
+		}
+	}
+
+	private void closeAbandonedChannel(Forward f)
+	{
+		int state;
+
+		synchronized (f.c)
+		{
+			state = f.c.state;
+		}
+
+		if (state == Channel.STATE_OPENING)
+			return;
+
+		if (state == Channel.STATE_OPEN)
+			closeChannel(f.c, "The local socket was closed while the channel was being opened");
+
+		f.c = null;
+	}
+
+	/**
+	 * Do whatever can be done for a connection without blocking. Called for
+	 * every socket and channel event, so it looks at the complete state.
+	 */
+	private void serve(Forward f, boolean readable)
+	{
+		if (f.state == STATE_CLOSED)
+		{
+			if (f.c != null)
+				closeAbandonedChannel(f);
+			return;
+		}
+
+		try
+		{
+			if (f.pending != null)
+			{
+				f.sc.write(f.pending);
+
+				if (!f.pending.hasRemaining())
+					f.pending = null;
+			}
+
+			if (readable)
+			{
+				if (f.state == STATE_OPEN)
+					readSocket(f);
+				else if (f.state != STATE_OPENING)
+					readSocks(f);
+			}
+
+			if (f.state == STATE_OPENING)
+				checkOpened(f);
+
+			if (f.state == STATE_OPEN)
+			{
+				if (f.socksLen > 0)
+					sendLeftover(f);
+
+				writeSocket(f);
+
+				if (f.remoteEOF && (f.localEOF || isClosed(f.c)))
+				{
+					close(f, "ForwardingEngine is cleaning up the connection");
+					return;
+				}
+			}
+
+			if (f.state != STATE_CLOSED)
+				updateInterest(f);
+		}
+		catch (IOException e)
+		{
+			close(f, "Closed due to exception in ForwardingEngine: " + e.getMessage());
+		}
+	}
+
+	private void updateInterest(Forward f)
+	{
+		int ops = 0;
+
+		if (f.pending != null)
+			ops |= SelectionKey.OP_WRITE;
+
+		if ((f.state == STATE_SOCKS_GREETING) || (f.state == STATE_SOCKS5_REQUEST))
+			ops |= SelectionKey.OP_READ;
+
+		if ((f.state == STATE_OPEN) && !f.localEOF && (f.socksLen == 0) && !transportFull
+				&& (getRemoteWindow(f.c) > 0))
+			ops |= SelectionKey.OP_READ;
+
+		if (f.key.interestOps() != ops)
+			f.key.interestOps(ops);
+	}
+
+	private long getRemoteWindow(Channel c)
+	{
+		synchronized (c)
+		{
+			return c.remoteWindow;
+		}
+	}
+
+	private boolean isClosed(Channel c)
+	{
+		synchronized (c)
+		{
+			return c.state == Channel.STATE_CLOSED;
+		}
+	}
+
+	/**
+	 * Socket to channel. Only this thread sends data on the channel, so as
+	 * long as we never read more than the remote window, sendData() does not
+	 * wait for the window. The transport does not make us wait either, so
+	 * stop reading while its send queue is full.
+	 */
+	private void readSocket(Forward f) throws IOException
+	{
+		long window = getRemoteWindow(f.c);
+
+		if (window == 0)
+			return;
+
+		if (transportFull || cm.isSendQueueFull())
+		{
+			transportFull = true;
+			return;
+		}
+
+		byteBuffer.clear();
+
+		if (window < BUFFER_SIZE)
+			byteBuffer.limit((int) window);
+
+		int len = f.sc.read(byteBuffer);
+
+		if (len < 0)
+		{
+			f.localEOF = true;
+			cm.sendEOF(f.c);
+		}
+		else if (len > 0)
+		{
+			cm.sendData(f.c, buffer, 0, len);
+		}
+	}
+
+	private void sendLeftover(Forward f) throws IOException
+	{
+		int len = (int) Math.min(getRemoteWindow(f.c), f.socksLen);
+
+		if (len == 0)
+			return;
+
+		cm.sendData(f.c, f.socks, 0, len);
+		consumeSocks(f, len);
+
+		if (f.socksLen == 0)
+			f.socks = null;
+	}
+
+	/**
+	 * Channel to socket. Channel data is only taken when the socket has
+	 * accepted everything before, otherwise it stays in the channel buffer and
+	 * the server runs out of window.
+	 */
+	private void writeSocket(Forward f) throws IOException
+	{
+		if ((f.pending != null) || f.remoteEOF)
+			return;
+
+		for (int i = 0; i < MAX_ROUNDS; i++)
+		{
+			int avail = cm.getAvailable(f.c, false);
+
+			if (avail == 0)
+				return;
+
+			if (avail < 0)
+			{
+				/* EOF or closed, and everything has been written */
+
+				f.remoteEOF = true;
+				f.sc.socket().shutdownOutput();
+				return;
+			}
+
+			int len = cm.getChannelData(f.c, false, buffer, 0, BUFFER_SIZE);
+
+			byteBuffer.clear();
+			byteBuffer.limit(len);
+
+			f.sc.write(byteBuffer);
+
+			if (byteBuffer.hasRemaining())
+			{
+				f.pending = ByteBuffer.allocate(byteBuffer.remaining());
+				f.pending.put(byteBuffer);
+				f.pending.flip();
+				return;
+			}
+		}
+
+		/* There may be more, but let the other sockets have a turn first */
+
+		enqueue(f);
+	}
+
+	private void checkOpened(Forward f) throws IOException
+	{
+		int state;
+
+		synchronized (f.c)
+		{
+			state = f.c.state;
+		}
+
+		if (state == Channel.STATE_OPENING)
+			return;
+
+		if (state == Channel.STATE_OPEN)
+		{
+			f.state = STATE_OPEN;
+
+			if (f.socksVersion == 4)
+				writeReply(f, socks4Reply(90));
+			else if (f.socksVersion == 5)
+				writeReply(f, socks5Reply(0));
+
+			if (f.socksLen == 0)
+				f.socks = null;
+
+			return;
+		}
+
+		/* The server refused, there is nothing to close on the SSH side */
+
+		if (log.isEnabled())
+			log.log(50, "Could not open forwarding channel (" + f.c.getReasonClosed() + ")");
+
+		f.c = null;
+
+		try
+		{
+			if (f.socksVersion == 4)
+				writeReply(f, socks4Reply(91));
+			else if (f.socksVersion == 5)
+				writeReply(f, socks5Reply(1));
+		}
+		catch (IOException ignore)
+		{
+		}
+
+		close(f, null);
+	}
+
+	private void writeReply(Forward f, byte[] reply) throws IOException
+	{
+		if (f.pending != null)
+		{
+			/* Still writing an earlier reply, this one goes after it */
+
+			ByteBuffer bb = ByteBuffer.allocate(f.pending.remaining() + reply.length);
+			bb.put(f.pending);
+			bb.put(reply);
+			bb.flip();
+			f.pending = bb;
+			return;
+		}
+
+		ByteBuffer bb = ByteBuffer.wrap(reply);
+
+		f.sc.write(bb);
+
+		if (bb.hasRemaining())
+			f.pending = bb;
+	}
+
+	private static byte[] socks4Reply(int code)
+	{
+		return new byte[] { 0, (byte) code, 0, 0, 0, 0, 0, 0 };
+	}
+
+	private static byte[] socks5Reply(int code)
+	{
+		return new byte[] { 5, (byte) code, 0, 1, 0, 0, 0, 0, 0, 0 };
+	}
+
+	private void consumeSocks(Forward f, int len)
+	{
+		System.arraycopy(f.socks, len, f.socks, 0, f.socksLen - len);
+		f.socksLen -= len;
+	}
+
+	private void readSocks(Forward f) throws IOException
+	{
+		int len = f.sc.read(ByteBuffer.wrap(f.socks, f.socksLen, f.socks.length - f.socksLen));
+
+		if (len < 0)
+			throw new IOException("The SOCKS client closed the connection.");
+
+		f.socksLen += len;
+
+		if (f.state == STATE_SOCKS_GREETING)
+			parseSocksGreeting(f);
+
+		if (f.state == STATE_SOCKS5_REQUEST)
+			parseSocks5Request(f);
+
+		if (((f.state == STATE_SOCKS_GREETING) || (f.state == STATE_SOCKS5_REQUEST))
+				&& (f.socksLen == f.socks.length))
+			throw new IOException("SOCKS request too long.");
+	}
+
+	private void parseSocksGreeting(Forward f) throws IOException
+	{
+		byte[] b = f.socks;
+
+		if (f.socksLen == 0)
+			return;
+
+		if (b[0] == 4)
+		{
+			parseSocks4Request(f);
+			return;
+		}
+
+		if (b[0] != 5)
+			throw new IOException("Unsupported SOCKS version (" + b[0] + ")");
+
+		if ((f.socksLen < 2) || (f.socksLen < 2 + (b[1] & 0xff)))
+			return;
+
+		int nmethods = b[1] & 0xff;
+		boolean noAuth = false;
+
+		for (int i = 0; i < nmethods; i++)
+		{
+			if (b[2 + i] == 0)
+				noAuth = true;
+		}
+
+		consumeSocks(f, 2 + nmethods);
+
+		if (!noAuth)
+		{
+			writeReply(f, new byte[] { 5, (byte) 0xff });
+			throw new IOException("The SOCKS client does not offer unauthenticated access.");
+		}
+
+		writeReply(f, new byte[] { 5, 0 });
+		f.state = STATE_SOCKS5_REQUEST;
+	}
+
+	private int findNull(Forward f, int start)
+	{
+		for (int i = start; i < f.socksLen; i++)
+		{
+			if (f.socks[i] == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	private void parseSocks4Request(Forward f) throws IOException
+	{
+		byte[] b = f.socks;
+
+		if (f.socksLen < 9)
+			return;
+
+		/* The user id is ignored */
+
+		int end = findNull(f, 8);
+
+		if (end < 0)
+			return;
+
+		String host;
+
+		if ((b[4] == 0) && (b[5] == 0) && (b[6] == 0) && (b[7] != 0))
+		{
+			/* SOCKS4a, the host name follows the user id */
+
+			int hostEnd = findNull(f, end + 1);
+
+			if (hostEnd < 0)
+				return;
+
+			host = new String(b, end + 1, hostEnd - end - 1, "ISO-8859-1");
+			end = hostEnd;
+		}
+		else
+		{
+			host = (b[4] & 0xff) + "." + (b[5] & 0xff) + "." + (b[6] & 0xff) + "." + (b[7] & 0xff);
+		}
+
+		int command = b[1] & 0xff;
+		int port = ((b[2] & 0xff) << 8) | (b[3] & 0xff);
+
+		consumeSocks(f, end + 1);
+		f.socksVersion = 4;
+
+		if (command != 1)
+		{
+			writeReply(f, socks4Reply(91));
+			throw new IOException("Unsupported SOCKS command (" + command + ")");
+		}
+
+		openChannel(f, host, port);
+	}
+
+	private void parseSocks5Request(Forward f) throws IOException
+	{
+		byte[] b = f.socks;
+
+		if (f.socksLen < 5)
+			return;
+
+		if (b[0] != 5)
+			throw new IOException("Unsupported SOCKS version (" + b[0] + ")");
+
+		f.socksVersion = 5;
+
+		int addrLen;
+
+		switch (b[3])
+		{
+		case 1:
+			addrLen = 4;
+			break;
+		case 3:
+			addrLen = 1 + (b[4] & 0xff);
+			break;
+		case 4:
+			addrLen = 16;
+			break;
+		default:
+			writeReply(f, socks5Reply(8));
+			throw new IOException("Unsupported SOCKS address type (" + b[3] + ")");
+		}
+
+		int total = 4 + addrLen + 2;
+
+		if (f.socksLen < total)
+			return;
+
+		String host;
+
+		if (b[3] == 3)
+		{
+			host = new String(b, 5, addrLen - 1, "ISO-8859-1");
+		}
+		else
+		{
+			byte[] addr = new byte[addrLen];
+			System.arraycopy(b, 4, addr, 0, addrLen);
+			host = InetAddress.getByAddress(addr).getHostAddress();
+		}
+
+		int command = b[1] & 0xff;
+		int port = ((b[total - 2] & 0xff) << 8) | (b[total - 1] & 0xff);
+
+		consumeSocks(f, total);
+
+		if (command != 1)
+		{
+			writeReply(f, socks5Reply(7));
+			throw new IOException("Unsupported SOCKS command (" + command + ")");
+		}
+
+		openChannel(f, host, port);
+	}
+}
@@ -0,0 +1,15 @@
+
+package com.trilead.ssh2.channel;
+
+/**
+ * IChannelEventListener. Gets called whenever something happens on a channel
+ * (data, window adjust, EOF, close, open confirmation or failure).
+ * <p>
+ * The call is made while holding the lock on the channel, usually from the
+ * receive thread. Implementations must not block and must not send anything
+ * on the connection, they may only remember that the channel needs attention.
+ */
+interface IChannelEventListener
+{
+	public void channelChanged(Channel c);
+}
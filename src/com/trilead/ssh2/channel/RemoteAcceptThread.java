@@ -13,7 +13,7 @@ import com.trilead.ssh2.log.Logger;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: RemoteAcceptThread.java,v 1.1 2007/10/15 12:49:56 cplattne Exp $
  */
-public class RemoteAcceptThread extends Thread
+public class RemoteAcceptThread implements Runnable
 {
 	private static final Logger log = Logger.getLogger(RemoteAcceptThread.class);
 
@@ -57,22 +57,12 @@ public class RemoteAcceptThread extends Thread
 			StreamForwarder l2r = new StreamForwarder(c, null, null, s.getInputStream(), c.getStdinStream(),
 					"LocalToRemote");
 
-			/* No need to start two threads, one can be executed in the current thread */
-			
-			r2l.setDaemon(true);
-			r2l.start();
+			/* No need to start two workers, one can be executed in the current thread */
+
+			c.cm.startWorker(r2l, "RemoteToLocal");
 			l2r.run();
 
-			while (r2l.isAlive())
-			{
-				try
-				{
-					r2l.join();
-				}
-				catch (InterruptedException e)
-				{
-				}
-			}
+			r2l.waitUntilFinished();
 
 			/* If the channel is already closed, then this is a no-op */
 
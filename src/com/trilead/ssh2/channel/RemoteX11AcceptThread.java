@@ -15,7 +15,7 @@ import com.trilead.ssh2.log.Logger;
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: RemoteX11AcceptThread.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
  */
-public class RemoteX11AcceptThread extends Thread
+public class RemoteX11AcceptThread implements Runnable
 {
 	private static final Logger log = Logger.getLogger(RemoteX11AcceptThread.class);
 
@@ -194,22 +194,12 @@ public class RemoteX11AcceptThread extends Thread
 			StreamForwarder r2l = new StreamForwarder(c, null, null, remote_is, x11_os, "RemoteToX11");
 			StreamForwarder l2r = new StreamForwarder(c, null, null, x11_is, remote_os, "X11ToRemote");
 
-			/* No need to start two threads, one can be executed in the current thread */
+			/* No need to start two workers, one can be executed in the current thread */
 
-			r2l.setDaemon(true);
-			r2l.start();
+			c.cm.startWorker(r2l, "RemoteToX11");
 			l2r.run();
 
-			while (r2l.isAlive())
-			{
-				try
-				{
-					r2l.join();
-				}
-				catch (InterruptedException e)
-				{
-				}
-			}
+			r2l.waitUntilFinished();
 
 			/* If the channel is already closed, then this is a no-op */
 
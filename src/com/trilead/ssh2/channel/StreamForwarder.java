@@ -8,14 +8,14 @@ import java.net.Socket;
 
 /**
  * A StreamForwarder forwards data between two given streams. 
- * If two StreamForwarder threads are used (one for each direction)
+ * If two StreamForwarder workers are used (one for each direction)
  * then one can be configured to shutdown the underlying channel/socket
- * if both threads have finished forwarding (EOF).
+ * if both workers have finished forwarding (EOF).
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: StreamForwarder.java,v 1.1 2007/10/15 12:49:56 cplattne Exp $
  */
-public class StreamForwarder extends Thread
+public class StreamForwarder implements Runnable
 {
 	OutputStream os;
 	InputStream is;
@@ -24,6 +24,7 @@ public class StreamForwarder extends Thread
 	StreamForwarder sibling;
 	Socket s;
 	String mode;
+	boolean finished = false;
 
 	StreamForwarder(Channel c, StreamForwarder sibling, Socket s, InputStream is, OutputStream os, String mode)
 			throws IOException
@@ -79,16 +80,7 @@ public class StreamForwarder extends Thread
 
 			if (sibling != null)
 			{
-				while (sibling.isAlive())
-				{
-					try
-					{
-						sibling.join();
-					}
-					catch (InterruptedException e)
-					{
-					}
-				}
+				sibling.waitUntilFinished();
 
 				try
 				{
@@ -107,6 +99,32 @@ public class StreamForwarder extends Thread
 				{
 				}
 			}
+
+			synchronized (this)
+			{
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until run() has returned.
+	 */
+	void waitUntilFinished()
+	{
+		synchronized (this)
+		{
+			while (!finished)
+			{
+				try
+				{
+					wait();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
 		}
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
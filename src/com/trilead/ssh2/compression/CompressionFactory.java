@@ -28,23 +28,29 @@ public class CompressionFactory {
 	{
 		String type;
 		String compressorClass;
+		boolean delayed;
 
-		public CompressorEntry(String type, String compressorClass)
+		public CompressorEntry(String type, String compressorClass, boolean delayed)
 		{
 			this.type = type;
 			this.compressorClass = compressorClass;
+			this.delayed = delayed;
 		}
 	}
 
 	static Vector<CompressorEntry> compressors = new Vector<CompressorEntry>();
 
+	/* java.util.zip can only flush per packet from Java 7 / API level 19 on, jzlib can everywhere */
+	static final String ZLIB_CLASS = JavaZlib.isAvailable() ? "com.trilead.ssh2.compression.JavaZlib"
+			: "com.trilead.ssh2.compression.Zlib";
+
 	static
 	{
 		/* Higher Priority First */
 
-		compressors.addElement(new CompressorEntry("zlib", "com.trilead.ssh2.compression.Zlib"));
-		compressors.addElement(new CompressorEntry("zlib@openssh.com", "com.trilead.ssh2.compression.Zlib"));
-		compressors.addElement(new CompressorEntry("none", ""));
+		compressors.addElement(new CompressorEntry("zlib", ZLIB_CLASS, false));
+		compressors.addElement(new CompressorEntry("zlib@openssh.com", ZLIB_CLASS, true));
+		compressors.addElement(new CompressorEntry("none", "", false));
 	}
 
 	public static String[] getDefaultCompressorList()
@@ -65,6 +71,15 @@ public class CompressionFactory {
 	}
 
 	public static ICompressor createCompressor(String type)
+	{
+		return createCompressor(type, JavaZlib.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * @param level passed to compressors that have a constructor taking an
+	 *        int, the others ignore it
+	 */
+	public static ICompressor createCompressor(String type, int level)
 	{
 		try
 		{
@@ -73,7 +88,16 @@ public class CompressionFactory {
 				return null;
 
 			Class<?> cc = Class.forName(ce.compressorClass);
-			ICompressor cmp = (ICompressor) cc.newInstance();
+			ICompressor cmp;
+
+			try
+			{
+				cmp = (ICompressor) cc.getConstructor(int.class).newInstance(Integer.valueOf(level));
+			}
+			catch (NoSuchMethodException e)
+			{
+				cmp = (ICompressor) cc.newInstance();
+			}
 
 			return cmp;
 		}
@@ -83,6 +107,16 @@ public class CompressionFactory {
 		}
 	}
 
+	/**
+	 * @return whether the algorithm only starts compressing once the user is
+	 *         authenticated (zlib@openssh.com), instead of right after the key
+	 *         exchange
+	 */
+	public static boolean isDelayed(String type)
+	{
+		return getEntry(type).delayed;
+	}
+
 	private static CompressorEntry getEntry(String type)
 	{
 		for (int i = 0; i < compressors.size(); i++)
@@ -27,4 +27,16 @@ public interface ICompressor {
 	int compress(byte[] buf, int start, int len, byte[] output);
 
 	byte[] uncompress(byte[] buf, int start, int[] len);
+
+	/**
+	 * Switch between sending stored blocks and compressing normally. Takes
+	 * effect with the next packet, the stream stays intact.
+	 */
+	void setStoredOnly(boolean storedOnly);
+
+	/**
+	 * Release the compressor's resources. Called when a key exchange
+	 * replaces it, it is not used afterwards.
+	 */
+	void close();
 }
@@ -0,0 +1,189 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.compression;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression on top of java.util.zip, which uses the platform's
+ * native zlib. Every packet is deflated with a sync flush, so that the peer
+ * can inflate it on its own, and the stream goes on across packets.
+ * <p>
+ * Output goes straight into the caller's buffers. Neither direction grows a
+ * buffer per packet: an SSH packet is at most 35000 bytes, so the buffers
+ * the transport supplies are big enough.
+ * <p>
+ * Deflating with a sync flush needs Java 7 or Android API level 19. Whether
+ * the platform has it is checked once, by looking the method up;
+ * {@link CompressionFactory} only uses this compressor if
+ * {@link #isAvailable()}, and falls back to the jzlib based {@link Zlib}.
+ * The call itself is a plain method call, an older platform never gets to
+ * run it.
+ */
+public class JavaZlib implements ICompressor {
+	static private final int DEFAULT_BUF_SIZE = 4096;
+
+	/* Same level the jzlib based compressor always used */
+	public static final int DEFAULT_LEVEL = 5;
+
+	/* Whether Deflater.deflate(byte[], int, int, int) exists */
+	private static final boolean canFlush = findDeflateWithFlush();
+
+	private final Deflater deflater;
+	private final Inflater inflater;
+
+	private final int level;
+
+	/* Set when the level changed, the next packet then needs extra deflate calls */
+	private boolean levelChanged = false;
+
+	/* Compressed input is copied here, it gets inflated into the buffer it came from */
+	private byte[] inflate_inbuf = new byte[DEFAULT_BUF_SIZE];
+
+	public JavaZlib() {
+		this(DEFAULT_LEVEL);
+	}
+
+	/**
+	 * @param level 0 (none) to 9 (best), or -1 for zlib's default
+	 */
+	public JavaZlib(int level) {
+		if ((level < -1) || (level > 9))
+			throw new IllegalArgumentException("Illegal compression level " + level);
+
+		this.level = level;
+
+		deflater = new Deflater(level);
+		inflater = new Inflater();
+	}
+
+	private static boolean findDeflateWithFlush() {
+		try {
+			Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return whether the platform's Deflater can flush per packet, which
+	 *         this compressor needs
+	 */
+	public static boolean isAvailable() {
+		return canFlush;
+	}
+
+	/**
+	 * Switch between sending stored blocks and compressing at the level
+	 * given to the constructor. Takes effect with the next packet, the
+	 * stream stays intact.
+	 */
+	public void setStoredOnly(boolean storedOnly) {
+		deflater.setLevel(storedOnly ? Deflater.NO_COMPRESSION : level);
+		levelChanged = true;
+	}
+
+	public int getBufferSize() {
+		return DEFAULT_BUF_SIZE;
+	}
+
+	/**
+	 * The output buffer must have room for <code>len + 1024</code> bytes,
+	 * enough for incompressible data plus the flush marker.
+	 */
+	public int compress(byte[] buf, int start, int len, byte[] output) {
+		deflater.setInput(buf, start, len);
+
+		int outputlen = 0;
+
+		/*
+		 * Normally one call takes all input and completes the flush. After a
+		 * level change, the first call only switches parameters (flushing with
+		 * the old level), so keep going until a call has nothing left to
+		 * write.
+		 */
+
+		boolean drain = levelChanged;
+		levelChanged = false;
+
+		while (true) {
+			int n = deflater.deflate(output, outputlen, output.length - outputlen, Deflater.SYNC_FLUSH);
+			outputlen += n;
+
+			if (outputlen == output.length)
+				throw new IllegalStateException("compress: output buffer too small");
+
+			if (deflater.needsInput() && ((drain == false) || (n == 0)))
+				break;
+		}
+
+		return outputlen;
+	}
+
+	public byte[] uncompress(byte[] buffer, int start, int[] length) {
+		int inlen = length[0];
+
+		if (inflate_inbuf.length < inlen)
+			inflate_inbuf = new byte[Math.max(inlen, inflate_inbuf.length * 2)];
+
+		System.arraycopy(buffer, start, inflate_inbuf, 0, inlen);
+		inflater.setInput(inflate_inbuf, 0, inlen);
+
+		int inflated_end = 0;
+
+		try {
+			while (true) {
+				int space = buffer.length - start - inflated_end;
+
+				/* A legal packet never fills the whole buffer */
+
+				if (space == 0)
+					return null;
+
+				int n = inflater.inflate(buffer, start + inflated_end, space);
+				inflated_end += n;
+
+				if (inflater.needsInput())
+					break;
+
+				/* Input left but no progress: needs a dictionary, stream ended or corrupt */
+
+				if (n == 0)
+					return null;
+			}
+		} catch (DataFormatException e) {
+			return null;
+		}
+
+		if (start + inflated_end == buffer.length)
+			return null;
+
+		length[0] = inflated_end;
+
+		return buffer;
+	}
+
+	public void close() {
+		/* Both hold native zlib state, don't leave it to the finalizer */
+		deflater.end();
+		inflater.end();
+	}
+}
@@ -21,106 +21,140 @@ import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZStream;
 
 /**
+ * zlib compression on top of jzlib, for platforms whose java.util.zip
+ * cannot flush per packet (see {@link JavaZlib}). Every packet is deflated
+ * with a sync flush straight into the caller's buffer, and inflated back
+ * into the buffer it came from.
+ *
  * @author Kenny Root
  *
  */
 public class Zlib implements ICompressor {
 	static private final int DEFAULT_BUF_SIZE = 4096;
-	static private final int LEVEL = 5;
 
-	private ZStream deflate;
-	private byte[] deflate_tmpbuf;
+	/* pendingLevel when there is nothing to switch */
+	static private final int NO_CHANGE = -2;
+
+	private final ZStream deflate;
+	private final ZStream inflate;
+
+	private final int level;
 
-	private ZStream inflate;
-	private byte[] inflate_tmpbuf;
-	private byte[] inflated_buf;
+	/* Level to switch to before the next packet is deflated */
+	private int pendingLevel = NO_CHANGE;
+
+	/* Compressed input is copied here, it gets inflated into the buffer it came from */
+	private byte[] inflate_inbuf = new byte[DEFAULT_BUF_SIZE];
 
 	public Zlib() {
+		this(JavaZlib.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * @param level 0 (none) to 9 (best), or -1 for zlib's default
+	 */
+	public Zlib(int level) {
+		if ((level < -1) || (level > 9))
+			throw new IllegalArgumentException("Illegal compression level " + level);
+
+		this.level = level;
+
 		deflate = new ZStream();
 		inflate = new ZStream();
 
-		deflate.deflateInit(LEVEL);
+		deflate.deflateInit(level);
 		inflate.inflateInit();
+	}
 
-		deflate_tmpbuf = new byte[DEFAULT_BUF_SIZE];
-		inflate_tmpbuf = new byte[DEFAULT_BUF_SIZE];
-		inflated_buf = new byte[DEFAULT_BUF_SIZE];
+	public void setStoredOnly(boolean storedOnly) {
+		pendingLevel = storedOnly ? JZlib.Z_NO_COMPRESSION : level;
 	}
 
 	public int getBufferSize() {
 		return DEFAULT_BUF_SIZE;
 	}
 
+	/**
+	 * The output buffer must have room for <code>len + 1024</code> bytes,
+	 * enough for incompressible data plus the flush marker.
+	 */
 	public int compress(byte[] buf, int start, int len, byte[] output) {
-		deflate.next_in = buf;
-		deflate.next_in_index = start;
-		deflate.avail_in = len - start;
-
-		if ((buf.length + 1024) > deflate_tmpbuf.length) {
-			deflate_tmpbuf = new byte[buf.length + 1024];
-		}
-
-		deflate.next_out = deflate_tmpbuf;
+		deflate.next_out = output;
 		deflate.next_out_index = 0;
 		deflate.avail_out = output.length;
 
-		if (deflate.deflate(JZlib.Z_PARTIAL_FLUSH) != JZlib.Z_OK) {
-			System.err.println("compress: compression failure");
-		}
+		if (pendingLevel != NO_CHANGE) {
+			/*
+			 * The previous packet was flushed completely, so whatever
+			 * deflateParams flushes with the old level is at most an empty
+			 * block. It may report Z_BUF_ERROR for that, which is harmless.
+			 */
+			deflate.next_in = buf;
+			deflate.next_in_index = start;
+			deflate.avail_in = 0;
 
-		if (deflate.avail_in > 0) {
-			System.err.println("compress: deflated data too large");
+			if (deflate.deflateParams(pendingLevel, JZlib.Z_DEFAULT_STRATEGY) == JZlib.Z_STREAM_ERROR)
+				throw new IllegalStateException("compress: cannot change level");
+
+			pendingLevel = NO_CHANGE;
 		}
 
-		int outputlen = output.length - deflate.avail_out;
+		deflate.next_in = buf;
+		deflate.next_in_index = start;
+		deflate.avail_in = len;
+
+		if (deflate.deflate(JZlib.Z_SYNC_FLUSH) != JZlib.Z_OK)
+			throw new IllegalStateException("compress: compression failure");
 
-		System.arraycopy(deflate_tmpbuf, 0, output, 0, outputlen);
+		if ((deflate.avail_in > 0) || (deflate.avail_out == 0))
+			throw new IllegalStateException("compress: output buffer too small");
 
-		return outputlen;
+		return deflate.next_out_index;
 	}
 
 	public byte[] uncompress(byte[] buffer, int start, int[] length) {
-		int inflated_end = 0;
+		int inlen = length[0];
+
+		if (inflate_inbuf.length < inlen)
+			inflate_inbuf = new byte[Math.max(inlen, inflate_inbuf.length * 2)];
+
+		System.arraycopy(buffer, start, inflate_inbuf, 0, inlen);
 
-		inflate.next_in = buffer;
-		inflate.next_in_index = start;
-		inflate.avail_in = length[0];
+		inflate.next_in = inflate_inbuf;
+		inflate.next_in_index = 0;
+		inflate.avail_in = inlen;
+
+		inflate.next_out = buffer;
+		inflate.next_out_index = start;
+		inflate.avail_out = buffer.length - start;
 
 		while (true) {
-			inflate.next_out = inflate_tmpbuf;
-			inflate.next_out_index = 0;
-			inflate.avail_out = DEFAULT_BUF_SIZE;
 			int status = inflate.inflate(JZlib.Z_PARTIAL_FLUSH);
-			switch (status) {
-			case JZlib.Z_OK:
-				if (inflated_buf.length < inflated_end + DEFAULT_BUF_SIZE
-						- inflate.avail_out) {
-					byte[] foo = new byte[inflated_end + DEFAULT_BUF_SIZE
-							- inflate.avail_out];
-					System.arraycopy(inflated_buf, 0, foo, 0, inflated_end);
-					inflated_buf = foo;
-				}
-				System.arraycopy(inflate_tmpbuf, 0, inflated_buf, inflated_end,
-						DEFAULT_BUF_SIZE - inflate.avail_out);
-				inflated_end += (DEFAULT_BUF_SIZE - inflate.avail_out);
-				length[0] = inflated_end;
+
+			/* Z_BUF_ERROR: no progress possible, normally because all input is used up */
+
+			if (status == JZlib.Z_BUF_ERROR)
 				break;
-			case JZlib.Z_BUF_ERROR:
-				if (inflated_end > buffer.length - start) {
-					byte[] foo = new byte[inflated_end + start];
-					System.arraycopy(buffer, 0, foo, 0, start);
-					System.arraycopy(inflated_buf, 0, foo, start, inflated_end);
-					buffer = foo;
-				} else {
-					System.arraycopy(inflated_buf, 0, buffer, start,
-							inflated_end);
-				}
-				length[0] = inflated_end;
-				return buffer;
-			default:
-				System.err.println("uncompress: inflate returnd " + status);
+
+			if (status != JZlib.Z_OK)
+				return null;
+
+			/* A legal packet never fills the whole buffer */
+
+			if (inflate.avail_out == 0)
 				return null;
-			}
 		}
+
+		if ((inflate.avail_in > 0) || (inflate.avail_out == 0))
+			return null;
+
+		length[0] = inflate.next_out_index - start;
+
+		return buffer;
+	}
+
+	public void close() {
+		deflate.deflateEnd();
+		inflate.inflateEnd();
 	}
 }
@@ -0,0 +1,105 @@
+
+package com.trilead.ssh2.crypto;
+
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * JceProvider. Decides whether ciphers and MACs are delegated to the
+ * platform's JCE providers (see {@link com.trilead.ssh2.crypto.cipher.JceCipher}
+ * and {@link com.trilead.ssh2.crypto.digest.JceHMAC}) instead of the pure
+ * Java implementations of this library.
+ * <p>
+ * The JCE classes process a whole packet per call and, on JVMs with AES
+ * intrinsics, run several times faster. Every transformation is probed
+ * once; if no provider offers it, the pure Java implementation is used.
+ */
+public class JceProvider
+{
+	private static volatile boolean enabled = true;
+
+	private static final HashMap<String, Boolean> available = new HashMap<String, Boolean>();
+
+	/**
+	 * Enable or disable the JCE backend for key exchanges that happen
+	 * afterwards. It is enabled by default.
+	 * 
+	 * @param enable
+	 */
+	public static void setEnabled(boolean enable)
+	{
+		enabled = enable;
+	}
+
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param transformation a javax.crypto.Cipher transformation, e.g. "AES/CTR/NoPadding"
+	 * @return whether the backend is enabled and a provider offers the transformation
+	 */
+	public static boolean isCipherAvailable(String transformation)
+	{
+		if (!enabled)
+			return false;
+
+		synchronized (available)
+		{
+			Boolean result = available.get(transformation);
+
+			if (result == null)
+			{
+				try
+				{
+					Cipher.getInstance(transformation);
+					result = Boolean.TRUE;
+				}
+				catch (Exception e)
+				{
+					result = Boolean.FALSE;
+				}
+
+				available.put(transformation, result);
+			}
+
+			return result.booleanValue();
+		}
+	}
+
+	/**
+	 * @param algorithm a javax.crypto.Mac algorithm, e.g. "HmacSHA1"
+	 * @return whether the backend is enabled and a provider offers the algorithm
+	 */
+	public static boolean isMacAvailable(String algorithm)
+	{
+		if (!enabled)
+			return false;
+
+		synchronized (available)
+		{
+			String key = "Mac/" + algorithm;
+			Boolean result = available.get(key);
+
+			if (result == null)
+			{
+				try
+				{
+					Mac.getInstance(algorithm);
+					result = Boolean.TRUE;
+				}
+				catch (Exception e)
+				{
+					result = Boolean.FALSE;
+				}
+
+				available.put(key, result);
+			}
+
+			return result.booleanValue();
+		}
+	}
+}
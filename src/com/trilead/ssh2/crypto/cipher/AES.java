@@ -695,4 +695,48 @@ public class AES implements BlockCipher
 	{
 		processBlock(src, srcoff, dst, dstoff);
 	}
+
+	public final void transform(byte[] src, int srcoff, int len, byte[] dst, int dstoff)
+	{
+		int[][] KW = WorkingKey;
+
+		if (KW == null)
+		{
+			throw new IllegalStateException("AES engine not initialised");
+		}
+
+		if ((len % BLOCK_SIZE) != 0)
+		{
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+		}
+
+		if ((srcoff + len) > src.length)
+		{
+			throw new IllegalArgumentException("input buffer too short");
+		}
+
+		if ((dstoff + len) > dst.length)
+		{
+			throw new IllegalArgumentException("output buffer too short");
+		}
+
+		if (doEncrypt)
+		{
+			for (int end = srcoff + len; srcoff < end; srcoff += BLOCK_SIZE, dstoff += BLOCK_SIZE)
+			{
+				unpackBlock(src, srcoff);
+				encryptBlock(KW);
+				packBlock(dst, dstoff);
+			}
+		}
+		else
+		{
+			for (int end = srcoff + len; srcoff < end; srcoff += BLOCK_SIZE, dstoff += BLOCK_SIZE)
+			{
+				unpackBlock(src, srcoff);
+				decryptBlock(KW);
+				packBlock(dst, dstoff);
+			}
+		}
+	}
 }
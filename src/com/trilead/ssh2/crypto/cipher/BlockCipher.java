@@ -13,4 +13,12 @@ public interface BlockCipher
 	public int getBlockSize();
 
 	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff);
+
+	/**
+	 * Transform several consecutive blocks with one call, the same as calling
+	 * transformBlock() for each of them in turn.
+	 * 
+	 * @param len a multiple of the block size
+	 */
+	public void transform(byte[] src, int srcoff, int len, byte[] dst, int dstoff);
 }
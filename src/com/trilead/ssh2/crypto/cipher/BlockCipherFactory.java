@@ -3,6 +3,8 @@ package com.trilead.ssh2.crypto.cipher;
 
 import java.util.Vector;
 
+import com.trilead.ssh2.crypto.JceProvider;
+
 /**
  * BlockCipherFactory.
  * 
@@ -17,13 +19,20 @@ public class BlockCipherFactory
 		int blocksize;
 		int keysize;
 		String cipherClass;
+		String jceAlgorithm;
 
 		public CipherEntry(String type, int blockSize, int keySize, String cipherClass)
+		{
+			this(type, blockSize, keySize, cipherClass, null);
+		}
+
+		public CipherEntry(String type, int blockSize, int keySize, String cipherClass, String jceAlgorithm)
 		{
 			this.type = type;
 			this.blocksize = blockSize;
 			this.keysize = keySize;
 			this.cipherClass = cipherClass;
+			this.jceAlgorithm = jceAlgorithm;
 		}
 	}
 
@@ -33,14 +42,14 @@ public class BlockCipherFactory
 	{
 		/* Higher Priority First */
 
-		ciphers.addElement(new CipherEntry("aes256-ctr", 16, 32, "com.trilead.ssh2.crypto.cipher.AES"));
-		ciphers.addElement(new CipherEntry("aes192-ctr", 16, 24, "com.trilead.ssh2.crypto.cipher.AES"));
-		ciphers.addElement(new CipherEntry("aes128-ctr", 16, 16, "com.trilead.ssh2.crypto.cipher.AES"));
+		ciphers.addElement(new CipherEntry("aes256-ctr", 16, 32, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.addElement(new CipherEntry("aes192-ctr", 16, 24, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.addElement(new CipherEntry("aes128-ctr", 16, 16, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("blowfish-ctr", 8, 16, "com.trilead.ssh2.crypto.cipher.BlowFish"));
 
-		ciphers.addElement(new CipherEntry("aes256-cbc", 16, 32, "com.trilead.ssh2.crypto.cipher.AES"));
-		ciphers.addElement(new CipherEntry("aes192-cbc", 16, 24, "com.trilead.ssh2.crypto.cipher.AES"));
-		ciphers.addElement(new CipherEntry("aes128-cbc", 16, 16, "com.trilead.ssh2.crypto.cipher.AES"));
+		ciphers.addElement(new CipherEntry("aes256-cbc", 16, 32, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.addElement(new CipherEntry("aes192-cbc", 16, 24, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
+		ciphers.addElement(new CipherEntry("aes128-cbc", 16, 16, "com.trilead.ssh2.crypto.cipher.AES", "AES"));
 		ciphers.addElement(new CipherEntry("blowfish-cbc", 8, 16, "com.trilead.ssh2.crypto.cipher.BlowFish"));
 		
 		ciphers.addElement(new CipherEntry("3des-ctr", 8, 24, "com.trilead.ssh2.crypto.cipher.DESede"));
@@ -69,6 +78,11 @@ public class BlockCipherFactory
 		try
 		{
 			CipherEntry ce = getEntry(type);
+
+			BlockCipher jce = createJceCipher(ce, encrypt, key, iv);
+			if (jce != null)
+				return jce;
+
 			Class cc = Class.forName(ce.cipherClass);
 			BlockCipher bc = (BlockCipher) cc.newInstance();
 
@@ -90,6 +104,31 @@ public class BlockCipherFactory
 		}
 	}
 
+	/**
+	 * @return the cipher implemented by a JCE provider, or null if there is none
+	 */
+	private static BlockCipher createJceCipher(CipherEntry ce, boolean encrypt, byte[] key, byte[] iv)
+	{
+		if (ce.jceAlgorithm == null)
+			return null;
+
+		String mode = ce.type.endsWith("-ctr") ? "CTR" : "CBC";
+		String transformation = ce.jceAlgorithm + "/" + mode + "/NoPadding";
+
+		if (!JceProvider.isCipherAvailable(transformation))
+			return null;
+
+		try
+		{
+			return new JceCipher(transformation, ce.jceAlgorithm, encrypt, key, iv);
+		}
+		catch (IllegalArgumentException e)
+		{
+			/* e.g., key size restricted by policy, use our own implementation */
+			return null;
+		}
+	}
+
 	private static CipherEntry getEntry(String type)
 	{
 		for (int i = 0; i < ciphers.size(); i++)
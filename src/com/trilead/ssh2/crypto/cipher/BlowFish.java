@@ -226,6 +226,32 @@ public class BlowFish implements BlockCipher
 		}
 	}
 
+	public final void transform(byte[] in, int inOff, int len, byte[] out, int outOff)
+	{
+		if (workingKey == null)
+		{
+			throw new IllegalStateException("Blowfish not initialised");
+		}
+
+		if ((len % BLOCK_SIZE) != 0)
+		{
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+		}
+
+		int end = inOff + len;
+
+		if (doEncrypt)
+		{
+			for (; inOff < end; inOff += BLOCK_SIZE, outOff += BLOCK_SIZE)
+				encryptBlock(in, inOff, out, outOff);
+		}
+		else
+		{
+			for (; inOff < end; inOff += BLOCK_SIZE, outOff += BLOCK_SIZE)
+				decryptBlock(in, inOff, out, outOff);
+		}
+	}
+
 	public void reset()
 	{
 	}
@@ -15,6 +15,9 @@ public class CBCMode implements BlockCipher
 	byte[] cbc_vector;
 	byte[] tmp_vector;
 
+	/* Copy of the ciphertext for transform() when decrypting */
+	byte[] cipher_buffer = new byte[0];
+
 	public void init(boolean forEncryption, byte[] key)
 	{
 	}
@@ -75,4 +78,43 @@ public class CBCMode implements BlockCipher
 		else
 			decryptBlock(src, srcoff, dst, dstoff);
 	}
+
+	public void transform(byte[] src, int srcoff, int len, byte[] dst, int dstoff)
+	{
+		if ((len % blockSize) != 0)
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+
+		if (len == 0)
+			return;
+
+		if (doEncrypt)
+		{
+			/* Each block depends on the previous one, no way around that */
+			for (int end = srcoff + len; srcoff < end; srcoff += blockSize, dstoff += blockSize)
+				encryptBlock(src, srcoff, dst, dstoff);
+			return;
+		}
+
+		/*
+		 * Decryption of the blocks is independent, only the XOR needs the
+		 * previous ciphertext block. src and dst may overlap, so keep a copy.
+		 */
+
+		if (cipher_buffer.length < len)
+			cipher_buffer = new byte[len];
+
+		byte[] ct = cipher_buffer;
+
+		System.arraycopy(src, srcoff, ct, 0, len);
+
+		tc.transform(ct, 0, len, dst, dstoff);
+
+		for (int i = 0; i < blockSize; i++)
+			dst[dstoff + i] ^= cbc_vector[i];
+
+		for (int i = blockSize; i < len; i++)
+			dst[dstoff + i] ^= ct[i - blockSize];
+
+		System.arraycopy(ct, len - blockSize, cbc_vector, 0, blockSize);
+	}
 }
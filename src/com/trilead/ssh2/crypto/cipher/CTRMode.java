@@ -18,6 +18,9 @@ public class CTRMode implements BlockCipher
 
 	int count = 0;
 
+	/* Counter blocks for transform(), encrypted in place into the key stream */
+	byte[] stream = new byte[0];
+
 	public void init(boolean forEncryption, byte[] key)
 	{
 	}
@@ -59,4 +62,33 @@ public class CTRMode implements BlockCipher
 
 		}
 	}
+
+	public final void transform(byte[] src, int srcoff, int len, byte[] dst, int dstoff)
+	{
+		if ((len % blockSize) != 0)
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+
+		if (stream.length < len)
+			stream = new byte[len];
+
+		byte[] ks = stream;
+
+		for (int off = 0; off < len; off += blockSize)
+		{
+			System.arraycopy(X, 0, ks, off, blockSize);
+
+			for (int i = (blockSize - 1); i >= 0; i--)
+			{
+				X[i]++;
+				if (X[i] != 0)
+					break;
+			}
+		}
+
+		/* The counters do not depend on each other, so they go through the cipher in one call */
+		bc.transform(ks, 0, len, ks, 0);
+
+		for (int i = 0; i < len; i++)
+			dst[dstoff + i] = (byte) (src[srcoff + i] ^ ks[i]);
+	}
 }
@@ -49,6 +49,10 @@ public class CipherInputStream
 
 		if (input_buffer_pos >= input_buffer_size)
 		{
+			/* Large reads bypass the buffer */
+			if (len >= BUFF_SIZE)
+				return bi.read(b, off, len);
+
 			if (fill_buffer() <= 0)
 				return -1;
 		}
@@ -71,16 +75,26 @@ public class CipherInputStream
 		pos = blockSize;
 	}
 
-	private void getBlock() throws IOException
+	private void readBlock() throws IOException
+	{
+		readFully(enc, 0, blockSize);
+	}
+
+	private void readFully(byte[] dst, int off, int len) throws IOException
 	{
 		int n = 0;
-		while (n < blockSize)
+		while (n < len)
 		{
-			int len = internal_read(enc, n, blockSize - n);
-			if (len < 0)
+			int cnt = internal_read(dst, off + n, len - n);
+			if (cnt < 0)
 				throw new IOException("Cannot read full block, EOF reached.");
-			n += len;
+			n += cnt;
 		}
+	}
+
+	private void getBlock() throws IOException
+	{
+		readBlock();
 
 		try
 		{
@@ -104,6 +118,28 @@ public class CipherInputStream
 
 		while (len > 0)
 		{
+			if ((pos >= blockSize) && (len >= blockSize))
+			{
+				/* Decrypt all whole blocks in place with one call */
+				int bulkLen = len - (len % blockSize);
+
+				readFully(dst, off, bulkLen);
+
+				try
+				{
+					currentCipher.transform(dst, off, bulkLen, dst, off);
+				}
+				catch (Exception e)
+				{
+					throw new IOException("Error while decrypting block.");
+				}
+
+				off += bulkLen;
+				len -= bulkLen;
+				count += bulkLen;
+				continue;
+			}
+
 			if (pos >= blockSize)
 				getBlock();
 
@@ -38,7 +38,7 @@ public class CipherOutputStream
 	{
 		while (len > 0)
 		{
-			int space = BUFF_SIZE - out_buffer_pos;
+			int space = out_buffer.length - out_buffer_pos;
 			int copy = (len > space) ? space : len;
 
 			System.arraycopy(src, off, out_buffer, out_buffer_pos, copy);
@@ -47,9 +47,9 @@ public class CipherOutputStream
 			out_buffer_pos += copy;
 			len -= copy;
 
-			if (out_buffer_pos >= BUFF_SIZE)
+			if (out_buffer_pos >= out_buffer.length)
 			{
-				bo.write(out_buffer, 0, BUFF_SIZE);
+				bo.write(out_buffer, 0, out_buffer_pos);
 				out_buffer_pos = 0;
 			}
 		}
@@ -58,9 +58,9 @@ public class CipherOutputStream
 	private void internal_write(int b) throws IOException
 	{
 		out_buffer[out_buffer_pos++] = (byte) b;
-		if (out_buffer_pos >= BUFF_SIZE)
+		if (out_buffer_pos >= out_buffer.length)
 		{
-			bo.write(out_buffer, 0, BUFF_SIZE);
+			bo.write(out_buffer, 0, out_buffer_pos);
 			out_buffer_pos = 0;
 		}
 	}
@@ -102,8 +102,43 @@ public class CipherOutputStream
 		pos = 0;
 	}
 
+	/**
+	 * Encrypt whole blocks with one call into the cipher, straight into the
+	 * output buffer. The buffer grows to hold a whole packet, so that it still
+	 * goes out with a single write on flush().
+	 */
+	private void writeBulk(byte[] src, int off, int len) throws IOException
+	{
+		if (out_buffer.length - out_buffer_pos < len)
+		{
+			byte[] larger = new byte[out_buffer_pos + len];
+			System.arraycopy(out_buffer, 0, larger, 0, out_buffer_pos);
+			out_buffer = larger;
+		}
+
+		try
+		{
+			currentCipher.transform(src, off, len, out_buffer, out_buffer_pos);
+		}
+		catch (Exception e)
+		{
+			throw (IOException) new IOException("Error while encrypting block.").initCause(e);
+		}
+
+		out_buffer_pos += len;
+	}
+
 	public void write(byte[] src, int off, int len) throws IOException
 	{
+		if ((pos == 0) && (len >= blockSize))
+		{
+			int bulkLen = len - (len % blockSize);
+
+			writeBulk(src, off, bulkLen);
+			off += bulkLen;
+			len -= bulkLen;
+		}
+
 		while (len > 0)
 		{
 			int avail = blockSize - pos;
@@ -80,6 +80,24 @@ public class DES implements BlockCipher
 		desFunc(workingKey, in, inOff, out, outOff);
 	}
 
+	public void transform(byte[] in, int inOff, int len, byte[] out, int outOff)
+	{
+		int[] wKey = workingKey;
+
+		if (wKey == null)
+		{
+			throw new IllegalStateException("DES engine not initialised!");
+		}
+
+		if ((len & 7) != 0)
+		{
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+		}
+
+		for (int end = inOff + len; inOff < end; inOff += 8, outOff += 8)
+			desFunc(wKey, in, inOff, out, outOff);
+	}
+
 	public void reset()
 	{
 	}
@@ -99,6 +99,29 @@ public class DESede extends DES
 		}
 	}
 
+	public void transform(byte[] in, int inOff, int len, byte[] out, int outOff)
+	{
+		if (key1 == null)
+		{
+			throw new IllegalStateException("DESede engine not initialised!");
+		}
+
+		if ((len & 7) != 0)
+		{
+			throw new IllegalArgumentException("length is not a multiple of the block size");
+		}
+
+		int[] first = encrypt ? key1 : key3;
+		int[] last = encrypt ? key3 : key1;
+
+		for (int end = inOff + len; inOff < end; inOff += 8, outOff += 8)
+		{
+			desFunc(first, in, inOff, out, outOff);
+			desFunc(key2, out, outOff, out, outOff);
+			desFunc(last, out, outOff, out, outOff);
+		}
+	}
+
 	public void reset()
 	{
 	}
@@ -0,0 +1,73 @@
+
+package com.trilead.ssh2.crypto.cipher;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JceCipher. A block cipher in CBC or CTR mode that is implemented by a
+ * javax.crypto.Cipher, see {@link com.trilead.ssh2.crypto.JceProvider}.
+ * The mode is part of the transformation, so this is used instead of
+ * wrapping a cipher in {@link CBCMode} or {@link CTRMode}.
+ */
+public class JceCipher implements BlockCipher
+{
+	private final Cipher cipher;
+	private final int blockSize;
+
+	public JceCipher(String transformation, String keyAlgorithm, boolean encrypt, byte[] key, byte[] iv)
+			throws IllegalArgumentException
+	{
+		try
+		{
+			cipher = Cipher.getInstance(transformation);
+			cipher.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, keyAlgorithm),
+					new IvParameterSpec(iv));
+		}
+		catch (Exception e)
+		{
+			throw new IllegalArgumentException("Cannot initialize " + transformation + ": " + e.getMessage());
+		}
+
+		blockSize = cipher.getBlockSize();
+
+		if (blockSize != iv.length)
+			throw new IllegalArgumentException("IV must be " + blockSize + " bytes long! (currently " + iv.length + ")");
+	}
+
+	public void init(boolean forEncryption, byte[] key)
+	{
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	public void transformBlock(byte[] src, int srcoff, byte[] dst, int dstoff)
+	{
+		transform(src, srcoff, blockSize, dst, dstoff);
+	}
+
+	/**
+	 * Transform a multiple of the block size with a single call into the
+	 * provider. src and dst may be the same array.
+	 */
+	public void transform(byte[] src, int srcoff, int len, byte[] dst, int dstoff)
+	{
+		int done;
+
+		try
+		{
+			done = cipher.update(src, srcoff, len, dst, dstoff);
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Cipher update failed: " + e.getMessage());
+		}
+
+		if (done != len)
+			throw new IllegalStateException("Cipher returned " + done + " bytes instead of " + len);
+	}
+}
@@ -65,6 +65,10 @@ public class DhExchange
 	{
 	}
 
+	/**
+	 * Takes the key pair from the {@link DhKeyPairPool}, so that this is
+	 * cheap if a pair for the group has been computed in the background.
+	 */
 	public void init(int group, SecureRandom rnd)
 	{
 		k = null;
@@ -76,9 +80,10 @@ public class DhExchange
 		else
 			throw new IllegalArgumentException("Unknown DH group " + group);
 
-		x = new BigInteger(p.bitLength() - 1, rnd);
+		BigInteger[] pair = DhKeyPairPool.take(group, rnd);
 
-		e = g.modPow(x, p);
+		x = pair[0];
+		e = pair[1];
 	}
 
 	/**
@@ -0,0 +1,210 @@
+
+package com.trilead.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.LinkedList;
+
+/**
+ * DhKeyPairPool. Computes client key pairs (x, e = g^x mod p) for the fixed
+ * groups 1 and 14 on a low priority background thread, so that a key
+ * exchange can start with a pair that is ready instead of doing the modular
+ * exponentiation while the connection waits. Each pair is handed out once.
+ * Used pairs are replaced by {@link #refill()} once the key exchange is over
+ * and the connection is idle, so the background work does not compete with
+ * a handshake.
+ * <p>
+ * A key exchange never waits for the background thread: if no pair is
+ * ready, it computes one itself at its own priority.
+ * <p>
+ * Only groups somebody asked for are kept filled. The pairs are made with
+ * the pool's own SecureRandom. The shared secret still has to be computed
+ * once the server's value is known.
+ */
+public class DhKeyPairPool
+{
+	/* Ready pairs kept per group */
+	private static final int POOL_SIZE = 2;
+
+	private static final int GROUP1 = 0;
+	private static final int GROUP14 = 1;
+
+	/* Same preference as KexManager's default list, servers mostly pick group 14 */
+	private static final int[] FILL_ORDER = new int[] { GROUP14, GROUP1 };
+
+	private static final Object lock = new Object();
+
+	private static final LinkedList[] ready = new LinkedList[] { new LinkedList(), new LinkedList() };
+	private static final boolean[] wanted = new boolean[2];
+
+	private static Thread worker = null;
+	private static SecureRandom workerRandom = null;
+
+	/**
+	 * Start computing pairs for the given group in the background, unless
+	 * enough are ready already. Returns immediately.
+	 *
+	 * @param group 1 or 14
+	 */
+	public static void prefill(int group)
+	{
+		int slot = slot(group);
+
+		synchronized (lock)
+		{
+			wanted[slot] = true;
+			startWorker();
+		}
+	}
+
+	/**
+	 * Replace the pairs handed out since the last call, in the background.
+	 * Meant to be called when a key exchange has finished. Returns
+	 * immediately.
+	 */
+	public static void refill()
+	{
+		synchronized (lock)
+		{
+			startWorker();
+		}
+	}
+
+	/**
+	 * Get a pair for the given group: a ready one or, if there is none, a
+	 * new one computed right away in the calling thread. The background
+	 * thread runs at low priority, waiting for it could take longer.
+	 *
+	 * @param group 1 or 14
+	 * @param rnd used only if the pair has to be computed here
+	 * @return { x, e }
+	 */
+	static BigInteger[] take(int group, SecureRandom rnd)
+	{
+		int slot = slot(group);
+
+		synchronized (lock)
+		{
+			wanted[slot] = true;
+
+			if (ready[slot].size() > 0)
+				return (BigInteger[]) ready[slot].removeFirst();
+		}
+
+		return generate(group, rnd);
+	}
+
+	/**
+	 * @param group 1 or 14
+	 * @return the number of pairs ready for the group
+	 */
+	static int readyCount(int group)
+	{
+		int slot = slot(group);
+
+		synchronized (lock)
+		{
+			return ready[slot].size();
+		}
+	}
+
+	static BigInteger[] generate(int group, SecureRandom rnd)
+	{
+		BigInteger p = (group == 1) ? DhExchange.p1 : DhExchange.p14;
+
+		BigInteger x = new BigInteger(p.bitLength() - 1, rnd);
+		BigInteger e = DhExchange.g.modPow(x, p);
+
+		return new BigInteger[] { x, e };
+	}
+
+	private static int slot(int group)
+	{
+		if (group == 1)
+			return GROUP1;
+		if (group == 14)
+			return GROUP14;
+
+		throw new IllegalArgumentException("Unknown DH group " + group);
+	}
+
+	/* Must hold the lock. Every wanted group gets a pair before any gets a second. */
+	private static int nextSlotToFill()
+	{
+		for (int count = 0; count < POOL_SIZE; count++)
+		{
+			for (int i = 0; i < FILL_ORDER.length; i++)
+			{
+				int slot = FILL_ORDER[i];
+
+				if (wanted[slot] && (ready[slot].size() <= count))
+					return slot;
+			}
+		}
+
+		return -1;
+	}
+
+	/* Must hold the lock */
+	private static void startWorker()
+	{
+		if ((worker != null) || (nextSlotToFill() < 0))
+			return;
+
+		worker = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				fill();
+			}
+		}, "DH key pair pool");
+
+		worker.setDaemon(true);
+		worker.setPriority(Thread.MIN_PRIORITY);
+		worker.start();
+	}
+
+	private static void fill()
+	{
+		while (true)
+		{
+			int slot;
+			SecureRandom rnd;
+
+			synchronized (lock)
+			{
+				slot = nextSlotToFill();
+
+				/* Nothing left to do, a later prefill() or refill() starts a new thread */
+
+				if (slot < 0)
+				{
+					worker = null;
+					return;
+				}
+
+				if (workerRandom == null)
+					workerRandom = new SecureRandom();
+
+				rnd = workerRandom;
+			}
+
+			BigInteger[] pair = null;
+
+			try
+			{
+				pair = generate((slot == GROUP1) ? 1 : 14, rnd);
+			}
+			finally
+			{
+				synchronized (lock)
+				{
+					if (pair != null)
+						ready[slot].addLast(pair);
+					else
+						worker = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+
+package com.trilead.ssh2.crypto.digest;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * JceHMAC. A HMAC that is computed by a javax.crypto.Mac, see
+ * {@link com.trilead.ssh2.crypto.JceProvider}. Like {@link HMAC}, the result
+ * may be truncated to fewer bytes than the underlying hash produces.
+ */
+public final class JceHMAC implements Digest
+{
+	Mac mac;
+	byte[] tmp;
+
+	int size;
+
+	public JceHMAC(String algorithm, byte[] key, int size) throws IllegalArgumentException
+	{
+		try
+		{
+			mac = Mac.getInstance(algorithm);
+			mac.init(new SecretKeySpec(key, algorithm));
+		}
+		catch (Exception e)
+		{
+			throw new IllegalArgumentException("Cannot initialize " + algorithm + ": " + e.getMessage());
+		}
+
+		this.size = size;
+		this.tmp = new byte[mac.getMacLength()];
+	}
+
+	public final int getDigestLength()
+	{
+		return size;
+	}
+
+	public final void update(byte b)
+	{
+		mac.update(b);
+	}
+
+	public final void update(byte[] b)
+	{
+		mac.update(b);
+	}
+
+	public final void update(byte[] b, int off, int len)
+	{
+		mac.update(b, off, len);
+	}
+
+	public final void reset()
+	{
+		mac.reset();
+	}
+
+	public final void digest(byte[] out)
+	{
+		digest(out, 0);
+	}
+
+	public final void digest(byte[] out, int off)
+	{
+		try
+		{
+			if (size == tmp.length)
+			{
+				mac.doFinal(out, off);
+				return;
+			}
+
+			mac.doFinal(tmp, 0);
+		}
+		catch (Exception e)
+		{
+			throw new IllegalStateException("Mac computation failed: " + e.getMessage());
+		}
+
+		System.arraycopy(tmp, 0, out, off, size);
+	}
+}
@@ -1,6 +1,8 @@
 
 package com.trilead.ssh2.crypto.digest;
 
+import com.trilead.ssh2.crypto.JceProvider;
+
 /**
  * MAC.
  * 
@@ -40,7 +42,13 @@ public final class MAC
 
 	public MAC(String type, byte[] key)
 	{
-		if (type.equals("hmac-sha1"))
+		mac = createJceMac(type, key);
+
+		if (mac != null)
+		{
+			/* Delegated to a JCE provider */
+		}
+		else if (type.equals("hmac-sha1"))
 		{
 			mac = new HMAC(new SHA1(), key, 20);
 		}
@@ -62,6 +70,47 @@ public final class MAC
 		size = mac.getDigestLength();
 	}
 
+	private static Digest createJceMac(String type, byte[] key)
+	{
+		String algorithm;
+		int len;
+
+		if (type.equals("hmac-sha1"))
+		{
+			algorithm = "HmacSHA1";
+			len = 20;
+		}
+		else if (type.equals("hmac-sha1-96"))
+		{
+			algorithm = "HmacSHA1";
+			len = 12;
+		}
+		else if (type.equals("hmac-md5"))
+		{
+			algorithm = "HmacMD5";
+			len = 16;
+		}
+		else if (type.equals("hmac-md5-96"))
+		{
+			algorithm = "HmacMD5";
+			len = 12;
+		}
+		else
+			return null;
+
+		if (!JceProvider.isMacAvailable(algorithm))
+			return null;
+
+		try
+		{
+			return new JceHMAC(algorithm, key, len);
+		}
+		catch (IllegalArgumentException e)
+		{
+			return null;
+		}
+	}
+
 	public final void initMac(int seq)
 	{
 		mac.reset();
@@ -23,12 +23,13 @@ public class PacketChannelTrileadPing
 	{
 		if (payload == null)
 		{
-			TypesWriter tw = new TypesWriter();
+			payload = new byte[1 + 4 + 4 + 12 + 1];
+
+			TypesWriter tw = new TypesWriter(payload);
 			tw.writeByte(Packets.SSH_MSG_CHANNEL_REQUEST);
 			tw.writeUINT32(recipientChannelID);
 			tw.writeString("trilead-ping");
 			tw.writeBoolean(true);
-			payload = tw.getBytes();
 		}
 		return payload;
 	}
@@ -46,12 +46,19 @@ public class PacketChannelWindowAdjust
 	{
 		if (payload == null)
 		{
-			TypesWriter tw = new TypesWriter();
-			tw.writeByte(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
-			tw.writeUINT32(recipientChannelID);
-			tw.writeUINT32(windowChange);
-			payload = tw.getBytes();
+			payload = new byte[9];
+			writeTo(new TypesWriter(payload), recipientChannelID, windowChange);
 		}
 		return payload;
 	}
+
+	/**
+	 * Write the message into a (reused) writer, the message is 9 bytes long.
+	 */
+	public static void writeTo(TypesWriter tw, int recipientChannelID, int windowChange)
+	{
+		tw.writeByte(Packets.SSH_MSG_CHANNEL_WINDOW_ADJUST);
+		tw.writeUINT32(recipientChannelID);
+		tw.writeUINT32(windowChange);
+	}
 }
@@ -19,13 +19,13 @@ public class PacketGlobalTrileadPing
 	{
 		if (payload == null)
 		{
-			TypesWriter tw = new TypesWriter();
+			payload = new byte[1 + 4 + 12 + 1];
+
+			TypesWriter tw = new TypesWriter(payload);
 			tw.writeByte(Packets.SSH_MSG_GLOBAL_REQUEST);
 			
 			tw.writeString("trilead-ping");
 			tw.writeBoolean(true);
-
-			payload = tw.getBytes();
 		}
 		return payload;
 	}
@@ -44,15 +44,17 @@ public class PacketIgnore
 	{
 		if (payload == null)
 		{
-			TypesWriter tw = new TypesWriter();
+			int len = (data != null) ? data.length : 0;
+
+			payload = new byte[1 + 4 + len];
+
+			TypesWriter tw = new TypesWriter(payload);
 			tw.writeByte(Packets.SSH_MSG_IGNORE);
 
 			if (data != null)
 				tw.writeString(data, 0, data.length);
 			else
-				tw.writeString("");
-
-			payload = tw.getBytes();
+				tw.writeUINT32(0);
 		}
 		return payload;
 	}
@@ -19,6 +19,16 @@ public class TypesReader
 	int pos = 0;
 	int max = 0;
 
+	/**
+	 * Create a reader without a message, call {@link #reset(byte[], int, int)}
+	 * before use. Lets a busy handler parse every message with the same
+	 * reader.
+	 */
+	public TypesReader()
+	{
+		this.arr = new byte[0];
+	}
+
 	public TypesReader(byte[] arr)
 	{
 		this.arr = arr;
@@ -49,6 +59,22 @@ public class TypesReader
 			throw new IllegalArgumentException("Illegal length.");
 	}
 
+	/**
+	 * Parse another message, in place.
+	 */
+	public void reset(byte[] arr, int off, int len)
+	{
+		if ((off < 0) || (off > arr.length))
+			throw new IllegalArgumentException("Illegal offset.");
+
+		if ((len < 0) || (off + len > arr.length))
+			throw new IllegalArgumentException("Illegal length.");
+
+		this.arr = arr;
+		this.pos = off;
+		this.max = off + len;
+	}
+
 	public int readByte() throws IOException
 	{
 		if (pos >= max)
@@ -164,6 +190,34 @@ public class TypesReader
 		return res;
 	}
 
+	/**
+	 * Read the length of a string and check that the data is there, without
+	 * consuming or copying the data. The data starts at {@link #position()},
+	 * use {@link #skip(int)} to get past it.
+	 */
+	public int readStringLength() throws IOException
+	{
+		int len = readUINT32();
+
+		if ((len < 0) || (len > max - pos))
+			throw new IOException("Malformed SSH string.");
+
+		return len;
+	}
+
+	public int position()
+	{
+		return pos;
+	}
+
+	public void skip(int len) throws IOException
+	{
+		if ((len < 0) || (len > max - pos))
+			throw new IOException("Packet too short.");
+
+		pos += len;
+	}
+
 	public String[] readNameList() throws IOException
 	{
 		return Tokenizer.parseTokens(readString(), ',');
@@ -6,6 +6,10 @@ import java.math.BigInteger;
 
 /**
  * TypesWriter.
+ * <p>
+ * A writer can build its message in a buffer supplied by the caller (e.g.,
+ * one taken from a pool) and be reset and used again, in that case
+ * {@link #getBuffer()} hands out the message without copying it.
  * 
  * @author Christian Plattner, plattner@trilead.com
  * @version $Id: TypesWriter.java,v 1.2 2008/04/01 12:38:09 cplattne Exp $
@@ -21,13 +25,36 @@ public class TypesWriter
 		pos = 0;
 	}
 
+	/**
+	 * Write into the given buffer. It is only replaced by a bigger one if the
+	 * message does not fit.
+	 */
+	public TypesWriter(byte[] buffer)
+	{
+		arr = buffer;
+		pos = 0;
+	}
+
 	private void resize(int len)
 	{
+		/* Grow at least by half, a writer that is filled in small steps must not copy every time */
+
+		if (len < arr.length + (arr.length >> 1))
+			len = arr.length + (arr.length >> 1);
+
 		byte new_arr[] = new byte[len];
 		System.arraycopy(arr, 0, new_arr, 0, arr.length);
 		arr = new_arr;
 	}
 
+	/**
+	 * Start a new message in the same buffer.
+	 */
+	public void reset()
+	{
+		pos = 0;
+	}
+
 	public int length()
 	{
 		return pos;
@@ -45,6 +72,16 @@ public class TypesWriter
 		System.arraycopy(arr, 0, dst, 0, pos);
 	}
 
+	/**
+	 * @return the buffer the message is written into, the message is in the
+	 *         first {@link #length()} bytes. The buffer is only valid until
+	 *         the next write or reset.
+	 */
+	public byte[] getBuffer()
+	{
+		return arr;
+	}
+
 	public void writeUINT32(int val, int off)
 	{
 		if ((off + 4) > arr.length)
@@ -0,0 +1,128 @@
+
+package com.trilead.ssh2.transport;
+
+import com.trilead.ssh2.CompressionStatistics;
+import com.trilead.ssh2.compression.ICompressor;
+
+/**
+ * CompressionMonitor. Counts what compression does on a connection and, if
+ * adaptive compression is on, switches the sending side to stored blocks
+ * while compressing is a net loss.
+ * <p>
+ * Outgoing data is judged in samples of {@link #SAMPLE_BYTES}. Compressing
+ * does not pay if it saves less than {@link #MIN_SAVINGS_PERCENT} of the
+ * data, or, if the link speed is known, if it takes longer than sending the
+ * saved bytes would. Compression is then suspended for
+ * {@link #SUSPENDED_SAMPLES} samples and tried again, the data may have
+ * changed in the meantime. The peer keeps inflating the same stream, stored
+ * blocks are part of it.
+ */
+final class CompressionMonitor
+{
+	static final int SAMPLE_BYTES = 256 * 1024;
+	static final int MIN_SAVINGS_PERCENT = 5;
+	static final int SUSPENDED_SAMPLES = 16;
+
+	private final CompressionStatistics stats = new CompressionStatistics();
+
+	private boolean adaptive = false;
+	private long linkBytesPerSecond = 0;
+
+	/* The current sample of outgoing data */
+	private long sampleIn = 0;
+	private long sampleOut = 0;
+	private long sampleNanos = 0;
+	private int suspendedSamplesLeft = 0;
+
+	synchronized void setAdaptive(boolean adaptive, long linkBytesPerSecond)
+	{
+		this.adaptive = adaptive;
+		this.linkBytesPerSecond = linkBytesPerSecond;
+	}
+
+	/**
+	 * A key exchange installed a new compressor for sending, it starts out
+	 * compressing.
+	 */
+	synchronized void sendCompressorChanged()
+	{
+		sampleIn = sampleOut = sampleNanos = 0;
+		suspendedSamplesLeft = 0;
+		stats.sendCompressionSuspended = false;
+	}
+
+	synchronized void compressed(ICompressor comp, int in, int out, long nanos)
+	{
+		stats.sentBytesUncompressed += in;
+		stats.sentBytesCompressed += out;
+		stats.compressNanos += nanos;
+
+		if (adaptive == false)
+			return;
+
+		sampleIn += in;
+		sampleOut += out;
+		sampleNanos += nanos;
+
+		if (sampleIn < SAMPLE_BYTES)
+			return;
+
+		if (suspendedSamplesLeft > 0)
+		{
+			if (--suspendedSamplesLeft == 0)
+			{
+				comp.setStoredOnly(false);
+				stats.sendCompressionSuspended = false;
+			}
+		}
+		else if (isNetLoss())
+		{
+			comp.setStoredOnly(true);
+			suspendedSamplesLeft = SUSPENDED_SAMPLES;
+			stats.sendCompressionSuspended = true;
+			stats.sendCompressionSuspensions++;
+		}
+
+		sampleIn = sampleOut = sampleNanos = 0;
+	}
+
+	private boolean isNetLoss()
+	{
+		long saved = sampleIn - sampleOut;
+
+		if (saved * 100 < sampleIn * MIN_SAVINGS_PERCENT)
+			return true;
+
+		if (linkBytesPerSecond <= 0)
+			return false;
+
+		/* Time the saved bytes would have spent on the wire, compared to the time spent compressing */
+
+		double wireNanos = saved * 1000000000.0 / linkBytesPerSecond;
+
+		return sampleNanos > wireNanos;
+	}
+
+	synchronized void uncompressed(int in, int out, long nanos)
+	{
+		stats.receivedBytesCompressed += in;
+		stats.receivedBytesUncompressed += out;
+		stats.uncompressNanos += nanos;
+	}
+
+	synchronized CompressionStatistics getStatistics()
+	{
+		CompressionStatistics s = new CompressionStatistics();
+
+		s.sentBytesUncompressed = stats.sentBytesUncompressed;
+		s.sentBytesCompressed = stats.sentBytesCompressed;
+		s.compressNanos = stats.compressNanos;
+		s.receivedBytesCompressed = stats.receivedBytesCompressed;
+		s.receivedBytesUncompressed = stats.receivedBytesUncompressed;
+		s.uncompressNanos = stats.uncompressNanos;
+		s.sendCompressionSuspended = stats.sendCompressionSuspended;
+		s.sendCompressionSuspensions = stats.sendCompressionSuspensions;
+
+		return s;
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.security.SecureRandom;
 
 import com.trilead.ssh2.ConnectionInfo;
+import com.trilead.ssh2.ConnectionTiming;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.CompressionFactory;
@@ -14,6 +15,7 @@ import com.trilead.ssh2.crypto.KeyMaterial;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
 import com.trilead.ssh2.crypto.cipher.BlockCipherFactory;
 import com.trilead.ssh2.crypto.dh.DhExchange;
+import com.trilead.ssh2.crypto.dh.DhKeyPairPool;
 import com.trilead.ssh2.crypto.dh.DhGroupExchange;
 import com.trilead.ssh2.crypto.digest.MAC;
 import com.trilead.ssh2.log.Logger;
@@ -245,6 +247,7 @@ public class KexManager
 			kxs.dhgexParameters = nextKEXdhgexParameters;
 			PacketKexInit kp = new PacketKexInit(nextKEXcryptoWishList, rnd);
 			kxs.localKEX = kp;
+			kxs.kexInitSent = System.nanoTime();
 			tm.sendKexMessage(kp.getPayload());
 		}
 	}
@@ -281,6 +284,7 @@ public class KexManager
 		/* Tell the other side that we start using the new material */
 
 		PacketNewKeys ign = new PacketNewKeys();
+		kxs.newKeysSent = System.nanoTime();
 		tm.sendKexMessage(ign.getPayload());
 
 		BlockCipher cbc;
@@ -294,7 +298,7 @@ public class KexManager
 
 			mac = new MAC(kxs.np.mac_algo_client_to_server, km.integrity_key_client_to_server);
 			
-			comp = CompressionFactory.createCompressor(kxs.np.comp_algo_client_to_server);
+			comp = CompressionFactory.createCompressor(kxs.np.comp_algo_client_to_server, tm.getCompressionLevel());
 
 		}
 		catch (IllegalArgumentException e1)
@@ -303,7 +307,7 @@ public class KexManager
 		}
 
 		tm.changeSendCipher(cbc, mac);
-		tm.changeSendCompression(comp);
+		tm.changeSendCompression(comp, CompressionFactory.isDelayed(kxs.np.comp_algo_client_to_server));
 		tm.kexFinished();
 	}
 
@@ -327,6 +331,22 @@ public class KexManager
 				"diffie-hellman-group1-sha1" };
 	}
 
+	/**
+	 * Start computing DH key pairs in the background for the fixed groups the
+	 * wish list allows, so that they are ready by the time the server's
+	 * KEXINIT has arrived.
+	 */
+	public static final void prefillKeyPairs(CryptoWishList cwl)
+	{
+		for (int i = 0; i < cwl.kexAlgorithms.length; i++)
+		{
+			if ("diffie-hellman-group14-sha1".equals(cwl.kexAlgorithms[i]))
+				DhKeyPairPool.prefill(14);
+			else if ("diffie-hellman-group1-sha1".equals(cwl.kexAlgorithms[i]))
+				DhKeyPairPool.prefill(1);
+		}
+	}
+
 	public static final void checkKexAlgorithmList(String[] algos)
 	{
 		for (int i = 0; i < algos.length; i++)
@@ -407,12 +427,15 @@ public class KexManager
 				kxs.dhgexParameters = nextKEXdhgexParameters;
 				kip = new PacketKexInit(nextKEXcryptoWishList, rnd);
 				kxs.localKEX = kip;
+				kxs.kexInitSent = System.nanoTime();
 				tm.sendKexMessage(kip.getPayload());
 			}
 
 			kip = new PacketKexInit(msg, 0, msglen);
 			kxs.remoteKEX = kip;
 
+			tm.getConnectionTiming().record(ConnectionTiming.KEXINIT, null, kxs.kexInitSent, true);
+
 			kxs.np = mergeKexParameters(kxs.localKEX.getKexParameters(), kxs.remoteKEX.getKexParameters());
 
 			if (kxs.np == null)
@@ -449,11 +472,15 @@ public class KexManager
 			{
 				kxs.dhx = new DhExchange();
 
+				long start = System.nanoTime();
+
 				if (kxs.np.kex_algo.equals("diffie-hellman-group1-sha1"))
 					kxs.dhx.init(1, rnd);
 				else
 					kxs.dhx.init(14, rnd);
 
+				tm.getConnectionTiming().record(ConnectionTiming.DH_COMPUTE, "keypair", start, true);
+
 				PacketKexDHInit kp = new PacketKexDHInit(kxs.dhx.getE());
 				tm.sendKexMessage(kp.getPayload());
 				kxs.state = 1;
@@ -479,7 +506,7 @@ public class KexManager
 
 				mac = new MAC(kxs.np.mac_algo_server_to_client, km.integrity_key_server_to_client);
 				
-				comp = CompressionFactory.createCompressor(kxs.np.comp_algo_server_to_client);
+				comp = CompressionFactory.createCompressor(kxs.np.comp_algo_server_to_client, tm.getCompressionLevel());
 			}
 			catch (IllegalArgumentException e1)
 			{
@@ -487,7 +514,9 @@ public class KexManager
 			}
 
 			tm.changeRecvCipher(cbc, mac);
-			tm.changeRecvCompression(comp);
+			tm.changeRecvCompression(comp, CompressionFactory.isDelayed(kxs.np.comp_algo_server_to_client));
+
+			tm.getConnectionTiming().record(ConnectionTiming.NEWKEYS, null, kxs.newKeysSent, true);
 
 			ConnectionInfo sci = new ConnectionInfo();
 
@@ -501,6 +530,7 @@ public class KexManager
 			sci.serverToClientMACAlgorithm = kxs.np.mac_algo_server_to_client;
 			sci.serverHostKeyAlgorithm = kxs.np.server_host_key_algo;
 			sci.serverHostKey = kxs.hostkey;
+			sci.timing = tm.getConnectionTiming();
 
 			synchronized (accessLock)
 			{
@@ -509,6 +539,10 @@ public class KexManager
 			}
 
 			kxs = null;
+
+			/* The exchange is over, replace the key pair it used while nothing else is going on */
+
+			DhKeyPairPool.refill();
 			return;
 		}
 
@@ -521,7 +555,10 @@ public class KexManager
 			{
 				PacketKexDhGexGroup dhgexgrp = new PacketKexDhGexGroup(msg, 0, msglen);
 				kxs.dhgx = new DhGroupExchange(dhgexgrp.getP(), dhgexgrp.getG());
+
+				long start = System.nanoTime();
 				kxs.dhgx.init(rnd);
+				tm.getConnectionTiming().record(ConnectionTiming.DH_COMPUTE, "keypair", start, true);
 				PacketKexDhGexInit dhgexinit = new PacketKexDhGexInit(kxs.dhgx.getE());
 				tm.sendKexMessage(dhgexinit.getPayload());
 				kxs.state = 2;
@@ -537,6 +574,7 @@ public class KexManager
 				if (verifier != null)
 				{
 					boolean vres = false;
+					long start = System.nanoTime();
 
 					try
 					{
@@ -550,9 +588,14 @@ public class KexManager
 
 					if (vres == false)
 						throw new IOException("The server hostkey was not accepted by the verifier callback");
+
+					tm.getConnectionTiming().record(ConnectionTiming.HOST_KEY_VERIFICATION,
+							kxs.np.server_host_key_algo, start, true);
 				}
 
+				long start = System.nanoTime();
 				kxs.dhgx.setF(dhgexrpl.getF());
+				tm.getConnectionTiming().record(ConnectionTiming.DH_COMPUTE, "shared secret", start, true);
 
 				try
 				{
@@ -593,6 +636,7 @@ public class KexManager
 				if (verifier != null)
 				{
 					boolean vres = false;
+					long start = System.nanoTime();
 
 					try
 					{
@@ -606,9 +650,14 @@ public class KexManager
 
 					if (vres == false)
 						throw new IOException("The server hostkey was not accepted by the verifier callback");
+
+					tm.getConnectionTiming().record(ConnectionTiming.HOST_KEY_VERIFICATION,
+							kxs.np.server_host_key_algo, start, true);
 				}
 
+				long start = System.nanoTime();
 				kxs.dhx.setF(dhr.getF());
+				tm.getConnectionTiming().record(ConnectionTiming.DH_COMPUTE, "shared secret", start, true);
 
 				try
 				{
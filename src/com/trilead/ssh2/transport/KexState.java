@@ -29,4 +29,8 @@ public class KexState
 	public DhExchange dhx;
 	public DhGroupExchange dhgx;
 	public DHGexParameters dhgexParameters;
+
+	/* System.nanoTime() when we sent our KEXINIT and NEWKEYS */
+	public long kexInitSent;
+	public long newKeysSent;
 }
@@ -0,0 +1,60 @@
+package com.trilead.ssh2.transport;
+
+/**
+ * PacketBufferPool. Recycles the fixed size buffers that incoming packets
+ * are decrypted into, so that channel data can be handed on without being
+ * copied and without allocating a new buffer for every packet.
+ * <p>
+ * Only a limited number of released buffers is kept, anything beyond that
+ * is left to the garbage collector.
+ */
+public class PacketBufferPool
+{
+	private final int bufferSize;
+	private final byte[][] pool;
+	private int count = 0;
+
+	public PacketBufferPool(int bufferSize, int maxPooled)
+	{
+		this.bufferSize = bufferSize;
+		this.pool = new byte[maxPooled][];
+	}
+
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * @return a buffer of getBufferSize() bytes, with undefined contents
+	 */
+	public byte[] acquire()
+	{
+		synchronized (pool)
+		{
+			if (count > 0)
+			{
+				byte[] buffer = pool[--count];
+				pool[count] = null;
+				return buffer;
+			}
+		}
+
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Give a buffer back to the pool. The caller must not use it afterwards.
+	 */
+	public void release(byte[] buffer)
+	{
+		if (buffer == null || buffer.length != bufferSize)
+			return;
+
+		synchronized (pool)
+		{
+			if (count < pool.length)
+				pool[count++] = buffer;
+		}
+	}
+}
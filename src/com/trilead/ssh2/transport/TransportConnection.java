@@ -56,22 +56,32 @@ public class TransportConnection
 	
 	ICompressor send_comp = null;
 	
+	/* Delayed compression (zlib@openssh.com) only starts once authenticated */
+
+	boolean recv_comp_delayed = false;
+
+	boolean send_comp_delayed = false;
+
 	boolean can_compress = false;
 
+	CompressionMonitor compressionMonitor = new CompressionMonitor();
+
 	byte[] recv_comp_buffer;
 	
 	byte[] send_comp_buffer;
 
-	/* won't change */
+	/* Header, payload and padding of the packet being sent, encrypted in one go */
 
-	final byte[] send_padding_buffer = new byte[256];
+	byte[] send_packet_buffer = new byte[256];
 
-	final byte[] send_packet_header_buffer = new byte[5];
+	/* won't change */
 
-	final byte[] recv_padding_buffer = new byte[256];
+	final byte[] send_padding_buffer = new byte[256];
 
 	final byte[] recv_packet_header_buffer = new byte[5];
 
+	final int[] recv_uncomp_len = new int[1];
+
 	boolean recv_packet_header_present = false;
 
 	ClientServerHello csh;
@@ -113,17 +123,26 @@ public class TransportConnection
 			send_padd_blocksize = 8;
 	}
 	
-	public void changeRecvCompression(ICompressor comp)
+	public void changeRecvCompression(ICompressor comp, boolean delayed)
 	{
+		if (recv_comp != null)
+			recv_comp.close();
+
 		recv_comp = comp;
+		recv_comp_delayed = delayed;
 		
 		if (comp != null)
 			recv_comp_buffer = new byte[comp.getBufferSize()];
 	}
 
-	public void changeSendCompression(ICompressor comp)
+	public void changeSendCompression(ICompressor comp, boolean delayed)
 	{
+		if (send_comp != null)
+			send_comp.close();
+
 		send_comp = comp;
+		send_comp_delayed = delayed;
+		compressionMonitor.sendCompressorChanged();
 		
 		if (comp != null)
 			send_comp_buffer = new byte[comp.getBufferSize()];
@@ -146,17 +165,32 @@ public class TransportConnection
 	}
 
 	public void sendMessage(byte[] message, int off, int len, int padd) throws IOException
+	{
+		writeMessage(message, off, len, padd);
+		flush();
+	}
+
+	/**
+	 * Encrypt a message into the output buffer without flushing it, so that
+	 * several messages can go out in one socket write. Parts of the packet
+	 * may still hit the socket if the buffer fills up.
+	 */
+	public void writeMessage(byte[] message, int off, int len, int padd) throws IOException
 	{
 		if (padd < 4)
 			padd = 4;
 		else if (padd > 64)
 			padd = 64;
 		
-		if (send_comp != null && can_compress) {
-			if (send_comp_buffer.length < message.length + 1024)
-				send_comp_buffer = new byte[message.length + 1024];
-			len = send_comp.compress(message, off, len, send_comp_buffer);
+		if (send_comp != null && (can_compress || !send_comp_delayed)) {
+			if (send_comp_buffer.length < len + 1024)
+				send_comp_buffer = new byte[len + 1024];
+			long start = System.nanoTime();
+			int comp_len = send_comp.compress(message, off, len, send_comp_buffer);
+			compressionMonitor.compressed(send_comp, len, comp_len, System.nanoTime() - start);
+			len = comp_len;
 			message = send_comp_buffer;
+			off = 0;
 		}
 
 		int packet_len = 5 + len + padd; /* Minimum allowed padding is 4 */
@@ -203,28 +237,32 @@ public class TransportConnection
 			 */
 		}
 
-		send_packet_header_buffer[0] = (byte) ((packet_len - 4) >> 24);
-		send_packet_header_buffer[1] = (byte) ((packet_len - 4) >> 16);
-		send_packet_header_buffer[2] = (byte) ((packet_len - 4) >> 8);
-		send_packet_header_buffer[3] = (byte) ((packet_len - 4));
-		send_packet_header_buffer[4] = (byte) padd_len;
+		if (send_packet_buffer.length < packet_len)
+			send_packet_buffer = new byte[packet_len];
 
-		cos.write(send_packet_header_buffer, 0, 5);
-		cos.write(message, off, len);
-		cos.write(send_padding_buffer, 0, padd_len);
+		byte[] packet = send_packet_buffer;
+
+		packet[0] = (byte) ((packet_len - 4) >> 24);
+		packet[1] = (byte) ((packet_len - 4) >> 16);
+		packet[2] = (byte) ((packet_len - 4) >> 8);
+		packet[3] = (byte) ((packet_len - 4));
+		packet[4] = (byte) padd_len;
+
+		System.arraycopy(message, off, packet, 5, len);
+		System.arraycopy(send_padding_buffer, 0, packet, 5 + len, padd_len);
 
 		if (send_mac != null)
 		{
 			send_mac.initMac(send_seq_number);
-			send_mac.update(send_packet_header_buffer, 0, 5);
-			send_mac.update(message, off, len);
-			send_mac.update(send_padding_buffer, 0, padd_len);
-
+			send_mac.update(packet, 0, packet_len);
 			send_mac.getMac(send_mac_buffer, 0);
-			cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
 		}
 
-		cos.flush();
+		/* The whole packet is a multiple of the block size */
+		cos.write(packet, 0, packet_len);
+
+		if (send_mac != null)
+			cos.writePlain(send_mac_buffer, 0, send_mac_buffer.length);
 
 		if (log.isEnabled())
 		{
@@ -234,6 +272,11 @@ public class TransportConnection
 		send_seq_number++;
 	}
 
+	public void flush() throws IOException
+	{
+		cos.flush();
+	}
+
 	public int peekNextMessageLength() throws IOException
 	{
 		if (recv_packet_header_present == false)
@@ -282,11 +325,12 @@ public class TransportConnection
 		if (payload_length < 0)
 			throw new IOException("Illegal padding_length in packet from remote (" + padding_length + ")");
 
-		if (payload_length >= len)
-			throw new IOException("Receive buffer too small (" + len + ", need " + payload_length + ")");
+		if (payload_length + padding_length > len)
+			throw new IOException("Receive buffer too small (" + len + ", need " + (payload_length + padding_length)
+					+ ")");
 
-		cis.read(buffer, off, payload_length);
-		cis.read(recv_padding_buffer, 0, padding_length);
+		/* Payload and padding in one read, the padding lands behind the payload */
+		cis.read(buffer, off, payload_length + padding_length);
 
 		if (recv_mac != null)
 		{
@@ -294,8 +338,7 @@ public class TransportConnection
 
 			recv_mac.initMac(recv_seq_number);
 			recv_mac.update(recv_packet_header_buffer, 0, 5);
-			recv_mac.update(buffer, off, payload_length);
-			recv_mac.update(recv_padding_buffer, 0, padding_length);
+			recv_mac.update(buffer, off, payload_length + padding_length);
 			recv_mac.getMac(recv_mac_buffer_cmp, 0);
 
 			for (int i = 0; i < recv_mac_buffer.length; i++)
@@ -313,13 +356,18 @@ public class TransportConnection
 					+ " bytes payload");
 		}
 
-		if (recv_comp != null && can_compress) {
-			int[] uncomp_len = new int[] { payload_length };
-			buffer = recv_comp.uncompress(buffer, off, uncomp_len);
-			
-			if (buffer == null) {
+		if (recv_comp != null && (can_compress || !recv_comp_delayed)) {
+			int[] uncomp_len = recv_uncomp_len;
+			uncomp_len[0] = payload_length;
+
+			/* The caller only sees its own buffer, so a compressor handing back another one is an error, too */
+
+			long start = System.nanoTime();
+
+			if (recv_comp.uncompress(buffer, off, uncomp_len) != buffer) {
 				throw new IOException("Error while inflating remote data");
 			} else {
+				compressionMonitor.uncompressed(payload_length, uncomp_len[0], System.nanoTime() - start);
 				return uncomp_len[0];
 			}
 		} else {
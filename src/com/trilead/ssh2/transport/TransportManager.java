@@ -5,20 +5,21 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.util.Vector;
 
+import com.trilead.ssh2.CompressionStatistics;
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ConnectionTiming;
 import com.trilead.ssh2.DHGexParameters;
 import com.trilead.ssh2.HTTPProxyData;
 import com.trilead.ssh2.HTTPProxyException;
 import com.trilead.ssh2.ProxyData;
 import com.trilead.ssh2.ServerHostKeyVerifier;
 import com.trilead.ssh2.compression.ICompressor;
+import com.trilead.ssh2.compression.JavaZlib;
 import com.trilead.ssh2.crypto.Base64;
 import com.trilead.ssh2.crypto.CryptoWishList;
 import com.trilead.ssh2.crypto.cipher.BlockCipher;
@@ -27,7 +28,7 @@ import com.trilead.ssh2.log.Logger;
 import com.trilead.ssh2.packets.PacketDisconnect;
 import com.trilead.ssh2.packets.Packets;
 import com.trilead.ssh2.packets.TypesReader;
-import com.trilead.ssh2.util.Tokenizer;
+import com.trilead.ssh2.util.ConnectionRacer;
 
 
 /*
@@ -125,7 +126,10 @@ public class TransportManager
 
 	String hostname;
 	int port;
-	final Socket sock = new Socket();
+	/* Set once establishConnection() has a connected socket */
+	volatile Socket sock = null;
+
+	private final ConnectionRacer racer = new ConnectionRacer();
 
 	Object connectionSemaphore = new Object();
 
@@ -134,76 +138,87 @@ public class TransportManager
 
 	Throwable reasonClosedCause = null;
 
-	TransportConnection tc;
-	KexManager km;
+	/* Senders wait while this much is queued and not yet written */
 
-	Vector<HandlerEntry> messageHandlers = new Vector<HandlerEntry>();
+	private static final int MAX_QUEUED_BYTES = 256 * 1024;
 
-	Thread receiveThread;
+	/* How long a graceful close waits for queued messages to be written */
 
-	Vector connectionMonitors = new Vector();
-	boolean monitorsWereInformed = false;
+	private static final int CLOSE_FLUSH_TIMEOUT = 2000;
 
-	/**
-	 * There were reports that there are JDKs which use
-	 * the resolver even though one supplies a dotted IP
-	 * address in the Socket constructor. That is why we
-	 * try to generate the InetAdress "by hand".
-	 * 
-	 * @param host
-	 * @return the InetAddress
-	 * @throws UnknownHostException
-	 */
-	private InetAddress createInetAddress(String host) throws UnknownHostException
-	{
-		/* Check if it is a dotted IP4 address */
+	/* Messages waiting for the send thread, guarded by connectionSemaphore.
+	 * The counters tell a key exchange message when it has been written. */
 
-		InetAddress addr = parseIPv4Address(host);
+	private byte[][] sendQueue = new byte[16][];
+	private int[] sendQueueLength = new int[16];
+	private PacketBufferPool[] sendQueuePool = new PacketBufferPool[16];
+	private int sendQueueHead = 0;
+	private int sendQueueCount = 0;
+	private int queuedBytes = 0;
+	private long messagesQueued = 0;
+	private long messagesSent = 0;
+	private boolean sendThreadWaiting = false;
 
-		if (addr != null)
-			return addr;
+	/* A thread whose messages never wait, see setNonBlockingSender(). Its
+	 * messages are held back here during a key exchange. Guarded by
+	 * connectionSemaphore. */
 
-		return InetAddress.getByName(host);
-	}
+	private Thread nonBlockingSender = null;
+	private Runnable sendQueueListener = null;
+	private final Vector<DeferredMessage> deferredMessages = new Vector<DeferredMessage>();
 
-	private InetAddress parseIPv4Address(String host) throws UnknownHostException
+	private static class DeferredMessage
 	{
-		if (host == null)
-			return null;
+		final byte[] msg;
+		final int len;
+		final PacketBufferPool pool;
 
-		String[] quad = Tokenizer.parseTokens(host, '.');
+		DeferredMessage(byte[] msg, int len, PacketBufferPool pool)
+		{
+			this.msg = msg;
+			this.len = len;
+			this.pool = pool;
+		}
+	}
 
-		if ((quad == null) || (quad.length != 4))
-			return null;
+	/* Held while writing to tc and while changing its send side (cipher, MAC, compression) */
 
-		byte[] addr = new byte[4];
+	private final Object sendLock = new Object();
 
-		for (int i = 0; i < 4; i++)
-		{
-			int part = 0;
+	/* The batch being written, only used by the send thread */
 
-			if ((quad[i].length() == 0) || (quad[i].length() > 3))
-				return null;
+	private byte[][] sendBatch = new byte[16][];
+	private int[] sendBatchLength = new int[16];
+	private PacketBufferPool[] sendBatchPool = new PacketBufferPool[16];
 
-			for (int k = 0; k < quad[i].length(); k++)
-			{
-				char c = quad[i].charAt(k);
+	/* Buffers for outgoing channel data */
 
-				/* No, Character.isDigit is not the same */
-				if ((c < '0') || (c > '9'))
-					return null;
+	final PacketBufferPool sendBufferPool = new PacketBufferPool(35000, 16);
 
-				part = part * 10 + (c - '0');
-			}
+	Thread sendThread;
 
-			if (part > 255) /* 300.1.2.3 is invalid =) */
-				return null;
+	volatile int compressionLevel = JavaZlib.DEFAULT_LEVEL;
 
-			addr[i] = (byte) part;
-		}
+	ConnectionTiming timing = new ConnectionTiming();
 
-		return InetAddress.getByAddress(host, addr);
-	}
+	final CompressionMonitor compressionMonitor = new CompressionMonitor();
+
+	TransportConnection tc;
+	KexManager km;
+
+	Vector<HandlerEntry> messageHandlers = new Vector<HandlerEntry>();
+
+	Thread receiveThread;
+
+	/* Incoming packets are decrypted into buffers from this pool */
+	final PacketBufferPool receiveBufferPool = new PacketBufferPool(35000, 16);
+
+	/* Only touched by the receive thread */
+	private byte[] receiveBuffer;
+	private boolean receiveBufferDetached = false;
+
+	Vector connectionMonitors = new Vector();
+	boolean monitorsWereInformed = false;
 
 	public TransportManager(String host, int port) throws IOException
 	{
@@ -218,12 +233,18 @@ public class TransportManager
 
 	public void setTcpNoDelay(boolean state) throws IOException
 	{
-		sock.setTcpNoDelay(state);
+		Socket s = sock;
+
+		if (s != null)
+			s.setTcpNoDelay(state);
 	}
 
 	public void setSoTimeout(int timeout) throws IOException
 	{
-		sock.setSoTimeout(timeout);
+		Socket s = sock;
+
+		if (s != null)
+			s.setSoTimeout(timeout);
 	}
 
 	public ConnectionInfo getConnectionInfo(int kexNumber) throws IOException
@@ -252,13 +273,7 @@ public class TransportManager
 			 * perhaps somebody is inside (and waits until the remote
 			 * side is ready to accept new data). */
 
-			try
-			{
-				sock.close();
-			}
-			catch (IOException ignore)
-			{
-			}
+			closeSocket();
 
 			/* OK, whoever tried to send data, should now agree that
 			 * there is no point in further waiting =)
@@ -268,6 +283,11 @@ public class TransportManager
 
 		synchronized (connectionSemaphore)
 		{
+			/* Let the send thread write what has been queued, a sender only waited until it was queued */
+
+			if (useDisconnectPacket && (Thread.currentThread() != sendThread))
+				waitUntilSent(messagesQueued, CLOSE_FLUSH_TIMEOUT);
+
 			if (connectionClosed == false)
 			{
 				if (useDisconnectPacket == true)
@@ -277,19 +297,18 @@ public class TransportManager
 						byte[] msg = new PacketDisconnect(Packets.SSH_DISCONNECT_BY_APPLICATION, cause.getMessage(), "")
 								.getPayload();
 						if (tc != null)
-							tc.sendMessage(msg);
+						{
+							synchronized (sendLock)
+							{
+								tc.sendMessage(msg);
+							}
+						}
 					}
 					catch (IOException ignore)
 					{
 					}
 
-					try
-					{
-						sock.close();
-					}
-					catch (IOException ignore)
-					{
-					}
+					closeSocket();
 				}
 
 				connectionClosed = true;
@@ -332,15 +351,62 @@ public class TransportManager
 		}
 	}
 
-	private void establishConnection(ProxyData proxyData, int connectTimeout) throws IOException
+	/* Also aborts a connect that is still running */
+	private void closeSocket()
+	{
+		racer.cancel();
+
+		Socket s = sock;
+
+		if (s != null)
+		{
+			try
+			{
+				s.close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Connect to the host (or proxy), trying all of its addresses, see
+	 * {@link ConnectionRacer}.
+	 */
+	private Socket raceConnect(String host, int port, int connectTimeout) throws IOException
 	{
-		/* See the comment for createInetAddress() */
+		long start = System.nanoTime();
+		InetAddress[] addrs = ConnectionRacer.resolve(host);
+		timing.record(ConnectionTiming.DNS_RESOLVE, host, start, true);
+
+		start = System.nanoTime();
+		Socket s = racer.connect(addrs, port, connectTimeout);
+		timing.record(ConnectionTiming.TCP_CONNECT, s.getInetAddress().getHostAddress(), start, true);
+
+		s.setSoTimeout(0);
+
+		sock = s;
 
+		/* A close() that came in between did not see the socket */
+
+		synchronized (connectionSemaphore)
+		{
+			if (connectionClosed)
+			{
+				closeSocket();
+				throw new IOException("Connection closed while connecting");
+			}
+		}
+
+		return s;
+	}
+
+	private void establishConnection(ProxyData proxyData, int connectTimeout) throws IOException
+	{
 		if (proxyData == null)
 		{
-			InetAddress addr = createInetAddress(hostname);
-			sock.connect(new InetSocketAddress(addr, port), connectTimeout);
-			sock.setSoTimeout(0);
+			raceConnect(hostname, port, connectTimeout);
 			return;
 		}
 
@@ -350,9 +416,7 @@ public class TransportManager
 
 			/* At the moment, we only support HTTP proxies */
 
-			InetAddress addr = createInetAddress(pd.proxyHost);
-			sock.connect(new InetSocketAddress(addr, pd.proxyPort), connectTimeout);
-			sock.setSoTimeout(0);
+			Socket sock = raceConnect(pd.proxyHost, pd.proxyPort, connectTimeout);
 
 			/* OK, now tell the proxy where we actually want to connect to */
 
@@ -445,6 +509,10 @@ public class TransportManager
 	public void initialize(CryptoWishList cwl, ServerHostKeyVerifier verifier, DHGexParameters dhgex,
 			int connectTimeout, SecureRandom rnd, ProxyData proxyData) throws IOException
 	{
+		/* The key pairs for the key exchange get computed while we wait for the network */
+
+		KexManager.prefillKeyPairs(cwl);
+
 		/* First, establish the TCP connection to the SSH-2 server */
 
 		establishConnection(proxyData, connectTimeout);
@@ -454,9 +522,26 @@ public class TransportManager
 		 * for later use.
 		 */
 
+		long start = System.nanoTime();
 		ClientServerHello csh = new ClientServerHello(sock.getInputStream(), sock.getOutputStream());
+		timing.record(ConnectionTiming.VERSION_EXCHANGE, csh.server_versioncomment, start, true);
 
 		tc = new TransportConnection(sock.getInputStream(), sock.getOutputStream(), rnd);
+		tc.compressionMonitor = compressionMonitor;
+
+		sendThread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				sendLoop();
+
+				if (log.isEnabled())
+					log.log(50, "Send thread: back from sendLoop");
+			}
+		});
+
+		sendThread.setDaemon(true);
+		sendThread.start();
 
 		km = new KexManager(this, csh, cwl, hostname, port, verifier, rnd);
 		km.initiateKEX(cwl, dhgex);
@@ -551,29 +636,46 @@ public class TransportManager
 
 			flagKexOngoing = true;
 
-			try
-			{
-				tc.sendMessage(msg);
-			}
-			catch (IOException e)
+			/* The send cipher is changed once NEWKEYS has been written, so wait for it */
+
+			long ticket = enqueue(msg, msg.length, null);
+
+			if (waitUntilSent(ticket, 0) == false)
 			{
-				close(e, false);
-				throw e;
+				throw (IOException) new IOException("Sorry, this connection is closed.").initCause(reasonClosedCause);
 			}
 		}
 	}
 
 	public void kexFinished() throws IOException
 	{
+		Runnable listener;
+
 		synchronized (connectionSemaphore)
 		{
 			flagKexOngoing = false;
+
+			for (int i = 0; i < deferredMessages.size(); i++)
+			{
+				DeferredMessage m = deferredMessages.elementAt(i);
+				enqueue(m.msg, m.len, m.pool);
+			}
+
+			deferredMessages.removeAllElements();
+
 			connectionSemaphore.notifyAll();
+
+			listener = sendQueueListener;
 		}
+
+		if (listener != null)
+			listener.run();
 	}
 
 	public void forceKeyExchange(CryptoWishList cwl, DHGexParameters dhgex) throws IOException
 	{
+		KexManager.prefillKeyPairs(cwl);
+
 		km.initiateKEX(cwl, dhgex);
 	}
 
@@ -584,28 +686,81 @@ public class TransportManager
 
 	public void changeSendCipher(BlockCipher bc, MAC mac)
 	{
-		tc.changeSendCipher(bc, mac);
+		synchronized (sendLock)
+		{
+			tc.changeSendCipher(bc, mac);
+		}
 	}
 
 	/**
 	 * @param comp
+	 * @param delayed whether to wait for the user to be authenticated
 	 */
-	public void changeRecvCompression(ICompressor comp) {
-		tc.changeRecvCompression(comp);
+	public void changeRecvCompression(ICompressor comp, boolean delayed) {
+		tc.changeRecvCompression(comp, delayed);
 	}
 
 	/**
 	 * @param comp
+	 * @param delayed whether to wait for the user to be authenticated
+	 */
+	public void changeSendCompression(ICompressor comp, boolean delayed) {
+		synchronized (sendLock)
+		{
+			tc.changeSendCompression(comp, delayed);
+		}
+	}
+
+	/**
+	 * @param level the zlib level (0-9, or -1 for the default) for
+	 *        compressors created by later key exchanges
+	 */
+	public void setCompressionLevel(int level)
+	{
+		compressionLevel = level;
+	}
+
+	/**
+	 * @param timing where to record connection phases, set before initialize()
 	 */
-	public void changeSendCompression(ICompressor comp) {
-		tc.changeSendCompression(comp);
+	public void setConnectionTiming(ConnectionTiming timing)
+	{
+		this.timing = timing;
+	}
+
+	public ConnectionTiming getConnectionTiming()
+	{
+		return timing;
+	}
+
+	public int getCompressionLevel()
+	{
+		return compressionLevel;
+	}
+
+	/**
+	 * @param adaptive whether to send stored blocks while compressing does
+	 *        not pay off
+	 * @param linkBytesPerSecond estimated link speed, 0 if unknown
+	 */
+	public void setAdaptiveCompression(boolean adaptive, long linkBytesPerSecond)
+	{
+		compressionMonitor.setAdaptive(adaptive, linkBytesPerSecond);
+	}
+
+	public CompressionStatistics getCompressionStatistics()
+	{
+		return compressionMonitor.getStatistics();
 	}
 
 	/**
 	 * 
 	 */
 	public void startCompression() {
-		tc.startCompression();
+		synchronized (sendLock)
+		{
+			tc.startCompression();
+		}
 	}
 
 	public void sendAsynchronousMessage(byte[] msg) throws IOException
@@ -645,6 +800,27 @@ public class TransportManager
 	}
 
 	public void sendMessage(byte[] msg) throws IOException
+	{
+		sendMessage(msg, msg.length);
+	}
+
+	/**
+	 * Send the first <code>len</code> bytes of <code>msg</code>. Returns once
+	 * the message has been queued for the send thread; the buffer belongs to
+	 * the transport from then on and must not be changed. Waits while a key
+	 * exchange is going on or while too much is queued already. A write error
+	 * closes the connection, and is reported by the next call.
+	 */
+	public void sendMessage(byte[] msg, int len) throws IOException
+	{
+		sendMessage(msg, len, null);
+	}
+
+	/**
+	 * Like {@link #sendMessage(byte[], int)}, for a buffer that goes back to
+	 * <code>pool</code> once it has been written.
+	 */
+	public void sendMessage(byte[] msg, int len, PacketBufferPool pool) throws IOException
 	{
 		if (Thread.currentThread() == receiveThread)
 			throw new IOException("Assertion error: sendMessage may never be invoked by the receiver thread!");
@@ -659,9 +835,18 @@ public class TransportManager
 							.initCause(reasonClosedCause);
 				}
 
-				if (flagKexOngoing == false)
+				if ((flagKexOngoing == false) && (queuedBytes < MAX_QUEUED_BYTES))
 					break;
 
+				if (Thread.currentThread() == nonBlockingSender)
+				{
+					if (flagKexOngoing == false)
+						break;
+
+					deferredMessages.addElement(new DeferredMessage(msg, len, pool));
+					return;
+				}
+
 				try
 				{
 					connectionSemaphore.wait();
@@ -671,24 +856,269 @@ public class TransportManager
 				}
 			}
 
+			enqueue(msg, len, pool);
+		}
+	}
+
+	/**
+	 * Let one thread, which serves many channels, send without ever waiting.
+	 * Its messages are queued even when the queue is full, and held back
+	 * while a key exchange is going on. It should not produce more data
+	 * while {@link #isSendQueueFull()} says so, and look again once the
+	 * listener has been run. The listener is run by the send thread or the
+	 * thread finishing a key exchange, and must not block.
+	 */
+	public void setNonBlockingSender(Thread t, Runnable listener)
+	{
+		synchronized (connectionSemaphore)
+		{
+			nonBlockingSender = t;
+			sendQueueListener = listener;
+		}
+	}
+
+	/**
+	 * @return true if sendMessage() would wait now, because of a key exchange
+	 *         or because too much is queued
+	 */
+	public boolean isSendQueueFull()
+	{
+		synchronized (connectionSemaphore)
+		{
+			return flagKexOngoing || (queuedBytes >= MAX_QUEUED_BYTES);
+		}
+	}
+
+	/**
+	 * Hand a message to the send thread. Must be called while holding
+	 * connectionSemaphore.
+	 *
+	 * @return the ticket to wait for with waitUntilSent()
+	 */
+	private long enqueue(byte[] msg, int len, PacketBufferPool pool)
+	{
+		if (sendQueueCount == sendQueue.length)
+		{
+			byte[][] q = new byte[sendQueue.length * 2][];
+			int[] ql = new int[q.length];
+			PacketBufferPool[] qp = new PacketBufferPool[q.length];
+
+			for (int i = 0; i < sendQueueCount; i++)
+			{
+				q[i] = sendQueue[(sendQueueHead + i) % sendQueue.length];
+				ql[i] = sendQueueLength[(sendQueueHead + i) % sendQueue.length];
+				qp[i] = sendQueuePool[(sendQueueHead + i) % sendQueue.length];
+			}
+
+			sendQueue = q;
+			sendQueueLength = ql;
+			sendQueuePool = qp;
+			sendQueueHead = 0;
+		}
+
+		int tail = (sendQueueHead + sendQueueCount) % sendQueue.length;
+
+		sendQueue[tail] = msg;
+		sendQueueLength[tail] = len;
+		sendQueuePool[tail] = pool;
+		sendQueueCount++;
+		queuedBytes += len;
+
+		if (sendThreadWaiting)
+			connectionSemaphore.notifyAll();
+
+		return ++messagesQueued;
+	}
+
+	/**
+	 * Wait until the send thread has written everything up to the given
+	 * ticket. Must be called while holding connectionSemaphore, which is
+	 * released while waiting.
+	 *
+	 * @param timeout in milliseconds, 0 means no timeout
+	 * @return false if the connection was closed or the timeout expired first
+	 */
+	private boolean waitUntilSent(long ticket, long timeout)
+	{
+		long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+
+		while (messagesSent < ticket)
+		{
+			if (connectionClosed)
+				return false;
+
+			long wait = 0;
+
+			if (deadline != 0)
+			{
+				wait = deadline - System.currentTimeMillis();
+
+				if (wait <= 0)
+					return false;
+			}
+
 			try
 			{
-				tc.sendMessage(msg);
+				connectionSemaphore.wait(wait);
+			}
+			catch (InterruptedException e)
+			{
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Writes queued messages until the connection is closed. Whatever has
+	 * queued up while the previous write was going on is encrypted into one
+	 * buffer and sent with a single flush, so concurrent senders share socket
+	 * writes instead of taking turns at them.
+	 */
+	void sendLoop()
+	{
+		while (true)
+		{
+			int batchSize;
+
+			synchronized (connectionSemaphore)
+			{
+				while ((sendQueueCount == 0) && (connectionClosed == false))
+				{
+					sendThreadWaiting = true;
+
+					try
+					{
+						connectionSemaphore.wait();
+					}
+					catch (InterruptedException e)
+					{
+					}
+
+					sendThreadWaiting = false;
+				}
+
+				if (connectionClosed)
+					return;
+
+				if (sendBatch.length < sendQueueCount)
+				{
+					sendBatch = new byte[sendQueue.length][];
+					sendBatchLength = new int[sendQueue.length];
+					sendBatchPool = new PacketBufferPool[sendQueue.length];
+				}
+
+				batchSize = sendQueueCount;
+
+				for (int i = 0; i < batchSize; i++)
+				{
+					sendBatch[i] = sendQueue[sendQueueHead];
+					sendBatchLength[i] = sendQueueLength[sendQueueHead];
+					sendBatchPool[i] = sendQueuePool[sendQueueHead];
+					sendQueue[sendQueueHead] = null;
+					sendQueuePool[sendQueueHead] = null;
+					sendQueueHead = (sendQueueHead + 1) % sendQueue.length;
+				}
+
+				sendQueueCount = 0;
+			}
+
+			int batchBytes = 0;
+
+			try
+			{
+				synchronized (sendLock)
+				{
+					for (int i = 0; i < batchSize; i++)
+					{
+						tc.writeMessage(sendBatch[i], 0, sendBatchLength[i], 0);
+						batchBytes += sendBatchLength[i];
+
+						/* Encrypted into the output buffer, the message buffer is free */
+
+						if (sendBatchPool[i] != null)
+							sendBatchPool[i].release(sendBatch[i]);
+
+						sendBatch[i] = null;
+						sendBatchPool[i] = null;
+					}
+
+					tc.flush();
+				}
 			}
 			catch (IOException e)
 			{
+				if (log.isEnabled())
+					log.log(10, "Send thread: error while sending: " + e.getMessage());
+
 				close(e, false);
-				throw e;
+				return;
 			}
+
+			Runnable listener = null;
+
+			synchronized (connectionSemaphore)
+			{
+				messagesSent += batchSize;
+				queuedBytes -= batchBytes;
+				connectionSemaphore.notifyAll();
+
+				if ((queuedBytes + batchBytes >= MAX_QUEUED_BYTES) && (queuedBytes < MAX_QUEUED_BYTES))
+					listener = sendQueueListener;
+			}
+
+			if (listener != null)
+				listener.run();
 		}
 	}
 
+	/**
+	 * @return the pool for buffers that outgoing channel data is built in.
+	 *         Pass it to sendMessage() to have the buffer released once it
+	 *         has been written.
+	 */
+	public PacketBufferPool getSendBufferPool()
+	{
+		return sendBufferPool;
+	}
+
+	public PacketBufferPool getReceiveBufferPool()
+	{
+		return receiveBufferPool;
+	}
+
+	/**
+	 * Take over the buffer of the message currently being dispatched, so that
+	 * a handler can keep the payload instead of copying it. Must only be
+	 * called from a MessageHandler, i.e., on the receive thread. The new
+	 * owner should hand the buffer back to getReceiveBufferPool() when done.
+	 * 
+	 * @param msg the buffer that was passed to handleMessage()
+	 * @return true if the caller now owns the buffer
+	 */
+	public boolean detachReceiveBuffer(byte[] msg)
+	{
+		if ((msg != receiveBuffer) || receiveBufferDetached)
+			return false;
+
+		receiveBufferDetached = true;
+		return true;
+	}
+
 	public void receiveLoop() throws IOException
 	{
-		byte[] msg = new byte[35000];
+		receiveBuffer = receiveBufferPool.acquire();
 
 		while (true)
 		{
+			if (receiveBufferDetached)
+			{
+				receiveBuffer = receiveBufferPool.acquire();
+				receiveBufferDetached = false;
+			}
+
+			byte[] msg = receiveBuffer;
+
 			int msglen = tc.receiveMessage(msg, 0, msg.length);
 
 			int type = msg[0] & 0xff;
@@ -778,7 +1208,7 @@ public class TransportManager
 			}
 
 			if (type == Packets.SSH_MSG_USERAUTH_SUCCESS) {
-				tc.startCompression();
+				startCompression();
 			}
 			
 			MessageHandler mh = null;
@@ -0,0 +1,411 @@
+
+package com.trilead.ssh2.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Vector;
+
+import com.trilead.ssh2.log.Logger;
+
+/**
+ * ConnectionRacer. Opens a TCP connection to a host that may have several
+ * addresses, along the lines of "Happy Eyeballs" (RFC 8305): all A and AAAA
+ * records are resolved, ordered so that IPv6 and IPv4 alternate, and
+ * connection attempts are started one after the other, each
+ * {@link #setAttemptDelay(int) attempt delay} after the previous one or as
+ * soon as the previous one has failed. The first socket that connects is
+ * kept, all others are closed.
+ * <p>
+ * That way a broken IPv6 (or IPv4) path costs a fraction of a second
+ * instead of the whole connect timeout. With only one address the
+ * connection is made in the calling thread, no threads are started.
+ * <p>
+ * A racer is good for one connection. {@link #cancel()} may be called from
+ * any thread; it makes a running (or a later) {@link #connect} fail.
+ */
+public class ConnectionRacer
+{
+	private static final Logger log = Logger.getLogger(ConnectionRacer.class);
+
+	/**
+	 * Delay between the start of two connection attempts in milliseconds, the
+	 * value recommended by RFC 8305.
+	 */
+	public static final int DEFAULT_ATTEMPT_DELAY = 250;
+
+	private int attemptDelay = DEFAULT_ATTEMPT_DELAY;
+
+	private final Object lock = new Object();
+
+	/* All guarded by lock */
+	private final Vector pending = new Vector();
+	private Socket winner = null;
+	private IOException lastException = null;
+	private int running = 0;
+	private boolean cancelled = false;
+	private boolean done = false;
+
+	/**
+	 * @param attemptDelay milliseconds to wait for an attempt before the
+	 *            next one is started, at least 10
+	 */
+	public void setAttemptDelay(int attemptDelay)
+	{
+		this.attemptDelay = Math.max(10, attemptDelay);
+	}
+
+	/**
+	 * Resolve the host and connect to the first address that answers.
+	 *
+	 * @param host name or address literal
+	 * @param port TCP port
+	 * @param timeout in milliseconds for the whole race, 0 means no timeout
+	 * @return a connected socket
+	 * @throws IOException the last error of any attempt, a
+	 *             SocketTimeoutException, or an error because the racer was
+	 *             cancelled
+	 */
+	public Socket connect(String host, int port, int timeout) throws IOException
+	{
+		return connect(resolve(host), port, timeout);
+	}
+
+	/**
+	 * Connect to the first of the given addresses that answers. Attempts are
+	 * started in the given order, use {@link #resolve(String)} to get them in
+	 * a good one.
+	 *
+	 * @param addresses at least one
+	 * @param port TCP port
+	 * @param timeout in milliseconds for the whole race, 0 means no timeout
+	 * @return a connected socket
+	 * @throws IOException the last error of any attempt, a
+	 *             SocketTimeoutException, or an error because the racer was
+	 *             cancelled
+	 */
+	public Socket connect(InetAddress[] addresses, int port, int timeout) throws IOException
+	{
+		if ((addresses == null) || (addresses.length == 0))
+			throw new IllegalArgumentException("No addresses to connect to");
+
+		if (addresses.length == 1)
+			return connectOne(addresses[0], port, timeout);
+
+		long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+
+		try
+		{
+			synchronized (lock)
+			{
+				/*
+				 * done is set under the same lock hold that picks the outcome,
+				 * so an attempt that gets through after that can no longer
+				 * become a winner nobody picks up; it closes its socket instead.
+				 */
+
+				try
+				{
+					return race(addresses, port, deadline);
+				}
+				finally
+				{
+					done = true;
+				}
+			}
+		}
+		finally
+		{
+			/* Attempts still running close their socket once they get through */
+
+			closePending();
+		}
+	}
+
+	/* Must hold the lock */
+	private Socket race(InetAddress[] addresses, int port, long deadline) throws IOException
+	{
+		int next = 0;
+		long nextStart = 0;
+
+		while ((winner == null) && (cancelled == false))
+		{
+			long now = System.currentTimeMillis();
+
+			if ((deadline != 0) && (now >= deadline))
+				break;
+
+			if ((next < addresses.length) && ((now >= nextStart) || (running == 0)))
+			{
+				startAttempt(addresses[next++], port, (deadline != 0) ? (int) (deadline - now) : 0);
+				nextStart = now + attemptDelay;
+				continue;
+			}
+
+			if ((next == addresses.length) && (running == 0))
+				break;
+
+			long wait = (next < addresses.length) ? nextStart - now : 0;
+
+			if ((deadline != 0) && ((wait == 0) || (deadline - now < wait)))
+				wait = deadline - now;
+
+			try
+			{
+				lock.wait(wait);
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException("Interrupted while connecting");
+			}
+		}
+
+		if (winner != null)
+			return winner;
+
+		if (cancelled)
+			throw new IOException("Connection attempt cancelled");
+
+		if ((running == 0) && (lastException != null))
+			throw lastException;
+
+		throw new SocketTimeoutException("connect timed out");
+	}
+
+	/**
+	 * Make a running {@link #connect} give up, and any later one fail right
+	 * away. A socket that has already been handed out is not affected.
+	 */
+	public void cancel()
+	{
+		synchronized (lock)
+		{
+			cancelled = true;
+			lock.notifyAll();
+		}
+
+		closePending();
+	}
+
+	private Socket connectOne(InetAddress addr, int port, int timeout) throws IOException
+	{
+		Socket s = new Socket();
+
+		synchronized (lock)
+		{
+			if (cancelled)
+				throw new IOException("Connection attempt cancelled");
+
+			pending.addElement(s);
+		}
+
+		try
+		{
+			s.connect(new InetSocketAddress(addr, port), timeout);
+		}
+		catch (IOException e)
+		{
+			synchronized (lock)
+			{
+				if (cancelled)
+					throw new IOException("Connection attempt cancelled");
+			}
+
+			throw e;
+		}
+		finally
+		{
+			synchronized (lock)
+			{
+				pending.removeElement(s);
+			}
+		}
+
+		return s;
+	}
+
+	/* Must hold the lock */
+	private void startAttempt(final InetAddress addr, final int port, final int timeout)
+	{
+		final Socket s = new Socket();
+
+		pending.addElement(s);
+		running++;
+
+		if (log.isEnabled())
+			log.log(50, "Trying " + addr.getHostAddress() + " port " + port);
+
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				IOException error = null;
+
+				try
+				{
+					s.connect(new InetSocketAddress(addr, port), timeout);
+				}
+				catch (IOException e)
+				{
+					error = e;
+				}
+
+				synchronized (lock)
+				{
+					running--;
+					pending.removeElement(s);
+
+					if (error != null)
+					{
+						lastException = error;
+
+						if (log.isEnabled())
+							log.log(50, "Connecting to " + addr.getHostAddress() + " failed: " + error.getMessage());
+					}
+					else if ((winner == null) && (cancelled == false) && (done == false))
+					{
+						winner = s;
+					}
+					else
+					{
+						/* Lost the race */
+
+						try
+						{
+							s.close();
+						}
+						catch (IOException ignore)
+						{
+						}
+					}
+
+					lock.notifyAll();
+				}
+			}
+		}, "Connect to " + addr.getHostAddress());
+
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void closePending()
+	{
+		Socket[] sockets;
+
+		synchronized (lock)
+		{
+			sockets = new Socket[pending.size()];
+			pending.copyInto(sockets);
+		}
+
+		for (int i = 0; i < sockets.length; i++)
+		{
+			try
+			{
+				sockets[i].close();
+			}
+			catch (IOException ignore)
+			{
+			}
+		}
+	}
+
+	/**
+	 * Resolve all addresses of a host and put them in the order they should
+	 * be tried in: the family the resolver returned first starts, then IPv6
+	 * and IPv4 take turns. A dotted IPv4 address is turned into an
+	 * InetAddress without asking the resolver, there were reports about JDKs
+	 * that do otherwise.
+	 *
+	 * @param host name or address literal
+	 * @return at least one address
+	 * @throws UnknownHostException
+	 */
+	public static InetAddress[] resolve(String host) throws UnknownHostException
+	{
+		InetAddress addr = parseIPv4Address(host);
+
+		if (addr != null)
+			return new InetAddress[] { addr };
+
+		return interleave(InetAddress.getAllByName(host));
+	}
+
+	static InetAddress[] interleave(InetAddress[] addresses)
+	{
+		if (addresses.length < 2)
+			return addresses;
+
+		Vector v6 = new Vector();
+		Vector v4 = new Vector();
+
+		for (int i = 0; i < addresses.length; i++)
+		{
+			if (addresses[i] instanceof Inet6Address)
+				v6.addElement(addresses[i]);
+			else
+				v4.addElement(addresses[i]);
+		}
+
+		Vector first = (addresses[0] instanceof Inet6Address) ? v6 : v4;
+		Vector second = (first == v6) ? v4 : v6;
+
+		InetAddress[] res = new InetAddress[addresses.length];
+
+		int n = 0;
+
+		for (int i = 0; n < res.length; i++)
+		{
+			if (i < first.size())
+				res[n++] = (InetAddress) first.elementAt(i);
+			if (i < second.size())
+				res[n++] = (InetAddress) second.elementAt(i);
+		}
+
+		return res;
+	}
+
+	private static InetAddress parseIPv4Address(String host) throws UnknownHostException
+	{
+		if (host == null)
+			return null;
+
+		String[] quad = Tokenizer.parseTokens(host, '.');
+
+		if ((quad == null) || (quad.length != 4))
+			return null;
+
+		byte[] addr = new byte[4];
+
+		for (int i = 0; i < 4; i++)
+		{
+			int part = 0;
+
+			if ((quad[i].length() == 0) || (quad[i].length() > 3))
+				return null;
+
+			for (int k = 0; k < quad[i].length(); k++)
+			{
+				char c = quad[i].charAt(k);
+
+				/* No, Character.isDigit is not the same */
+				if ((c < '0') || (c > '9'))
+					return null;
+
+				part = part * 10 + (c - '0');
+			}
+
+			if (part > 255) /* 300.1.2.3 is invalid =) */
+				return null;
+
+			addr[i] = (byte) part;
+		}
+
+		return InetAddress.getByAddress(host, addr);
+	}
+}
@@ -43,8 +43,10 @@ public abstract class TelnetProtocolHandler {
   /** debug level */
   private final static int debug = 0;
 
-  /** temporary buffer for data-telnetstuff-data transformation */
-  private byte[] tempbuf = new byte[0];
+  /** temporary buffer for data-telnetstuff-data transformation,
+   *  the unprocessed input is tempbuf[tempstart..tempend) */
+  private byte[] tempbuf = new byte[256];
+  private int tempstart = 0, tempend = 0;
 
   /** the data sent on pressing <RETURN>  \n */
   private byte[] crlf = new byte[2];
@@ -113,6 +115,9 @@ public abstract class TelnetProtocolHandler {
    */
   public void reset() {
     neg_state = 0;
+    tempstart = tempend = 0;
+    sblen = 0;
+    sync = false;
     receivedDX = new byte[256];
     sentDX = new byte[256];
     receivedWX = new byte[256];
@@ -141,8 +146,16 @@ public abstract class TelnetProtocolHandler {
   /** What IAC SB <xx> we are handling right now */
   private byte current_sb;
 
-  /** current SB negotiation buffer */
-  private byte[] sbbuf;
+  /** current SB negotiation buffer, grown as needed and reused */
+  private byte[] sbbuf = new byte[64];
+  private int sblen = 0;
+
+  /** set when negotiate() should return before going on, e.g. at IAC */
+  private boolean sync = false;
+
+  /** reply buffers, reused */
+  private final byte[] sendbuf = new byte[3];
+  private final byte[] controlbuf = new byte[2];
 
   /** IAC - init sequence for telnet negotiation. */
   private final static byte IAC  = (byte)255;
@@ -204,11 +217,11 @@ public abstract class TelnetProtocolHandler {
    */
   public void sendTelnetControl(byte code)
     throws IOException {
-    byte[] b = new byte[2];
-
-    b[0] = IAC;
-    b[1] = code;
-    write(b);
+    synchronized (controlbuf) {
+      controlbuf[0] = IAC;
+      controlbuf[1] = code;
+      write(controlbuf);
+    }
   }
 
   /**
@@ -235,14 +248,15 @@ public abstract class TelnetProtocolHandler {
    * Handle an incoming IAC SB &lt;type&gt; &lt;bytes&gt; IAC SE
    * @param type type of SB
    * @param sbata byte array as &lt;bytes&gt;
+   * @param sblength number of bytes used in sbdata
    */
-  private void handle_sb(byte type, byte[] sbdata)
+  private void handle_sb(byte type, byte[] sbdata, int sblength)
     throws IOException {
     if(debug > 1)
       System.err.println("TelnetIO.handle_sb("+type+")");
     switch (type) {
     case TELOPT_TTYPE:
-      if (sbdata.length>0 && sbdata[0]==TELQUAL_SEND) {
+      if (sblength>0 && sbdata[0]==TELQUAL_SEND) {
         write(IACSB);write(TELOPT_TTYPE);write(TELQUAL_IS);
         /* FIXME: need more logic here if we use
          * more than one terminal type
@@ -256,7 +270,7 @@ public abstract class TelnetProtocolHandler {
     case TELOPT_CHARSET:
         System.out.println("Got SB CHARSET");
 
-      String charsetStr = new String(sbdata, "US-ASCII");
+      String charsetStr = new String(sbdata, 0, sblength, "US-ASCII");
       if (charsetStr.startsWith("TTABLE ")) {
         charsetStr = charsetStr.substring(7);
       }
@@ -364,315 +378,368 @@ public abstract class TelnetProtocolHandler {
   public int negotiate(byte nbuf[], int offset)
   throws IOException
   {
-    int count = tempbuf.length;
-    byte[] buf = tempbuf;
-    byte sendbuf[] = new byte[3];
-    byte b,reply;
-    int boffset = 0, noffset = offset;
-    boolean dobreak = false;
-
-    if (count == 0) 	// buffer is empty.
+    int noffset = offset;
+
+    if (tempstart == tempend) 	// buffer is empty.
       return -1;
 
-    while(!dobreak && (boffset < count) && (noffset < nbuf.length)) {
-      b=buf[boffset++];
-      // of course, byte is a signed entity (-128 -> 127)
-      // but apparently the SGI Netscape 3.0 doesn't seem
-      // to care and provides happily values up to 255
-      if (b>=128)
-        b=(byte)(b-256);
-      if(debug > 2) {
-        Byte B = new Byte(b);
-        System.err.print("byte: " + B.intValue()+ " ");
-      }
-      switch (neg_state) {
-      case STATE_DATA:
-        if (b==IAC) {
-          neg_state = STATE_IAC;
-	  dobreak = true; // leave the loop so we can sync.
-        } else
-          nbuf[noffset++]=b;
-        break;
-      case STATE_IAC:
-        switch (b) {
-        case IAC:
-          if(debug > 2) System.err.print("IAC ");
-          neg_state = STATE_DATA;
-          nbuf[noffset++]=IAC;
-          break;
-        case WILL:
-          if(debug > 2) System.err.print("WILL ");
-          neg_state = STATE_IACWILL;
-          break;
-        case WONT:
-          if(debug > 2) System.err.print("WONT ");
-          neg_state = STATE_IACWONT;
-          break;
-        case DONT:
-          if(debug > 2) System.err.print("DONT ");
-          neg_state = STATE_IACDONT;
-          break;
-        case DO:
-          if(debug > 2) System.err.print("DO ");
-          neg_state = STATE_IACDO;
-          break;
-        case EOR:
-          if(debug > 1) System.err.print("EOR ");
-  	  notifyEndOfRecord();
-	  dobreak = true; // leave the loop so we can sync.
-          neg_state = STATE_DATA;
-          break;
-        case SB:
-          if(debug > 2) System.err.print("SB ");
-          neg_state = STATE_IACSB;
-          break;
-        default:
-          if(debug > 2) System.err.print("<UNKNOWN "+b+" > ");
-          neg_state = STATE_DATA;
-          break;
+    sync = false;
+    while(!sync && (tempstart < tempend) && (noffset < nbuf.length)) {
+      int c = step(tempbuf[tempstart++]);
+      if (c >= 0)
+        nbuf[noffset++] = (byte) c;
+    }
+    if (tempstart == tempend)
+      tempstart = tempend = 0;
+    return noffset - offset;
+  }
+
+  /**
+   * Handle telnet protocol negotiation in place, without the copy through
+   * inputfeed() and negotiate(). The len bytes at offset are parsed, the
+   * telnet commands in them are acted upon and removed, and the data bytes
+   * are moved together so they start at offset. Runs of plain data are
+   * found with a tight scan for IAC and are not touched unless an earlier
+   * command has to be cut out. Commands split across calls are continued
+   * on the next call.
+   * @param buf the received bytes, replaced by the data bytes
+   * @return number of data bytes now starting at offset, may be 0
+   */
+  public int filter(byte[] buf, int offset, int len)
+  throws IOException
+  {
+    int end = offset + len;
+    int in = offset, out = offset;
+
+    while (in < end) {
+      if (neg_state == STATE_DATA) {
+        int start = in;
+        while (in < end && buf[in] != IAC)
+          in++;
+        if (in > start) {
+          if (out != start)
+            System.arraycopy(buf, start, buf, out, in - start);
+          out += in - start;
         }
-        break;
-      case STATE_IACWILL:
-        switch(b) {
-        case TELOPT_ECHO:
-          if(debug > 2) System.err.println("ECHO");
-          reply = DO;
-          setLocalEcho(false);
-          break;
-        case TELOPT_SGA:
-          if(debug > 2) System.err.println("SGA");
-          reply = DO;
-          break;
-        case TELOPT_EOR:
-          if(debug > 2) System.err.println("EOR");
-          reply = DO;
-          break;
-        case TELOPT_BINARY:
-          if(debug > 2) System.err.println("BINARY");
-          reply = DO;
-          break;
-        default:
-          if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
-          reply = DONT;
+        if (in == end)
           break;
-        }
-        if(debug > 1) System.err.println("<"+b+", WILL ="+WILL+">");
-        if (reply != sentDX[b+128] || WILL != receivedWX[b+128]) {
-          sendbuf[0]=IAC;
-          sendbuf[1]=reply;
-          sendbuf[2]=b;
-          write(sendbuf);
-          sentDX[b+128] = reply;
-          receivedWX[b+128] = WILL;
-        }
+      }
+      int c = step(buf[in++]);
+      if (c >= 0)
+        buf[out++] = (byte) c;
+    }
+    sync = false;
+    return out - offset;
+  }
+
+  /**
+   * Feed one received byte to the negotiation state machine.
+   * @return the data byte (0..255) it stands for, or -1 if it was part
+   *         of a telnet command
+   */
+  private int step(byte b)
+  throws IOException
+  {
+    byte reply;
+
+    if(debug > 2) {
+      Byte B = new Byte(b);
+      System.err.print("byte: " + B.intValue()+ " ");
+    }
+    switch (neg_state) {
+    case STATE_DATA:
+      if (b==IAC) {
+        neg_state = STATE_IAC;
+        sync = true; // leave the loop so we can sync.
+      } else
+        return b & 0xff;
+      break;
+    case STATE_IAC:
+      switch (b) {
+      case IAC:
+        if(debug > 2) System.err.print("IAC ");
         neg_state = STATE_DATA;
+        return IAC & 0xff;
+      case WILL:
+        if(debug > 2) System.err.print("WILL ");
+        neg_state = STATE_IACWILL;
         break;
-      case STATE_IACWONT:
-        switch(b) {
-        case TELOPT_ECHO:
-          if(debug > 2) System.err.println("ECHO");
-          setLocalEcho(true);
-          reply = DONT;
-          break;
-        case TELOPT_SGA:
-          if(debug > 2) System.err.println("SGA");
-          reply = DONT;
-          break;
-        case TELOPT_EOR:
-          if(debug > 2) System.err.println("EOR");
-          reply = DONT;
-          break;
-        case TELOPT_BINARY:
-          if(debug > 2) System.err.println("BINARY");
-          reply = DONT;
-          break;
-        default:
-          if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
-          reply = DONT;
-          break;
-        }
-        if(reply != sentDX[b+128] || WONT != receivedWX[b+128]) {
-          sendbuf[0]=IAC;
-          sendbuf[1]=reply;
-          sendbuf[2]=b;
-          write(sendbuf);
-          sentDX[b+128] = reply;
-          receivedWX[b+128] = WILL;
-        }
+      case WONT:
+        if(debug > 2) System.err.print("WONT ");
+        neg_state = STATE_IACWONT;
+        break;
+      case DONT:
+        if(debug > 2) System.err.print("DONT ");
+        neg_state = STATE_IACDONT;
+        break;
+      case DO:
+        if(debug > 2) System.err.print("DO ");
+        neg_state = STATE_IACDO;
+        break;
+      case EOR:
+        if(debug > 1) System.err.print("EOR ");
+        notifyEndOfRecord();
+        sync = true; // leave the loop so we can sync.
         neg_state = STATE_DATA;
         break;
-      case STATE_IACDO:
-        switch (b) {
-        case TELOPT_ECHO:
-          if(debug > 2) System.err.println("ECHO");
-          reply = WILL;
-          setLocalEcho(true);
-          break;
-        case TELOPT_SGA:
-          if(debug > 2) System.err.println("SGA");
-          reply = WILL;
-          break;
-        case TELOPT_TTYPE:
-          if(debug > 2) System.err.println("TTYPE");
-          reply = WILL;
-          break;
-        case TELOPT_BINARY:
-          if(debug > 2) System.err.println("BINARY");
-          reply = WILL;
-          break;
-        case TELOPT_NAWS:
-          if(debug > 2) System.err.println("NAWS");
-          int[] size = getWindowSize();
-          receivedDX[b] = DO;
-          if(size == null) {
-            // this shouldn't happen
-            write(IAC);
-            write(WONT);
-            write(TELOPT_NAWS);
-            reply = WONT;
-            sentWX[b] = WONT;
-            break;
-          }
-          reply = WILL;
-          sentWX[b] = WILL;
-          sendbuf[0]=IAC;
-          sendbuf[1]=WILL;
-          sendbuf[2]=TELOPT_NAWS;
-          write(sendbuf);
-          write(IAC);write(SB);write(TELOPT_NAWS);
-          write((byte) (size[0] >> 8));
-          write((byte) (size[0] & 0xff));
-          write((byte) (size[1] >> 8));
-          write((byte) (size[1] & 0xff));
-          write(IAC);write(SE);
-          break;
-        default:
-          if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
-          reply = WONT;
-          break;
-        }
-        if(reply != sentWX[128+b] || DO != receivedDX[128+b]) {
-          sendbuf[0]=IAC;
-          sendbuf[1]=reply;
-          sendbuf[2]=b;
-          write(sendbuf);
-          sentWX[b+128] = reply;
-          receivedDX[b+128] = DO;
-        }
+      case SB:
+        if(debug > 2) System.err.print("SB ");
+        neg_state = STATE_IACSB;
+        break;
+      default:
+        if(debug > 2) System.err.print("<UNKNOWN "+b+" > ");
         neg_state = STATE_DATA;
         break;
-      case STATE_IACDONT:
-        switch (b) {
-        case TELOPT_ECHO:
-          if(debug > 2) System.err.println("ECHO");
-          reply = WONT;
-          setLocalEcho(false);
-          break;
-        case TELOPT_SGA:
-          if(debug > 2) System.err.println("SGA");
-          reply = WONT;
-          break;
-        case TELOPT_NAWS:
-          if(debug > 2) System.err.println("NAWS");
-          reply = WONT;
-          break;
-        case TELOPT_BINARY:
-          if(debug > 2) System.err.println("BINARY");
-          reply = WONT;
-          break;
-        default:
-          if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
+      }
+      break;
+    case STATE_IACWILL:
+      switch(b) {
+      case TELOPT_ECHO:
+        if(debug > 2) System.err.println("ECHO");
+        reply = DO;
+        setLocalEcho(false);
+        break;
+      case TELOPT_SGA:
+        if(debug > 2) System.err.println("SGA");
+        reply = DO;
+        break;
+      case TELOPT_EOR:
+        if(debug > 2) System.err.println("EOR");
+        reply = DO;
+        break;
+      case TELOPT_BINARY:
+        if(debug > 2) System.err.println("BINARY");
+        reply = DO;
+        break;
+      default:
+        if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
+        reply = DONT;
+        break;
+      }
+      if(debug > 1) System.err.println("<"+b+", WILL ="+WILL+">");
+      if (reply != sentDX[b+128] || WILL != receivedWX[b+128]) {
+        sendbuf[0]=IAC;
+        sendbuf[1]=reply;
+        sendbuf[2]=b;
+        write(sendbuf);
+        sentDX[b+128] = reply;
+        receivedWX[b+128] = WILL;
+      }
+      neg_state = STATE_DATA;
+      break;
+    case STATE_IACWONT:
+      switch(b) {
+      case TELOPT_ECHO:
+        if(debug > 2) System.err.println("ECHO");
+        setLocalEcho(true);
+        reply = DONT;
+        break;
+      case TELOPT_SGA:
+        if(debug > 2) System.err.println("SGA");
+        reply = DONT;
+        break;
+      case TELOPT_EOR:
+        if(debug > 2) System.err.println("EOR");
+        reply = DONT;
+        break;
+      case TELOPT_BINARY:
+        if(debug > 2) System.err.println("BINARY");
+        reply = DONT;
+        break;
+      default:
+        if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
+        reply = DONT;
+        break;
+      }
+      if(reply != sentDX[b+128] || WONT != receivedWX[b+128]) {
+        sendbuf[0]=IAC;
+        sendbuf[1]=reply;
+        sendbuf[2]=b;
+        write(sendbuf);
+        sentDX[b+128] = reply;
+        receivedWX[b+128] = WILL;
+      }
+      neg_state = STATE_DATA;
+      break;
+    case STATE_IACDO:
+      switch (b) {
+      case TELOPT_ECHO:
+        if(debug > 2) System.err.println("ECHO");
+        reply = WILL;
+        setLocalEcho(true);
+        break;
+      case TELOPT_SGA:
+        if(debug > 2) System.err.println("SGA");
+        reply = WILL;
+        break;
+      case TELOPT_TTYPE:
+        if(debug > 2) System.err.println("TTYPE");
+        reply = WILL;
+        break;
+      case TELOPT_BINARY:
+        if(debug > 2) System.err.println("BINARY");
+        reply = WILL;
+        break;
+      case TELOPT_NAWS:
+        if(debug > 2) System.err.println("NAWS");
+        int[] size = getWindowSize();
+        receivedDX[b] = DO;
+        if(size == null) {
+          // this shouldn't happen
+          write(IAC);
+          write(WONT);
+          write(TELOPT_NAWS);
           reply = WONT;
+          sentWX[b] = WONT;
           break;
         }
-        if(reply != sentWX[b+128] || DONT != receivedDX[b+128]) {
-          write(IAC);write(reply);write(b);
-          sentWX[b+128] = reply;
-          receivedDX[b+128] = DONT;
-        }
+        reply = WILL;
+        sentWX[b] = WILL;
+        sendbuf[0]=IAC;
+        sendbuf[1]=WILL;
+        sendbuf[2]=TELOPT_NAWS;
+        write(sendbuf);
+        write(IAC);write(SB);write(TELOPT_NAWS);
+        write((byte) (size[0] >> 8));
+        write((byte) (size[0] & 0xff));
+        write((byte) (size[1] >> 8));
+        write((byte) (size[1] & 0xff));
+        write(IAC);write(SE);
+        break;
+      default:
+        if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
+        reply = WONT;
+        break;
+      }
+      if(reply != sentWX[128+b] || DO != receivedDX[128+b]) {
+        sendbuf[0]=IAC;
+        sendbuf[1]=reply;
+        sendbuf[2]=b;
+        write(sendbuf);
+        sentWX[b+128] = reply;
+        receivedDX[b+128] = DO;
+      }
+      neg_state = STATE_DATA;
+      break;
+    case STATE_IACDONT:
+      switch (b) {
+      case TELOPT_ECHO:
+        if(debug > 2) System.err.println("ECHO");
+        reply = WONT;
+        setLocalEcho(false);
+        break;
+      case TELOPT_SGA:
+        if(debug > 2) System.err.println("SGA");
+        reply = WONT;
+        break;
+      case TELOPT_NAWS:
+        if(debug > 2) System.err.println("NAWS");
+        reply = WONT;
+        break;
+      case TELOPT_BINARY:
+        if(debug > 2) System.err.println("BINARY");
+        reply = WONT;
+        break;
+      default:
+        if(debug > 2) System.err.println("<UNKNOWN,"+b+">");
+        reply = WONT;
+        break;
+      }
+      if(reply != sentWX[b+128] || DONT != receivedDX[b+128]) {
+        write(IAC);write(reply);write(b);
+        sentWX[b+128] = reply;
+        receivedDX[b+128] = DONT;
+      }
+      neg_state = STATE_DATA;
+      break;
+    case STATE_IACSBIAC:
+      if(debug > 2) System.err.println(""+b+" ");
+      if (b == IAC) {
+        sblen = 0;
+        current_sb = b;
+        neg_state = STATE_IACSBDATA;
+      } else {
+        System.err.println("(bad) "+b+" ");
         neg_state = STATE_DATA;
+      }
+      break;
+    case STATE_IACSB:
+      if(debug > 2) System.err.println(""+b+" ");
+      switch (b) {
+      case IAC:
+        neg_state = STATE_IACSBIAC;
         break;
-      case STATE_IACSBIAC:
-        if(debug > 2) System.err.println(""+b+" ");
-        if (b == IAC) {
-	  sbbuf = new byte[0];
-          current_sb = b;
-          neg_state = STATE_IACSBDATA;
-        } else {
-          System.err.println("(bad) "+b+" ");
-          neg_state = STATE_DATA;
-        }
+      default:
+        current_sb = b;
+        sblen = 0;
+        neg_state = STATE_IACSBDATA;
         break;
-      case STATE_IACSB:
-        if(debug > 2) System.err.println(""+b+" ");
-        switch (b) {
-        case IAC:
-          neg_state = STATE_IACSBIAC;
-          break;
-        default:
-          current_sb = b;
-	  sbbuf = new byte[0];
-          neg_state = STATE_IACSBDATA;
-          break;
-        }
+      }
+      break;
+    case STATE_IACSBDATA:
+      if (debug > 2) System.err.println(""+b+" ");
+      switch (b) {
+      case IAC:
+        neg_state = STATE_IACSBDATAIAC;
         break;
-      case STATE_IACSBDATA:
-        if (debug > 2) System.err.println(""+b+" ");
-        switch (b) {
-        case IAC:
-          neg_state = STATE_IACSBDATAIAC;
-          break;
-        default:
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = b;
-          break;
-        }
+      default:
+        appendSb(b);
         break;
-      case STATE_IACSBDATAIAC:
-        if (debug > 2) System.err.println(""+b+" ");
-        switch (b) {
-        case IAC:
-          neg_state = STATE_IACSBDATA;
-	  byte[] xsb = new byte[sbbuf.length+1];
-          System.arraycopy(sbbuf,0,xsb,0,sbbuf.length);
-	  sbbuf = xsb;
-          sbbuf[sbbuf.length-1] = IAC;
-          break;
-        case SE:
-          handle_sb(current_sb,sbbuf);
-          current_sb = 0;
-          neg_state = STATE_DATA;
-          break;
-        case SB:
-          handle_sb(current_sb,sbbuf);
-          neg_state = STATE_IACSB;
-          break;
-        default:
-          neg_state = STATE_DATA;
-          break;
-        }
+      }
+      break;
+    case STATE_IACSBDATAIAC:
+      if (debug > 2) System.err.println(""+b+" ");
+      switch (b) {
+      case IAC:
+        neg_state = STATE_IACSBDATA;
+        appendSb(IAC);
+        break;
+      case SE:
+        handle_sb(current_sb,sbbuf,sblen);
+        current_sb = 0;
+        neg_state = STATE_DATA;
+        break;
+      case SB:
+        handle_sb(current_sb,sbbuf,sblen);
+        neg_state = STATE_IACSB;
         break;
       default:
-        if (debug > 1)
-          System.err.println("This should not happen: "+neg_state+" ");
         neg_state = STATE_DATA;
         break;
       }
+      break;
+    default:
+      if (debug > 1)
+        System.err.println("This should not happen: "+neg_state+" ");
+      neg_state = STATE_DATA;
+      break;
     }
-    // shrink tempbuf to new processed size.
-    byte[] xb = new byte[count-boffset];
-    System.arraycopy(tempbuf,boffset,xb,0,count-boffset);
-    tempbuf = xb;
-    return noffset - offset;
+    return -1;
   }
 
-  public void inputfeed(byte[] b, int offset, int len) {
-    byte[] xb = new byte[tempbuf.length+len];
+  private void appendSb(byte b) {
+    if (sblen == sbbuf.length) {
+      byte[] xsb = new byte[sbbuf.length*2];
+      System.arraycopy(sbbuf,0,xsb,0,sblen);
+      sbbuf = xsb;
+    }
+    sbbuf[sblen++] = b;
+  }
 
-    System.arraycopy(tempbuf,0,xb,0,tempbuf.length);
-    System.arraycopy(b,offset,xb,tempbuf.length,len);
-    tempbuf = xb;
+  public void inputfeed(byte[] b, int offset, int len) {
+    if (tempbuf.length - tempend < len) {
+      int count = tempend - tempstart;
+      // compact first, grow only if that is not enough
+      if (tempbuf.length - count < len) {
+        byte[] xb = new byte[Math.max(tempbuf.length*2, count+len)];
+        System.arraycopy(tempbuf,tempstart,xb,0,count);
+        tempbuf = xb;
+      } else
+        System.arraycopy(tempbuf,tempstart,tempbuf,0,count);
+      tempstart = 0;
+      tempend = count;
+    }
+    System.arraycopy(b,offset,tempbuf,tempend,len);
+    tempend += len;
   }
 }
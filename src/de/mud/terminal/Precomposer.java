@@ -1025,25 +1025,54 @@ public class Precomposer {
 		{ 0xFB2D, 0xFB49, 0x05C2},
 	};
 
-	private static final int UNICODE_SHIFT = 21;
+	/*
+	 * Open addressing hash table over (base << 16 | combiner), filled from
+	 * precompositions when the class is loaded. It is kept at most half full,
+	 * so a lookup usually touches a single slot. A key is never 0 because the
+	 * combiner never is.
+	 */
+	private static final int[] keys;
+	private static final char[] values;
+	private static final int mask;
+	private static final int shift;
 
-	public static char precompose(char base, char comb) {
-		int min = 0;
-		int max = precompositions.length - 1;
-		int mid;
+	static {
+		int size = Integer.highestOneBit(precompositions.length) << 2;
+
+		keys = new int[size];
+		values = new char[size];
+		mask = size - 1;
+		shift = 32 - Integer.numberOfTrailingZeros(size);
+
+		for (char[] entry : precompositions) {
+			int key = entry[1] << 16 | entry[2];
+			int i = slot(key);
+
+			while (keys[i] != 0 && keys[i] != key)
+				i = (i + 1) & mask;
+
+			// the first entry for a pair wins
+			if (keys[i] == 0) {
+				keys[i] = key;
+				values[i] = entry[0];
+			}
+		}
+	}
 
-		long sought = base << UNICODE_SHIFT | comb;
-		long that;
+	private static int slot(int key) {
+		// Fibonacci hashing, the top bits are the best mixed
+		return (key * 0x9E3779B9) >>> shift;
+	}
+
+	public static char precompose(char base, char comb) {
+		int key = base << 16 | comb;
+		int i = slot(key);
+		int that;
 
-		while (max >= min) {
-			mid = (min + max) / 2;
-			that = precompositions[mid][1] << UNICODE_SHIFT | precompositions[mid][2];
-			if (that < sought)
-				min = mid + 1;
-			else if (that > sought)
-				max = mid - 1;
-			else
-				return precompositions[mid][0];
+		while ((that = keys[i]) != 0) {
+			if (that == key)
+				return values[i];
+			i = (i + 1) & mask;
 		}
 
 		// No match; return character without combiner
@@ -45,14 +45,28 @@ public class VDUBuffer {
 
   public int height, width;                          /* rows and columns */
   public boolean[] update;        /* contains the lines that need update */
-  public char[][] charArray;                  /* contains the characters */
-  public int[][] charAttributes;             /* contains character attrs */
   public int bufSize;
   public int maxBufSize;                                 /* buffer sizes */
   public int screenBase;                      /* the actual screen start */
   public int windowBase;                   /* where the start displaying */
   public int scrollMarker;               /* marks the last line inserted */
 
+  /*  Character storage:
+   *
+   *  All lines of the scrollback buffer and the screen live in two flat
+   *  arrays that are used as a ring of lines, each line taking up exactly
+   *  width cells. Buffer line i is found at physical line
+   *  (ringBase + i) % ringRows. Scrolling the whole screen only advances
+   *  ringBase, and the ring grows on demand up to maxBufSize lines.
+   */
+  private char[] text;                          /* contains the characters */
+  private int[] attrs;                         /* contains character attrs */
+  private int ringRows;                   /* lines allocated in the ring */
+  private int ringBase;                 /* physical line of buffer line 0 */
+
+  private char[] scratchText;               /* temporary lines for moves */
+  private int[] scratchAttrs;
+
   private int topMargin;                               /* top scroll margin */
   private int bottomMargin;                         /* bottom scroll margin */
 
@@ -158,8 +172,30 @@ public class VDUBuffer {
    */
 
   public void putChar(int c, int l, char ch, int attributes) {
-    charArray[screenBase + l][c] = ch;
-    charAttributes[screenBase + l][c] = attributes;
+    int offset = getLineOffset(screenBase + l) + c;
+    text[offset] = ch;
+    attrs[offset] = attributes;
+    if (l < height)
+      update[l + 1] = true;
+  }
+
+  /**
+   * Put a run of characters with the same attributes on one line. The
+   * run must fit on the line. The characters previously on those positions
+   * will be overwritten. You need to call redraw() to update the screen.
+   * @param c x-coordinate (column) of the first character
+   * @param l y-coordinate (line)
+   * @param s array holding the characters
+   * @param start offset of the first character in s
+   * @param len number of characters to put
+   * @param attributes the character attributes
+   * @see #putChar
+   * @see #redraw
+   */
+  public void putChars(int c, int l, char[] s, int start, int len, int attributes) {
+    int offset = getLineOffset(screenBase + l) + c;
+    System.arraycopy(s, start, text, offset, len);
+    Arrays.fill(attrs, offset, offset + len, attributes);
     if (l < height)
       update[l + 1] = true;
   }
@@ -171,7 +207,7 @@ public class VDUBuffer {
    * @see #putChar
    */
   public char getChar(int c, int l) {
-    return charArray[screenBase + l][c];
+    return text[getLineOffset(screenBase + l) + c];
   }
 
   /**
@@ -181,7 +217,7 @@ public class VDUBuffer {
    * @see #putChar
    */
   public int getAttributes(int c, int l) {
-    return charAttributes[screenBase + l][c];
+    return attrs[getLineOffset(screenBase + l) + c];
   }
 
   /**
@@ -203,10 +239,9 @@ public class VDUBuffer {
    * @see #redraw
    */
   public void insertChar(int c, int l, char ch, int attributes) {
-    System.arraycopy(charArray[screenBase + l], c,
-                     charArray[screenBase + l], c + 1, width - c - 1);
-    System.arraycopy(charAttributes[screenBase + l], c,
-                     charAttributes[screenBase + l], c + 1, width - c - 1);
+    int offset = getLineOffset(screenBase + l);
+    System.arraycopy(text, offset + c, text, offset + c + 1, width - c - 1);
+    System.arraycopy(attrs, offset + c, attrs, offset + c + 1, width - c - 1);
     putChar(c, l, ch, attributes);
   }
 
@@ -222,10 +257,9 @@ public class VDUBuffer {
    */
   public void deleteChar(int c, int l) {
     if (c < width - 1) {
-      System.arraycopy(charArray[screenBase + l], c + 1,
-                       charArray[screenBase + l], c, width - c - 1);
-      System.arraycopy(charAttributes[screenBase + l], c + 1,
-                       charAttributes[screenBase + l], c, width - c - 1);
+      int offset = getLineOffset(screenBase + l);
+      System.arraycopy(text, offset + c + 1, text, offset + c, width - c - 1);
+      System.arraycopy(attrs, offset + c + 1, attrs, offset + c, width - c - 1);
     }
     putChar(width - 1, l, (char) 0);
   }
@@ -327,15 +361,6 @@ public class VDUBuffer {
    * @see #redraw
    */
   public synchronized void insertLine(int l, int n, boolean scrollDown) {
-    char cbuf[][] = null;
-    int abuf[][] = null;
-    int offset = 0;
-    int oldBase = screenBase;
-
-    int newScreenBase = screenBase;
-    int newWindowBase = windowBase;
-    int newBufSize = bufSize;
-
     if (l > bottomMargin) /* We do not scroll below bottom margin (below the scrolling region). */
       return;
     int top = (l < topMargin ?
@@ -351,128 +376,58 @@ public class VDUBuffer {
 
     if (scrollDown) {
       if (n > (bottom - top)) n = (bottom - top);
-      int size = bottom - l - (n - 1);
-      if(size < 0) size = 0;
-      cbuf = new char[size][];
-      abuf = new int[size][];
-
-      System.arraycopy(charArray, oldBase + l, cbuf, 0, bottom - l - (n - 1));
-      System.arraycopy(charAttributes, oldBase + l,
-                       abuf, 0, bottom - l - (n - 1));
-      System.arraycopy(cbuf, 0, charArray, oldBase + l + n,
-                       bottom - l - (n - 1));
-      System.arraycopy(abuf, 0, charAttributes, oldBase + l + n,
-                       bottom - l - (n - 1));
-      cbuf = charArray;
-      abuf = charAttributes;
+      if (n > bottom - l + 1) n = bottom - l + 1;
+
+      // move the lines below l down, starting from the bottom
+      for (int i = bottom - n; i >= l; i--)
+        copyLine(screenBase + i, screenBase + i + n);
+
+      for (int i = 0; i < n; i++)
+        clearLine(screenBase + l + i, 0);
+
+      // this is a little helper to mark the scrolling
+      scrollMarker -= n;
     } else {
-      try {
-        if (n > (bottom - top) + 1) n = (bottom - top) + 1;
-        if (bufSize < maxBufSize) {
-          if (bufSize + n > maxBufSize) {
-            offset = n - (maxBufSize - bufSize);
-            scrollMarker += offset;
-            newBufSize = maxBufSize;
-            newScreenBase = maxBufSize - height - 1;
-            newWindowBase = screenBase;
-          } else {
-            scrollMarker += n;
-            newScreenBase += n;
-            newWindowBase += n;
-            newBufSize += n;
-          }
-
-          cbuf = new char[newBufSize][];
-          abuf = new int[newBufSize][];
-        } else {
-          offset = n;
-          cbuf = charArray;
-          abuf = charAttributes;
-        }
-        // copy anything from the top of the buffer (+offset) to the new top
-        // up to the screenBase.
-        if (oldBase > 0) {
-          System.arraycopy(charArray, offset,
-                           cbuf, 0,
-                           oldBase - offset);
-          System.arraycopy(charAttributes, offset,
-                           abuf, 0,
-                           oldBase - offset);
-        }
-        // copy anything from the top of the screen (screenBase) up to the
-        // topMargin to the new screen
-        if (top > 0) {
-          System.arraycopy(charArray, oldBase,
-                           cbuf, newScreenBase,
-                           top);
-          System.arraycopy(charAttributes, oldBase,
-                           abuf, newScreenBase,
-                           top);
-        }
-        // copy anything from the topMargin up to the amount of lines inserted
-        // to the gap left over between scrollback buffer and screenBase
-        if (oldBase >= 0) {
-          System.arraycopy(charArray, oldBase + top,
-                           cbuf, oldBase - offset,
-                           n);
-          System.arraycopy(charAttributes, oldBase + top,
-                           abuf, oldBase - offset,
-                           n);
-        }
-        // copy anything from topMargin + n up to the line linserted to the
-        // topMargin
-        System.arraycopy(charArray, oldBase + top + n,
-                         cbuf, newScreenBase + top,
-                         l - top - (n - 1));
-        System.arraycopy(charAttributes, oldBase + top + n,
-                         abuf, newScreenBase + top,
-                         l - top - (n - 1));
-        //
-        // copy the all lines next to the inserted to the new buffer
-        if (l < height - 1) {
-          System.arraycopy(charArray, oldBase + l + 1,
-                           cbuf, newScreenBase + l + 1,
-                           (height - 1) - l);
-          System.arraycopy(charAttributes, oldBase + l + 1,
-                           abuf, newScreenBase + l + 1,
-                           (height - 1) - l);
-        }
-      } catch (ArrayIndexOutOfBoundsException e) {
-        // this should not happen anymore, but I will leave the code
-        // here in case something happens anyway. That code above is
-        // so complex I always have a hard time understanding what
-        // I did, even though there are comments
-        System.err.println("*** Error while scrolling up:");
-        System.err.println("--- BEGIN STACK TRACE ---");
-        e.printStackTrace();
-        System.err.println("--- END STACK TRACE ---");
-        System.err.println("bufSize=" + bufSize + ", maxBufSize=" + maxBufSize);
-        System.err.println("top=" + top + ", bottom=" + bottom);
-        System.err.println("n=" + n + ", l=" + l);
-        System.err.println("screenBase=" + screenBase + ", windowBase=" + windowBase);
-        System.err.println("newScreenBase=" + newScreenBase + ", newWindowBase=" + newWindowBase);
-        System.err.println("oldBase=" + oldBase);
-        System.err.println("size.width=" + width + ", size.height=" + height);
-        System.err.println("abuf.length=" + abuf.length + ", cbuf.length=" + cbuf.length);
-        System.err.println("*** done dumping debug information");
+      if (n > (bottom - top) + 1) n = (bottom - top) + 1;
+      if (n > l - top + 1) n = l - top + 1;
+      if (n < 0) n = 0;
+
+      int oldBase = screenBase;
+      int grow = maxBufSize - bufSize;
+      if (grow > n) grow = n;
+      int drop = n - grow;
+
+      if (grow > 0)
+        scrollMarker += (drop > 0 ? drop : n);
+
+      // lines above the scroll region stay put while the region scrolls
+      // into the scrollback buffer, so move the region to the top first
+      if (top > 0 && n > 0) {
+        saveLines(oldBase + top, n);
+        for (int i = top - 1; i >= 0; i--)
+          copyLine(oldBase + i, oldBase + i + n);
+        restoreLines(oldBase, n);
       }
-    }
 
-    // this is a little helper to mark the scrolling
-    scrollMarker -= n;
+      // now scroll the whole screen by rotating the ring
+      ensureRows(bufSize + grow);
+      bufSize += grow;
+      ringBase += drop;
+      if (ringBase >= ringRows)
+        ringBase -= ringRows;
+      screenBase = bufSize - height;
+      windowBase += grow;
 
+      // lines below the insertion point must not scroll, move them back
+      for (int i = height - 1; i > l; i--)
+        copyLine(screenBase + i - n, screenBase + i);
 
-    for (int i = 0; i < n; i++) {
-      cbuf[(newScreenBase + l) + (scrollDown ? i : -i)] = new char[width];
-      Arrays.fill(cbuf[(newScreenBase + l) + (scrollDown ? i : -i)], ' ');
-      abuf[(newScreenBase + l) + (scrollDown ? i : -i)] = new int[width];
-    }
+      for (int i = 0; i < n; i++)
+        clearLine(screenBase + l - i, 0);
 
-    charArray = cbuf;
-    charAttributes = abuf;
-    screenBase = newScreenBase;
-    windowBase = newWindowBase;
-    bufSize = newBufSize;
+      // this is a little helper to mark the scrolling
+      scrollMarker -= n;
+    }
 
     if (scrollDown)
       markLine(l, bottom - l + 1);
@@ -494,21 +449,10 @@ public class VDUBuffer {
             (l < topMargin?topMargin:bottomMargin + 1));
     int numRows = bottom - l - 1;
 
-    char[] discardedChars = charArray[screenBase + l];
-    int[] discardedAttributes = charAttributes[screenBase + l];
+    for (int i = 0; i < numRows; i++)
+      copyLine(screenBase + l + i + 1, screenBase + l + i);
 
-    if (numRows > 0) {
-	    System.arraycopy(charArray, screenBase + l + 1,
-	                     charArray, screenBase + l, numRows);
-	    System.arraycopy(charAttributes, screenBase + l + 1,
-	                     charAttributes, screenBase + l, numRows);
-    }
-
-    int newBottomRow = screenBase + bottom - 1;
-    charArray[newBottomRow] = discardedChars;
-    charAttributes[newBottomRow] = discardedAttributes;
-    Arrays.fill(charArray[newBottomRow], ' ');
-    Arrays.fill(charAttributes[newBottomRow], 0);
+    clearLine(screenBase + bottom - 1, 0);
 
     markLine(l, bottom - l);
   }
@@ -529,8 +473,9 @@ public class VDUBuffer {
     int endColumn = c + w;
     int targetRow = screenBase + l;
     for (int i = 0; i < h && l + i < height; i++) {
-      Arrays.fill(charAttributes[targetRow], c, endColumn, curAttr);
-      Arrays.fill(charArray[targetRow], c, endColumn, ' ');
+      int offset = getLineOffset(targetRow);
+      Arrays.fill(attrs, offset + c, offset + endColumn, curAttr);
+      Arrays.fill(text, offset + c, offset + endColumn, ' ');
       targetRow++;
     }
     markLine(l, h);
@@ -685,16 +630,10 @@ public class VDUBuffer {
   public void setBufferSize(int amount) {
     if (amount < height) amount = height;
     if (amount < maxBufSize) {
-      char cbuf[][] = new char[amount][width];
-      int abuf[][] = new int[amount][width];
       int copyStart = bufSize - amount < 0 ? 0 : bufSize - amount;
       int copyCount = bufSize - amount < 0 ? bufSize : amount;
-      if (charArray != null)
-        System.arraycopy(charArray, copyStart, cbuf, 0, copyCount);
-      if (charAttributes != null)
-        System.arraycopy(charAttributes, copyStart, abuf, 0, copyCount);
-      charArray = cbuf;
-      charAttributes = abuf;
+      if (text != null)
+        reallocate(copyStart, copyCount, copyCount, width);
       bufSize = copyCount;
       screenBase = bufSize - height;
       windowBase = screenBase;
@@ -728,8 +667,6 @@ public class VDUBuffer {
    * @param h of the screen
    */
   public void setScreenSize(int w, int h, boolean broadcast) {
-    char cbuf[][];
-    int abuf[][];
     int maxSize = bufSize;
 
     if (w < 1 || h < 1) return;
@@ -753,26 +690,17 @@ public class VDUBuffer {
       screenBase = bufSize - h;
 
 
-    cbuf = new char[bufSize][w];
-    abuf = new int[bufSize][w];
-
-
-    for (int i = 0; i < bufSize; i++) {
-      Arrays.fill(cbuf[i], ' ');
-    }
-
     if (bufSize < maxSize)
       maxSize = bufSize;
 
-    int rowLength;
-    if (charArray != null && charAttributes != null) {
-      for (int i = 0; i < maxSize && charArray[i] != null; i++) {
-        rowLength = charArray[i].length;
-        System.arraycopy(charArray[i], 0, cbuf[i], 0,
-                         w < rowLength ? w : rowLength);
-        System.arraycopy(charAttributes[i], 0, abuf[i], 0,
-                         w < rowLength ? w : rowLength);
-      }
+    if (text != null)
+      reallocate(0, maxSize, bufSize, w);
+    else {
+      text = new char[bufSize * w];
+      attrs = new int[bufSize * w];
+      Arrays.fill(text, ' ');
+      ringRows = bufSize;
+      ringBase = 0;
     }
 
     int C = getCursorColumn();
@@ -789,8 +717,6 @@ public class VDUBuffer {
 
     setCursorPosition(C, R);
 
-    charArray = cbuf;
-    charAttributes = abuf;
     width = w;
     height = h;
     topMargin = 0;
@@ -817,6 +743,122 @@ public class VDUBuffer {
     return width;
   }
 
+  /**
+   * Get the offset of a buffer line within the arrays returned by
+   * getCharData() and getAttributeData(). The width cells of the line
+   * follow the offset contiguously.
+   * @param line buffer line, counting from the top of the scrollback
+   * @see #getCharData
+   * @see #getAttributeData
+   */
+  public int getLineOffset(int line) {
+    int physical = ringBase + line;
+    if (physical >= ringRows)
+      physical -= ringRows;
+    return physical * width;
+  }
+
+  /**
+   * Get the array holding the characters of all buffer lines. The array
+   * may be replaced when the buffer grows or the screen is resized.
+   * @see #getLineOffset
+   */
+  public char[] getCharData() {
+    return text;
+  }
+
+  /**
+   * Get the array holding the attributes of all buffer lines. The array
+   * may be replaced when the buffer grows or the screen is resized.
+   * @see #getLineOffset
+   */
+  public int[] getAttributeData() {
+    return attrs;
+  }
+
+  /**
+   * Copy the contents of one buffer line over another.
+   */
+  private void copyLine(int from, int to) {
+    int src = getLineOffset(from);
+    int dst = getLineOffset(to);
+    System.arraycopy(text, src, text, dst, width);
+    System.arraycopy(attrs, src, attrs, dst, width);
+  }
+
+  /**
+   * Fill a buffer line with blanks of the given attribute.
+   */
+  private void clearLine(int line, int attributes) {
+    int offset = getLineOffset(line);
+    Arrays.fill(text, offset, offset + width, ' ');
+    Arrays.fill(attrs, offset, offset + width, attributes);
+  }
+
+  /**
+   * Save n consecutive buffer lines into the scratch area.
+   */
+  private void saveLines(int line, int n) {
+    if (scratchText == null || scratchText.length < n * width) {
+      scratchText = new char[n * width];
+      scratchAttrs = new int[n * width];
+    }
+    for (int i = 0; i < n; i++) {
+      int src = getLineOffset(line + i);
+      System.arraycopy(text, src, scratchText, i * width, width);
+      System.arraycopy(attrs, src, scratchAttrs, i * width, width);
+    }
+  }
+
+  /**
+   * Restore n lines previously saved with saveLines() to a new position.
+   */
+  private void restoreLines(int line, int n) {
+    for (int i = 0; i < n; i++) {
+      int dst = getLineOffset(line + i);
+      System.arraycopy(scratchText, i * width, text, dst, width);
+      System.arraycopy(scratchAttrs, i * width, attrs, dst, width);
+    }
+  }
+
+  /**
+   * Make sure the ring has room for at least the given amount of lines,
+   * doubling its size up to maxBufSize.
+   */
+  private void ensureRows(int rows) {
+    if (rows <= ringRows)
+      return;
+    int newRows = ringRows * 2;
+    if (newRows > maxBufSize)
+      newRows = maxBufSize;
+    if (newRows < rows)
+      newRows = rows;
+    reallocate(0, bufSize, newRows, width);
+  }
+
+  /**
+   * Move count buffer lines starting at first into freshly allocated
+   * arrays of the given size, starting at physical line 0. Lines are cut
+   * or padded with blanks to the new width.
+   */
+  private void reallocate(int first, int count, int rows, int w) {
+    char[] newText = new char[rows * w];
+    int[] newAttrs = new int[rows * w];
+    Arrays.fill(newText, ' ');
+
+    int length = w < width ? w : width;
+    for (int i = 0; i < count; i++) {
+      int src = getLineOffset(first + i);
+      System.arraycopy(text, src, newText, i * w, length);
+      System.arraycopy(attrs, src, newAttrs, i * w, length);
+    }
+
+    text = newText;
+    attrs = newAttrs;
+    ringRows = rows;
+    ringBase = 0;
+  }
+
   /**
    * Mark lines to be updated with redraw().
    * @param l starting line
@@ -100,6 +100,21 @@ public abstract class vt320 extends VDUBuffer implements VDUInput {
             putChar((char) lastChar, isWide, false);
           lastChar = c;
           isWide = false;
+
+          // Write plain printable runs straight into the buffer
+          if (c >= 0x20 && c < 0x7F && isPlainState()) {
+            int end = i + 1;
+            while (end < len && s[start + end] >= 0x20 && s[start + end] < 0x7F)
+              end++;
+            // keep the last character back in case a combining mark follows
+            if (end < len && s[start + end] > 0x7F)
+              end--;
+            if (end > i) {
+              putPlainRun(s, start + i, end - i);
+              lastChar = -1;
+              i = end - 1;
+            }
+          }
         } else if (!Character.isLowSurrogate(c) && !Character.isHighSurrogate(c)) {
           if (Character.getType(c) == Character.NON_SPACING_MARK) {
             if (lastChar != -1) {
@@ -606,6 +621,7 @@ public void setScreenSize(int c, int r, boolean broadcast) {
   boolean numlock = false;
   int mouserpt = 0;
   byte mousebut = 0;
+  boolean bracketedPaste = false;
 
   boolean useibmcharset = false;
 
@@ -1518,6 +1534,68 @@ public void setScreenSize(int c, int r, boolean broadcast) {
     if (R > maxr) R = maxr;
   }
 
+  /**
+   * Check whether printable ASCII characters would currently be put on the
+   * screen as they are, without any charset mapping or insertion.
+   */
+  private boolean isPlainState() {
+    return term_state == TSTATE_DATA && !useibmcharset && isAsciiGL()
+      && insertmode == 0 && onegl < 0 && wraparound;
+  }
+
+  /**
+   * Check whether GL maps printable ASCII to itself. usedcharsets stays set
+   * once any charset was designated (ncurses sends ESC ( B all the time), so
+   * look at what GL actually holds; putChar() leaves 'A' and 'B' alone.
+   */
+  private boolean isAsciiGL() {
+    if (!usedcharsets)
+      return true;
+    char g = gx[gl];
+    return g == 'B' || g == 'A';
+  }
+
+  /**
+   * Put a run of printable ASCII characters at the cursor position, as
+   * putChar() would do for each of them in the plain data state, wrapping
+   * and scrolling as needed.
+   * @param s array holding the characters
+   * @param start offset of the first character in s
+   * @param len number of characters to put
+   */
+  private void putPlainRun(char[] s, int start, int len) {
+    int rows = this.height;
+    int columns = this.width;
+
+    lastwaslf = 0;
+    while (len > 0) {
+      if (C >= columns) {
+        int bot = rows;
+
+        // If we're in the scroll region, check against the bottom margin
+        if (R <= getBottomMargin() && R >= getTopMargin())
+          bot = getBottomMargin() + 1;
+
+        if (R < bot - 1)
+          R++;
+        else {
+          if (debug > 3) debug("scrolling due to wrap at " + R);
+          insertLine(R, 1, SCROLL_UP);
+        }
+        C = 0;
+      }
+
+      int count = columns - C;
+      if (count > len)
+        count = len;
+
+      putChars(C, R, s, start, count, attributes);
+      C += count;
+      start += count;
+      len -= count;
+    }
+  }
+
   private void putChar(char c, boolean isWide, boolean doshowcursor) {
     int rows = this.height; //statusline
     int columns = this.width;
@@ -2201,6 +2279,9 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                 case 1003:
                   mouserpt = DCEvars[i];
                   break;
+                case 2004: /* bracketed paste */
+                  bracketedPaste = true;
+                  break;
 
                   /* unimplemented stuff, fall through */
                   /* 4  - scrolling mode, smooth */
@@ -2275,6 +2356,9 @@ public void setScreenSize(int c, int r, boolean broadcast) {
                 case 1003:
                   mouserpt = 0;
                   break;
+                case 2004: /* bracketed paste */
+                  bracketedPaste = false;
+                  break;
                 default:
                   debug("ESC [ ? " + DCEvars[0] + " l, unsupported.");
                   break;
@@ -3020,7 +3104,16 @@ public void setScreenSize(int c, int r, boolean broadcast) {
       display.resetColors();
 
     showCursor(true);
+    bracketedPaste = false;
     /*FIXME:*/
     term_state = TSTATE_DATA;
   }
+
+  /**
+   * Whether the remote side asked for pasted text to be framed with
+   * ESC [ 200 ~ and ESC [ 201 ~ (DECSET 2004).
+   */
+  public boolean isBracketedPasteMode() {
+    return bracketedPaste;
+  }
 }
@@ -672,7 +672,8 @@ public class ConsoleActivity extends Activity {
 
 				// pull string from clipboard and generate all events to force down
 				String clip = clipboard.getText().toString();
-				bridge.injectString(clip);
+				if (!bridge.pasteString(clip))
+					Toast.makeText(ConsoleActivity.this, R.string.console_paste_busy, Toast.LENGTH_LONG).show();
 
 				return true;
 			}
@@ -119,6 +119,11 @@ public class HostEditorActivity extends PreferenceActivity implements OnSharedPr
 				db.update(table, update, "_id = ?", new String[] { String.valueOf(id) });
 				db.close();
 
+				// a new hostname or port moves the host key
+				if (update.containsKey(HostDatabase.FIELD_HOST_HOSTNAME)
+						|| update.containsKey(HostDatabase.FIELD_HOST_PORT))
+					hostdb.invalidateKnownHosts();
+
 				// make sure we refresh the parent cached values
 				cacheValues();
 
@@ -0,0 +1,201 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedList;
+
+import org.connectbot.transport.AbsTransport;
+
+import android.util.Log;
+import de.mud.terminal.vt320;
+
+/**
+ * Sends injected text (pastes and post-login strings) to the transport from
+ * one writer thread per bridge, in order and in chunks of
+ * {@link #BUFFER_SIZE} bytes. Keystrokes written in between land between
+ * chunks. Each chunk is a blocking transport write, so for SSH the queue
+ * drains only as fast as the channel window allows; the number of queued
+ * characters is bounded so a stalled connection cannot pile up pastes. A
+ * string is always taken when nothing is waiting, however long it is.
+ */
+public class InjectQueue implements Runnable {
+	private static final String TAG = "ConnectBot.InjectQueue";
+
+	private static final int BUFFER_SIZE = 4096;
+
+	/** Most characters that may wait to be written, more are refused unless the queue is empty. */
+	public static final int MAX_QUEUED_CHARS = 1024 * 1024;
+
+	private static final String PASTE_START = "\033[200~";
+	private static final String PASTE_END = "\033[201~";
+
+	private final TerminalBridge bridge;
+	private final AbsTransport transport;
+	private final vt320 buffer;
+
+	private final LinkedList<String> queue = new LinkedList<String>();
+	private int queuedChars = 0;
+	private boolean closed = false;
+	private Thread writer = null;
+
+	/* only used by the writer thread */
+	private Charset currentCharset;
+	private CharsetEncoder encoder;
+	private final ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	public InjectQueue(TerminalBridge bridge, AbsTransport transport, vt320 buffer) {
+		this.bridge = bridge;
+		this.transport = transport;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Queue a string to be written. Returns right away.
+	 * @param string text to send
+	 * @param paste whether this is pasted text, which is framed as a
+	 *        bracketed paste if the remote side asked for it
+	 * @return false if the queue is closed, or the string does not fit
+	 *         behind what is still waiting
+	 */
+	public boolean add(String string, boolean paste) {
+		if (paste && buffer.isBracketedPasteMode())
+			// the text must not be able to end the paste early
+			string = PASTE_START + string.replace(PASTE_END, "") + PASTE_END;
+
+		synchronized (queue) {
+			if (closed)
+				return false;
+
+			if (queuedChars > 0 && queuedChars + string.length() > MAX_QUEUED_CHARS) {
+				Log.w(TAG, String.format("Refusing to queue %d characters, %d are still waiting",
+						string.length(), queuedChars));
+				return false;
+			}
+
+			queue.add(string);
+			queuedChars += string.length();
+
+			if (writer == null) {
+				writer = new Thread(this);
+				writer.setName("InjectQueue");
+				writer.setDaemon(true);
+				writer.start();
+			} else
+				queue.notify();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Drop everything still queued and stop the writer thread. A write that
+	 * is blocked on the transport ends once the transport is closed.
+	 */
+	public void close() {
+		synchronized (queue) {
+			closed = true;
+			queue.clear();
+			queuedChars = 0;
+			queue.notify();
+
+			if (writer != null)
+				writer.interrupt();
+		}
+	}
+
+	public void run() {
+		try {
+			while (true) {
+				String string;
+
+				synchronized (queue) {
+					while (queue.isEmpty() && !closed)
+						queue.wait();
+
+					if (closed)
+						return;
+
+					string = queue.removeFirst();
+				}
+
+				try {
+					write(string);
+				} catch (IOException e) {
+					Log.e(TAG, "Couldn't inject string to remote host: ", e);
+
+					// nothing more will get through
+					if (!transport.isConnected()) {
+						close();
+						return;
+					}
+				}
+
+				synchronized (queue) {
+					queuedChars = Math.max(0, queuedChars - string.length());
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.d(TAG, "Writer thread interrupted");
+		}
+	}
+
+	private void write(String string) throws IOException {
+		CharsetEncoder enc = getEncoder();
+		CharBuffer in = CharBuffer.wrap(string);
+
+		enc.reset();
+		byteBuffer.clear();
+
+		// surrogate pairs split by a full buffer are kept for the next round
+		while (enc.encode(in, byteBuffer, true).isOverflow())
+			flushBytes();
+
+		while (enc.flush(byteBuffer).isOverflow())
+			flushBytes();
+
+		flushBytes();
+		transport.flush();
+	}
+
+	private void flushBytes() throws IOException {
+		if (byteBuffer.position() > 0)
+			transport.write(byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.position());
+		byteBuffer.clear();
+	}
+
+	private CharsetEncoder getEncoder() {
+		Charset charset = bridge.getCharset();
+		if (charset == null || !charset.canEncode())
+			charset = Charset.defaultCharset();
+
+		if (charset != currentCharset || encoder == null) {
+			encoder = charset.newEncoder();
+			encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			encoder.onMalformedInput(CodingErrorAction.REPLACE);
+			currentCharset = charset;
+		}
+
+		return encoder;
+	}
+}
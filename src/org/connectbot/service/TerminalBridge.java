@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -32,6 +33,7 @@ import org.connectbot.bean.SelectionArea;
 import org.connectbot.transport.AbsTransport;
 import org.connectbot.transport.TransportFactory;
 import org.connectbot.util.HostDatabase;
+import org.connectbot.util.PreferenceConstants;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -77,6 +79,7 @@ public class TerminalBridge implements VDUDisplay {
 	final Paint defaultPaint;
 
 	private Relay relay;
+	private InjectQueue injectQueue;
 
 	private final String emulation;
 	private final int scrollback;
@@ -116,6 +119,40 @@ public class TerminalBridge implements VDUDisplay {
 	 */
 	private boolean fullRedraw = false;
 
+	/**
+	 * Cached drawing runs for each visible line. Every run takes up
+	 * RUN_FIELDS consecutive ints in its line's array.
+	 */
+	private static final int RUN_START = 0;
+	private static final int RUN_LENGTH = 1;
+	private static final int RUN_CELLS = 2;
+	private static final int RUN_FG = 3;
+	private static final int RUN_BG = 4;
+	private static final int RUN_UNDERLINE = 5;
+	private static final int RUN_INVISIBLE = 6;
+	private static final int RUN_FIELDS = 7;
+
+	private int[][] rowRuns = null;
+	private int[] rowRunCount = null;
+	private volatile boolean rowRunsValid = false;
+
+	/**
+	 * Copy of the visible lines taken while holding the buffer lock, so that
+	 * painting can happen without blocking the relay thread.
+	 */
+	private char[] snapshotChars = null;
+	private int[] snapshotAttrs = null;
+	private boolean[] snapshotChanged = null;
+	private int snapshotWidth = -1;
+	private int snapshotHeight = -1;
+	private int snapshotWindowBase = -1;
+
+	/**
+	 * Set while an invalidate has been posted to our parent but onDraw() has
+	 * not picked it up yet, so bursts of output only cause one repaint.
+	 */
+	private final AtomicBoolean redrawPending = new AtomicBoolean(false);
+
 	public PromptHelper promptHelper;
 
 	protected BridgeDisconnectedListener disconnectListener = null;
@@ -262,6 +299,10 @@ public class TerminalBridge implements VDUDisplay {
 		transport.setCompression(host.getCompression());
 		transport.setUseAuthAgent(host.getUseAuthAgent());
 		transport.setEmulation(emulation);
+		transport.setShowStderr(manager.prefs.getBoolean(PreferenceConstants.SHOW_STDERR, false));
+		transport.setShowConnectTiming(manager.prefs.getBoolean(PreferenceConstants.CONNECT_TIMING, false));
+
+		injectQueue = new InjectQueue(this, transport, (vt320) buffer);
 
 		if (transport.canForwardPorts()) {
 			for (PortForwardBean portForward : manager.hostdb.getPortForwardsForHost(host))
@@ -296,6 +337,8 @@ public class TerminalBridge implements VDUDisplay {
 	 * @return charset in use by bridge
 	 */
 	public Charset getCharset() {
+		if (relay == null)
+			return null;
 		return relay.getCharset();
 	}
 
@@ -328,24 +371,33 @@ public class TerminalBridge implements VDUDisplay {
 	}
 
 	/**
-	 * Inject a specific string into this terminal. Used for post-login strings
-	 * and pasting clipboard.
+	 * Inject a specific string into this terminal. Used for post-login strings.
+	 * Returns right away, the string is written in the background.
 	 */
 	public void injectString(final String string) {
-		if (string == null || string.length() == 0)
-			return;
+		injectString(string, false);
+	}
 
-		Thread injectStringThread = new Thread(new Runnable() {
-			public void run() {
-				try {
-					transport.write(string.getBytes(host.getEncoding()));
-				} catch (Exception e) {
-					Log.e(TAG, "Couldn't inject string to remote host: ", e);
-				}
-			}
-		});
-		injectStringThread.setName("InjectString");
-		injectStringThread.start();
+	/**
+	 * Paste a string into this terminal, as a bracketed paste if the remote
+	 * side asked for that. Returns right away.
+	 * @return false if the paste was refused because an earlier one is still
+	 *         being sent
+	 */
+	public boolean pasteString(final String string) {
+		return injectString(string, true);
+	}
+
+	private boolean injectString(String string, boolean paste) {
+		if (string == null || string.length() == 0 || injectQueue == null)
+			return true;
+
+		if (!injectQueue.add(string, paste)) {
+			Log.w(TAG, "Couldn't queue string for remote host");
+			return false;
+		}
+
+		return true;
 	}
 
 	/**
@@ -411,6 +463,9 @@ public class TerminalBridge implements VDUDisplay {
 		// Cancel any pending prompts.
 		promptHelper.cancelPrompt();
 
+		if (injectQueue != null)
+			injectQueue.close();
+
 		// disconnection request hangs if we havent really connected to a host yet
 		// temporary fix is to just spawn disconnection into a thread
 		Thread disconnectThread = new Thread(new Runnable() {
@@ -536,6 +591,7 @@ public class TerminalBridge implements VDUDisplay {
 		}
 
 		this.parent = parent;
+		redrawPending.set(false);
 		final int width = parent.getWidth();
 		final int height = parent.getHeight();
 
@@ -627,6 +683,7 @@ public class TerminalBridge implements VDUDisplay {
 	 */
 	public synchronized void parentDestroyed() {
 		parent = null;
+		redrawPending.set(false);
 		discardBitmap();
 	}
 
@@ -644,111 +701,197 @@ public class TerminalBridge implements VDUDisplay {
 		return buffer;
 	}
 
-	public void onDraw() {
+	/**
+	 * Resolve the foreground and background colors for a set of character
+	 * attributes and record them in the given run slot.
+	 */
+	private void resolveRunColors(int[] runs, int offset, int currAttr) {
 		int fg, bg;
-		synchronized (buffer) {
-			boolean entireDirty = buffer.update[0] || fullRedraw;
-			boolean isWideCharacter = false;
 
-			// walk through all lines in the buffer
-			for(int l = 0; l < buffer.height; l++) {
+		{
+			int fgcolor = defaultFg;
 
-				// check if this line is dirty and needs to be repainted
-				// also check for entire-buffer dirty flags
-				if (!entireDirty && !buffer.update[l + 1]) continue;
+			// check if foreground color attribute is set
+			if ((currAttr & VDUBuffer.COLOR_FG) != 0)
+				fgcolor = ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
 
-				// reset dirty flag for this line
-				buffer.update[l + 1] = false;
+			if (fgcolor < 8 && (currAttr & VDUBuffer.BOLD) != 0)
+				fg = color[fgcolor + 8];
+			else
+				fg = color[fgcolor];
+		}
 
-				// walk through all characters in this line
-				for (int c = 0; c < buffer.width; c++) {
-					int addr = 0;
-					int currAttr = buffer.charAttributes[buffer.windowBase + l][c];
+		// check if background color attribute is set
+		if ((currAttr & VDUBuffer.COLOR_BG) != 0)
+			bg = color[((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1];
+		else
+			bg = color[defaultBg];
 
-					{
-						int fgcolor = defaultFg;
+		// support character inversion by swapping background and foreground color
+		if ((currAttr & VDUBuffer.INVERT) != 0) {
+			int swapc = bg;
+			bg = fg;
+			fg = swapc;
+		}
 
-						// check if foreground color attribute is set
-						if ((currAttr & VDUBuffer.COLOR_FG) != 0)
-							fgcolor = ((currAttr & VDUBuffer.COLOR_FG) >> VDUBuffer.COLOR_FG_SHIFT) - 1;
+		runs[offset + RUN_FG] = fg;
+		runs[offset + RUN_BG] = bg;
+	}
 
-						if (fgcolor < 8 && (currAttr & VDUBuffer.BOLD) != 0)
-							fg = color[fgcolor + 8];
-						else
-							fg = color[fgcolor];
-					}
+	/**
+	 * Rebuild the cached list of runs for one visible line. A run is a
+	 * stretch of characters sharing the same attributes, or a single wide
+	 * character occupying two cells.
+	 */
+	private void buildRowRuns(int l) {
+		final int width = snapshotWidth;
+		final int[] attrs = snapshotAttrs;
+		final int base = l * width;
+		final int[] runs = rowRuns[l];
+		int count = 0;
+
+		for (int c = 0; c < width; count++) {
+			int currAttr = attrs[base + c];
+			int offset = count * RUN_FIELDS;
+			int addr = 1;
+			int cells;
+
+			if ((currAttr & VDUBuffer.FULLWIDTH) != 0) {
+				cells = 2;
+			} else {
+				// determine the amount of continuous characters with the same settings
+				while (c + addr < width && attrs[base + c + addr] == currAttr)
+					addr++;
+				cells = addr;
+			}
 
-					// check if background color attribute is set
-					if ((currAttr & VDUBuffer.COLOR_BG) != 0)
-						bg = color[((currAttr & VDUBuffer.COLOR_BG) >> VDUBuffer.COLOR_BG_SHIFT) - 1];
-					else
-						bg = color[defaultBg];
-
-					// support character inversion by swapping background and foreground color
-					if ((currAttr & VDUBuffer.INVERT) != 0) {
-						int swapc = bg;
-						bg = fg;
-						fg = swapc;
-					}
+			runs[offset + RUN_START] = c;
+			runs[offset + RUN_LENGTH] = addr;
+			runs[offset + RUN_CELLS] = cells;
+			runs[offset + RUN_UNDERLINE] = (currAttr & VDUBuffer.UNDERLINE) != 0 ? 1 : 0;
+			runs[offset + RUN_INVISIBLE] = (currAttr & VDUBuffer.INVISIBLE) != 0 ? 1 : 0;
+			resolveRunColors(runs, offset, currAttr);
 
-					// set underlined attributes if requested
-					defaultPaint.setUnderlineText((currAttr & VDUBuffer.UNDERLINE) != 0);
+			// advance to the next text block with different characteristics
+			c += cells;
+		}
 
-					isWideCharacter = (currAttr & VDUBuffer.FULLWIDTH) != 0;
+		rowRunCount[l] = count;
+	}
 
-					if (isWideCharacter)
-						addr++;
-					else {
-						// determine the amount of continuous characters with the same settings and print them all at once
-						while(c + addr < buffer.width
-								&& buffer.charAttributes[buffer.windowBase + l][c + addr] == currAttr) {
-							addr++;
-						}
-					}
+	/**
+	 * Paint one visible line from its cached runs: a single pass of
+	 * background rectangles followed by one drawText per visible run.
+	 */
+	private void drawRow(int l) {
+		final int[] runs = rowRuns[l];
+		final int count = rowRunCount[l];
+		final char[] chars = snapshotChars;
+		final int base = l * snapshotWidth;
+		final int top = l * charHeight;
+		final int bottom = top + charHeight;
+
+		// keep glyph overhang from bleeding into neighbouring lines
+		canvas.save(Canvas.CLIP_SAVE_FLAG);
+		canvas.clipRect(0, top, snapshotWidth * charWidth, bottom);
+
+		// clear this line with the background colors of each run
+		for (int i = 0, offset = 0; i < count; i++, offset += RUN_FIELDS) {
+			int left = runs[offset + RUN_START] * charWidth;
+			defaultPaint.setColor(runs[offset + RUN_BG]);
+			canvas.drawRect(left, top, left + runs[offset + RUN_CELLS] * charWidth,
+					bottom, defaultPaint);
+		}
 
-					// Save the current clip region
-					canvas.save(Canvas.CLIP_SAVE_FLAG);
-
-					// clear this dirty area with background color
-					defaultPaint.setColor(bg);
-					if (isWideCharacter) {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + 2) * charWidth,
-								(l + 1) * charHeight);
-					} else {
-						canvas.clipRect(c * charWidth,
-								l * charHeight,
-								(c + addr) * charWidth,
-								(l + 1) * charHeight);
-					}
-					canvas.drawPaint(defaultPaint);
-
-					// write the text string starting at 'c' for 'addr' number of characters
-					defaultPaint.setColor(fg);
-					if((currAttr & VDUBuffer.INVISIBLE) == 0)
-						canvas.drawText(buffer.charArray[buffer.windowBase + l], c,
-							addr, c * charWidth, (l * charHeight) - charTop,
-							defaultPaint);
-
-					// Restore the previous clip region
-					canvas.restore();
-
-					// advance to the next text block with different characteristics
-					c += addr - 1;
-					if (isWideCharacter)
-						c++;
-				}
+		// write the text of each run on top of the backgrounds
+		for (int i = 0, offset = 0; i < count; i++, offset += RUN_FIELDS) {
+			if (runs[offset + RUN_INVISIBLE] != 0)
+				continue;
+
+			int start = runs[offset + RUN_START];
+			defaultPaint.setColor(runs[offset + RUN_FG]);
+			defaultPaint.setUnderlineText(runs[offset + RUN_UNDERLINE] != 0);
+			canvas.drawText(chars, base + start, runs[offset + RUN_LENGTH],
+					start * charWidth, top - charTop, defaultPaint);
+		}
+
+		canvas.restore();
+	}
+
+	public void onDraw() {
+		// anything marked dirty from here on needs another invalidate
+		redrawPending.getAndSet(false);
+
+		boolean entireDirty = fullRedraw;
+
+		synchronized (buffer) {
+			final int width = buffer.width;
+			final int height = buffer.height;
+
+			// the snapshot and run cache must match the current screen dimensions
+			if (snapshotChars == null || snapshotWidth != width
+					|| snapshotHeight != height) {
+				snapshotChars = new char[width * height];
+				snapshotAttrs = new int[width * height];
+				snapshotChanged = new boolean[height];
+				snapshotWidth = width;
+				snapshotHeight = height;
+				snapshotWindowBase = -1;
+
+				rowRuns = new int[height][width * RUN_FIELDS];
+				rowRunCount = new int[height];
+				rowRunsValid = false;
+			}
+
+			boolean copyAll = buffer.update[0]
+					|| snapshotWindowBase != buffer.windowBase;
+			entireDirty |= copyAll;
+
+			// copy only the lines that changed since our last pass
+			final char[] chars = buffer.getCharData();
+			final int[] attrs = buffer.getAttributeData();
+			for (int l = 0; l < height; l++) {
+				boolean changed = copyAll || buffer.update[l + 1];
+				snapshotChanged[l] = changed;
+				if (!changed) continue;
+
+				int offset = buffer.getLineOffset(buffer.windowBase + l);
+				System.arraycopy(chars, offset, snapshotChars, l * width, width);
+				System.arraycopy(attrs, offset, snapshotAttrs, l * width, width);
+
+				// reset dirty flag for this line
+				buffer.update[l + 1] = false;
 			}
 
 			// reset entire-buffer flags
 			buffer.update[0] = false;
+			snapshotWindowBase = buffer.windowBase;
 		}
+
+		// only rebuild runs when the line contents or colors changed; after
+		// a color change every line has stale run colors, so repaint them all
+		boolean rebuildAll = !rowRunsValid;
+		rowRunsValid = true;
+		entireDirty |= rebuildAll;
+
+		// walk through all lines in the snapshot
+		for (int l = 0; l < snapshotHeight; l++) {
+
+			// check if this line is dirty and needs to be repainted
+			// also check for entire-buffer dirty flags
+			if (!entireDirty && !snapshotChanged[l]) continue;
+
+			if (rebuildAll || snapshotChanged[l])
+				buildRowRuns(l);
+
+			drawRow(l);
+		}
+
 		fullRedraw = false;
 	}
 
 	public void redraw() {
-		if (parent != null)
+		if (parent != null && !redrawPending.getAndSet(true))
 			parent.postInvalidate();
 	}
 
@@ -903,8 +1046,10 @@ public class TerminalBridge implements VDUDisplay {
 	 */
 	public void setColor(int index, int red, int green, int blue) {
 		// Don't allow the system colors to be overwritten for now. May violate specs.
-		if (index < color.length && index >= 16)
+		if (index < color.length && index >= 16) {
 			color[index] = 0xff000000 | red << 16 | green << 8 | blue;
+			rowRunsValid = false;
+		}
 	}
 
 	public final void resetColors() {
@@ -913,6 +1058,7 @@ public class TerminalBridge implements VDUDisplay {
 		defaultBg = defaults[1];
 
 		color = manager.hostdb.getColorsForScheme(HostDatabase.DEFAULT_COLOR_SCHEME);
+		rowRunsValid = false;
 	}
 
 	private static Pattern urlPattern = null;
@@ -955,9 +1101,12 @@ public class TerminalBridge implements VDUDisplay {
 		}
 
 		char[] visibleBuffer = new char[buffer.height * buffer.width];
-		for (int l = 0; l < buffer.height; l++)
-			System.arraycopy(buffer.charArray[buffer.windowBase + l], 0,
-					visibleBuffer, l * buffer.width, buffer.width);
+		synchronized (buffer) {
+			char[] chars = buffer.getCharData();
+			for (int l = 0; l < buffer.height; l++)
+				System.arraycopy(chars, buffer.getLineOffset(buffer.windowBase + l),
+						visibleBuffer, l * buffer.width, buffer.width);
+		}
 
 		Matcher urlMatcher = urlPattern.matcher(new String(visibleBuffer));
 		while (urlMatcher.find())
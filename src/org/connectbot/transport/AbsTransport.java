@@ -92,6 +92,20 @@ public abstract class AbsTransport {
 	 */
 	public abstract void write(byte[] buffer) throws IOException;
 
+	/**
+	 * Writes part of a buffer to the transport. See {@link #write(byte[])} for
+	 * behavior details. Transports should override this to avoid the copy.
+	 * @param buffer bytes to write to transport
+	 * @param offset where the bytes start in the buffer
+	 * @param length number of bytes to write
+	 * @throws IOException when there is a problem writing after connection
+	 */
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		byte[] part = new byte[length];
+		System.arraycopy(buffer, offset, part, 0, length);
+		write(part);
+	}
+
 	/**
 	 * Writes to the transport. See {@link #write(byte[])} for behavior details.
 	 * @param c character to write to the transport
@@ -136,6 +150,24 @@ public abstract class AbsTransport {
 		// do nothing
 	}
 
+	/**
+	 * Whether to display the standard error stream of the remote side, if the
+	 * protocol has one, in the terminal instead of discarding it.
+	 * @param showStderr
+	 */
+	public void setShowStderr(boolean showStderr) {
+		// do nothing
+	}
+
+	/**
+	 * Whether to print how long the steps of setting up the connection took,
+	 * if the protocol records that.
+	 * @param showConnectTiming
+	 */
+	public void setShowConnectTiming(boolean showConnectTiming) {
+		// do nothing
+	}
+
 	public void setEmulation(String emulation) {
 		this.emulation = emulation;
 	}
@@ -55,6 +55,8 @@ import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.ConnectionInfo;
 import com.trilead.ssh2.ConnectionMonitor;
+import com.trilead.ssh2.ConnectionTiming;
+import com.trilead.ssh2.ConnectionTimingListener;
 import com.trilead.ssh2.DynamicPortForwarder;
 import com.trilead.ssh2.InteractiveCallback;
 import com.trilead.ssh2.KnownHosts;
@@ -73,7 +75,7 @@ import com.trilead.ssh2.signature.RSASHA1Verify;
  * @author Kenny Root
  *
  */
-public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveCallback, AuthAgentCallback {
+public class SSH extends AbsTransport implements ConnectionMonitor, ConnectionTimingListener, InteractiveCallback, AuthAgentCallback {
 	public SSH() {
 		super();
 	}
@@ -117,6 +119,11 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private InputStream stdout;
 	private InputStream stderr;
 
+	private boolean showStderr = false;
+	private boolean showConnectTiming = false;
+	private boolean stderrFirst = false;
+	private final byte[] stderrDiscard = new byte[4096];
+
 	private static final int conditions = ChannelCondition.STDOUT_DATA
 		| ChannelCondition.STDERR_DATA
 		| ChannelCondition.CLOSED
@@ -137,7 +144,7 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		public boolean verifyServerHostKey(String hostname, int port,
 				String serverHostKeyAlgorithm, byte[] serverHostKey) throws IOException {
 
-			// read in all known hosts from hostdb
+			// known hosts from hostdb, kept in memory between connections
 			KnownHosts hosts = manager.hostdb.getKnownHosts();
 			Boolean result;
 
@@ -364,6 +371,11 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	private void finishConnection() {
 		authenticated = true;
 
+		ConnectionTiming timing = connection.getConnectionTiming();
+		if (showConnectTiming && timing != null)
+			bridge.outputLine(manager.res.getString(R.string.terminal_connect_timing,
+					timing.getElapsedMillis(), describePhases(timing)));
+
 		for (PortForwardBean portForward : portForwards) {
 			try {
 				enablePortForward(portForward);
@@ -405,6 +417,8 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 	public void connect() {
 		connection = new Connection(host.getHostname(), host.getPort());
 		connection.addConnectionMonitor(this);
+		if (showConnectTiming)
+			connection.addConnectionTimingListener(this);
 
 		try {
 			connection.setCompression(compression);
@@ -503,20 +517,34 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		if (session == null)
 			return 0;
 
+		// one wait for the whole batch, then take what both streams have
 		int newConditions = session.waitForCondition(conditions, 0);
 
-		if ((newConditions & ChannelCondition.STDOUT_DATA) != 0) {
-			bytesRead = stdout.read(buffer, start, len);
+		boolean hasStdout = (newConditions & ChannelCondition.STDOUT_DATA) != 0;
+		boolean hasStderr = (newConditions & ChannelCondition.STDERR_DATA) != 0;
+
+		if (hasStderr && !showStderr) {
+			drainStderr();
+			hasStderr = false;
 		}
 
-		if ((newConditions & ChannelCondition.STDERR_DATA) != 0) {
-			byte discard[] = new byte[256];
-			while (stderr.available() > 0) {
-				stderr.read(discard);
-			}
+		if (hasStdout && hasStderr) {
+			// take turns going first so a busy stream cannot starve the other
+			InputStream first = stderrFirst ? stderr : stdout;
+			InputStream second = stderrFirst ? stdout : stderr;
+			stderrFirst = !stderrFirst;
+
+			bytesRead = readSome(first, buffer, start, len);
+			if (bytesRead < len)
+				bytesRead += readSome(second, buffer, start + bytesRead, len - bytesRead);
+		} else if (hasStdout) {
+			bytesRead = readSome(stdout, buffer, start, len);
+		} else if (hasStderr) {
+			bytesRead = readSome(stderr, buffer, start, len);
 		}
 
-		if ((newConditions & ChannelCondition.EOF) != 0) {
+		// hand out the last data before reporting the end of the stream
+		if (bytesRead == 0 && (newConditions & ChannelCondition.EOF) != 0) {
 			onDisconnect();
 			throw new IOException("Remote end closed connection");
 		}
@@ -524,12 +552,30 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		return bytesRead;
 	}
 
+	private static int readSome(InputStream in, byte[] buffer, int start, int len) throws IOException {
+		int n = in.read(buffer, start, len);
+		return (n > 0) ? n : 0;
+	}
+
+	private void drainStderr() throws IOException {
+		while (stderr.available() > 0) {
+			if (stderr.read(stderrDiscard) < 0)
+				break;
+		}
+	}
+
 	@Override
 	public void write(byte[] buffer) throws IOException {
 		if (stdin != null)
 			stdin.write(buffer);
 	}
 
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		if (stdin != null)
+			stdin.write(buffer, offset, length);
+	}
+
 	@Override
 	public void write(int c) throws IOException {
 		if (stdin != null)
@@ -569,6 +615,32 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		onDisconnect();
 	}
 
+	public void phaseCompleted(ConnectionTiming timing, ConnectionTiming.Phase phase) {
+		Log.d(TAG, String.format("%s: %s", host.getHostname(), phase));
+	}
+
+	/**
+	 * Short form of the setup phases for the terminal, e.g.
+	 * "dns 12, tcp-connect 80, auth/publickey 210" (milliseconds).
+	 */
+	private static String describePhases(ConnectionTiming timing) {
+		StringBuilder sb = new StringBuilder();
+
+		for (ConnectionTiming.Phase phase : timing.getPhases()) {
+			if (sb.length() > 0)
+				sb.append(", ");
+
+			sb.append(phase.name);
+
+			if (ConnectionTiming.AUTH.equals(phase.name) || ConnectionTiming.DH_COMPUTE.equals(phase.name))
+				sb.append('/').append(phase.detail);
+
+			sb.append(' ').append(phase.getDurationMillis());
+		}
+
+		return sb.toString();
+	}
+
 	@Override
 	public boolean canForwardPorts() {
 		return true;
@@ -838,6 +910,16 @@ public class SSH extends AbsTransport implements ConnectionMonitor, InteractiveC
 		selection.put(HostDatabase.FIELD_HOST_USERNAME, uri.getUserInfo());
 	}
 
+	@Override
+	public void setShowStderr(boolean showStderr) {
+		this.showStderr = showStderr;
+	}
+
+	@Override
+	public void setShowConnectTiming(boolean showConnectTiming) {
+		this.showConnectTiming = showConnectTiming;
+	}
+
 	@Override
 	public void setCompression(boolean compression) {
 		this.compression = compression;
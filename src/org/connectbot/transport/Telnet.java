@@ -37,6 +37,9 @@ import org.connectbot.util.HostDatabase;
 import android.content.Context;
 import android.net.Uri;
 import android.util.Log;
+
+import com.trilead.ssh2.util.ConnectionRacer;
+
 import de.mud.telnet.TelnetProtocolHandler;
 
 /**
@@ -54,6 +57,7 @@ public class Telnet extends AbsTransport {
 
 	private TelnetProtocolHandler handler;
 	private Socket socket;
+	private final ConnectionRacer racer = new ConnectionRacer();
 
 	private InputStream is;
 	private OutputStream os;
@@ -126,7 +130,7 @@ public class Telnet extends AbsTransport {
 	@Override
 	public void connect() {
 		try {
-			socket = new Socket(host.getHostname(), host.getPort());
+			socket = racer.connect(host.getHostname(), host.getPort(), 0);
 
 			connected = true;
 
@@ -144,6 +148,7 @@ public class Telnet extends AbsTransport {
 	@Override
 	public void close() {
 		connected = false;
+		racer.cancel();
 		if (socket != null)
 			try {
 				socket.close();
@@ -175,30 +180,19 @@ public class Telnet extends AbsTransport {
 
 	@Override
 	public int read(byte[] buffer, int start, int len) throws IOException {
-		/* process all already read bytes */
-		int n = 0;
+		int n;
 
+		/* strip telnet commands in place; read again if that was all we got */
 		do {
-			n = handler.negotiate(buffer, start);
-			if (n > 0)
-				return n;
-		} while (n == 0);
-
-		while (n <= 0) {
-			do {
-				n = handler.negotiate(buffer, start);
-				if (n > 0)
-					return n;
-			} while (n == 0);
 			n = is.read(buffer, start, len);
 			if (n < 0) {
 				bridge.dispatchDisconnect(false);
 				throw new IOException("Remote end closed connection.");
 			}
 
-			handler.inputfeed(buffer, start, n);
-			n = handler.negotiate(buffer, start);
-		}
+			n = handler.filter(buffer, start, n);
+		} while (n == 0);
+
 		return n;
 	}
 
@@ -212,6 +206,16 @@ public class Telnet extends AbsTransport {
 		}
 	}
 
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		try {
+			if (os != null)
+				os.write(buffer, offset, length);
+		} catch (SocketException e) {
+			bridge.dispatchDisconnect(false);
+		}
+	}
+
 	@Override
 	public void write(int c) throws IOException {
 		try {
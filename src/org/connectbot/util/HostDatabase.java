@@ -136,6 +136,13 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 
 	public static final Object[] dbLock = new Object[0];
 
+	/*
+	 * Host keys of all hosts, shared by every HostDatabase instance. Built on
+	 * first use and kept up to date by the methods that change host keys,
+	 * hostnames or ports. Guarded by dbLock.
+	 */
+	private static KnownHosts knownHosts = null;
+
 	public HostDatabase(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 
@@ -286,6 +293,8 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 			SQLiteDatabase db = this.getWritableDatabase();
 
 			id = db.insert(TABLE_HOSTS, null, host.getValues());
+
+			reloadKnownHost(db, host.getHostname(), host.getPort());
 		}
 
 		host.setId(id);
@@ -325,6 +334,8 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 		synchronized (dbLock) {
 			SQLiteDatabase db = this.getWritableDatabase();
 			db.delete(TABLE_HOSTS, "_id = ?", new String[] { String.valueOf(host.getId()) });
+
+			reloadKnownHost(db, host.getHostname(), host.getPort());
 		}
 	}
 
@@ -509,50 +520,123 @@ public class HostDatabase extends RobustSQLiteOpenHelper {
 			db.update(TABLE_HOSTS, values,
 					FIELD_HOST_HOSTNAME + " = ? AND " + FIELD_HOST_PORT + " = ?",
 					new String[] { hostname, String.valueOf(port) });
+
+			reloadKnownHost(db, hostname, port);
+
 			Log.d(TAG, String.format("Finished saving hostkey information for '%s'", hostname));
 		}
 	}
 
 	/**
-	 * Build list of known hosts for Trilead library.
+	 * Known hosts for Trilead library. The list is read from the database once
+	 * and then updated along with it, so this is cheap to call on every
+	 * connection. Do not add keys to it directly, use saveKnownHost().
 	 * @return
 	 */
 	public KnownHosts getKnownHosts() {
-		KnownHosts known = new KnownHosts();
+		synchronized (dbLock) {
+			if (knownHosts == null) {
+				SQLiteDatabase db = this.getReadableDatabase();
+				KnownHosts known = new KnownHosts();
+
+				addKnownHosts(db, known, null, null);
+
+				knownHosts = known;
+			}
+
+			return knownHosts;
+		}
+	}
 
+	/**
+	 * Drop the cached known hosts so they are read from the database again
+	 * next time. For code that changes hostnames, ports or host keys with
+	 * its own SQL.
+	 */
+	public void invalidateKnownHosts() {
 		synchronized (dbLock) {
-			SQLiteDatabase db = this.getReadableDatabase();
-			Cursor c = db.query(TABLE_HOSTS, new String[] { FIELD_HOST_HOSTNAME,
-					FIELD_HOST_PORT, FIELD_HOST_HOSTKEYALGO, FIELD_HOST_HOSTKEY },
-					null, null, null, null, null);
-
-			if (c != null) {
-				int COL_HOSTNAME = c.getColumnIndexOrThrow(FIELD_HOST_HOSTNAME),
-					COL_PORT = c.getColumnIndexOrThrow(FIELD_HOST_PORT),
-					COL_HOSTKEYALGO = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEYALGO),
-					COL_HOSTKEY = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEY);
-
-				while (c.moveToNext()) {
-					String hostname = c.getString(COL_HOSTNAME),
-						hostkeyalgo = c.getString(COL_HOSTKEYALGO);
-					int port = c.getInt(COL_PORT);
-					byte[] hostkey = c.getBlob(COL_HOSTKEY);
-
-					if (hostkeyalgo == null || hostkeyalgo.length() == 0) continue;
-					if (hostkey == null || hostkey.length == 0) continue;
-
-					try {
-						known.addHostkey(new String[] { String.format("%s:%d", hostname, port) }, hostkeyalgo, hostkey);
-					} catch(Exception e) {
-						Log.e(TAG, "Problem while adding a known host from database", e);
-					}
-				}
+			knownHosts = null;
+		}
+	}
+
+	/**
+	 * Replace the cached keys of one hostname and port with what the
+	 * database has now, in one step so that a connection being verified
+	 * meanwhile never finds the host unknown. Must hold dbLock.
+	 */
+	private void reloadKnownHost(SQLiteDatabase db, String hostname, int port) {
+		if (knownHosts == null || hostname == null)
+			return;
 
-				c.close();
+		Cursor c = db.query(TABLE_HOSTS, new String[] { FIELD_HOST_HOSTKEYALGO, FIELD_HOST_HOSTKEY },
+				FIELD_HOST_HOSTNAME + " = ? AND " + FIELD_HOST_PORT + " = ?",
+				new String[] { hostname, String.valueOf(port) }, null, null, null);
+
+		if (c == null)
+			return;
+
+		List<String> algos = new LinkedList<String>();
+		List<byte[]> keys = new LinkedList<byte[]>();
+
+		final int COL_HOSTKEYALGO = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEYALGO),
+			COL_HOSTKEY = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEY);
+
+		while (c.moveToNext()) {
+			String hostkeyalgo = c.getString(COL_HOSTKEYALGO);
+			byte[] hostkey = c.getBlob(COL_HOSTKEY);
+
+			if (hostkeyalgo == null || hostkeyalgo.length() == 0) continue;
+			if (hostkey == null || hostkey.length == 0) continue;
+
+			algos.add(hostkeyalgo);
+			keys.add(hostkey);
+		}
+
+		c.close();
+
+		try {
+			knownHosts.replaceHostkeys(String.format("%s:%d", hostname, port),
+					algos.toArray(new String[algos.size()]), keys.toArray(new byte[keys.size()][]));
+		} catch (Exception e) {
+			// read everything again next time, skipping the bad key
+			Log.e(TAG, "Problem while replacing a known host from database", e);
+			knownHosts = null;
+		}
+	}
+
+	/**
+	 * Add the host keys of all matching hosts. Must hold dbLock.
+	 */
+	private void addKnownHosts(SQLiteDatabase db, KnownHosts known, String selection, String[] selectionArgs) {
+		Cursor c = db.query(TABLE_HOSTS, new String[] { FIELD_HOST_HOSTNAME,
+				FIELD_HOST_PORT, FIELD_HOST_HOSTKEYALGO, FIELD_HOST_HOSTKEY },
+				selection, selectionArgs, null, null, null);
+
+		if (c == null)
+			return;
+
+		int COL_HOSTNAME = c.getColumnIndexOrThrow(FIELD_HOST_HOSTNAME),
+			COL_PORT = c.getColumnIndexOrThrow(FIELD_HOST_PORT),
+			COL_HOSTKEYALGO = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEYALGO),
+			COL_HOSTKEY = c.getColumnIndexOrThrow(FIELD_HOST_HOSTKEY);
+
+		while (c.moveToNext()) {
+			String hostname = c.getString(COL_HOSTNAME),
+				hostkeyalgo = c.getString(COL_HOSTKEYALGO);
+			int port = c.getInt(COL_PORT);
+			byte[] hostkey = c.getBlob(COL_HOSTKEY);
+
+			if (hostkeyalgo == null || hostkeyalgo.length() == 0) continue;
+			if (hostkey == null || hostkey.length == 0) continue;
+
+			try {
+				known.addHostkey(new String[] { String.format("%s:%d", hostname, port) }, hostkeyalgo, hostkey);
+			} catch(Exception e) {
+				Log.e(TAG, "Problem while adding a known host from database", e);
 			}
 		}
 
-		return known;
+		c.close();
 	}
 
 	/**
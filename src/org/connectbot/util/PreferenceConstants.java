@@ -39,6 +39,10 @@ public class PreferenceConstants {
 
 	public static final String SCROLLBACK = "scrollback";
 
+	public static final String SHOW_STDERR = "showStderr";
+
+	public static final String CONNECT_TIMING = "connectTiming";
+
 	public static final String EMULATION = "emulation";
 
 	public static final String ROTATION = "rotation";
@@ -0,0 +1,292 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.trilead.ssh2.crypto.Base64;
+import com.trilead.ssh2.signature.RSAPublicKey;
+import com.trilead.ssh2.signature.RSASHA1Verify;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks KnownHosts lookups through each of its indexes: plain names,
+ * hashed names and wildcard or negated patterns.
+ * <p>
+ * Host names end in ".invalid" so that the fallback lookup by address of
+ * verifyHostkey() fails right away.
+ */
+public class KnownHostsTest extends AndroidTestCase {
+	private static final String RSA = "ssh-rsa";
+
+	private byte[] key1;
+	private byte[] key2;
+
+	private KnownHosts kh;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		key1 = rsaKey(1000003);
+		key2 = rsaKey(2000003);
+
+		kh = new KnownHosts();
+	}
+
+	public void testUnknownHost() throws Exception {
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("nowhere.invalid", RSA, key1));
+	}
+
+	public void testPlain() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid", "Beta.invalid" }, RSA, key1);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("ALPHA.invalid", RSA, key1));
+
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("gamma.invalid", RSA, key1));
+	}
+
+	public void testSeveralKeysForOneHost() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key2);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key2));
+	}
+
+	public void testHashed() throws Exception {
+		kh.addHostkey(new String[] { KnownHosts.createHashedHostname("alpha.invalid") }, RSA, key1);
+		kh.addHostkey(new String[] { KnownHosts.createHashedHostname("beta.invalid") }, RSA, key2);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key2));
+
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("gamma.invalid", RSA, key1));
+	}
+
+	public void testHashedSharingSalt() throws Exception {
+		// OpenSSH never does this, but the salt index has to cope with it
+		String alpha = KnownHosts.createHashedHostname("alpha.invalid");
+		String salt = alpha.substring(0, alpha.lastIndexOf('|') + 1);
+
+		String beta = hashWithSalt(salt, "beta.invalid");
+
+		kh.addHostkey(new String[] { alpha }, RSA, key1);
+		kh.addHostkey(new String[] { beta }, RSA, key2);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("beta.invalid", RSA, key1));
+	}
+
+	public void testMalformedHashIsIgnored() throws Exception {
+		kh.addHostkey(new String[] { "|1|notbase64!|x", "|2|abc|def", "alpha.invalid" }, RSA, key1);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("beta.invalid", RSA, key1));
+	}
+
+	public void testWildcard() throws Exception {
+		kh.addHostkey(new String[] { "*.example.invalid" }, RSA, key1);
+		kh.addHostkey(new String[] { "host?.invalid" }, RSA, key2);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("www.example.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("A.B.Example.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("example.invalid", RSA, key1));
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("host1.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("hostx.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("host12.invalid", RSA, key2));
+	}
+
+	public void testNegated() throws Exception {
+		String hashedBad = KnownHosts.createHashedHostname("worse.example.invalid");
+
+		kh.addHostkey(new String[] { "*.example.invalid", "!bad.example.invalid", "!" + hashedBad }, RSA, key1);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("good.example.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("bad.example.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("worse.example.invalid", RSA, key1));
+	}
+
+	public void testMixedPatterns() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid", KnownHosts.createHashedHostname("beta.invalid") }, RSA, key1);
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key1));
+	}
+
+	public void testKnownHostsData() throws Exception {
+		String b64key1 = new String(Base64.encode(key1));
+		String b64key2 = new String(Base64.encode(key2));
+
+		String data = "# comment\n"
+				+ "alpha.invalid,beta.invalid " + RSA + " " + b64key1 + "\n"
+				+ "\n"
+				+ KnownHosts.createHashedHostname("gamma.invalid") + " " + RSA + " " + b64key2 + " comment\n"
+				+ "*.delta.invalid " + RSA + " " + b64key2 + "\n";
+
+		kh.addHostkeys(data.toCharArray());
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("gamma.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("x.delta.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key2));
+	}
+
+	public void testRemoveHostkeys() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+		kh.addHostkey(new String[] { "beta.invalid" }, RSA, key1);
+
+		kh.removeHostkeys("ALPHA.invalid");
+
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key1));
+
+		// replacing a changed key
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key2);
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key1));
+	}
+
+	public void testRemoveHostkeysKeepsPatterns() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+		kh.addHostkey(new String[] { KnownHosts.createHashedHostname("alpha.invalid") }, RSA, key2);
+		kh.addHostkey(new String[] { "alpha.*" }, RSA, key2);
+
+		kh.removeHostkeys("alpha.invalid");
+
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key2));
+	}
+
+	public void testReplaceHostkeys() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+		kh.addHostkey(new String[] { "beta.invalid" }, RSA, key1);
+
+		kh.replaceHostkeys("ALPHA.invalid", new String[] { RSA }, new byte[][] { key2 });
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("alpha.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("beta.invalid", RSA, key1));
+
+		kh.replaceHostkeys("alpha.invalid", new String[0], new byte[0][]);
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("alpha.invalid", RSA, key2));
+	}
+
+	public void testReplaceHostkeysWithBadKey() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+
+		try {
+			kh.replaceHostkeys("alpha.invalid", new String[] { RSA, "ssh-foo" }, new byte[][] { key2, key2 });
+			fail("bad key accepted");
+		} catch (IOException expected) {
+		}
+
+		// the old key is still there
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("alpha.invalid", RSA, key1));
+	}
+
+	/**
+	 * Replaces the key of a host over and over while another thread verifies
+	 * it. The host must never look unknown.
+	 */
+	public void testReplaceHostkeysIsAtomic() throws Exception {
+		kh.addHostkey(new String[] { "alpha.invalid" }, RSA, key1);
+
+		final boolean[] stop = new boolean[1];
+		final int[] unknown = new int[1];
+
+		Thread verifier = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						synchronized (stop) {
+							if (stop[0])
+								return;
+						}
+
+						if (kh.verifyHostkey("alpha.invalid", RSA, key1) == KnownHosts.HOSTKEY_IS_NEW) {
+							synchronized (stop) {
+								unknown[0]++;
+							}
+						}
+					}
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+		verifier.start();
+
+		for (int i = 0; i < 20000; i++)
+			kh.replaceHostkeys("alpha.invalid", new String[] { RSA }, new byte[][] { key1 });
+
+		synchronized (stop) {
+			stop[0] = true;
+		}
+		verifier.join(5000);
+
+		assertEquals("host looked unknown while its key was replaced", 0, unknown[0]);
+	}
+
+	public void testManyHosts() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			kh.addHostkey(new String[] { "host" + i + ".invalid" }, RSA, key1);
+			kh.addHostkey(new String[] { KnownHosts.createHashedHostname("hashed" + i + ".invalid") }, RSA, key2);
+		}
+
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("host499.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_OK, kh.verifyHostkey("hashed0.invalid", RSA, key2));
+		assertEquals(KnownHosts.HOSTKEY_HAS_CHANGED, kh.verifyHostkey("hashed250.invalid", RSA, key1));
+		assertEquals(KnownHosts.HOSTKEY_IS_NEW, kh.verifyHostkey("host500.invalid", RSA, key1));
+	}
+
+	private static byte[] rsaKey(int modulus) throws Exception {
+		return RSASHA1Verify.encodeSSHRSAPublicKey(new RSAPublicKey(BigInteger.valueOf(65537),
+				BigInteger.valueOf(modulus)));
+	}
+
+	/**
+	 * Hash a host name with the salt of another hashed name.
+	 *
+	 * @param prefix "|1|salt|"
+	 */
+	private static String hashWithSalt(String prefix, String hostname) throws Exception {
+		/*
+		 * createHashedHostname() always picks a new salt, so do the HMAC by
+		 * hand: HMAC-SHA1 keyed with the salt, over the host name.
+		 */
+		byte[] salt = Base64.decode(prefix.substring(3, prefix.length() - 1).toCharArray());
+
+		Mac mac = Mac.getInstance("HmacSHA1");
+		mac.init(new SecretKeySpec(salt, "HmacSHA1"));
+		byte[] hash = mac.doFinal(hostname.getBytes("ISO-8859-1"));
+
+		return prefix + new String(Base64.encode(hash));
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.trilead.ssh2.packets.TypesReader;
+import com.trilead.ssh2.packets.TypesWriter;
+import com.trilead.ssh2.sftp.ErrorCodes;
+import com.trilead.ssh2.sftp.Packet;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Runs the pipelined SFTP transfers against a server that answers each
+ * batch of requests it has received in reverse order, so the client has
+ * to match responses to requests by id.
+ */
+public class SFTPv3ClientTest extends AndroidTestCase {
+	/* not a multiple of the request size, so the last read is short */
+	private static final int FILE_SIZE = 20 * 32768 + 1234;
+
+	private FakeServer server;
+	private SFTPv3Client client;
+	private PipedOutputStream toServer;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		PipedInputStream serverIn = new PipedInputStream();
+		toServer = new PipedOutputStream(serverIn);
+
+		PipedInputStream clientIn = new PipedInputStream();
+		PipedOutputStream serverOut = new PipedOutputStream(clientIn);
+
+		server = new FakeServer(serverIn, serverOut);
+		server.start();
+
+		client = new SFTPv3Client(clientIn, toServer);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		toServer.close();
+		server.join(5000);
+
+		assertNull("server failed: " + server.error, server.error);
+
+		super.tearDown();
+	}
+
+	public void testGet() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+		server.setFile(data);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(FILE_SIZE, client.get("file", out));
+
+		assertTrue("downloaded data differs", Arrays.equals(data, out.toByteArray()));
+		assertTrue("server never answered out of order", server.reordered > 0);
+	}
+
+	public void testGetWithShortReads() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+		server.setFile(data);
+		server.maxData = 10000;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(FILE_SIZE, client.get("file", out));
+
+		assertTrue("downloaded data differs", Arrays.equals(data, out.toByteArray()));
+
+		// the rest of a short read is asked for, the read ahead is kept
+		assertEquals("data sent more than once", FILE_SIZE, server.dataSent);
+		assertTrue("server never answered out of order", server.reordered > 0);
+	}
+
+	public void testGetOneRequestAtATime() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+		server.setFile(data);
+
+		client.setRequestQueueDepth(1);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(FILE_SIZE, client.get("file", out));
+
+		assertTrue("downloaded data differs", Arrays.equals(data, out.toByteArray()));
+		assertEquals(0, server.reordered);
+	}
+
+	public void testPut() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+
+		assertEquals(FILE_SIZE, client.put(new ByteArrayInputStream(data), "file"));
+
+		assertTrue("uploaded data differs", Arrays.equals(data, server.getFile()));
+		assertTrue("server never answered out of order", server.reordered > 0);
+	}
+
+	public void testPipelinedWrite() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+
+		SFTPv3FileHandle handle = client.createFile("file");
+		client.write(handle, 0, data, 0, data.length);
+		client.closeFile(handle);
+
+		assertTrue("uploaded data differs", Arrays.equals(data, server.getFile()));
+		assertTrue("server never answered out of order", server.reordered > 0);
+	}
+
+	public void testCloseWithReadsInFlight() throws Exception {
+		byte[] data = pattern(FILE_SIZE);
+		server.setFile(data);
+
+		SFTPv3FileHandle handle = client.openFileRO("file");
+
+		InputStream in = new SFTPv3FileInputStream(handle);
+		byte[] buf = new byte[100];
+		assertEquals(100, in.read(buf, 0, buf.length));
+		in.close();
+
+		// the read ahead responses were dropped, plain calls still line up
+		byte[] plain = new byte[500];
+		assertEquals(500, client.read(handle, 1000, plain, 0, plain.length));
+
+		for (int i = 0; i < plain.length; i++)
+			assertEquals(data[1000 + i], plain[i]);
+
+		client.closeFile(handle);
+	}
+
+	private static byte[] pattern(int len) {
+		byte[] data = new byte[len];
+
+		for (int i = 0; i < len; i++)
+			data[i] = (byte) (i * 31 + (i >> 8));
+
+		return data;
+	}
+
+	/**
+	 * Serves a single file. Requests are collected as long as more are
+	 * already waiting; then the responses to all of them are sent, newest
+	 * first.
+	 */
+	private static class FakeServer extends Thread {
+		private final InputStream in;
+		private final OutputStream out;
+
+		private byte[] file = new byte[0];
+		private int size = 0;
+
+		volatile int maxData = 32768;
+		volatile int reordered = 0;
+		volatile long dataSent = 0;
+		volatile Throwable error;
+
+		FakeServer(InputStream in, OutputStream out) {
+			this.in = in;
+			this.out = out;
+			setDaemon(true);
+		}
+
+		synchronized void setFile(byte[] data) {
+			file = data.clone();
+			size = data.length;
+		}
+
+		synchronized byte[] getFile() {
+			byte[] data = new byte[size];
+			System.arraycopy(file, 0, data, 0, size);
+			return data;
+		}
+
+		@Override
+		public void run() {
+			List<byte[]> replies = new ArrayList<byte[]>();
+
+			try {
+				while (true) {
+					byte[] request = readMessage();
+
+					if (request == null)
+						return;
+
+					replies.add(handle(request));
+
+					if (in.available() == 0) {
+						// give the client a moment to send more
+						Thread.sleep(20);
+
+						if (in.available() == 0) {
+							if (replies.size() > 1)
+								reordered += replies.size() - 1;
+
+							for (int i = replies.size() - 1; i >= 0; i--)
+								writeMessage(replies.get(i));
+
+							out.flush();
+							replies.clear();
+						}
+					}
+				}
+			} catch (Throwable t) {
+				error = t;
+			} finally {
+				try {
+					out.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		private synchronized byte[] handle(byte[] request) throws IOException {
+			TypesReader tr = new TypesReader(request);
+			TypesWriter tw = new TypesWriter();
+
+			int type = tr.readByte();
+
+			if (type == Packet.SSH_FXP_INIT) {
+				tw.writeByte(Packet.SSH_FXP_VERSION);
+				tw.writeUINT32(3);
+				return tw.getBytes();
+			}
+
+			int id = tr.readUINT32();
+
+			switch (type) {
+			case Packet.SSH_FXP_OPEN:
+				tr.readByteString();
+				int flags = tr.readUINT32();
+
+				if ((flags & 0x00000010) != 0) // SSH_FXF_TRUNC
+					size = 0;
+
+				tw.writeByte(Packet.SSH_FXP_HANDLE);
+				tw.writeUINT32(id);
+				tw.writeString("h");
+				return tw.getBytes();
+
+			case Packet.SSH_FXP_READ: {
+				tr.readByteString();
+				long offset = tr.readUINT64();
+				int len = tr.readUINT32();
+
+				if (offset >= size)
+					return status(id, ErrorCodes.SSH_FX_EOF);
+
+				len = (int) Math.min(Math.min(len, maxData), size - offset);
+				dataSent += len;
+
+				tw.writeByte(Packet.SSH_FXP_DATA);
+				tw.writeUINT32(id);
+				tw.writeString(file, (int) offset, len);
+				return tw.getBytes();
+			}
+
+			case Packet.SSH_FXP_WRITE: {
+				tr.readByteString();
+				int offset = (int) tr.readUINT64();
+				byte[] data = tr.readByteString();
+
+				if (offset + data.length > file.length) {
+					byte[] bigger = new byte[Math.max(offset + data.length, file.length * 2)];
+					System.arraycopy(file, 0, bigger, 0, size);
+					file = bigger;
+				}
+
+				System.arraycopy(data, 0, file, offset, data.length);
+				size = Math.max(size, offset + data.length);
+
+				return status(id, ErrorCodes.SSH_FX_OK);
+			}
+
+			case Packet.SSH_FXP_CLOSE:
+				return status(id, ErrorCodes.SSH_FX_OK);
+
+			default:
+				return status(id, ErrorCodes.SSH_FX_OP_UNSUPPORTED);
+			}
+		}
+
+		private static byte[] status(int id, int code) {
+			TypesWriter tw = new TypesWriter();
+
+			tw.writeByte(Packet.SSH_FXP_STATUS);
+			tw.writeUINT32(id);
+			tw.writeUINT32(code);
+			tw.writeString("");
+			tw.writeString("");
+
+			return tw.getBytes();
+		}
+
+		private byte[] readMessage() throws IOException {
+			byte[] header = new byte[4];
+
+			if (!readFully(header))
+				return null;
+
+			int len = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8)
+					| (header[3] & 0xff);
+
+			byte[] msg = new byte[len];
+
+			if (!readFully(msg))
+				throw new IOException("Truncated request");
+
+			return msg;
+		}
+
+		private boolean readFully(byte[] buf) throws IOException {
+			int off = 0;
+
+			while (off < buf.length) {
+				int n = in.read(buf, off, buf.length - off);
+
+				if (n < 0) {
+					if (off == 0)
+						return false;
+					throw new IOException("Truncated request");
+				}
+
+				off += n;
+			}
+
+			return true;
+		}
+
+		private void writeMessage(byte[] msg) throws IOException {
+			int len = msg.length;
+
+			out.write(new byte[] { (byte) (len >> 24), (byte) (len >> 16), (byte) (len >> 8), (byte) len });
+			out.write(msg);
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.channel;
+
+import java.util.Arrays;
+
+import com.trilead.ssh2.transport.PacketBufferPool;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that ChannelBuffer returns data in order while its segment ring
+ * wraps around and grows, and that consumed buffers go back to the pool.
+ */
+public class ChannelBufferTest extends AndroidTestCase {
+	private static final int BUFFER_SIZE = 64;
+
+	private PacketBufferPool pool;
+	private ChannelBuffer buffer;
+
+	/* next byte value to append, and to expect on read */
+	private int written;
+	private int read;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		pool = new PacketBufferPool(BUFFER_SIZE, 4);
+		buffer = new ChannelBuffer(pool);
+		written = 0;
+		read = 0;
+	}
+
+	public void testEmpty() {
+		byte[] dst = new byte[16];
+
+		assertEquals(0, buffer.available());
+		assertEquals(0, buffer.read(dst, 0, dst.length));
+	}
+
+	public void testSmallAppendsShareSegment() {
+		append(10);
+		append(10);
+		append(10);
+
+		assertEquals(30, buffer.available());
+
+		expect(30);
+		assertEquals(0, buffer.available());
+	}
+
+	public void testAppendSpansSegments() {
+		append(BUFFER_SIZE * 3 + 5);
+
+		assertEquals(BUFFER_SIZE * 3 + 5, buffer.available());
+
+		expect(7);
+		expect(BUFFER_SIZE * 3 - 2);
+		assertEquals(0, buffer.available());
+	}
+
+	public void testPacketBufferIsQueuedAndReleased() {
+		byte[] packet = pool.acquire();
+
+		appendBuffer(packet, 9, 40);
+		append(BUFFER_SIZE);
+
+		assertEquals(40 + BUFFER_SIZE, buffer.available());
+
+		// partial read keeps the packet buffer queued
+		expect(20);
+		expect(20 + BUFFER_SIZE);
+
+		// the drained copy segment went back, too
+		byte[] first = pool.acquire();
+		byte[] second = pool.acquire();
+		assertTrue("consumed packet buffer was not given back to the pool", packet == first || packet == second);
+	}
+
+	public void testDrainedBufferHoldsNoSegment() {
+		byte[] packet = new byte[BUFFER_SIZE];
+
+		appendBuffer(packet, 0, 10);
+		expect(10);
+
+		assertSame("drained buffer kept its last segment", packet, pool.acquire());
+
+		// and it still works afterwards
+		append(5);
+		expect(5);
+	}
+
+	public void testWrapAroundAndGrow() {
+		/*
+		 * Keep the ring busy with a mix of queued packet buffers and copied
+		 * data, reading a bit less than is appended, so the head moves past
+		 * the end of the segment array several times before it has to grow.
+		 */
+		for (int round = 0; round < 50; round++) {
+			if (round % 3 == 0)
+				appendBuffer(new byte[BUFFER_SIZE], 3, BUFFER_SIZE - 3);
+			else
+				append(17 + round);
+
+			if (round % 2 == 1)
+				expect(Math.min(buffer.available(), 45));
+		}
+
+		assertTrue(buffer.available() > 0);
+
+		// the ring now holds many segments, some wrapped
+		for (int round = 0; round < 20; round++) {
+			appendBuffer(new byte[BUFFER_SIZE], 0, BUFFER_SIZE);
+			append(5);
+		}
+
+		int left = buffer.available();
+		assertEquals(written - read, left);
+
+		while (buffer.available() > 0)
+			expect(Math.min(buffer.available(), 33));
+
+		assertEquals(0, buffer.available());
+
+		// still usable after draining
+		append(100);
+		expect(100);
+	}
+
+	/** Copy len bytes of the running pattern. */
+	private void append(int len) {
+		byte[] src = new byte[len + 6];
+
+		for (int i = 0; i < len; i++)
+			src[3 + i] = (byte) written++;
+
+		buffer.append(src, 3, len);
+	}
+
+	/** Queue packet without copying, after filling it with the running pattern. */
+	private void appendBuffer(byte[] packet, int off, int len) {
+		Arrays.fill(packet, (byte) 0xaa);
+
+		for (int i = 0; i < len; i++)
+			packet[off + i] = (byte) written++;
+
+		buffer.appendBuffer(packet, off, len);
+	}
+
+	/** Read len bytes, check they continue the pattern. */
+	private void expect(int len) {
+		byte[] dst = new byte[len + 2];
+		int before = buffer.available();
+
+		assertEquals(len, buffer.read(dst, 1, len));
+		assertEquals(before - len, buffer.available());
+
+		for (int i = 0; i < len; i++)
+			assertEquals("byte " + read, (byte) read++, dst[1 + i]);
+	}
+}
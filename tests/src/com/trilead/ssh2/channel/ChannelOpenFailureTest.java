@@ -0,0 +1,142 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+
+import org.connectbot.mock.RecordingTransportManager;
+
+import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
+import com.trilead.ssh2.packets.Packets;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that a channel the server refused to open gives up its id only
+ * once, even when the id has already gone to the next channel by the time
+ * the opener wakes up.
+ */
+public class ChannelOpenFailureTest extends AndroidTestCase {
+	private static final int REMOTE_ID = 7;
+
+	private RecordingTransportManager tm;
+	private ChannelManager cm;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		tm = new RecordingTransportManager();
+		cm = new ChannelManager(tm);
+	}
+
+	public void testFailureThenReopen() throws Exception {
+		Opener first = new Opener();
+		first.start();
+
+		int id = takeOpen();
+		Channel a = cm.channels.get(id);
+		assertNotNull(a);
+
+		Opener second = new Opener();
+
+		/*
+		 * Keep the first opener from waking up until the server has refused
+		 * its channel and the second channel has been opened on the same id.
+		 */
+		synchronized (a) {
+			cm.handleMessage(openFailure(id), openFailure(id).length);
+
+			second.start();
+
+			assertEquals("id was not reused", id, takeOpen());
+
+			byte[] confirmation = new PacketChannelOpenConfirmation(id, REMOTE_ID, 1 << 20, 32768).getPayload();
+			cm.handleMessage(confirmation, confirmation.length);
+
+			second.join(5000);
+		}
+
+		first.join(5000);
+
+		assertNotNull("refused channel was reported open", first.error);
+		assertNull(second.error);
+
+		Channel b = second.opened;
+		assertNotNull(b);
+		assertEquals(id, b.localID);
+		assertSame(b, cm.channels.get(id));
+
+		// the server goes on using the channel
+		byte[] data = new byte[9 + 3];
+		data[0] = (byte) Packets.SSH_MSG_CHANNEL_DATA;
+		writeInt(data, 1, id);
+		writeInt(data, 5, 3);
+		cm.handleMessage(data, data.length);
+
+		assertEquals(3, b.stdoutBuffer.available());
+	}
+
+	private int takeOpen() throws Exception {
+		byte[] open = tm.take(5000);
+		assertNotNull("no SSH_MSG_CHANNEL_OPEN", open);
+		assertEquals(Packets.SSH_MSG_CHANNEL_OPEN, open[0]);
+
+		return readInt(open, 1 + 4 + "session".length());
+	}
+
+	private static byte[] openFailure(int id) {
+		byte[] msg = new byte[1 + 4 + 4 + 4 + 4];
+
+		msg[0] = (byte) Packets.SSH_MSG_CHANNEL_OPEN_FAILURE;
+		writeInt(msg, 1, id);
+		writeInt(msg, 5, 1); // SSH_OPEN_ADMINISTRATIVELY_PROHIBITED
+
+		return msg;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8)
+				| (b[off + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >> 24);
+		b[off + 1] = (byte) (v >> 16);
+		b[off + 2] = (byte) (v >> 8);
+		b[off + 3] = (byte) v;
+	}
+
+	private class Opener extends Thread {
+		volatile Channel opened;
+		volatile IOException error;
+
+		Opener() {
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				opened = cm.openSessionChannel();
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+	}
+}
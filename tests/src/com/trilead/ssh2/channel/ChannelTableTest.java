@@ -0,0 +1,185 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.channel;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.connectbot.mock.RecordingTransportManager;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks id assignment and lookup in ChannelTable.
+ */
+public class ChannelTableTest extends AndroidTestCase {
+	private ChannelManager cm;
+	private ChannelTable table;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		cm = new ChannelManager(new RecordingTransportManager());
+		table = new ChannelTable();
+	}
+
+	public void testIdsStartAt100() {
+		Channel[] c = add(3);
+
+		assertEquals(100, c[0].localID);
+		assertEquals(101, c[1].localID);
+		assertEquals(102, c[2].localID);
+
+		for (int i = 0; i < c.length; i++)
+			assertSame(c[i], table.get(c[i].localID));
+	}
+
+	public void testLowestFreeIdIsReused() {
+		Channel[] c = add(5);
+
+		table.remove(c[3]);
+		table.remove(c[1]);
+
+		assertNull(table.get(101));
+		assertNull(table.get(103));
+
+		Channel a = add();
+		Channel b = add();
+		Channel d = add();
+
+		assertEquals(101, a.localID);
+		assertEquals(103, b.localID);
+		assertEquals(105, d.localID);
+
+		assertSame(c[0], table.get(100));
+		assertSame(a, table.get(101));
+		assertSame(c[2], table.get(102));
+		assertSame(b, table.get(103));
+		assertSame(c[4], table.get(104));
+		assertSame(d, table.get(105));
+	}
+
+	public void testRemoveIsIdempotent() {
+		Channel[] c = add(3);
+
+		table.remove(c[1]);
+		table.remove(c[1]);
+
+		assertEquals(2, table.toArray().length);
+		assertEquals(101, add().localID);
+		assertEquals(103, add().localID);
+	}
+
+	public void testRemoveAfterIdReuse() {
+		Channel[] c = add(3);
+
+		table.remove(c[1]);
+
+		Channel reused = add();
+		assertEquals(101, reused.localID);
+
+		// a late second removal of the old channel must not evict the new one
+		table.remove(c[1]);
+
+		assertSame(reused, table.get(101));
+		assertEquals(3, table.toArray().length);
+		assertEquals(103, add().localID);
+	}
+
+	public void testRemoveUnknownChannel() {
+		add(3);
+
+		Channel stranger = new Channel(cm);
+		stranger.localID = 101;
+		table.remove(stranger);
+
+		stranger.localID = 99;
+		table.remove(stranger);
+
+		stranger.localID = 5000;
+		table.remove(stranger);
+
+		assertEquals(3, table.toArray().length);
+		assertNotNull(table.get(101));
+	}
+
+	public void testGrows() {
+		Channel[] c = add(40);
+
+		for (int i = 0; i < c.length; i++) {
+			assertEquals(100 + i, c[i].localID);
+			assertSame(c[i], table.get(100 + i));
+		}
+
+		table.remove(c[7]);
+		assertEquals(107, add().localID);
+		assertEquals(140, add().localID);
+	}
+
+	public void testUnknownIds() {
+		add(2);
+
+		assertNull(table.get(0));
+		assertNull(table.get(99));
+		assertNull(table.get(102));
+		assertNull(table.get(100 + 1000));
+		assertNull(table.get(-1));
+		assertNull(table.get(Integer.MAX_VALUE));
+	}
+
+	public void testToArray() {
+		Channel[] c = add(6);
+
+		table.remove(c[0]);
+		table.remove(c[4]);
+
+		List<Channel> all = Arrays.asList(table.toArray());
+
+		assertEquals(4, all.size());
+		assertTrue(all.contains(c[1]));
+		assertTrue(all.contains(c[2]));
+		assertTrue(all.contains(c[3]));
+		assertTrue(all.contains(c[5]));
+	}
+
+	public void testClear() {
+		add(20);
+
+		table.clear();
+
+		assertEquals(0, table.toArray().length);
+		assertNull(table.get(100));
+		assertEquals(100, add().localID);
+	}
+
+	private Channel add() {
+		Channel c = new Channel(cm);
+		table.add(c);
+		return c;
+	}
+
+	private Channel[] add(int n) {
+		Channel[] c = new Channel[n];
+
+		for (int i = 0; i < n; i++)
+			c[i] = add();
+
+		return c;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.channel;
+
+import java.io.IOException;
+
+import org.connectbot.mock.RecordingTransportManager;
+
+import com.trilead.ssh2.ChannelWindowParameters;
+import com.trilead.ssh2.packets.PacketChannelOpenConfirmation;
+import com.trilead.ssh2.packets.PacketChannelWindowAdjust;
+import com.trilead.ssh2.packets.Packets;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the receive window bookkeeping of ChannelManager: when window
+ * adjusts are sent and how large they are, for fixed and growing windows.
+ */
+public class ChannelWindowTest extends AndroidTestCase {
+	private static final int REMOTE_ID = 7;
+	private static final int WINDOW = 8192;
+	private static final long MS = 1000 * 1000;
+
+	private RecordingTransportManager tm;
+	private ChannelManager cm;
+
+	/* the time the channel manager sees, in ns */
+	private long clock;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		tm = new RecordingTransportManager();
+		clock = 1000 * MS;
+	}
+
+	public void testNoAdjustBeforeHalfWindow() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW));
+
+		receive(c, false, WINDOW / 2 - 1);
+		read(c, false, WINDOW / 2 - 1);
+
+		assertNull("window adjust sent too early", tm.poll());
+	}
+
+	public void testAdjustAfterRead() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW));
+
+		receive(c, false, 5000);
+		assertNull("window adjust sent before the data was read", tm.poll());
+
+		read(c, false, 5000);
+		assertEquals(5000, nextWindowAdjust());
+	}
+
+	public void testWindowOverrun() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW));
+
+		receive(c, false, WINDOW - 10);
+
+		try {
+			receive(c, true, 11);
+			fail("data beyond the window was accepted");
+		} catch (IOException expected) {
+		}
+	}
+
+	public void testUnreadStderrHoldsWindow() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW));
+
+		receive(c, false, 3000);
+		receive(c, true, 3000);
+
+		read(c, false, 3000);
+
+		// only what stdout gave back, stderr still holds 3000
+		assertEquals(3000, nextWindowAdjust());
+
+		read(c, true, 3000);
+		assertNull("less than half the window is in use", tm.poll());
+	}
+
+	public void testWindowStopsAtBandwidthDelayProduct() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW, 1024 * 1024));
+
+		// 1000 bytes per ms, 20 ms round trip
+		int delivered = simulate(c, 1000, 20, 400, 100);
+
+		assertEquals("round trip", 20 * MS, c.roundTrip);
+
+		// four times the bandwidth-delay product of 20000 bytes, and no more
+		assertTrue("window " + c.windowLimit, c.windowLimit >= 4 * 20000 && c.windowLimit <= 4 * 20000 + 8000);
+
+		// the window no longer holds the peer back
+		assertTrue("only " + delivered + " bytes in the last 100 ms", delivered >= 95 * 1000);
+	}
+
+	public void testWindowStopsAtMaximum() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW, 16 * WINDOW));
+
+		// a bandwidth-delay product of 400000 bytes
+		simulate(c, 20000, 20, 300, 0);
+
+		assertEquals(16 * WINDOW, c.windowLimit);
+	}
+
+	public void testFixedWindowIsNotTimed() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW));
+
+		simulate(c, 1000, 20, 100, 0);
+
+		assertEquals(WINDOW, c.windowLimit);
+		assertEquals(0, c.roundTrip);
+	}
+
+	public void testWindowDoesNotGrowWhileDataWaits() throws Exception {
+		Channel c = open(new ChannelWindowParameters(WINDOW, 4 * WINDOW));
+
+		receive(c, false, 5000);
+		read(c, false, 4000);
+
+		// the reader is behind, so the window is not what limits the transfer
+		assertEquals(4000, nextWindowAdjust());
+	}
+
+	private Channel open(ChannelWindowParameters wp) throws Exception {
+		cm = new ChannelManager(tm, wp) {
+			@Override
+			long now() {
+				return clock;
+			}
+		};
+
+		final Channel[] opened = new Channel[1];
+		final IOException[] error = new IOException[1];
+
+		Thread opener = new Thread(new Runnable() {
+			public void run() {
+				try {
+					opened[0] = cm.openSessionChannel();
+				} catch (IOException e) {
+					error[0] = e;
+				}
+			}
+		});
+		opener.start();
+
+		byte[] open = tm.take(5000);
+		assertNotNull("no SSH_MSG_CHANNEL_OPEN", open);
+		assertEquals(Packets.SSH_MSG_CHANNEL_OPEN, open[0]);
+
+		int localID = readInt(open, 1 + 4 + "session".length());
+
+		byte[] confirmation = new PacketChannelOpenConfirmation(localID, REMOTE_ID, 1 << 20, 32768).getPayload();
+		cm.handleMessage(confirmation, confirmation.length);
+
+		opener.join(5000);
+
+		if (error[0] != null)
+			throw error[0];
+
+		assertNotNull("channel was not opened", opened[0]);
+		assertEquals(localID, opened[0].localID);
+
+		return opened[0];
+	}
+
+	/**
+	 * Run a peer that sends as fast as the link and the window allow, in
+	 * steps of one millisecond, with a reader that keeps up. A window adjust
+	 * takes effect one round trip after it was sent.
+	 * 
+	 * @return the bytes delivered in the last <code>tail</code> steps
+	 */
+	private int simulate(Channel c, int bytesPerMs, int roundTripMs, int steps, int tail) throws IOException {
+		int[] grants = new int[roundTripMs];
+		int credit = c.localWindow;
+		int delivered = 0;
+
+		for (int step = 0; step < steps; step++) {
+			credit += grants[step % roundTripMs];
+			grants[step % roundTripMs] = 0;
+
+			int len = Math.min(credit, bytesPerMs);
+
+			if (len > 0) {
+				receive(c, false, len);
+				read(c, false, len);
+				credit -= len;
+
+				if (step >= steps - tail)
+					delivered += len;
+			}
+
+			byte[] msg;
+			while ((msg = tm.poll()) != null)
+				grants[step % roundTripMs] += new PacketChannelWindowAdjust(msg, 0, msg.length).windowChange;
+
+			clock += MS;
+		}
+
+		return delivered;
+	}
+
+	private void receive(Channel c, boolean stderr, int len) throws IOException {
+		int header = stderr ? 13 : 9;
+		byte[] msg = new byte[header + len];
+
+		msg[0] = (byte) (stderr ? Packets.SSH_MSG_CHANNEL_EXTENDED_DATA : Packets.SSH_MSG_CHANNEL_DATA);
+		writeInt(msg, 1, c.localID);
+
+		if (stderr)
+			writeInt(msg, 5, Packets.SSH_EXTENDED_DATA_STDERR);
+
+		writeInt(msg, header - 4, len);
+
+		cm.handleMessage(msg, msg.length);
+	}
+
+	private void read(Channel c, boolean stderr, int len) throws IOException {
+		byte[] buf = new byte[len];
+		int off = 0;
+
+		while (off < len) {
+			int n = cm.getChannelData(c, stderr, buf, off, len - off);
+			assertTrue("channel ended early", n > 0);
+			off += n;
+		}
+	}
+
+	private int nextWindowAdjust() throws IOException {
+		byte[] msg = tm.poll();
+
+		assertNotNull("no window adjust sent", msg);
+
+		PacketChannelWindowAdjust adjust = new PacketChannelWindowAdjust(msg, 0, msg.length);
+		assertEquals(REMOTE_ID, adjust.recipientChannelID);
+
+		assertNull("more than one message sent", tm.poll());
+
+		return adjust.windowChange;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8)
+				| (b[off + 3] & 0xff);
+	}
+
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte) (v >> 24);
+		b[off + 1] = (byte) (v >> 16);
+		b[off + 2] = (byte) (v >> 8);
+		b[off + 3] = (byte) v;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.crypto.cipher;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that BlockCipher.transform() gives the same bytes as calling
+ * transformBlock() for each block, for the CBC and CTR modes over each of
+ * the Java block ciphers, both out of place and in place.
+ */
+public class BlockCipherTransformTest extends AndroidTestCase {
+	private static final int BLOCKS = 37;
+
+	private final Random random = new Random(7);
+
+	public void testCbcOutOfPlace() {
+		for (int i = 0; i < 3; i++) {
+			compare("cbc", i, true, false);
+			compare("cbc", i, false, false);
+		}
+	}
+
+	public void testCbcInPlace() {
+		for (int i = 0; i < 3; i++) {
+			compare("cbc", i, true, true);
+			compare("cbc", i, false, true);
+		}
+	}
+
+	public void testCtrOutOfPlace() {
+		for (int i = 0; i < 3; i++) {
+			compare("ctr", i, true, false);
+			compare("ctr", i, false, false);
+		}
+	}
+
+	public void testCtrInPlace() {
+		for (int i = 0; i < 3; i++) {
+			compare("ctr", i, true, true);
+			compare("ctr", i, false, true);
+		}
+	}
+
+	public void testCtrCounterCarry() {
+		// the low bytes of the counter wrap within one bulk call
+		byte[] iv = new byte[16];
+		Arrays.fill(iv, 8, 16, (byte) 0xff);
+		iv[15] = (byte) 0xf0;
+
+		byte[] key = randomBytes(16);
+		byte[] data = randomBytes(16 * BLOCKS);
+
+		byte[] perBlock = perBlock(mode("ctr", 0, true, key, iv), data);
+		byte[] bulk = new byte[data.length];
+		mode("ctr", 0, true, key, iv).transform(data, 0, data.length, bulk, 0);
+
+		assertEquals(Arrays.toString(perBlock), Arrays.toString(bulk));
+	}
+
+	/**
+	 * Run the same data through two ciphers with the same key and IV: one
+	 * block at a time, and in bulk calls of varying size at odd offsets.
+	 */
+	private void compare(String mode, int cipher, boolean encrypt, boolean inPlace) {
+		String what = mode + " " + name(cipher) + (encrypt ? " encrypt" : " decrypt") + (inPlace ? " in place" : "");
+
+		BlockCipher probe = create(cipher);
+		int bs = probe.getBlockSize();
+
+		byte[] key = randomBytes(keySize(cipher));
+		byte[] iv = randomBytes(bs);
+		byte[] data = randomBytes(bs * BLOCKS);
+
+		byte[] expected = perBlock(mode(mode, cipher, encrypt, key, iv), data);
+
+		BlockCipher bc = mode(mode, cipher, encrypt, key, iv);
+
+		int srcBase = 3;
+		int dstBase = inPlace ? srcBase : 11;
+		byte[] src = new byte[data.length + 20];
+		byte[] dst = inPlace ? src : new byte[data.length + 20];
+
+		System.arraycopy(data, 0, src, srcBase, data.length);
+
+		for (int off = 0; off < data.length;) {
+			int len = Math.min(data.length - off, bs * (1 + random.nextInt(8)));
+
+			bc.transform(src, srcBase + off, len, dst, dstBase + off);
+			off += len;
+		}
+
+		byte[] actual = new byte[data.length];
+		System.arraycopy(dst, dstBase, actual, 0, actual.length);
+
+		assertEquals(what, Arrays.toString(expected), Arrays.toString(actual));
+
+		if (!inPlace) {
+			byte[] left = new byte[data.length];
+			System.arraycopy(src, srcBase, left, 0, left.length);
+			assertEquals(what + ": input changed", Arrays.toString(data), Arrays.toString(left));
+		}
+	}
+
+	private static byte[] perBlock(BlockCipher bc, byte[] data) {
+		int bs = bc.getBlockSize();
+		byte[] out = new byte[data.length];
+
+		for (int off = 0; off < data.length; off += bs)
+			bc.transformBlock(data, off, out, off);
+
+		return out;
+	}
+
+	/** The same as BlockCipherFactory, without the JCE backend. */
+	private static BlockCipher mode(String mode, int cipher, boolean encrypt, byte[] key, byte[] iv) {
+		BlockCipher bc = create(cipher);
+
+		if (mode.equals("ctr")) {
+			bc.init(true, key);
+			return new CTRMode(bc, iv, encrypt);
+		}
+
+		bc.init(encrypt, key);
+		return new CBCMode(bc, iv, encrypt);
+	}
+
+	private static BlockCipher create(int cipher) {
+		switch (cipher) {
+		case 0:
+			return new AES();
+		case 1:
+			return new DESede();
+		default:
+			return new BlowFish();
+		}
+	}
+
+	private static int keySize(int cipher) {
+		return (cipher == 2) ? 16 : 24;
+	}
+
+	private static String name(int cipher) {
+		return create(cipher).getClass().getSimpleName();
+	}
+
+	private byte[] randomBytes(int len) {
+		byte[] b = new byte[len];
+		random.nextBytes(b);
+		return b;
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.crypto.cipher;
+
+import java.util.Random;
+
+import com.trilead.ssh2.crypto.JceProvider;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the AES ciphers delegated to a JCE provider produce the same
+ * bytes as the AES, CBCMode and CTRMode classes of this library: both give
+ * the NIST SP 800-38A results, and each decrypts what the other encrypted.
+ */
+public class JceCipherTest extends AndroidTestCase {
+	private static final String[] TYPES = { "aes128-ctr", "aes192-ctr", "aes256-ctr", "aes128-cbc", "aes192-cbc",
+			"aes256-cbc" };
+
+	/* NIST SP 800-38A, F.2.1 (CBC-AES128) and F.5.1 (CTR-AES128) */
+	private static final String KEY = "2b7e151628aed2a6abf7158809cf4f3c";
+	private static final String CBC_IV = "000102030405060708090a0b0c0d0e0f";
+	private static final String CTR_IV = "f0f1f2f3f4f5f6f7f8f9fafbfcfdfeff";
+	private static final String PLAIN = "6bc1bee22e409f96e93d7e117393172a" + "ae2d8a571e03ac9c9eb76fac45af8e51"
+			+ "30c81c46a35ce411e5fbc1191a0a52ef" + "f69f2445df4f9b17ad2b417be66c3710";
+	private static final String CBC_CIPHER = "7649abac8119b246cee98e9b12e9197d" + "5086cb9b507219ee95db113a917678b2"
+			+ "73bed6b8e3c1743b7116e69e22229516" + "3ff1caa1681fac09120eca307586e1a7";
+	private static final String CTR_CIPHER = "874d6191b620e3261bef6864990db6ce" + "9806f66b7970fdff8617187bb9fffdff"
+			+ "5ae4df3edbd5d35e5b4f09020db03eab" + "1e031dda2fbe03d1792170a0f3009cee";
+
+	private final Random random = new Random(23);
+
+	@Override
+	protected void tearDown() throws Exception {
+		JceProvider.setEnabled(true);
+
+		super.tearDown();
+	}
+
+	public void testFactoryDelegates() {
+		byte[] key = new byte[16];
+		byte[] iv = new byte[16];
+
+		assertTrue(BlockCipherFactory.createCipher("aes128-ctr", true, key, iv) instanceof JceCipher);
+		assertTrue(BlockCipherFactory.createCipher("aes128-cbc", false, key, iv) instanceof JceCipher);
+
+		JceProvider.setEnabled(false);
+
+		assertTrue(BlockCipherFactory.createCipher("aes128-ctr", true, key, iv) instanceof CTRMode);
+		assertTrue(BlockCipherFactory.createCipher("aes128-cbc", false, key, iv) instanceof CBCMode);
+	}
+
+	public void testKnownAnswerCbc() {
+		knownAnswer("aes128-cbc", CBC_IV, CBC_CIPHER);
+	}
+
+	public void testKnownAnswerCtr() {
+		knownAnswer("aes128-ctr", CTR_IV, CTR_CIPHER);
+	}
+
+	public void testSameAsJavaImplementation() {
+		for (String type : TYPES) {
+			int blockSize = BlockCipherFactory.getBlockSize(type);
+			byte[] key = randomBytes(BlockCipherFactory.getKeySize(type));
+			byte[] iv = randomBytes(blockSize);
+			byte[] plain = randomBytes(blockSize * 300);
+
+			byte[] fromJce = run(jce(type, true, key, iv), plain);
+			byte[] fromJava = run(java(type, true, key, iv), plain);
+
+			assertEquals(type + " encryption", hex(fromJava), hex(fromJce));
+
+			// and each side decrypts what the other encrypted
+			assertEquals(type + " decryption", hex(plain), hex(run(jce(type, false, key, iv), fromJava)));
+			assertEquals(type + " decryption", hex(plain), hex(run(java(type, false, key, iv), fromJce)));
+		}
+	}
+
+	private void knownAnswer(String type, String iv, String expected) {
+		byte[] key = bytes(KEY);
+		byte[] plain = bytes(PLAIN);
+
+		assertEquals(expected, hex(run(jce(type, true, key, bytes(iv)), plain)));
+		assertEquals(expected, hex(run(java(type, true, key, bytes(iv)), plain)));
+
+		assertEquals(PLAIN, hex(run(jce(type, false, key, bytes(iv)), bytes(expected))));
+		assertEquals(PLAIN, hex(run(java(type, false, key, bytes(iv)), bytes(expected))));
+	}
+
+	private static BlockCipher jce(String type, boolean encrypt, byte[] key, byte[] iv) {
+		String mode = type.endsWith("-ctr") ? "CTR" : "CBC";
+
+		return new JceCipher("AES/" + mode + "/NoPadding", "AES", encrypt, key, iv);
+	}
+
+	/** What BlockCipherFactory builds when the JCE backend is off. */
+	private static BlockCipher java(String type, boolean encrypt, byte[] key, byte[] iv) {
+		AES aes = new AES();
+
+		if (type.endsWith("-ctr")) {
+			aes.init(true, key);
+			return new CTRMode(aes, iv, encrypt);
+		}
+
+		aes.init(encrypt, key);
+		return new CBCMode(aes, iv, encrypt);
+	}
+
+	/**
+	 * Run data through the cipher in pieces of varying size, the way packets
+	 * go through it, so that the state carried from one call to the next is
+	 * compared as well.
+	 */
+	private byte[] run(BlockCipher bc, byte[] data) {
+		int bs = bc.getBlockSize();
+		byte[] out = new byte[data.length];
+		int off = 0;
+
+		while (off < data.length) {
+			int len = Math.min(data.length - off, bs * (1 + random.nextInt(20)));
+
+			if (len == bs)
+				bc.transformBlock(data, off, out, off);
+			else
+				bc.transform(data, off, len, out, off);
+
+			off += len;
+		}
+
+		return out;
+	}
+
+	private byte[] randomBytes(int len) {
+		byte[] b = new byte[len];
+		random.nextBytes(b);
+		return b;
+	}
+
+	private static byte[] bytes(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+
+		for (int i = 0; i < b.length; i++)
+			b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+
+		return b;
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < b.length; i++)
+			sb.append(String.format("%02x", b[i] & 0xff));
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.crypto.dh;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks DhKeyPairPool: take() computes a pair itself when none is ready,
+ * pairs made in the background are handed out once and only replaced by
+ * refill(), and every pair is a valid one for its group.
+ * <p>
+ * The pool is static, so the tests do not assume it starts out empty.
+ */
+public class DhKeyPairPoolTest extends AndroidTestCase {
+	private static final int POOL_SIZE = 2;
+
+	public void testGenerate() {
+		assertValid(1, DhKeyPairPool.generate(1, new SecureRandom()));
+		assertValid(14, DhKeyPairPool.generate(14, new SecureRandom()));
+	}
+
+	public void testTakeComputesWhenEmpty() {
+		CountingRandom rnd = new CountingRandom();
+
+		/* Drain whatever is ready; once nothing is, take() has to use rnd */
+
+		for (int i = 0; i < 20 && rnd.used == 0; i++)
+			assertValid(1, DhKeyPairPool.take(1, rnd));
+
+		assertTrue("never computed a pair itself", rnd.used > 0);
+	}
+
+	public void testPrefillAndRefill() throws Exception {
+		/* Fill every group, so the background thread has nothing left to do */
+		DhKeyPairPool.prefill(14);
+		DhKeyPairPool.prefill(1);
+		waitForReady(14, POOL_SIZE);
+		waitForReady(1, POOL_SIZE);
+		joinWorker();
+
+		CountingRandom rnd = new CountingRandom();
+		BigInteger[] first = DhKeyPairPool.take(14, rnd);
+		BigInteger[] second = DhKeyPairPool.take(14, rnd);
+
+		assertEquals("ready pair was not used", 0, rnd.used);
+		assertValid(14, first);
+		assertValid(14, second);
+		assertFalse("pair handed out twice", first[0].equals(second[0]));
+
+		// used pairs are not replaced while a key exchange may be running
+		Thread.sleep(300);
+		assertEquals(0, DhKeyPairPool.readyCount(14));
+
+		DhKeyPairPool.refill();
+		waitForReady(14, POOL_SIZE);
+
+		// and not beyond the pool size
+		Thread.sleep(300);
+		assertEquals(POOL_SIZE, DhKeyPairPool.readyCount(14));
+	}
+
+	public void testUnknownGroup() {
+		try {
+			DhKeyPairPool.take(5, new SecureRandom());
+			fail("group 5 accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	private static void waitForReady(int group, int count) throws InterruptedException {
+		long end = System.currentTimeMillis() + 30000;
+
+		while (DhKeyPairPool.readyCount(group) < count) {
+			assertTrue("background thread did not fill the pool", System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void joinWorker() throws InterruptedException {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals("DH key pair pool")) {
+				t.join(5000);
+				assertFalse("background thread still running", t.isAlive());
+			}
+		}
+	}
+
+	private static void assertValid(int group, BigInteger[] pair) {
+		BigInteger p = (group == 1) ? DhExchange.p1 : DhExchange.p14;
+		BigInteger x = pair[0];
+		BigInteger e = pair[1];
+
+		assertTrue(x.signum() > 0);
+		assertTrue(x.compareTo(p) < 0);
+		assertEquals(DhExchange.g.modPow(x, p), e);
+	}
+
+	/** Counts how often it was asked for random bytes. */
+	private static class CountingRandom extends SecureRandom {
+		volatile int used = 0;
+
+		@Override
+		public synchronized void nextBytes(byte[] bytes) {
+			used++;
+			super.nextBytes(bytes);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.crypto.digest;
+
+import java.util.Random;
+
+import com.trilead.ssh2.crypto.JceProvider;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that the HMACs delegated to a JCE provider match the HMAC class of
+ * this library: both give the RFC 2202 results, and MAC computes the same
+ * packet MACs either way, including the truncated -96 variants.
+ */
+public class JceHMACTest extends AndroidTestCase {
+	private final Random random = new Random(42);
+
+	@Override
+	protected void tearDown() throws Exception {
+		JceProvider.setEnabled(true);
+
+		super.tearDown();
+	}
+
+	public void testMacDelegates() {
+		assertTrue(new MAC("hmac-sha1", new byte[20]).mac instanceof JceHMAC);
+		assertTrue(new MAC("hmac-md5-96", new byte[16]).mac instanceof JceHMAC);
+
+		JceProvider.setEnabled(false);
+
+		assertTrue(new MAC("hmac-sha1", new byte[20]).mac instanceof HMAC);
+		assertTrue(new MAC("hmac-md5-96", new byte[16]).mac instanceof HMAC);
+	}
+
+	public void testKnownAnswerSha1() throws Exception {
+		// RFC 2202, test cases 1 and 2
+		knownAnswer("HmacSHA1", new SHA1(), repeat(0x0b, 20), "Hi There", "b617318655057264e28bc0b6fb378c8ef146be00");
+		knownAnswer("HmacSHA1", new SHA1(), "Jefe".getBytes("US-ASCII"), "what do ya want for nothing?",
+				"effcdf6ae5eb2fa2d27416d5f184df9c259a7c79");
+	}
+
+	public void testKnownAnswerMd5() throws Exception {
+		// RFC 2202, test cases 1 and 2
+		knownAnswer("HmacMD5", new MD5(), repeat(0x0b, 16), "Hi There", "9294727a3638bb1c13f48ef8158bfc9d");
+		knownAnswer("HmacMD5", new MD5(), "Jefe".getBytes("US-ASCII"), "what do ya want for nothing?",
+				"750c783e6ab0b503eaa86e310a5db738");
+	}
+
+	public void testSameMacsAsJavaImplementation() {
+		String[] types = MAC.getMacList();
+
+		for (String type : types) {
+			byte[] key = randomBytes(MAC.getKeyLen(type));
+
+			MAC jce = new MAC(type, key);
+
+			JceProvider.setEnabled(false);
+			MAC java = new MAC(type, key);
+			JceProvider.setEnabled(true);
+
+			assertTrue(jce.mac instanceof JceHMAC);
+			assertTrue(java.mac instanceof HMAC);
+			assertEquals(type, java.size(), jce.size());
+
+			// a MAC object is reused for every packet
+			for (int seq = 0; seq < 50; seq++) {
+				byte[] packet = randomBytes(1 + random.nextInt(2000));
+
+				assertEquals(type + " packet " + seq, hex(packetMac(java, seq, packet)),
+						hex(packetMac(jce, seq, packet)));
+			}
+		}
+	}
+
+	private static void knownAnswer(String algorithm, Digest hash, byte[] key, String data, String expected)
+			throws Exception {
+		byte[] msg = data.getBytes("US-ASCII");
+		int size = hash.getDigestLength();
+
+		assertEquals(algorithm, expected, hex(digest(new JceHMAC(algorithm, key, size), msg)));
+		assertEquals(algorithm, expected, hex(digest(new HMAC(hash, key, size), msg)));
+
+		// truncated to 96 bits
+		assertEquals(algorithm, expected.substring(0, 24), hex(digest(new JceHMAC(algorithm, key, 12), msg)));
+	}
+
+	private static byte[] digest(Digest d, byte[] msg) {
+		byte[] out = new byte[d.getDigestLength()];
+
+		d.update(msg, 0, msg.length);
+		d.digest(out, 0);
+
+		return out;
+	}
+
+	private static byte[] packetMac(MAC mac, int seq, byte[] packet) {
+		byte[] out = new byte[mac.size()];
+
+		mac.initMac(seq);
+		mac.update(packet, 0, packet.length);
+		mac.getMac(out, 0);
+
+		return out;
+	}
+
+	private byte[] randomBytes(int len) {
+		byte[] b = new byte[len];
+		random.nextBytes(b);
+		return b;
+	}
+
+	private static byte[] repeat(int value, int len) {
+		byte[] b = new byte[len];
+
+		for (int i = 0; i < len; i++)
+			b[i] = (byte) value;
+
+		return b;
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < b.length; i++)
+			sb.append(String.format("%02x", b[i] & 0xff));
+
+		return sb.toString();
+	}
+}
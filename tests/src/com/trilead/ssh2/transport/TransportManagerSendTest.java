@@ -0,0 +1,261 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the send queue of TransportManager: senders return once their
+ * message is queued, wait when too much is queued, and learn about a write
+ * error with their next call. The non-blocking sender never waits, and is
+ * told when the queue has room again.
+ */
+public class TransportManagerSendTest extends AndroidTestCase {
+	private static final int MESSAGE_SIZE = 10000;
+
+	private GatedOutputStream out;
+	private TransportManager tm;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		out = new GatedOutputStream();
+
+		tm = new TransportManager("localhost", 22);
+		tm.tc = new TransportConnection(new ByteArrayInputStream(new byte[0]), out, new SecureRandom());
+
+		tm.sendThread = new Thread(new Runnable() {
+			public void run() {
+				tm.sendLoop();
+			}
+		});
+		tm.sendThread.setDaemon(true);
+		tm.sendThread.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		out.open();
+		tm.close(new IOException("test done"), false);
+		tm.sendThread.join(5000);
+
+		super.tearDown();
+	}
+
+	public void testReturnsBeforeWrite() throws Exception {
+		tm.sendMessage(new byte[100], 100);
+		tm.sendMessage(new byte[100], 100);
+
+		assertEquals("written although the output is blocked", 0, out.written());
+
+		out.open();
+		out.waitFor(200);
+	}
+
+	public void testBackpressure() throws Exception {
+		final int count = 40;
+		final int[] queued = new int[1];
+
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					for (int i = 0; i < count; i++) {
+						tm.sendMessage(new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+
+						synchronized (queued) {
+							queued[0]++;
+						}
+					}
+				} catch (IOException ignore) {
+				}
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+
+		sender.join(500);
+		assertTrue("sender did not wait for the send thread", sender.isAlive());
+
+		synchronized (queued) {
+			assertTrue("only " + queued[0] + " messages queued", queued[0] > 1);
+			assertTrue(queued[0] + " messages queued", queued[0] < count);
+		}
+
+		out.open();
+		sender.join(5000);
+
+		assertFalse("sender still waiting", sender.isAlive());
+		assertEquals(count, queued[0]);
+
+		out.waitFor(count * MESSAGE_SIZE);
+	}
+
+	public void testWriteErrorOnNextCall() throws Exception {
+		out.fail();
+
+		// the first one is queued before anything goes wrong
+		tm.sendMessage(new byte[100], 100);
+
+		tm.sendThread.join(5000);
+		assertFalse("send thread survived the write error", tm.sendThread.isAlive());
+
+		try {
+			tm.sendMessage(new byte[100], 100);
+			fail("write error was not reported");
+		} catch (IOException e) {
+			assertSame(out.error, e.getCause());
+		}
+	}
+
+	public void testPooledBufferReleased() throws Exception {
+		PacketBufferPool pool = new PacketBufferPool(1000, 4);
+		byte[] msg = pool.acquire();
+
+		tm.sendMessage(msg, 100, pool);
+
+		out.open();
+		out.waitFor(100);
+
+		// the buffer is released right after it has been encrypted
+		long end = System.currentTimeMillis() + 5000;
+		byte[] again = pool.acquire();
+
+		while (again != msg && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+			again = pool.acquire();
+		}
+
+		assertSame(msg, again);
+	}
+
+	public void testNonBlockingSender() throws Exception {
+		final int[] ready = new int[1];
+
+		tm.setNonBlockingSender(Thread.currentThread(), new Runnable() {
+			public void run() {
+				synchronized (ready) {
+					ready[0]++;
+					ready.notifyAll();
+				}
+			}
+		});
+
+		// far more than the queue takes, without waiting
+		for (int i = 0; i < 40; i++)
+			tm.sendMessage(new byte[MESSAGE_SIZE], MESSAGE_SIZE);
+
+		assertTrue(tm.isSendQueueFull());
+
+		out.open();
+		out.waitFor(40 * MESSAGE_SIZE);
+
+		synchronized (ready) {
+			long end = System.currentTimeMillis() + 5000;
+
+			while (ready[0] == 0 && System.currentTimeMillis() < end)
+				ready.wait(100);
+
+			assertEquals("listener not run once the queue drained", 1, ready[0]);
+		}
+
+		assertFalse(tm.isSendQueueFull());
+	}
+
+	public void testNonBlockingSenderDuringKeyExchange() throws Exception {
+		tm.setNonBlockingSender(Thread.currentThread(), null);
+		out.open();
+
+		synchronized (tm.connectionSemaphore) {
+			tm.flagKexOngoing = true;
+		}
+
+		assertTrue(tm.isSendQueueFull());
+
+		tm.sendMessage(new byte[100], 100);
+
+		Thread.sleep(100);
+		assertEquals("sent during the key exchange", 0, out.written());
+
+		tm.kexFinished();
+		out.waitFor(100);
+	}
+
+	/**
+	 * Blocks writers until it is opened, then counts the bytes.
+	 */
+	private static class GatedOutputStream extends OutputStream {
+		private boolean open = false;
+		private boolean failing = false;
+		private long written = 0;
+
+		final IOException error = new IOException("broken pipe");
+
+		synchronized void open() {
+			open = true;
+			notifyAll();
+		}
+
+		synchronized void fail() {
+			failing = true;
+			notifyAll();
+		}
+
+		synchronized long written() {
+			return written;
+		}
+
+		/** Wait until at least len bytes have been written. */
+		synchronized void waitFor(long len) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+
+			while (written < len) {
+				long left = end - System.currentTimeMillis();
+				assertTrue("only " + written + " of " + len + " bytes written", left > 0);
+				wait(left);
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			while (!open && !failing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new IOException("interrupted");
+				}
+			}
+
+			if (failing)
+				throw error;
+
+			written += len;
+			notifyAll();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.trilead.ssh2.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Runs ConnectionRacer against local servers: one that accepts, and one
+ * whose accept queue is full, so that connection attempts hang until they
+ * time out or are cancelled. Every connection the racer does not hand out
+ * has to be closed.
+ */
+public class ConnectionRacerTest extends AndroidTestCase {
+	private InetAddress localhost;
+
+	private ServerSocket server;
+	private final List<Socket> clutter = new ArrayList<Socket>();
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		localhost = InetAddress.getByName("127.0.0.1");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for (Socket s : clutter)
+			s.close();
+
+		if (server != null)
+			server.close();
+
+		super.tearDown();
+	}
+
+	public void testConnects() throws Exception {
+		server = new ServerSocket(0, 50, localhost);
+
+		ConnectionRacer racer = new ConnectionRacer();
+		Socket s = racer.connect(addresses(2), server.getLocalPort(), 5000);
+
+		assertTrue(s.isConnected());
+		s.close();
+	}
+
+	public void testTimeout() throws Exception {
+		int port = blockedServer();
+
+		ConnectionRacer racer = new ConnectionRacer();
+		racer.setAttemptDelay(50);
+
+		long start = System.currentTimeMillis();
+
+		try {
+			racer.connect(addresses(3), port, 500);
+			fail("connected to a server that does not answer");
+		} catch (SocketTimeoutException expected) {
+		}
+
+		long took = System.currentTimeMillis() - start;
+		assertTrue("gave up after " + took + " ms", took >= 400 && took < 3000);
+	}
+
+	public void testCancel() throws Exception {
+		int port = blockedServer();
+
+		final ConnectionRacer racer = new ConnectionRacer();
+		racer.setAttemptDelay(50);
+
+		Thread canceller = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException ignore) {
+				}
+				racer.cancel();
+			}
+		});
+		canceller.start();
+
+		long start = System.currentTimeMillis();
+
+		try {
+			racer.connect(addresses(3), port, 0);
+			fail("connected to a server that does not answer");
+		} catch (SocketTimeoutException e) {
+			fail("timed out instead of being cancelled");
+		} catch (IOException expected) {
+		}
+
+		long took = System.currentTimeMillis() - start;
+		assertTrue("cancel took " + took + " ms", took < 3000);
+
+		canceller.join();
+	}
+
+	public void testCancelledBeforeConnect() throws Exception {
+		server = new ServerSocket(0, 50, localhost);
+
+		ConnectionRacer racer = new ConnectionRacer();
+		racer.cancel();
+
+		try {
+			racer.connect(addresses(2), server.getLocalPort(), 5000);
+			fail("cancelled racer connected");
+		} catch (IOException expected) {
+		}
+	}
+
+	/**
+	 * Races with a deadline that runs out about when the attempts get
+	 * through. Whatever the outcome, every connection the server sees has
+	 * to be either the one handed out or closed by the racer.
+	 */
+	public void testNoLeakAtDeadline() throws Exception {
+		server = new ServerSocket(0, 50, localhost);
+
+		for (int round = 0; round < 30; round++) {
+			ConnectionRacer racer = new ConnectionRacer();
+			racer.setAttemptDelay(10);
+
+			Socket won = null;
+
+			try {
+				won = racer.connect(addresses(3), server.getLocalPort(), 1 + round % 3);
+			} catch (IOException e) {
+				// timed out, or all attempts failed
+			}
+
+			int open = 0;
+
+			// collect what reached the server while the attempts settle
+			while (true) {
+				Socket accepted;
+
+				server.setSoTimeout(200);
+				try {
+					accepted = server.accept();
+				} catch (SocketTimeoutException e) {
+					break;
+				}
+
+				accepted.setSoTimeout(2000);
+
+				try {
+					if (accepted.getInputStream().read() != -1)
+						fail("unexpected data");
+				} catch (SocketTimeoutException e) {
+					open++;
+				} finally {
+					accepted.close();
+				}
+			}
+
+			// the socket handed out (if any) is the only one left open
+			assertEquals("round " + round, won != null ? 1 : 0, open);
+
+			if (won != null)
+				won.close();
+		}
+	}
+
+	private InetAddress[] addresses(int n) {
+		InetAddress[] addrs = new InetAddress[n];
+
+		for (int i = 0; i < n; i++)
+			addrs[i] = localhost;
+
+		return addrs;
+	}
+
+	/**
+	 * A server that never accepts, with its accept queue filled up, so
+	 * that further connection attempts get no answer.
+	 */
+	private int blockedServer() throws IOException {
+		server = new ServerSocket(0, 1, localhost);
+		int port = server.getLocalPort();
+
+		for (int i = 0; i < 8; i++) {
+			Socket s = new Socket();
+			clutter.add(s);
+
+			try {
+				s.connect(new InetSocketAddress(localhost, port), 200);
+			} catch (SocketTimeoutException full) {
+				return port;
+			}
+		}
+
+		fail("could not fill the accept queue");
+		return port;
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.mud.telnet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks that TelnetProtocolHandler.filter() strips telnet commands from
+ * the data and answers them the same way, however the input is split
+ * into reads.
+ */
+public class TelnetProtocolHandlerTest extends AndroidTestCase {
+	private static final int IAC = 255;
+	private static final int SB = 250;
+	private static final int SE = 240;
+	private static final int WILL = 251;
+	private static final int DO = 253;
+	private static final int EOR = 239;
+
+	private static final int TELOPT_TTYPE = 24;
+	private static final int TELQUAL_IS = 0;
+	private static final int TELQUAL_SEND = 1;
+
+	/* an option nobody handles */
+	private static final int TELOPT_UNKNOWN = 99;
+
+	private Handler handler;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		handler = new Handler();
+	}
+
+	public void testPlainData() throws Exception {
+		byte[] data = "hello, world\r\n".getBytes("US-ASCII");
+
+		assertData(data, filter(data));
+		assertEquals(0, handler.sent.size());
+	}
+
+	public void testEscapedIac() throws Exception {
+		assertData(bytes('a', IAC, 'b', IAC), filter(bytes('a', IAC, IAC, 'b', IAC, IAC)));
+	}
+
+	public void testEscapedIacSplit() throws Exception {
+		assertData(bytes('a', 'b'), filter(bytes('a', 'b', IAC)));
+		assertData(bytes(IAC, 'c'), filter(bytes(IAC, 'c')));
+	}
+
+	public void testOptionSplit() throws Exception {
+		assertData(bytes('x'), filter(bytes('x', IAC)));
+		assertData(bytes(), filter(bytes(DO)));
+		assertEquals(0, handler.sent.size());
+
+		assertData(bytes('y'), filter(bytes(TELOPT_TTYPE, 'y')));
+		assertData(bytes(IAC, WILL, TELOPT_TTYPE), handler.sent.toByteArray());
+	}
+
+	public void testEndOfRecordSplit() throws Exception {
+		assertData(bytes('a'), filter(bytes('a', IAC)));
+		assertEquals(0, handler.records);
+
+		assertData(bytes('b'), filter(bytes(EOR, 'b')));
+		assertEquals(1, handler.records);
+	}
+
+	public void testSubnegotiationSplitAnywhere() throws Exception {
+		byte[] input = concat("hello".getBytes("US-ASCII"),
+				bytes(IAC, SB, TELOPT_TTYPE, TELQUAL_SEND, IAC, SE),
+				"world".getBytes("US-ASCII"));
+
+		byte[] reply = concat(bytes(IAC, SB, TELOPT_TTYPE, TELQUAL_IS),
+				"vt100".getBytes("US-ASCII"),
+				bytes(IAC, SE));
+
+		for (int split = 0; split <= input.length; split++) {
+			handler = new Handler();
+
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			data.write(filter(range(input, 0, split)));
+			data.write(filter(range(input, split, input.length)));
+
+			assertEquals("split at " + split, "helloworld", new String(data.toByteArray(), "US-ASCII"));
+			assertData(reply, handler.sent.toByteArray());
+		}
+	}
+
+	public void testSubnegotiationByteByByte() throws Exception {
+		byte[] input = concat("a".getBytes("US-ASCII"),
+				bytes(IAC, SB, TELOPT_TTYPE, TELQUAL_SEND, IAC, SE),
+				bytes(IAC, IAC),
+				bytes(IAC, DO, TELOPT_TTYPE),
+				"b".getBytes("US-ASCII"));
+
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		for (int i = 0; i < input.length; i++)
+			data.write(filter(bytes(input[i] & 0xff)));
+
+		assertData(bytes('a', IAC, 'b'), data.toByteArray());
+		assertData(concat(bytes(IAC, SB, TELOPT_TTYPE, TELQUAL_IS),
+				"vt100".getBytes("US-ASCII"),
+				bytes(IAC, SE),
+				bytes(IAC, WILL, TELOPT_TTYPE)), handler.sent.toByteArray());
+	}
+
+	public void testLongSubnegotiationWithEscapedIac() throws Exception {
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+
+		input.write(bytes('<', IAC, SB, TELOPT_UNKNOWN));
+		for (int i = 0; i < 300; i++) {
+			// an escaped IAC, and data bytes that look like commands
+			input.write(i % 10 == 0 ? IAC : i % 200);
+			if (i % 10 == 0)
+				input.write(IAC);
+		}
+		input.write(bytes(IAC, SE, '>'));
+
+		byte[] all = input.toByteArray();
+
+		assertData(bytes('<'), filter(range(all, 0, 150)));
+		assertData(bytes('>'), filter(range(all, 150, all.length)));
+		assertEquals(0, handler.sent.size());
+	}
+
+	public void testDataMovedAtOffset() throws Exception {
+		byte[] buf = concat(bytes('#', '#'), bytes('a', IAC, DO, TELOPT_TTYPE, 'b', 'c', IAC, IAC, 'd'), bytes('#'));
+
+		int len = handler.filter(buf, 2, buf.length - 3);
+
+		assertEquals(5, len);
+		assertData(bytes('#', '#', 'a', 'b', 'c', IAC, 'd'), range(buf, 0, 2 + len));
+		assertEquals('#', buf[buf.length - 1]);
+	}
+
+	public void testRandomSplits() throws Exception {
+		Random random = new Random(42);
+		ByteArrayOutputStream input = new ByteArrayOutputStream();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+		for (int i = 0; i < 20000; i++) {
+			switch (random.nextInt(10)) {
+			case 6:
+				input.write(IAC);
+				input.write(IAC);
+				expected.write(IAC);
+				break;
+			case 7:
+				input.write(IAC);
+				input.write(WILL + random.nextInt(4));
+				input.write(random.nextInt(40));
+				break;
+			case 8:
+				input.write(bytes(IAC, SB, TELOPT_TTYPE, TELQUAL_SEND, IAC, SE));
+				break;
+			case 9:
+				input.write(bytes(IAC, SB, TELOPT_UNKNOWN, 1, IAC, IAC, 2, IAC, SE));
+				break;
+			default:
+				int b = random.nextInt(IAC);
+				input.write(b);
+				expected.write(b);
+				break;
+			}
+		}
+
+		byte[] all = input.toByteArray();
+
+		// everything in one read
+		Handler whole = new Handler();
+		byte[] wholeData = all.clone();
+		int wholeLen = whole.filter(wholeData, 0, wholeData.length);
+
+		assertData(expected.toByteArray(), range(wholeData, 0, wholeLen));
+
+		// the same in random pieces
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		for (int off = 0; off < all.length;) {
+			int n = Math.min(all.length - off, 1 + random.nextInt(50));
+			data.write(filter(range(all, off, off + n)));
+			off += n;
+		}
+
+		assertData(expected.toByteArray(), data.toByteArray());
+		assertData(whole.sent.toByteArray(), handler.sent.toByteArray());
+
+		// and through the old copying interface
+		Handler old = new Handler();
+		ByteArrayOutputStream oldData = new ByteArrayOutputStream();
+		byte[] out = new byte[64];
+
+		for (int off = 0; off < all.length;) {
+			int n = Math.min(all.length - off, 1 + random.nextInt(50));
+			old.inputfeed(all, off, n);
+			off += n;
+
+			int m;
+			while ((m = old.negotiate(out, 0)) >= 0)
+				oldData.write(out, 0, m);
+		}
+
+		assertData(expected.toByteArray(), oldData.toByteArray());
+		assertData(whole.sent.toByteArray(), old.sent.toByteArray());
+	}
+
+	/** Run one read through the handler, with some slack around it. */
+	private byte[] filter(byte[] input) throws IOException {
+		byte[] buf = new byte[input.length + 7];
+		System.arraycopy(input, 0, buf, 3, input.length);
+
+		int len = handler.filter(buf, 3, input.length);
+
+		return range(buf, 3, 3 + len);
+	}
+
+	/** Arrays.copyOfRange() is not there before API level 9. */
+	private static byte[] range(byte[] b, int from, int to) {
+		byte[] r = new byte[to - from];
+		System.arraycopy(b, from, r, 0, r.length);
+		return r;
+	}
+
+	private static void assertData(byte[] expected, byte[] actual) {
+		assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+	}
+
+	private static byte[] bytes(int... values) {
+		byte[] b = new byte[values.length];
+
+		for (int i = 0; i < values.length; i++)
+			b[i] = (byte) values[i];
+
+		return b;
+	}
+
+	private static byte[] concat(byte[]... parts) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		for (byte[] part : parts)
+			out.write(part);
+
+		return out.toByteArray();
+	}
+
+	private static class Handler extends TelnetProtocolHandler {
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		int records = 0;
+
+		@Override
+		protected String getTerminalType() {
+			return "vt100";
+		}
+
+		@Override
+		protected int[] getWindowSize() {
+			return new int[] { 80, 24 };
+		}
+
+		@Override
+		protected void setLocalEcho(boolean echo) {
+		}
+
+		@Override
+		protected void notifyEndOfRecord() {
+			records++;
+		}
+
+		@Override
+		protected void write(byte[] b) throws IOException {
+			sent.write(b);
+		}
+
+		@Override
+		protected String getCharsetName() {
+			return "UTF-8";
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * ConnectBot: simple, powerful, open-source SSH client for Android
+ * Copyright 2007 Kenny Root, Jeffrey Sharkey
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.connectbot.mock;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+import com.trilead.ssh2.transport.PacketBufferPool;
+import com.trilead.ssh2.transport.TransportManager;
+
+/**
+ * A TransportManager that never connects. Messages sent through it are kept
+ * so a test can look at them; incoming messages are fed to the message
+ * handlers (e.g. a ChannelManager) by the test itself.
+ */
+public class RecordingTransportManager extends TransportManager {
+	private final LinkedList<byte[]> sent = new LinkedList<byte[]>();
+
+	public RecordingTransportManager() throws IOException {
+		super("localhost", 22);
+	}
+
+	@Override
+	public void sendMessage(byte[] msg, int len, PacketBufferPool pool) throws IOException {
+		byte[] copy = new byte[len];
+		System.arraycopy(msg, 0, copy, 0, len);
+
+		if (pool != null)
+			pool.release(msg);
+
+		synchronized (sent) {
+			sent.add(copy);
+			sent.notifyAll();
+		}
+	}
+
+	@Override
+	public void sendAsynchronousMessage(byte[] msg) throws IOException {
+		sendMessage(msg, msg.length);
+	}
+
+	/**
+	 * @return the oldest message not taken yet, or null if none was sent
+	 */
+	public byte[] poll() {
+		synchronized (sent) {
+			return sent.isEmpty() ? null : sent.removeFirst();
+		}
+	}
+
+	/**
+	 * Wait for a message to be sent.
+	 *
+	 * @param timeout in milliseconds
+	 * @return the oldest message not taken yet, or null on timeout
+	 */
+	public byte[] take(long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+
+		synchronized (sent) {
+			while (sent.isEmpty()) {
+				long left = end - System.currentTimeMillis();
+				if (left <= 0)
+					return null;
+				sent.wait(left);
+			}
+
+			return sent.removeFirst();
+		}
+	}
+}